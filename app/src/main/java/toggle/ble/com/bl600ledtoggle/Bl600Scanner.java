@@ -0,0 +1,171 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+import android.os.ParcelUuid;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Scans for BL600 boards. On Lollipop and later the LED service UUID is passed to the controller as a hardware filter
+ * and the scan mode is applied through ScanSettings; on KitKat the legacy startLeScan() is used. Every result is also
+ * checked in software against the {@link ScanFilterSpec}, which covers the MAC prefix and older platforms, so only
+ * matching devices reach the listener.
+ */
+public class Bl600Scanner {
+
+    private final static String TAG = Bl600Scanner.class.getSimpleName();
+
+    /**
+     * Receives matching results on the scan callback thread.
+     */
+    public interface Listener {
+        void onScanResult(BluetoothDevice device, int rssi, byte[] scanRecord);
+    }
+
+    private final BluetoothAdapter mBluetoothAdapter;
+    private final ScanFilterSpec mFilter;
+    private final Listener mListener;
+    private ScanMode mMode;
+    private boolean mScanning;                                                          //Radio is scanning right now
+    private Object mLollipopCallback;                                                   //ScanCallback, kept as Object so this class loads on KitKat
+
+    public Bl600Scanner(BluetoothAdapter bluetoothAdapter, ScanFilterSpec filter, ScanMode mode, Listener listener) {
+        mBluetoothAdapter = bluetoothAdapter;
+        mFilter = filter;
+        mMode = mode;
+        mListener = listener;
+    }
+
+    public synchronized boolean isScanning() {
+        return mScanning;
+    }
+
+    public synchronized ScanMode getMode() {
+        return mMode;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Change the scan mode, restarting the scan if one is running
+    public synchronized void setMode(ScanMode mode) {
+        if (mode == mMode) {
+            return;
+        }
+        mMode = mode;
+        if (mScanning) {
+            stop();
+            start();
+        }
+    }
+
+    public synchronized void start() {
+        if (mScanning) {
+            return;
+        }
+        mScanning = true;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            startLollipop();
+        }
+        else {
+            mBluetoothAdapter.startLeScan(mLeScanCallback);                             //128-bit UUID filtering is unreliable here, filter in software
+        }
+    }
+
+    public synchronized void stop() {
+        if (!mScanning) {
+            return;
+        }
+        mScanning = false;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            stopLollipop();
+        }
+        else {
+            mBluetoothAdapter.stopLeScan(mLeScanCallback);
+        }
+    }
+
+    private void deliver(BluetoothDevice device, int rssi, byte[] scanRecord) {
+        if (mFilter.matches(device.getAddress(), scanRecord)) {
+            mListener.onScanResult(device, rssi, scanRecord);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // KitKat scan callback
+    private final BluetoothAdapter.LeScanCallback mLeScanCallback = new BluetoothAdapter.LeScanCallback() {
+        @Override
+        public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+            deliver(device, rssi, scanRecord);
+        }
+    };
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Lollipop and later, with hardware filtering and a selectable scan mode
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void startLollipop() {
+        BluetoothLeScanner scanner = mBluetoothAdapter.getBluetoothLeScanner();
+        if (scanner == null) {
+            Log.w(TAG, "BluetoothLeScanner not available, is Bluetooth off?");
+            mScanning = false;
+            return;
+        }
+        List<ScanFilter> filters = new ArrayList<ScanFilter>();
+        if (mFilter.getServiceUuid() != null) {
+            filters.add(new ScanFilter.Builder().setServiceUuid(new ParcelUuid(mFilter.getServiceUuid())).build());
+        }
+        ScanSettings settings = new ScanSettings.Builder().setScanMode(toScanSettingsMode(mMode)).build();
+        LollipopCallback callback = new LollipopCallback();
+        mLollipopCallback = callback;
+        scanner.startScan(filters, settings, callback);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void stopLollipop() {
+        BluetoothLeScanner scanner = mBluetoothAdapter.getBluetoothLeScanner();
+        if (scanner != null && mLollipopCallback != null) {
+            scanner.stopScan((ScanCallback) mLollipopCallback);
+        }
+        mLollipopCallback = null;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static int toScanSettingsMode(ScanMode mode) {
+        switch (mode) {
+            case LOW_POWER:
+                return ScanSettings.SCAN_MODE_LOW_POWER;
+            case LOW_LATENCY:
+                return ScanSettings.SCAN_MODE_LOW_LATENCY;
+            default:
+                return ScanSettings.SCAN_MODE_BALANCED;
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private class LollipopCallback extends ScanCallback {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            deliver(result.getDevice(), result.getRssi(), result.getScanRecord() != null ? result.getScanRecord().getBytes() : null);
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            for (ScanResult result : results) {
+                onScanResult(0, result);
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.w(TAG, "Scan failed: " + errorCode);
+        }
+    }
+}
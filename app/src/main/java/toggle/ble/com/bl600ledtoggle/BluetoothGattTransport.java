@@ -0,0 +1,168 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * BleTransport backed by a real BluetoothGatt connection. Characteristics are looked up by UUID when the
+ * operation is started, so the value written is the one captured when the operation was queued. A subclass that owns
+ * the client can replace it by overriding {@link #getGatt()}.
+ */
+public class BluetoothGattTransport implements BleTransport {
+
+    private final static String TAG = BluetoothGattTransport.class.getSimpleName();
+
+    private final BluetoothGatt mBluetoothGatt;
+
+    public BluetoothGattTransport(BluetoothGatt bluetoothGatt) {
+        mBluetoothGatt = bluetoothGatt;
+    }
+
+    protected BluetoothGatt getGatt() {
+        return mBluetoothGatt;
+    }
+
+    @Override
+    public String getAddress() {
+        return getGatt().getDevice().getAddress();
+    }
+
+    @Override
+    public boolean connect() {
+        return getGatt().connect();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // BluetoothGatt.connect() always waits for the device in the background, a direct connection needs a new client
+    @Override
+    public boolean reconnect(boolean background) {
+        return getGatt().connect();
+    }
+
+    @Override
+    public void disconnect() {
+        getGatt().disconnect();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Only whoever opened the client can open a new one, see GattLink
+    @Override
+    public void reset() {
+        Log.w(TAG, "GATT client of " + getAddress() + " cannot be replaced by this transport");
+    }
+
+    @Override
+    public boolean discoverServices() {
+        return getGatt().discoverServices();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Record the discovered services and characteristics so they can be compared with, and stored in, the layout cache
+    @Override
+    public GattLayout getLayout() {
+        List<BluetoothGattService> gattServices = getGatt().getServices();
+        if (gattServices == null) {
+            return null;
+        }
+        List<GattLayout.Characteristic> characteristics = new ArrayList<GattLayout.Characteristic>();
+        for (BluetoothGattService gattService : gattServices) {
+            for (BluetoothGattCharacteristic gattCharacteristic : gattService.getCharacteristics()) {
+                characteristics.add(new GattLayout.Characteristic(gattService.getUuid(), gattCharacteristic.getUuid(),
+                        gattCharacteristic.getProperties(), gattCharacteristic.getDescriptor(LedGattProfile.CHARACTERISTIC_NOTIFICATION_CONFIG) != null));
+            }
+        }
+        return new GattLayout(characteristics);
+    }
+
+    @Override
+    public boolean setNotificationsEnabled(GattLayout.Characteristic characteristic, boolean enabled) {
+        BluetoothGattCharacteristic gattCharacteristic = findCharacteristic(characteristic.service, characteristic.uuid);
+        return gattCharacteristic != null && getGatt().setCharacteristicNotification(gattCharacteristic, enabled);
+    }
+
+    @Override
+    public boolean isBonded() {
+        return getGatt().getDevice().getBondState() == BluetoothDevice.BOND_BONDED;
+    }
+
+    @Override
+    public boolean readCharacteristic(UUID service, UUID characteristic) {
+        BluetoothGattCharacteristic gattCharacteristic = findCharacteristic(service, characteristic);
+        return gattCharacteristic != null && getGatt().readCharacteristic(gattCharacteristic);
+    }
+
+    @Override
+    public boolean writeCharacteristic(UUID service, UUID characteristic, byte[] value, int writeType) {
+        BluetoothGattCharacteristic gattCharacteristic = findCharacteristic(service, characteristic);
+        if (gattCharacteristic == null) {
+            return false;
+        }
+        gattCharacteristic.setValue(value);                                             //Value is set at dispatch time so queued writes do not overwrite each other
+        gattCharacteristic.setWriteType(writeType);
+        return getGatt().writeCharacteristic(gattCharacteristic);
+    }
+
+    @Override
+    public boolean writeDescriptor(UUID service, UUID characteristic, UUID descriptor, byte[] value) {
+        BluetoothGattCharacteristic gattCharacteristic = findCharacteristic(service, characteristic);
+        if (gattCharacteristic == null) {
+            return false;
+        }
+        BluetoothGattDescriptor gattDescriptor = gattCharacteristic.getDescriptor(descriptor);
+        if (gattDescriptor == null) {
+            Log.w(TAG, "Descriptor " + descriptor + " not found on " + characteristic);
+            return false;
+        }
+        gattDescriptor.setValue(value);
+        return getGatt().writeDescriptor(gattDescriptor);
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;                                                               //KitKat always uses the default MTU of 23
+        }
+        return requestMtuLollipop(mtu);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private boolean requestMtuLollipop(int mtu) {
+        return getGatt().requestMtu(mtu);
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int priority) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;                                                               //KitKat keeps whatever interval the link was given
+        }
+        return requestConnectionPriorityLollipop(priority);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private boolean requestConnectionPriorityLollipop(int priority) {
+        return getGatt().requestConnectionPriority(priority);
+    }
+
+    private BluetoothGattCharacteristic findCharacteristic(UUID service, UUID characteristic) {
+        BluetoothGattService gattService = getGatt().getService(service);
+        if (gattService == null) {
+            Log.w(TAG, "Service " + service + " not found");
+            return null;
+        }
+        BluetoothGattCharacteristic gattCharacteristic = gattService.getCharacteristic(characteristic);
+        if (gattCharacteristic == null) {
+            Log.w(TAG, "Characteristic " + characteristic + " not found");
+        }
+        return gattCharacteristic;
+    }
+}
@@ -3,20 +3,20 @@ package toggle.ble.com.bl600ledtoggle;
 import android.os.Bundle;
 import android.support.v7.app.AppCompatActivity;
 import android.view.View;
-import java.util.Arrays;
-import java.util.List;
+import java.io.File;
+import java.io.IOException;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -24,11 +24,12 @@ import android.widget.Button;
 import android.widget.TextView;
 import android.widget.Toast;
 import java.util.UUID;
+import java.util.concurrent.Executor;
 
 /**
  * This Activity receives a Bluetooth device address provides the user interface to connect, display data, and display GATT services
- * and characteristics supported by the device. The Activity communicates with {@code BluetoothLeService}, which in turn
- * interacts with the Bluetooth LE API.
+ * and characteristics supported by the device. The connection itself is run by a {@link LedDeviceSession} from the core
+ * library; this Activity passes it the GATT events and shows what it reports.
  */
 public class ControlActivity extends AppCompatActivity {
 
@@ -37,20 +38,30 @@ public class ControlActivity extends AppCompatActivity {
     public static final String EXTRAS_DEVICE_NAME = "DEVICE_NAME";                      //Name passed by intent that lanched this activity
     public static final String EXTRAS_DEVICE_ADDRESS = "DEVICE_ADDRESS";                //MAC address passed by intent that lanched this activity
 
-    private static final String LED_SERVICE = "cdea40a1-dcdb-42bb-8557-5c3d7d5135cb"; //Private service for LED Toggle
-    private static final String LED_TOGGLE = "f7552729-9d2c-45cc-ba33-a3327a3bb6d0"; //Characteristic for LED Toggle, properties - notify, write, read
-    private static final String CHARACTERISTIC_NOTIFICATION_CONFIG = "00002902-0000-1000-8000-00805f9b34fb";	//Special UUID for descriptor needed to enable notifications
+    private static final int NO_RESPONSE_WRITE_WINDOW = 4;                              //Writes without response allowed in flight before the buttons are held
+    private static final String METRICS_FILE = "ble-metrics.txt";
+    private static final int BLINK_COUNT = 5, BLINK_MILLIS = 200;                       //Pattern sent as one batch by a long press on the toggle button
 
     private BluetoothAdapter mBluetoothAdapter;                                         //BluetoothAdapter controls the Bluetooth radio in the phone
-    private BluetoothGatt mBluetoothGatt;                                               //BluetoothGatt controls the Bluetooth communication link
-    private BluetoothGattCharacteristic mLedCharacteristic;                             //The BLE characteristic used for LED_TOGGLE data transfers
-    private Handler mHandler;                                                           //Handler used to send die roll after a time delay
+    private ConnectionPool<GattLink> mLinkPool;                                         //Process wide pool that keeps links open between Activities
+    private GattLink mLink;                                                             //Link borrowed from the pool while this Activity is resumed
+    private LedDeviceSession mSession;                                                  //Connection, link tuning, service setup and LED commands for the borrowed link
+    private boolean mRecovering;                                                        //Session is bringing a dropped link back, only used on the BLE thread
+    private long mSetupStartNanos;                                                      //When the link was borrowed, for the pool's setup time metric
+    private final BleMetrics mMetrics = BleMetrics.global();                            //Process wide BLE counters and latency histograms
+    private volatile LinkProfile mLinkProfile = LinkProfile.LOW_LATENCY;                //Profile chosen in the options menu
+    private GattLayoutCache mLayoutCache;                                               //GATT layouts of boards seen before, kept across app restarts
+    private final CommandFlowControl mFlowControl = CommandFlowControl.ackDriven();     //One command at a time until we know the characteristic takes writes without response
+    private HandlerThread mBleThread;                                                   //Background thread that makes all BluetoothGatt calls and handles all GATT callbacks
+    private Handler mBleHandler;                                                        //Handler that runs work on the BLE thread, also used for GATT operation timeouts and retries
+    private NotificationPipeline mNotifications;                                        //Carries notification payloads from the Binder thread to the BLE thread without allocating
+    private UiUpdateCoalescer<String> mLedStateUpdates, mLedStateReadUpdates;          //Post only the newest LED state to the UI thread
 
     private TextView mConnectionState, txtLedState, txtLedStateRead;                                      //TextViews to show connection state and die roll number on the display
     private Button toggleLed, readLed;                                                        //Button to initiate a roll of the die
 
     private String mDeviceName, mDeviceAddress;                                         //Strings for the Bluetooth device name and MAC address
-    private boolean mConnected = false;                                                 //Indicator of an active Bluetooth connection
+    private volatile boolean mConnected = false;                                        //Indicator of an active Bluetooth connection
     private boolean writeComplete = false;                                              //Indicator that the characteristic write has completed (for reference - not used)
 
 
@@ -66,7 +77,18 @@ public class ControlActivity extends AppCompatActivity {
         final Intent intent = getIntent();                                              //Get the Intent that launched this activity
         mDeviceName = intent.getStringExtra(EXTRAS_DEVICE_NAME);                        //Get the BLE device name from the Intent
         mDeviceAddress = intent.getStringExtra(EXTRAS_DEVICE_ADDRESS);                  //Get the BLE device address from the Intent
-        mHandler = new Handler();                                                       //Create Handler to delay sending first roll after new connection
+        mBleThread = new HandlerThread("BleIo", Process.THREAD_PRIORITY_FOREGROUND);    //GATT work must not wait behind the main looper
+        mBleThread.start();
+        mBleHandler = new Handler(mBleThread.getLooper());
+        mNotifications = new NotificationPipeline(NotificationPipeline.DEFAULT_SLOTS, NotificationPipeline.MAX_PAYLOAD,
+                new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        mBleHandler.post(command);                                      //Handler takes its Message from the pool, no allocation
+                    }
+                }, mNotificationConsumer);
+        mFlowControl.setListener(mFlowControlListener);                                 //Re-enables the buttons when a command may be sent again
+        mLayoutCache = new GattLayoutCache(new File(getFilesDir(), "gatt"));            //One small file per board under the app's private storage
 
         ((TextView) findViewById(R.id.txtDeviceAddress)).setText(mDeviceAddress);          //Display device address on the screen
         mConnectionState = (TextView) findViewById(R.id.txtConnectionState);               //TextView that will display the connection state
@@ -74,15 +96,31 @@ public class ControlActivity extends AppCompatActivity {
         txtLedStateRead = (TextView) findViewById(R.id.txtLedStateRead);
         toggleLed = (Button) findViewById(R.id.btnToggleLed);                        //Button that will roll the die when clicked
         toggleLed.setOnClickListener(toggleLedClickListener);                     //Set onClickListener for when button is pressed
+        toggleLed.setOnLongClickListener(blinkLedLongClickListener);
         readLed = (Button) findViewById(R.id.btnReadLed);
         readLed.setOnClickListener(readLedClickListener);
+        readLed.setOnLongClickListener(forceReadLedLongClickListener);
+        mLedStateUpdates = new UiUpdateCoalescer<String>(mUiExecutor, new UiUpdateCoalescer.Sink<String>() {
+            @Override
+            public void apply(String state) {
+                txtLedState.setText(state);                                             //Set the LED state text to show new value
+            }
+        });
+        mLedStateReadUpdates = new UiUpdateCoalescer<String>(mUiExecutor, new UiUpdateCoalescer.Sink<String>() {
+            @Override
+            public void apply(String state) {
+                txtLedStateRead.setText(state);                                         //Set the LED state text to show new value
+            }
+        });
 
         final BluetoothManager bluetoothManager = (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE); //Get the BluetoothManager
         mBluetoothAdapter = bluetoothManager.getAdapter();                              //Get a reference to the BluetoothAdapter (radio)
         if (mBluetoothAdapter == null) {                                                //Check if we got the BluetoothAdapter
             Toast.makeText(this, R.string.bluetooth_not_supported, Toast.LENGTH_SHORT).show(); //Message that Bluetooth is not supported
             finish();                                                                   //End the activity
+            return;
         }
+        mLinkPool = GattLinkPool.get(this, mBluetoothAdapter);                          //Links are shared with later Activities through the pool
     }
 
     // ----------------------------------------------------------------------------------------------------------------
@@ -94,15 +132,48 @@ public class ControlActivity extends AppCompatActivity {
         if (mBluetoothAdapter == null || mDeviceAddress == null) {                      //Check that we still have a Bluetooth adappter and device address
             Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");     //Warn that something went wrong
             finish();                                                                   //End the Activity
+            return;
         }
 
-        final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(mDeviceAddress); //Get the Bluetooth device by referencing its address
-        if (device == null) {                                                           //Check whether a device was returned
-            Log.w(TAG, "Device not found.  Unable to connect.");                        //Warn that something went wrong
+        mLink = null;
+        try {
+            mLink = mLinkPool.borrow(mDeviceAddress);                                   //Reuse the link if an earlier screen left it open
+        }
+        catch (IllegalStateException e) {
+            Log.w(TAG, "Unable to connect: " + e.getMessage());                         //Every link the phone can hold is in use, or the gateway serves this board
             finish();                                                                   //End the Activity
+            return;
+        }
+        final LedDeviceSession session = new LedDeviceSession(mLink.createTransport(), new HandlerTaskScheduler(mBleHandler), mLayoutCache);
+        session.setMetrics(mMetrics);
+        session.setGattActivity(GattActivity.global());                                 //A scan running meanwhile steps aside for GATT operations
+        session.setLinkProfile(mLinkProfile);
+        session.setReconnectPolicy(new ReconnectPolicy());                              //Get the link back on its own if it drops while this screen is open
+        session.setWriteMode(LedController.WriteMode.LATEST);                           //Rapid taps only need the last state on the air, patterns go as batches
+        try {
+            session.setJournal(LedJournals.get(this));                                  //History of LED states, written off the BLE thread
         }
-        mBluetoothGatt = device.connectGatt(this, false, mGattCallback);                //Directly connect to the device so autoConnect is false
-        Log.d(TAG, "Trying to create a new connection.");
+        catch (IOException e) {
+            Log.w(TAG, "Unable to open the LED journal", e);                            //Control works without it
+        }
+        session.setListener(mSessionListener);
+        session.setLedListener(mLedListener);
+        mSession = session;
+        mSetupStartNanos = System.nanoTime();
+        mBleHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mLink.isConnected()) {
+                    session.onLinkReused(mLink.getMtu(), mLink.isServicesDiscovered()); //MTU was exchanged while an earlier screen had the link
+                    session.onConnectionStateChange(BluetoothGatt.GATT_SUCCESS, true);  //Pooled link is already up, no callback will come
+                }
+                else {
+                    session.connect();
+                }
+            }
+        });
+        mLink.attach(mGattCallback);                                                    //Link events now come to this Activity
+        Log.d(TAG, mLink.isServicesDiscovered() ? "Reusing pooled connection." : "Trying to create a new connection.");
     }
 
     // ----------------------------------------------------------------------------------------------------------------
@@ -110,8 +181,19 @@ public class ControlActivity extends AppCompatActivity {
     @Override
     protected void onPause() {
         super.onPause();
-        mBluetoothGatt.disconnect();                                                    //Activity is ending so disconnect from Bluetooth device
-        mBluetoothGatt.close();                                                         //Close the connection
+        if (mLink != null) {
+            mLink.detach();                                                             //Stop forwarding link events to this Activity
+            final LedDeviceSession session = mSession;
+            postToSession(new Runnable() {
+                @Override
+                public void run() {
+                    session.setReconnectPolicy(null);                                   //Leave a dropped link to the pool
+                    session.getQueue().clear();                                         //Operations for this screen are no longer wanted
+                }
+            });
+            mLinkPool.release(mDeviceAddress);                                          //Pool keeps the link open for the idle TTL, then disconnects and closes it
+            mConnected = false;
+        }
     }
 
     // ----------------------------------------------------------------------------------------------------------------
@@ -119,8 +201,7 @@ public class ControlActivity extends AppCompatActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        mBluetoothGatt.disconnect();                                                    //Activity is ending so disconnect from Bluetooth device
-        mBluetoothGatt.close();                                                         //Close the connection
+        mBleThread.quitSafely();                                                        //Let queued GATT work finish, then end the BLE thread
     }
 
     // ----------------------------------------------------------------------------------------------------------------
@@ -137,6 +218,8 @@ public class ControlActivity extends AppCompatActivity {
             menu.findItem(R.id.menu_connect).setVisible(true);                          // then show connect option
             menu.findItem(R.id.menu_disconnect).setVisible(false);                      // and don't show disconnect option
         }
+        menu.findItem(mLinkProfile == LinkProfile.HIGH_THROUGHPUT ? R.id.menu_profile_high_throughput
+                : mLinkProfile == LinkProfile.LOW_POWER ? R.id.menu_profile_low_power : R.id.menu_profile_low_latency).setChecked(true);
         return true;
     }
 
@@ -147,15 +230,37 @@ public class ControlActivity extends AppCompatActivity {
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {                                                     //Get which menu item was selected
             case R.id.menu_connect:                                                     //Option to Connect chosen
-                if(mBluetoothGatt != null) {                                            //If there is a valid GATT connection
-                    mBluetoothGatt.connect();                                           // then connect
+                if(mSession != null) {                                                  //If there is a session for the borrowed link
+                    postToSession(new Runnable() {
+                        @Override
+                        public void run() {
+                            mSession.connect();                                         // then connect
+                        }
+                    });
                 }
                 return true;
             case R.id.menu_disconnect:                                                  //Option to Disconnect chosen
-                if(mBluetoothGatt != null) {                                            //If there is a valid GATT connection
-                    mBluetoothGatt.disconnect();                                        // then disconnect
+                if(mSession != null) {                                                  //If there is a session for the borrowed link
+                    postToSession(new Runnable() {
+                        @Override
+                        public void run() {
+                            mSession.disconnect();                                      // then disconnect
+                        }
+                    });
                 }
                 return true;
+            case R.id.menu_profile_low_latency:                                         //Link profile chosen
+                setLinkProfile(LinkProfile.LOW_LATENCY);
+                return true;
+            case R.id.menu_profile_high_throughput:
+                setLinkProfile(LinkProfile.HIGH_THROUGHPUT);
+                return true;
+            case R.id.menu_profile_low_power:
+                setLinkProfile(LinkProfile.LOW_POWER);
+                return true;
+            case R.id.menu_export_metrics:                                              //Write the BLE metrics to a file for a bug report
+                exportMetrics();
+                return true;
             case android.R.id.home:                                                     //Option to go back was chosen
                 onBackPressed();                                                        //Execute functionality of back button
                 return true;
@@ -164,243 +269,364 @@ public class ControlActivity extends AppCompatActivity {
     }
 
     // ----------------------------------------------------------------------------------------------------------------
-    // Update text with connection state
-    private void updateConnectionState(final int resourceId) {
-        runOnUiThread(new Runnable() {
+    // Log the BLE metrics and write them to the app's files directory, off the UI thread
+    private void exportMetrics() {
+        mBleHandler.post(new Runnable() {
             @Override
             public void run() {
-                mConnectionState.setText(resourceId);                                   //Update text to say "Connected" or "Disconnected"
-                txtLedState.setText("0");                                               //Reset LED state to 0 when connection changes
+                File file = new File(getFilesDir(), METRICS_FILE);
+                Log.i(TAG, "BLE metrics:\n" + mMetrics.snapshot());
+                try {
+                    mMetrics.dump(file);
+                    Log.i(TAG, "BLE metrics written to " + file);
+                }
+                catch (IOException e) {
+                    Log.w(TAG, "Unable to write " + file, e);
+                }
             }
         });
     }
 
-    private void setLedState(final String state) {
+    // ----------------------------------------------------------------------------------------------------------------
+    // Update text with connection state
+    private void updateConnectionState(final int resourceId) {
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
-                mLedCharacteristic.setValue(state);                     //Set value of LED characteristic to send new value
-                writeCharacteristic(mLedCharacteristic);               //Call method to write the characteristic
-                txtLedState.setText(state);                             //Set the LED state text to show new value
+                mConnectionState.setText(resourceId);                                   //Update text to say "Connected" or "Disconnected"
+                txtLedState.setText("0");                                               //Reset LED state to 0 when connection changes
+                invalidateOptionsMenu();                                                //Force the Options menu to be regenerated to show the connect or disconnect option
             }
         });
     }
 
-    private void updateLedState(final String state) {
-        runOnUiThread(new Runnable() {
+    // ----------------------------------------------------------------------------------------------------------------
+    // Called on the UI thread when a button is clicked. The write itself is queued from the BLE thread.
+    private void setLedState(final int state) {
+        txtLedState.setText(ledStateText(state));                                       //Set the LED state text to show new value
+        postToSession(new Runnable() {
             @Override
             public void run() {
-                txtLedState.setText(state);                       //Set the LED state text to show new value
+                if (!mSession.setLed(state, mCommandCallback)) {                        //Queue the write, it starts when the link is free
+                    mFlowControl.release();                                             //Nothing was sent, give the credit back
+                }
             }
         });
     }
-    private void updateReadLedState(final String state) {
-        runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                txtLedStateRead.setText(state);                       //Set the LED state text to show new value
-            }
-        });
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Run on the BLE thread, where the session lives
+    private void postToSession(Runnable task) {
+        mBleHandler.post(task);
     }
 
+    private static String ledStateText(int state) {
+        return state != 0 ? "1" : "0";                                                  //Constant strings, nothing is allocated per message
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Executor for UiUpdateCoalescer that runs view updates on the UI thread
+    private final Executor mUiExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            runOnUiThread(command);
+        }
+    };
+
 
     // ----------------------------------------------------------------------------------------------------------------
     // Listener for the toggle LED button
     private final Button.OnClickListener toggleLedClickListener = new Button.OnClickListener() {
 
         public void onClick(View view) {                                                //Button was clicked
+            if (!mFlowControl.tryAcquire()) {                                           //Previous command is still in flight
+                return;
+            }
             if(txtLedState.getText().toString().equals("0")) {
-                setLedState("1");                                                           //Update the state of the die with a new roll and send over BLE
+                setLedState(1);                                                             //Turn the LED on and send over BLE
             }
             else {
-                setLedState("0");                                                           //Update the state of the die with a new roll and send over BLE
+                setLedState(0);                                                             //Turn the LED off and send over BLE
+            }
+            if (!mFlowControl.isReady()) {
+                toggleLed.setEnabled(false); //will be re-enabled as soon as the write is acknowledged
+                readLed.setEnabled(false);
+            }
+        }
+    };
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Long press on the toggle button blinks the LED, sent as one batch
+    private final Button.OnLongClickListener blinkLedLongClickListener = new Button.OnLongClickListener() {
+
+        public boolean onLongClick(View view) {
+            if (!mFlowControl.tryAcquire()) {                                           //Previous command is still in flight
+                return true;
+            }
+            postToSession(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mSession.sendBatch(LedCommandBatch.blink(BLINK_COUNT, BLINK_MILLIS, BLINK_MILLIS), mBatchListener)) {
+                        mFlowControl.release();                                         //LED service is not ready, nothing was sent
+                    }
+                }
+            });
+            if (!mFlowControl.isReady()) {
+                toggleLed.setEnabled(false);                                            //will be re-enabled as soon as the batch is acknowledged
+                readLed.setEnabled(false);
+            }
+            return true;
+        }
+    };
+
+    private final LedBatchWriter.Listener mBatchListener = new LedBatchWriter.Listener() {
+        @Override
+        public void onBatchComplete(LedCommandBatch batch, int status, int writes) {
+            if (status != GattOperation.GATT_SUCCESS) {
+                Log.d(TAG, "LED batch failed after " + writes + " writes: " + status);
             }
-            toggleLed.setEnabled(false); //will be re-enabled when state has been set successfully
-            readLed.setEnabled(false);
+            mFlowControl.release();
         }
     };
 
     // ----------------------------------------------------------------------------------------------------------------
-    // Listener for the read LED button
+    // Listener for the read LED button. A click is answered from the state cache when it is fresh, a long press always
+    // reads from the board.
     private final Button.OnClickListener readLedClickListener = new Button.OnClickListener() {
 
         public void onClick(View view) {                                                //Button was clicked
-            readLed.setEnabled(false); //will be re-enabled when state has been set successfully
-            toggleLed.setEnabled(false);
-            readCharacteristic(mLedCharacteristic);               //Call method to write the characteristic
+            readLedState(false);
         }
     };
 
+    private final Button.OnLongClickListener forceReadLedLongClickListener = new Button.OnLongClickListener() {
 
-    // ----------------------------------------------------------------------------------------------------------------
-    // Iterate through the supported GATT Services/Characteristics to see if the MLDP srevice is supported
-    private void findGattService(List<BluetoothGattService> gattServices) {
-        if (gattServices == null) {                                                     //Verify that list of GATT services is valid
-            Log.d(TAG, "findGattService found no Services");
+        public boolean onLongClick(View view) {
+            readLedState(true);
+            return true;
+        }
+    };
+
+    private void readLedState(final boolean force) {
+        if (!mFlowControl.tryAcquire()) {                                               //Previous command is still in flight
             return;
         }
-        String uuid;                                                                    //String to compare received UUID with desired known UUIDs
-        mLedCharacteristic = null;                                                               //Searching for a characteristic, start with null value
-
-        for (BluetoothGattService gattService : gattServices) {                         //Test each service in the list of services
-            uuid = gattService.getUuid().toString();                                    //Get the string version of the service's UUID
-            if (uuid.equals(LED_SERVICE)) {                                    //See if it matches the UUID of the LED service
-                List<BluetoothGattCharacteristic> gattCharacteristics = gattService.getCharacteristics(); //If so then get the service's list of characteristics
-                for (BluetoothGattCharacteristic gattCharacteristic : gattCharacteristics) { //Test each characteristic in the list of characteristics
-                    uuid = gattCharacteristic.getUuid().toString();                     //Get the string version of the characteristic's UUID
-                    if (uuid.equals(LED_TOGGLE)) {                          //See if it matches the UUID of the LED_TOGGLE data characteristic
-                        mLedCharacteristic = gattCharacteristic;                                 //If so then save the reference to the characteristic
-                        Log.d(TAG, "Found LED toggle characteristics");
-                    }
-                    final int characteristicProperties = gattCharacteristic.getProperties(); //Get the properties of the characteristic
-                    if ((characteristicProperties & (BluetoothGattCharacteristic.PROPERTY_NOTIFY)) > 0) { //See if the characteristic has the Notify property
-                        mBluetoothGatt.setCharacteristicNotification(gattCharacteristic, true); //If so then enable notification in the BluetoothGatt
-                        BluetoothGattDescriptor descriptor = gattCharacteristic.getDescriptor(UUID.fromString(CHARACTERISTIC_NOTIFICATION_CONFIG)); //Get the descripter that enables notification on the server
-                        descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE); //Set the value of the descriptor to enable notification
-                        mBluetoothGatt.writeDescriptor(descriptor);                     //Write the descriptor
-                    }
-                    if ((characteristicProperties & (BluetoothGattCharacteristic.PROPERTY_INDICATE)) > 0) { //See if the characteristic has the Indicate property
-                        mBluetoothGatt.setCharacteristicNotification(gattCharacteristic, true); //If so then enable notification (and indication) in the BluetoothGatt
-                        BluetoothGattDescriptor descriptor = gattCharacteristic.getDescriptor(UUID.fromString(CHARACTERISTIC_NOTIFICATION_CONFIG)); //Get the descripter that enables indication on the server
-                        descriptor.setValue(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE); //Set the value of the descriptor to enable indication
-                        mBluetoothGatt.writeDescriptor(descriptor);                     //Write the descriptor
+        postToSession(new Runnable() {
+            @Override
+            public void run() {
+                if (!mSession.readLed(force, mCommandCallback)) {                       //Queue the Read, it starts when the link is free
+                    mFlowControl.release();                                             //Nothing was sent, give the credit back
+                }
+            }
+        });
+        if (!mFlowControl.isReady()) {
+            readLed.setEnabled(false); //will be re-enabled as soon as the read completes
+            toggleLed.setEnabled(false);
+        }
+    }
+
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Select a link profile, applied now if connected and on every later connection
+    private void setLinkProfile(final LinkProfile profile) {
+        mLinkProfile = profile;
+        invalidateOptionsMenu();                                                        //Move the check mark
+        if (mSession != null) {
+            postToSession(new Runnable() {
+                @Override
+                public void run() {
+                    mSession.setLinkProfile(profile);
+                }
+            });
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Called by the session on the BLE thread as the link comes up and goes down
+    private final DeviceSession.Listener mSessionListener = new DeviceSession.Listener() {
+        @Override
+        public void onStateChanged(DeviceSession session, DeviceSession.State state) {
+            switch (state) {
+                case CONNECTED:
+                    Log.i(TAG, "Connected to GATT server.");
+                    mConnected = true;                                                  //Record the new connection state
+                    updateConnectionState(R.string.connected);                          //Update the display to say "Connected"
+                    break;
+                case READY:
+                    Log.d(TAG, "Found LED toggle characteristics, " + mSession.getFormat() + " format");
+                    if (mRecovering) {
+                        mRecovering = false;
+                        Log.i(TAG, "Link recovered in " + mSession.getLastRecoveryMillis() + " ms");
                     }
-                    if ((characteristicProperties & (BluetoothGattCharacteristic.PROPERTY_WRITE)) > 0) { //See if the characteristic has the Write (acknowledged) property
-                        gattCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT); //If so then set the write type (write with acknowledge) in the BluetoothGatt
+                    else if (!mSession.isLinkReused()) {
+                        mLinkPool.recordSetupTime(mDeviceAddress, System.nanoTime() - mSetupStartNanos); //Saved again on every later borrow of this link
                     }
-                    if ((characteristicProperties & (BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE)) > 0) { //See if the characteristic has the Write (unacknowledged) property
-                        gattCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE); //If so then set the write type (write with no acknowledge) in the BluetoothGatt
+                    if (StartupTrace.global().markFirstConnect(System.nanoTime())) {
+                        Log.i(TAG, StartupTrace.global().toString());                   //Launch to first usable row and first connect
                     }
-                }
-                break;                                                                  //Found the LED service and are not looking for any other services
+                    mFlowControl.reset(mSession.isWriteWithoutResponse()                //Writes without response are not acknowledged by the peer, allow a few in flight
+                            ? NO_RESPONSE_WRITE_WINDOW : 1);                            //Releases a command held while the link came up
+                    break;
+                case RECONNECTING:
+                    Log.i(TAG, "Link dropped, reconnecting.");
+                    mRecovering = true;
+                    mConnected = false;
+                    updateConnectionState(R.string.reconnecting);                       //Update the display to say "Reconnecting"
+                    break;
+                case DISCONNECTED:
+                    Log.i(TAG, "Disconnected from GATT server.");
+                    mConnected = false;                                                 //Record the new connection state
+                    updateConnectionState(R.string.disconnected);                       //Update the display to say "Disconnected"
+                    break;
             }
         }
-    }
+    };
 
     // ----------------------------------------------------------------------------------------------------------------
     // Implements callback methods for GATT events that the app cares about.  For example: connection change and services discovered.
-    // When onConnectionStateChange() is called with newState = STATE_CONNECTED then it calls mBluetoothGatt.discoverServices()
-    // resulting in another callback to onServicesDiscovered()
+    // The callbacks arrive on a Binder thread. Each one copies what it needs and hands the event to the session on the BLE
+    // thread, so all GATT processing happens on one thread and only the final view updates go to the UI thread.
     private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
         @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) { //Change in connection state
-            if (newState == BluetoothProfile.STATE_CONNECTED) {                         //See if we are connected
-                Log.i(TAG, "Connected to GATT server.");
-                mConnected = true;                                                      //Record the new connection state
-                updateConnectionState(R.string.connected);                              //Update the display to say "Connected"
-                invalidateOptionsMenu();                                                //Force the Options menu to be regenerated to show the disconnect option
-                mBluetoothGatt.discoverServices();                                      // Attempt to discover services after successful connection.
-            }
-            else if (newState == BluetoothProfile.STATE_DISCONNECTED) {                 //See if we are not connected
-                Log.i(TAG, "Disconnected from GATT server.");
-                mConnected = false;                                                     //Record the new connection state
-                updateConnectionState(R.string.disconnected);                           //Update the display to say "Disconnected"
-                invalidateOptionsMenu();                                                //Force the Options menu to be regenerated to show the connect option
+        public void onConnectionStateChange(BluetoothGatt gatt, final int status, final int newState) { //Change in connection state
+            if (newState != BluetoothProfile.STATE_CONNECTED && newState != BluetoothProfile.STATE_DISCONNECTED) {
+                return;                                                                 //Only connected and disconnected matter to the session
             }
+            postToSession(new Runnable() {
+                @Override
+                public void run() {
+                    mSession.onConnectionStateChange(status, newState == BluetoothProfile.STATE_CONNECTED);
+                }
+            });
         }
 
         @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {              //Service discovery complete
-            if (status == BluetoothGatt.GATT_SUCCESS && mBluetoothGatt != null) {       //See if the service discovery was successful
-                findGattService(mBluetoothGatt.getServices());                          //Get the list of services and call method to look for LED service
-            }
-            else {                                                                      //Service discovery was not successful
+        public void onServicesDiscovered(BluetoothGatt gatt, final int status) {        //Service discovery complete
+            if (status != BluetoothGatt.GATT_SUCCESS) {                                 //Service discovery was not successful
                 Log.w(TAG, "onServicesDiscovered received: " + status);
             }
+            postToSession(new Runnable() {
+                @Override
+                public void run() {
+                    mSession.onServicesDiscovered(status);
+                }
+            });
         }
 
         //For information only. This application uses Indication to receive updated characteristic data, not Read
         @Override
-        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) { //A request to Read has completed
-            if (status == BluetoothGatt.GATT_SUCCESS) {                                 //See if the read was successful
-                final String dataValue;
-                if(characteristic.getStringValue(0).length()>1) {
-                    dataValue = characteristic.getStringValue(1);                     //Get the value of the characteristic
-                }
-                else {
-                    dataValue = characteristic.getStringValue(0);                                     //Has not been set yet
-                }
-
-                Log.d(TAG,"Led state read: "+ dataValue);
-                if(characteristic.getUuid().toString().equals(LED_TOGGLE)) {
-                    mHandler.postDelayed(new Runnable() { //Re-enable toggle button
-                        @Override
-                        public void run() {
-                            //Do something after 100ms
-                            readLed.setEnabled(true);
-                            toggleLed.setEnabled(true);
-                            updateReadLedState(dataValue);
-                        }
-                    }, 100);
-                }
-            }
-            else {
+        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, final int status) { //A request to Read has completed
+            final UUID uuid = characteristic.getUuid();
+            final byte[] value = characteristic.getValue();                             //Copy of the value, the characteristic is reused for the next read
+            if (status != BluetoothGatt.GATT_SUCCESS) {
                 Log.d(TAG,"Read Failed");
             }
+            postToSession(new Runnable() {
+                @Override
+                public void run() {
+                    mSession.onCharacteristicRead(uuid, status, value);
+                }
+            });
         }
 
         //For information only. This application sends small packets infrequently and does not need to know what the previous write completed
         @Override
-        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) { //A request to Write has completed
-            if (status == BluetoothGatt.GATT_SUCCESS) {                                 //See if the write was successful
-                writeComplete = true;                                                   //Record that the write has completed
-                Log.d(TAG, "Outgoing data: " + characteristic.getStringValue(0));
-                mHandler.postDelayed(new Runnable() { //Re-enable toggle button
-                    @Override
-                    public void run() {
-                        //Do something after 100ms
-                        toggleLed.setEnabled(true);
-                        readLed.setEnabled(true);
-                    }
-                }, 100);
-            }
-            else {
-                writeComplete = false;
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, final int status) { //A request to Write has completed
+            final UUID uuid = characteristic.getUuid();
+            writeComplete = status == BluetoothGatt.GATT_SUCCESS;                       //Record whether the write has completed
+            postToSession(new Runnable() {
+                @Override
+                public void run() {
+                    mSession.onCharacteristicWrite(uuid, status);
+                }
+            });
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, final int status) { //A request to write a descriptor has completed
+            final UUID characteristicUuid = descriptor.getCharacteristic().getUuid();
+            final UUID descriptorUuid = descriptor.getUuid();
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.w(TAG, "Descriptor write failed: " + status);
             }
+            postToSession(new Runnable() {
+                @Override
+                public void run() {
+                    mSession.onDescriptorWrite(characteristicUuid, descriptorUuid, status);
+                }
+            });
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, final int mtu, final int status) {  //MTU exchange has completed
+            postToSession(new Runnable() {
+                @Override
+                public void run() {
+                    mSession.onMtuChanged(mtu, status);
+                }
+            });
         }
 
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) { //Indication or notification was received
-            String dataValue = characteristic.getStringValue(1);                        //Get the value of the characteristic
-            byte[] bytes = characteristic.getValue();
-            Log.d(TAG,"Incoming Data "+ dataValue);
-            updateLedState(dataValue);
+            mNotifications.offer(characteristic.getValue(), System.nanoTime());         //Copy into a ring slot, the BLE thread is woken if it is idle
         }
     };
 
     // ----------------------------------------------------------------------------------------------------------------
-    // Request a read of a given BluetoothGattCharacteristic. The Read result is reported asynchronously through the
-    // BluetoothGattCallback onCharacteristicRead callback method.
-    // For information only. This application uses Indication to receive updated characteristic data, not Read
-
-    private void readCharacteristic(BluetoothGattCharacteristic characteristic) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {                      //Check that we have access to a Bluetooth radio
-            Log.w(TAG, "BluetoothAdapter not initialized");
-            return;
+    // Notification payloads from the ring buffer, on the BLE thread. The session decodes straight from the ring slot,
+    // nothing on this path allocates unless packet logging is switched on.
+    private final NotificationPipeline.Consumer mNotificationConsumer = new NotificationPipeline.Consumer() {
+        @Override
+        public void onNotification(byte[] payload, int length, long timestampNanos) {
+            mSession.onCharacteristicChanged(LedGattProfile.LED_TOGGLE, payload, length, timestampNanos);
         }
-        mBluetoothGatt.readCharacteristic(characteristic);                              //Request the BluetoothGatt to Read the characteristic
-    }
+    };
 
     // ----------------------------------------------------------------------------------------------------------------
-    // Write to a given characteristic. The completion of the write is reported asynchronously through the
-    // BluetoothGattCallback onCharacteristicWrite callback method.
-    private void writeCharacteristic(BluetoothGattCharacteristic characteristic) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {                      //Check that we have access to a Bluetooth radio
-            Log.w(TAG, "BluetoothAdapter not initialized");
-            return;
-        }
-        int test = characteristic.getProperties();                                      //Get the properties of the characteristic
-        if ((test & BluetoothGattCharacteristic.PROPERTY_WRITE) == 0 && (test & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) == 0) { //Check that the property is writable
-            return;
+    // LED state read or notified by the board, on the BLE thread
+    private final LedController.Listener mLedListener = new LedController.Listener() {
+        @Override
+        public void onLedStateChanged(LedState state, boolean fromRead) {
+            if (BleLog.PACKETS) {
+                Log.d(TAG, (fromRead ? "Led state read: " : "Incoming Data ") + state);
+            }
+            if (fromRead) {
+                mLedStateReadUpdates.publish(ledStateText(state.state));
+            }
+            else {
+                mLedStateUpdates.publish(ledStateText(state.state));                    //Reusable UI update, only the newest state is shown
+            }
         }
+    };
 
-        if (mBluetoothGatt.writeCharacteristic(characteristic)) {                       //Request the BluetoothGatt to do the Write
-            //The request was accepted, this does not mean the write completed
+    // ----------------------------------------------------------------------------------------------------------------
+    // Called when the queue has finished a read or write started by a button, successfully or not
+    // Returns the flow control credit so the next command can go out straight away
+    private final GattOperation.Callback mCommandCallback = new GattOperation.Callback() {
+        @Override
+        public void onOperationComplete(GattOperation operation, int status, byte[] value) {
+            if (status != GattOperation.GATT_SUCCESS) {
+                Log.d(TAG, operation + " failed: " + status);                           //Not accepted or not acknowledged by the BluetoothGatt after all retries
+            }
+            mFlowControl.release();
         }
-        else {
-            Log.d(TAG, "writeCharacteristic failed");                                   //Write request was not accepted by the BluetoothGatt
+    };
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Called by the flow control when a command may be sent again, re-enables the buttons
+    private final CommandFlowControl.Listener mFlowControlListener = new CommandFlowControl.Listener() {
+        @Override
+        public void onReady() {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    toggleLed.setEnabled(true);
+                    readLed.setEnabled(true);
+                }
+            });
         }
-    }
+    };
 
 
 }
\ No newline at end of file
@@ -0,0 +1,217 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import android.app.Service;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothManager;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Headless gateway: keeps sessions to the boards it is given and serves them over the local HTTP and WebSocket API of
+ * {@link GatewayServer}. The sessions connect, discover and read and write the LED exactly as ControlActivity does,
+ * on a BLE thread of their own, with links taken from the shared {@link GattLinkPool}.
+ *
+ * Started with the addresses to serve; starting it again adds boards. The API listens on the loopback interface unless
+ * EXTRA_BIND_ALL is set, since it has no authentication of its own. With EXTRA_TRACE the GATT traffic of each board is
+ * recorded to files/traces for {@link GattTraceReplayer}.
+ */
+public class GatewayService extends Service {
+    private final static String TAG = GatewayService.class.getSimpleName();
+
+    public static final String EXTRA_ADDRESSES = "GATEWAY_ADDRESSES";                   //String[] of board MAC addresses
+    public static final String EXTRA_PORT = "GATEWAY_PORT";
+    public static final String EXTRA_BIND_ALL = "GATEWAY_BIND_ALL";                     //Serve other machines on the network too
+    public static final String EXTRA_TRACE = "GATEWAY_TRACE";                           //Record the GATT traffic of the boards added by this Intent
+    public static final int DEFAULT_PORT = 8600;
+
+    private HandlerThread mBleThread;                                                   //Background thread for all BluetoothGatt calls of the served boards
+    private Handler mBleHandler;
+    private BluetoothAdapter mBluetoothAdapter;
+    private ConnectionPool<GattLink> mLinkPool;
+    private GattLayoutCache mLayoutCache;
+    private final BleMetrics mMetrics = new BleMetrics();
+    private final LedGateway mGateway = new LedGateway();
+    private final Map<String, LedDeviceSession> mSessions = new HashMap<String, LedDeviceSession>();
+    private final Map<String, GattLink> mLinks = new HashMap<String, GattLink>();
+    private GatewayServer mServer;
+    private final Map<String, GattTraceRecorder> mTraces = new HashMap<String, GattTraceRecorder>();
+    private ExecutorService mTraceWriter;                                               //Writes the trace files, created on first use
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Service created
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mBleThread = new HandlerThread("GatewayBleIo", Process.THREAD_PRIORITY_FOREGROUND);
+        mBleThread.start();
+        mBleHandler = new Handler(mBleThread.getLooper());
+        mLayoutCache = new GattLayoutCache(new File(getFilesDir(), "gatt"));
+        final BluetoothManager bluetoothManager = (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
+        mBluetoothAdapter = bluetoothManager != null ? bluetoothManager.getAdapter() : null;
+        if (mBluetoothAdapter != null) {
+            mLinkPool = GattLinkPool.get(this, mBluetoothAdapter);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Serve the boards in the Intent, starting the API on the first call
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (mBluetoothAdapter == null) {
+            Log.w(TAG, "Bluetooth not supported, gateway not started.");
+            stopSelf();
+            return START_NOT_STICKY;
+        }
+        if (mServer == null) {
+            int port = intent != null ? intent.getIntExtra(EXTRA_PORT, DEFAULT_PORT) : DEFAULT_PORT;
+            boolean bindAll = intent != null && intent.getBooleanExtra(EXTRA_BIND_ALL, false);
+            GatewayServer server = new GatewayServer(mGateway, bindAll
+                    ? new InetSocketAddress(port) : new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            try {
+                server.start();
+            }
+            catch (IOException e) {
+                Log.w(TAG, "Unable to start the gateway API on port " + port, e);
+                stopSelf();
+                return START_NOT_STICKY;
+            }
+            mServer = server;
+            Log.i(TAG, "Gateway API listening on port " + server.getPort());
+        }
+        String[] addresses = intent != null ? intent.getStringArrayExtra(EXTRA_ADDRESSES) : null;
+        boolean trace = intent != null && intent.getBooleanExtra(EXTRA_TRACE, false);
+        if (addresses != null) {
+            for (String address : addresses) {
+                serve(address, trace);
+            }
+        }
+        return START_STICKY;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Open a session to the board the way ControlActivity does and hand it to the gateway
+    private void serve(String address, boolean trace) {
+        if (mSessions.containsKey(address) || !BluetoothAdapter.checkBluetoothAddress(address)) {
+            return;
+        }
+        final GattLink link;
+        try {
+            link = mLinkPool.borrow(address);
+        }
+        catch (IllegalStateException e) {
+            Log.w(TAG, "Unable to connect to " + address + ": " + e.getMessage());     //Every link the phone can hold is in use, or a screen has this board open
+            return;
+        }
+        GattTraceRecorder recorder = trace ? openTrace(address) : null;
+        BleTransport transport = recorder != null ? recorder.wrap(link.createTransport()) : link.createTransport();
+        final LedDeviceSession session = new LedDeviceSession(transport, new HandlerTaskScheduler(mBleHandler), mLayoutCache);
+        session.setTraceRecorder(recorder);
+        session.setMetrics(mMetrics);
+        session.setGattActivity(GattActivity.global());
+        session.setReconnectPolicy(new ReconnectPolicy());                              //Nobody is watching, get dropped links back on our own
+        session.setWriteMode(LedController.WriteMode.LATEST);                           //Only the newest state a client asked for needs to go on the air
+        try {
+            session.setJournal(LedJournals.get(this));
+        }
+        catch (IOException e) {
+            Log.w(TAG, "Unable to open the LED journal", e);
+        }
+        mSessions.put(address, session);
+        mLinks.put(address, link);
+        mGateway.addDevice(address, session, new HandlerTaskScheduler(mBleHandler));
+        link.attach(new SessionGattCallback(session, mBleHandler));
+        mBleHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (link.isConnected()) {
+                    session.onLinkReused(link.getMtu(), link.isServicesDiscovered());
+                    session.onConnectionStateChange(BluetoothGatt.GATT_SUCCESS, true);  //Pooled link is already up, no callback will come
+                }
+                else {
+                    session.connect();
+                }
+            }
+        });
+        Log.d(TAG, "Serving " + address);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Start a trace file for the board, null if it cannot be created
+    private GattTraceRecorder openTrace(String address) {
+        File directory = new File(getFilesDir(), "traces");
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(TAG, "Unable to create " + directory);
+            return null;
+        }
+        if (mTraceWriter == null) {
+            mTraceWriter = Executors.newSingleThreadExecutor();
+        }
+        File file = new File(directory, address.replace(':', '-') + "-" + System.currentTimeMillis() + ".gtrc");
+        try {
+            GattTraceRecorder recorder = new GattTraceRecorder(file, address, mTraceWriter);
+            mTraces.put(address, recorder);
+            Log.i(TAG, "Recording the GATT traffic of " + address + " to " + file);
+            return recorder;
+        }
+        catch (IOException e) {
+            Log.w(TAG, "Unable to record the GATT traffic of " + address, e);
+            return null;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Service stopped, close the API and give the links back to the pool
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (mServer != null) {
+            mServer.close();
+            Log.i(TAG, "Gateway served " + mServer.getRequestCount() + " requests, " + mServer.getLatency().snapshot());
+        }
+        for (Map.Entry<String, LedDeviceSession> entry : mSessions.entrySet()) {
+            final LedDeviceSession session = entry.getValue();
+            mGateway.removeDevice(entry.getKey());
+            mLinks.get(entry.getKey()).detach();                                        //Stop forwarding link events to the session
+            mBleHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    session.setReconnectPolicy(null);                                   //Leave a dropped link to the pool
+                    session.getQueue().clear();                                         //On the BLE thread, where the queue is driven
+                }
+            });
+            mLinkPool.release(entry.getKey());                                          //Pool keeps the link open for the idle TTL
+        }
+        mSessions.clear();
+        mLinks.clear();
+        for (Map.Entry<String, GattTraceRecorder> entry : mTraces.entrySet()) {
+            entry.getValue().close();
+            Log.i(TAG, "Recorded " + entry.getValue().getRecordCount() + " GATT events of " + entry.getKey() + ", "
+                    + entry.getValue().getDroppedCount() + " dropped");
+        }
+        mTraces.clear();
+        if (mTraceWriter != null) {
+            mTraceWriter.shutdown();                                                    //Writes what the recorders handed over, then ends
+        }
+        mBleThread.quitSafely();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;                                                                    //Driven over the network API, not bound
+    }
+}
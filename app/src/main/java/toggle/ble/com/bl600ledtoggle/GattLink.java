@@ -0,0 +1,212 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+
+/**
+ * A GATT link that belongs to the process rather than to an Activity. The BluetoothGattCallback registered with the
+ * stack is this object, which remembers the connection state and forwards every event to whichever callback is
+ * attached at the time, so an Activity can let go of the link and a later one can pick it up already connected.
+ *
+ * The BluetoothGatt client itself can be replaced: a direct reconnect needs a new client, since connect() on an
+ * existing one waits in the background, and a client stuck after GATT_ERROR (133) has to be closed.
+ */
+public class GattLink extends BluetoothGattCallback {
+
+    private final Context mContext;
+    private final BluetoothDevice mDevice;
+    private volatile BluetoothGatt mGatt;
+    private volatile boolean mClosed;                                                   //Client closed by reset(), the next reconnect opens a new one
+    private volatile boolean mReleased;                                                 //Closed by the pool for good
+    private volatile BluetoothGattCallback mDelegate;
+    private volatile boolean mConnected, mServicesDiscovered, mDropped;
+    private volatile int mMtu = LedBatchWriter.DEFAULT_MTU;                             //Negotiated ATT MTU, lasts as long as the connection
+
+    public GattLink(Context context, BluetoothDevice device) {
+        mContext = context.getApplicationContext();
+        mDevice = device;
+        mGatt = device.connectGatt(mContext, false, this);                              //Directly connect to the device so autoConnect is false
+    }
+
+    public BluetoothGatt getGatt() {
+        return mGatt;
+    }
+
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    public int getMtu() {
+        return mMtu;
+    }
+
+    public boolean isServicesDiscovered() {
+        return mServicesDiscovered;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Transport for a session on this link. Connecting only reconnects a dropped link, the pool opened it already.
+    public BleTransport createTransport() {
+        return new BluetoothGattTransport(mGatt) {
+            @Override
+            protected BluetoothGatt getGatt() {
+                return mGatt;                                                           //The client in use now, it changes on reconnect
+            }
+
+            @Override
+            public boolean connect() {
+                reconnectIfDropped();
+                return true;
+            }
+
+            @Override
+            public boolean reconnect(boolean background) {
+                GattLink.this.reconnect(background);
+                return true;
+            }
+
+            @Override
+            public void reset() {
+                GattLink.this.reset();
+            }
+        };
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Connect again after a drop. A direct connection opens a new client with autoConnect false, a background one uses
+    // connect() on the client there is, unless it was closed.
+    public synchronized void reconnect(boolean background) {
+        if (mReleased) {
+            return;
+        }
+        mDropped = false;
+        if (background && !mClosed) {
+            mGatt.connect();
+            return;
+        }
+        if (!mClosed) {
+            mGatt.close();
+        }
+        mClosed = false;
+        mGatt = mDevice.connectGatt(mContext, background, this);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Close the client after GATT_ERROR, some stacks never connect it again. It sends no more events.
+    public synchronized void reset() {
+        if (!mClosed) {
+            mClosed = true;
+            mGatt.close();
+        }
+        mConnected = false;
+        mServicesDiscovered = false;
+        mMtu = LedBatchWriter.DEFAULT_MTU;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Connect again if the link went down while it was idle in the pool, a link still connecting is left alone
+    public synchronized void reconnectIfDropped() {
+        if (mReleased) {
+            return;
+        }
+        if (mClosed) {
+            reconnect(false);
+        }
+        else if (mDropped) {
+            mDropped = false;
+            mGatt.connect();
+        }
+    }
+
+    public void attach(BluetoothGattCallback delegate) {
+        mDelegate = delegate;
+    }
+
+    public void detach() {
+        mDelegate = null;
+    }
+
+    public synchronized void close() {
+        mDelegate = null;
+        mReleased = true;
+        if (!mClosed) {
+            mClosed = true;
+            mGatt.disconnect();                                                         //Disconnect and close exactly once, when the pool is done with the link
+            mGatt.close();
+        }
+    }
+
+    @Override
+    public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+        if (gatt != mGatt) {
+            return;                                                                     //From a client that has been replaced
+        }
+        mConnected = newState == BluetoothProfile.STATE_CONNECTED;
+        mDropped = newState == BluetoothProfile.STATE_DISCONNECTED;
+        if (!mConnected) {
+            mServicesDiscovered = false;
+            mMtu = LedBatchWriter.DEFAULT_MTU;
+        }
+        BluetoothGattCallback delegate = mDelegate;
+        if (delegate != null) {
+            delegate.onConnectionStateChange(gatt, status, newState);
+        }
+    }
+
+    @Override
+    public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+        mServicesDiscovered = status == BluetoothGatt.GATT_SUCCESS;
+        BluetoothGattCallback delegate = mDelegate;
+        if (delegate != null) {
+            delegate.onServicesDiscovered(gatt, status);
+        }
+    }
+
+    @Override
+    public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+        BluetoothGattCallback delegate = mDelegate;
+        if (delegate != null) {
+            delegate.onCharacteristicRead(gatt, characteristic, status);
+        }
+    }
+
+    @Override
+    public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+        BluetoothGattCallback delegate = mDelegate;
+        if (delegate != null) {
+            delegate.onCharacteristicWrite(gatt, characteristic, status);
+        }
+    }
+
+    @Override
+    public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+        BluetoothGattCallback delegate = mDelegate;
+        if (delegate != null) {
+            delegate.onDescriptorWrite(gatt, descriptor, status);
+        }
+    }
+
+    @Override
+    public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            mMtu = mtu;
+        }
+        BluetoothGattCallback delegate = mDelegate;
+        if (delegate != null) {
+            delegate.onMtuChanged(gatt, mtu, status);
+        }
+    }
+
+    @Override
+    public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+        BluetoothGattCallback delegate = mDelegate;
+        if (delegate != null) {
+            delegate.onCharacteristicChanged(gatt, characteristic);
+        }
+    }
+}
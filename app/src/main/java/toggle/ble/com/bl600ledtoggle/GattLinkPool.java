@@ -0,0 +1,49 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import android.bluetooth.BluetoothAdapter;
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+/**
+ * The process wide pool of {@link GattLink}s. Activities borrow the link for their device in onResume and return it in
+ * onPause, so rotating the screen or briefly leaving the app does not cost a new connection and service discovery.
+ *
+ * Idle links are disconnected and closed on a BLE thread of the pool's own, never on the main thread, since the
+ * Activity that last used a link may be gone by then.
+ */
+public class GattLinkPool {
+
+    private static ConnectionPool<GattLink> sPool;
+
+    private GattLinkPool() {
+    }
+
+    public static synchronized ConnectionPool<GattLink> get(Context context, final BluetoothAdapter bluetoothAdapter) {
+        if (sPool == null) {
+            final Context appContext = context.getApplicationContext();                 //The pool outlives every Activity
+            HandlerThread thread = new HandlerThread("GattLinkPool", Process.THREAD_PRIORITY_FOREGROUND);
+            thread.start();                                                             //Lives as long as the process, like the pool
+            final Handler handler = new Handler(thread.getLooper());
+            sPool = new ConnectionPool<GattLink>(new ConnectionPool.Factory<GattLink>() {
+                @Override
+                public GattLink open(String address) {
+                    return new GattLink(appContext, bluetoothAdapter.getRemoteDevice(address));
+                }
+
+                @Override
+                public void close(final GattLink link) {
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            link.close();                                               //Disconnect and close off the main thread
+                        }
+                    });
+                }
+            }, new HandlerTaskScheduler(handler));
+            BleMetrics.global().setConnectionPool(sPool);                               //Hit rate and setup time saved go into the metrics export
+        }
+        return sPool;
+    }
+}
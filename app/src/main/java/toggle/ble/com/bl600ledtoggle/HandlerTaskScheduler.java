@@ -0,0 +1,25 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import android.os.Handler;
+
+/**
+ * TaskScheduler that runs its tasks on an Android Handler.
+ */
+public class HandlerTaskScheduler implements TaskScheduler {
+
+    private final Handler mHandler;
+
+    public HandlerTaskScheduler(Handler handler) {
+        mHandler = handler;
+    }
+
+    @Override
+    public void postDelayed(Runnable task, long delayMillis) {
+        mHandler.postDelayed(task, delayMillis);
+    }
+
+    @Override
+    public void removeCallbacks(Runnable task) {
+        mHandler.removeCallbacks(task);
+    }
+}
@@ -0,0 +1,43 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import android.content.Context;
+import android.os.Process;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The process wide {@link LedEventJournal}, kept under the app's private storage. Records are written to the mapped
+ * segments on a background thread of their own, never on the BLE thread.
+ */
+public class LedJournals {
+
+    private static LedEventJournal sJournal;
+
+    private LedJournals() {
+    }
+
+    public static synchronized LedEventJournal get(Context context) throws IOException {
+        if (sJournal == null) {
+            Executor writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    }, "LedJournal");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            sJournal = new LedEventJournal(new File(context.getApplicationContext().getFilesDir(), "journal"), writer);
+        }
+        return sJournal;
+    }
+}
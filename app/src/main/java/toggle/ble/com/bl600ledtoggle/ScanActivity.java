@@ -9,6 +9,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
 import android.util.Log;
@@ -22,64 +23,184 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class ScanActivity extends ListActivity {
     private final static String TAG = ScanActivity.class.getSimpleName();
     private LeDeviceListAdapter mLeDeviceListAdapter;                                   //List adapter to hold list of BLE devices from a scan
     private BluetoothAdapter mBluetoothAdapter;                                         //BluetoothAdapter represents the radio in the Smartphone
-    private boolean mScanning;                                                          //Keep track of whether there is a scan in progress
-    private Handler mHandler;                                                           //Handler used to stop scanning after time delay
+    private Handler mHandler;                                                           //Handler for the scan duty cycle and list refreshes
     private static final int REQUEST_ENABLE_BT = 1;                                     //Constant to identify response from Activity that enables Bluetooth
-    private static final long SCAN_PERIOD = 100000;                                      //Length of time in milliseconds to scan for BLE devices
+    private static final long SCAN_DURATION = 100000;                                   //Length of time in milliseconds to scan for BLE devices
+    private static final long SCAN_WINDOW = 10000;                                      //Scan continuously in windows of this length while boards turn up
+    private static final long MAX_SCAN_INTERVAL = 80000;                                //Back off to one window in this long once the list is stable
+    private static final long LIST_REFRESH_INTERVAL = 16;                               //Batch list updates to at most one per display frame
+    private static final int SCAN_RESULT_CAPACITY = 256;                                //Distinct devices allowed to wait for the list before scanning pauses
+    private static final int MAX_RESULTS_PER_REFRESH = 64;                              //Results moved into the list per frame, the rest wait for the next frame
+    private final ScanDeviceIndex<BluetoothDevice> mDeviceIndex = new ScanDeviceIndex<BluetoothDevice>(); //Devices seen so far, indexed by MAC address
+    private final ScanResultStream<BluetoothDevice> mScanResults = new ScanResultStream<BluetoothDevice>(SCAN_RESULT_CAPACITY); //Matching results waiting for the list
+    private Bl600Scanner mScanner;                                                      //Scans for boards advertising the LED service
+    private ScanScheduler mScanScheduler;                                               //Turns mScanner on and off in an adaptive duty cycle
+    private static final String RECENT_DEVICES_FILE = "recent_devices";                 //Snapshot of the boards seen lately, shown at launch
+    private final DeviceListModel mDeviceList = new DeviceListModel();                  //Rows on screen, remembered boards merged with live results
+    private RecentDevices mRecentDevices;                                               //Boards seen lately, saved when the activity pauses
+    private boolean mRecentLoaded;                                                      //The snapshot has been read from storage
+    private boolean mScanWanted;                                                        //Resumed before the adapter was ready, scan once it is
+    private final ExecutorService mBackground = Executors.newSingleThreadExecutor();     //Startup setup and snapshot saves, off the UI thread
+    private static final long NEAREST_MAX_AGE = 15000;                                  //Boards not heard for this long leave the nearest rows
+    private final ProximityRanking mRanking = new ProximityRanking();                   //Boards nearest to the phone by filtered RSSI, shown first
+    private boolean mRankingChanged;                                                    //Nearest boards moved since the list was last refreshed
+    private long mLastExpireMillis;
+    private final List<ProximityRanking.Device> mNearestDevices = new ArrayList<ProximityRanking.Device>();
+    private final List<String> mNearestAddresses = new ArrayList<String>();
 
     // ----------------------------------------------------------------------------------------------------------------
     // Activity launched
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        if (savedInstanceState == null) {
+            StartupTrace.global().markLaunch(System.nanoTime());                        //Not a rotation, time this launch
+        }
         //this.getActionBar().setTitle(R.string.title_devices);                           //Display "BLE Device Scan" on the action bar
-        mHandler = new Handler();                                                       //Create Handler to stop scanning
+        mHandler = new Handler();                                                       //Create Handler for the UI thread
 
         if (!getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE)) { //Check if BLE is supported
             Toast.makeText(this, R.string.ble_not_supported, Toast.LENGTH_SHORT).show(); //Message that BLE not supported
             finish();                                                                   //End the app
+            return;
         }
 
-        final BluetoothManager bluetoothManager = (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE); //Get the BluetoothManager
-        mBluetoothAdapter = bluetoothManager.getAdapter();                              //Get a reference to the BluetoothAdapter (radio)
+        mLeDeviceListAdapter = new LeDeviceListAdapter();                               //Create the list adapter once, rows come from mDeviceList
+        setListAdapter(mLeDeviceListAdapter);                                           //Bind our ListActivity to the list adapter
+        mScanScheduler = new ScanScheduler(new ScanScheduler.Radio() {
+            @Override
+            public void startScan() {
+                mScanner.start();                                                       //mScanListener is called for each matching advertisement
+            }
 
-        if (mBluetoothAdapter == null) {                                                //Check if we got the BluetoothAdapter
-            Toast.makeText(this, R.string.bluetooth_not_supported, Toast.LENGTH_SHORT).show(); //Message that Bluetooth not supported
-            finish();                                                                   //End the app
-        }
+            @Override
+            public void stopScan() {
+                mScanner.stop();
+            }
+        }, new HandlerTaskScheduler(mHandler));
+        mScanScheduler.setDutyCycle(SCAN_WINDOW, SCAN_WINDOW);
+        mScanScheduler.setAdaptive(MAX_SCAN_INTERVAL, 1);
+        mScanScheduler.setDuration(SCAN_DURATION);
+        mScanScheduler.setListener(new ScanScheduler.Listener() {
+            @Override
+            public void onScanFinished() {
+                Toast.makeText(getApplicationContext(),"Scan Stopped",Toast.LENGTH_LONG).show();
+                invalidateOptionsMenu();                                                //Indicate that the options menu has changed, so should be recreated.
+            }
+        });
+        mScanResults.setFlowListener(mScanFlowListener);
+
+        mRecentDevices = new RecentDevices(new File(getFilesDir(), RECENT_DEVICES_FILE));
+        new DeviceListStartup(mRecentDevices, new DeviceListStartup.Adapter() {
+            @Override
+            public boolean open() {                                                     //Runs on mBackground, after the snapshot is read
+                final BluetoothManager bluetoothManager = (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE); //Get the BluetoothManager
+                mBluetoothAdapter = bluetoothManager != null ? bluetoothManager.getAdapter() : null; //Get a reference to the BluetoothAdapter (radio)
+                return mBluetoothAdapter != null;
+            }
+        }, mBackground, mUiExecutor).start(mStartupListener);                           //Show the last known boards first, set up Bluetooth after
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Activity destroyed, let the pending snapshot save finish and end the background thread
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mBackground.shutdown();
     }
 
+    // ----------------------------------------------------------------------------------------------------------------
+    // Cold start steps, called on the UI thread
+    private final DeviceListStartup.Listener mStartupListener = new DeviceListStartup.Listener() {
+        @Override
+        public void onRecentDevices(List<RecentDevices.Device> devices) {
+            mRecentLoaded = true;
+            if (mDeviceList.addRecent(devices) > 0) {
+                showRows();                                                             //Usable before the radio is even up
+            }
+        }
+
+        @Override
+        public void onAdapterReady(boolean available) {
+            if (!available) {                                                           //Check if we got the BluetoothAdapter
+                Toast.makeText(getApplicationContext(), R.string.bluetooth_not_supported, Toast.LENGTH_SHORT).show(); //Message that Bluetooth not supported
+                finish();                                                               //End the app
+                return;
+            }
+            mScanner = new Bl600Scanner(mBluetoothAdapter, new ScanFilterSpec(LedGattProfile.LED_SERVICE, null),
+                    ScanMode.LOW_LATENCY, mScanListener);                               //Only boards advertising the LED service reach the list, scan hard while the user waits
+            if (mScanWanted) {
+                mScanWanted = false;
+                enableAndScan();
+            }
+        }
+    };
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Executor for DeviceListStartup that runs its callbacks on the UI thread
+    private final Executor mUiExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mHandler.post(command);
+        }
+    };
+
     // ----------------------------------------------------------------------------------------------------------------
     // Activity resumed
-    // Enable BT if not already enabled, initialize list of BLE devices, start scan for BLE devices
+    // Show the last known boards, then enable BT if not already enabled and start scan for BLE devices
     @Override
     protected void onResume() {
         super.onResume();
+        showRecentDevices();
+        mScanScheduler.setGattActivity(GattActivity.global());                          //Step aside while pooled links have GATT operations on the air
+        if (mScanner == null) {
+            mScanWanted = true;                                                         //Adapter still being set up, scan as soon as it is ready
+            return;
+        }
+        enableAndScan();
+    }
 
+    private void enableAndScan() {
         if (!mBluetoothAdapter.isEnabled()) {                                           //Check if BT is not enabled
             Intent enableBtIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE); //Create an intent to get permission to enable BT
             startActivityForResult(enableBtIntent, REQUEST_ENABLE_BT);                  //Fire the intent to start the activity that will return a result based on user response
         }
-
-        mLeDeviceListAdapter = new LeDeviceListAdapter();                               //Create new list adapter to hold list of BLE devices found during scan
-        setListAdapter(mLeDeviceListAdapter);                                           //Bind our ListActivity to the new list adapter
         scanLeDevice(true);                                                             //Start scanning for BLE devices
     }
 
     // ----------------------------------------------------------------------------------------------------------------
     // Activity paused
-    // Stop scan and clear device list
+    // Stop scan, save the boards seen and clear device list
     @Override
     protected void onPause() {
         super.onPause();
+        mScanWanted = false;
         scanLeDevice(false);                                                            //Stop scanning for BLE devices
-        mLeDeviceListAdapter.clear();                                                   //Clear the list of BLE devices found during the scan
+        mScanScheduler.setGattActivity(null);
+        mBackground.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mRecentDevices.save();                                              //Shown first on the next launch
+                }
+                catch (IOException e) {
+                    Log.w(TAG, "Cannot save recent devices", e);
+                }
+            }
+        });
+        clearDevices();                                                                 //Clear the list of BLE devices found during the scan
     }
 
     // ----------------------------------------------------------------------------------------------------------------
@@ -88,7 +209,7 @@ public class ScanActivity extends ListActivity {
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.scan_start_stop, menu);                        //Show the Options menu
-        if (!mScanning) {                                                               //See if not scanning
+        if (!mScanScheduler.isRunning()) {                                              //See if not scanning
             menu.findItem(R.id.menu_stop).setVisible(false);                            //  hide Stop scan menu option
             menu.findItem(R.id.menu_scan).setVisible(true);                             //  and show Scan menu option
         } else {                                                                          //Else are scanning
@@ -106,7 +227,12 @@ public class ScanActivity extends ListActivity {
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {                                                     //Get which menu item was selected
             case R.id.menu_scan:                                                        //Option to Scan chosen
-                mLeDeviceListAdapter.clear();                                           //Clear list of BLE devices found
+                clearDevices();                                                         //Clear list of BLE devices found
+                showRecentDevices();                                                    //Keep the remembered boards on screen while scanning again
+                if (mScanner == null) {
+                    mScanWanted = true;                                                 //Adapter still being set up
+                    break;
+                }
                 scanLeDevice(true);                                                     //Start scanning
                 break;
             case R.id.menu_stop:                                                        //Option to Stop scanning chosen
@@ -132,95 +258,173 @@ public class ScanActivity extends ListActivity {
     // Start DeviceControlActivity and pass the BLE device name and address to the activity
     @Override
     protected void onListItemClick(ListView l, View v, int position, long id) {
-        final BluetoothDevice device = mLeDeviceListAdapter.getDevice(position);        //Get the Bluetooth device from the list adapter
-        if (device == null)                                                             //Ignore if device is not valid
+        final DeviceListModel.Row row = mLeDeviceListAdapter.getRow(position);          //Get the board from the list adapter, remembered or heard live
+        if (row == null)                                                                //Ignore if device is not valid
             return;
         final Intent intent = new Intent(this, ControlActivity.class);            //Create Intent to start the DeviceControlActivity
-        intent.putExtra(ControlActivity.EXTRAS_DEVICE_NAME, device.getName());    //Add BLE device name to the intent (for info, not needed)
-        intent.putExtra(ControlActivity.EXTRAS_DEVICE_ADDRESS, device.getAddress()); //Add BLE device address to the intent
-        if (mScanning) {                                                                //See if still scanning
-            mBluetoothAdapter.stopLeScan(mLeScanCallback);                              //Stop the scan in progress
-            mScanning = false;                                                          //Indicate that we are not scanning
-        }
+        intent.putExtra(ControlActivity.EXTRAS_DEVICE_NAME, row.getName());       //Add BLE device name to the intent (for info, not needed)
+        intent.putExtra(ControlActivity.EXTRAS_DEVICE_ADDRESS, row.address);      //Add BLE device address to the intent
+        mScanScheduler.stop();                                                          //Stop the scan in progress
         startActivity(intent);                                                          //Start the DeviceControlActivity
     }
 
     // ----------------------------------------------------------------------------------------------------------------
-    // Scan for BLE device for SCAN_PERIOD milliseconds.
-    // The mLeScanCallback method is called each time a device is found during the scan
+    // Scan for BLE devices for SCAN_DURATION milliseconds, in the duty cycle of mScanScheduler.
+    // Starting again while scanning restarts the duration, it does not add a second stop timer.
+    // The mScanListener method is called each time a matching device is found during the scan
     public void scanLeDevice(final boolean enable) {
         if (enable) {                                                                   //Method was called with option to start scanning
-            mHandler.postDelayed(new Runnable() {                                       //Create delayed runnable that will stop the scan when it runs after SCAN_PERIOD milliseconds
-                @Override
-                public void run() {
-                    Toast.makeText(getApplicationContext(),"Scan Stopped",Toast.LENGTH_LONG).show();
-                    mScanning = false;                                                  //Indicate that we are not scanning - used for menu Stop/Scan context
-                    mBluetoothAdapter.stopLeScan(mLeScanCallback);                      //Stop scanning - callback method indicates which scan to stop
-                    invalidateOptionsMenu();                                            //Indicate that the options menu has changed, so should be recreated.
-                }
-            }, SCAN_PERIOD);
             Toast.makeText(this,"Scanning for Devices",Toast.LENGTH_LONG).show();
-            mScanning = true;                                                           //Indicate that we are busy scanning - used for menu Stop/Scan context
-            mBluetoothAdapter.startLeScan(mLeScanCallback);                             //Start scanning with callback method to execute when a new BLE device is found
+            mScanScheduler.start();                                                     //Start scanning, or start over at the fast duty cycle
         } else {                                                                          //Method was called with option to stop scanning
-            mScanning = false;                                                          //Indicate that we are not scanning - used for menu Stop/Scan context
             Toast.makeText(this,"Scan Stopped",Toast.LENGTH_LONG).show();
-            mBluetoothAdapter.stopLeScan(mLeScanCallback);                              //Stop scanning - callback method indicates which scan to stop
+            mScanScheduler.stop();                                                      //Stop scanning
         }
         invalidateOptionsMenu();                                                        //Indicate that the options menu has changed, so should be recreated.
     }
 
     // ----------------------------------------------------------------------------------------------------------------
-    // Device scan callback. Bluetooth adapter calls this method when a new device is discovered during a scan.
-    private final BluetoothAdapter.LeScanCallback mLeScanCallback = new BluetoothAdapter.LeScanCallback() {
+    // Device scan callback. The scanner calls this method for every advertisement that passed the filter.
+    private final Bl600Scanner.Listener mScanListener = new Bl600Scanner.Listener() {
+
+        @Override
+        public void onScanResult(BluetoothDevice device, int rssi, byte[] scanRecord) { //Android calls method with Bluetooth device advertising information
+            BleMetrics.global().scanCallbacks.incrementAndGet();
+            if (mScanResults.offer(device.getAddress(), device, rssi, scanRecord, SystemClock.elapsedRealtime())) { //Hand over to the UI thread, newer results for a waiting device replace older ones
+                mHandler.postDelayed(mRefreshList, LIST_REFRESH_INTERVAL);              //Stream was empty, schedule a refresh for the next frame
+            }
+        }
+    };
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // The list is not keeping up with the scan results, pause the radio until it has caught up
+    private final ScanResultStream.FlowListener mScanFlowListener = new ScanResultStream.FlowListener() {
+        @Override
+        public void onPause() {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mScanScheduler.hold();
+                }
+            });
+        }
 
         @Override
-        public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) { //Android calls method with Bluetooth device advertising information
-            runOnUiThread(new Runnable() {                                              //Create runnable that will add the device to the list adapter
+        public void onResume() {
+            mHandler.post(new Runnable() {
                 @Override
                 public void run() {
-                    mLeDeviceListAdapter.addDevice(device);                             //Add the device to the list adapter that will show all the available devices
-                    Log.d(TAG, "Found BLE Device: " + device.getAddress().toString()); //Debug information to log the devices as they are found
-                    mLeDeviceListAdapter.notifyDataSetChanged();                        //Tell the list adapter that it needs to refresh the view
+                    mScanScheduler.release();                                           //Radio only comes back on if the scan is still running
                 }
             });
         }
     };
 
     // ----------------------------------------------------------------------------------------------------------------
-    // Adapter for holding devices found through scanning. Acts as a bridge between the list data and the view deiplaying the data
-    private class LeDeviceListAdapter extends BaseAdapter {
-        private final ArrayList<BluetoothDevice> mLeDevices;                            //List of Bluetooth devices found during scan
-        private final LayoutInflater mInflator;                                         //Layout inflator to display information about each device
-
-        public LeDeviceListAdapter() {                                                  //Constructor initializes the list
-            super();
-            mLeDevices = new ArrayList<BluetoothDevice>();                              //New arrayliat to hold the Bluetooth devices
-            mInflator = ScanActivity.this.getLayoutInflater();                    //Get the layout inflator associated with this activity
+    // Moves waiting scan results into the device index
+    private final ScanResultStream.Consumer<BluetoothDevice> mIndexResults = new ScanResultStream.Consumer<BluetoothDevice>() {
+        @Override
+        public void onScanResult(String address, BluetoothDevice device, int rssi, byte[] scanRecord, long timestampMillis) {
+            mDeviceIndex.onAdvertisement(address, device, rssi, timestampMillis);
+            mRankingChanged |= mRanking.onAdvertisement(address, rssi, timestampMillis);
         }
+    };
 
-        public void addDevice(BluetoothDevice device) {                                 //Method to add device to list
-            if (!mLeDevices.contains(device)) {                                          //First check that it is a new device not in the list
-                mLeDevices.add(device);                                                 //Add the device to the list
+    // ----------------------------------------------------------------------------------------------------------------
+    // Apply the changes collected by the device index to the list, at most once per frame
+    private final Runnable mRefreshList = new Runnable() {
+        @Override
+        public void run() {
+            mScanResults.drain(mIndexResults, MAX_RESULTS_PER_REFRESH);
+            if (!mScanResults.isEmpty()) {
+                mHandler.postDelayed(mRefreshList, LIST_REFRESH_INTERVAL);              //More waiting, take them on the next frame
+            }
+            ScanDeviceIndex.ChangeSet<BluetoothDevice> changes = mDeviceIndex.swapChanges();
+            long elapsed = SystemClock.elapsedRealtime();
+            if (elapsed - mLastExpireMillis >= NEAREST_MAX_AGE / 2) {                   //Sweep for boards gone quiet now and then, not every frame
+                mLastExpireMillis = elapsed;
+                mRankingChanged |= mRanking.expire(elapsed, NEAREST_MAX_AGE);
+            }
+            if (changes.isEmpty() && !mRankingChanged) {
+                return;                                                                 //Nothing the list shows has changed
+            }
+            mScanScheduler.onDevicesFound(changes.added.size());                        //Boards are turning up, keep scanning hard
+            long now = System.currentTimeMillis();
+            for (ScanDeviceIndex.Entry<BluetoothDevice> entry : changes.added) {
+                String name = entry.device.getName();
+                if (mDeviceList.onLive(entry.address, name, entry.getRssi())) {         //Add the device to the list, or update its remembered row
+                    Log.d(TAG, "Found BLE Device: " + entry.address);                   //Debug information to log the devices as they are found
+                }
+                mRecentDevices.record(entry.address, name, entry.getRssi(), now);
+            }
+            for (ScanDeviceIndex.Entry<BluetoothDevice> entry : changes.updated) {
+                mDeviceList.onLive(entry.address, null, entry.getRssi());
+                mRecentDevices.record(entry.address, null, entry.getRssi(), now);
+            }
+            if (mRankingChanged) {
+                mRankingChanged = false;
+                mRanking.getNearest(mNearestDevices);
+                mNearestAddresses.clear();
+                for (ProximityRanking.Device device : mNearestDevices) {
+                    mNearestAddresses.add(device.address);
+                }
+                mDeviceList.setNearest(mNearestAddresses);                              //Nearest boards move to the top of the list
             }
+            showRows();
+        }
+    };
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Put the remembered boards on the list, once they have been read
+    private void showRecentDevices() {
+        if (mRecentLoaded && mDeviceList.addRecent(mRecentDevices.getDevices()) > 0) {
+            showRows();
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Redraw the list, timing the first row of this launch
+    private void showRows() {
+        mLeDeviceListAdapter.notifyDataSetChanged();                                    //Tell the list adapter that it needs to refresh the view
+        if (mDeviceList.size() > 0 && StartupTrace.global().markFirstRow(System.nanoTime())) {
+            Log.i(TAG, "First usable row " + StartupTrace.global().getFirstRowNanos() / 1000000 + " ms after launch");
         }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Forget all devices found so far, in the index and in the list
+    private void clearDevices() {
+        mHandler.removeCallbacks(mRefreshList);
+        mScanResults.clear();
+        mDeviceIndex.clear();
+        mRanking.clear();
+        mRankingChanged = false;
+        mDeviceList.clear();
+        mLeDeviceListAdapter.notifyDataSetChanged();
+    }
 
-        public BluetoothDevice getDevice(int position) {                                //Method to get device from list
-            return mLeDevices.get(position);                                            //Return the device at the selected position
+    // ----------------------------------------------------------------------------------------------------------------
+    // Adapter for showing the rows of mDeviceList. Acts as a bridge between the list data and the view deiplaying the data
+    private class LeDeviceListAdapter extends BaseAdapter {
+        private final LayoutInflater mInflator;                                         //Layout inflator to display information about each device
+
+        public LeDeviceListAdapter() {                                                  //Constructor gets the inflator, the rows live in mDeviceList
+            super();
+            mInflator = ScanActivity.this.getLayoutInflater();                    //Get the layout inflator associated with this activity
         }
 
-        public void clear() {                                                           //Method to clear the list
-            mLeDevices.clear();
+        public DeviceListModel.Row getRow(int position) {                               //Method to get a board from the list
+            return mDeviceList.get(position);                                           //Return the board at the selected position
         }
 
         @Override
         public int getCount() {                                                         //Method to get number of devices in the list
-            return mLeDevices.size();
+            return mDeviceList.size();
         }
 
         @Override
         public Object getItem(int i) {                                                  //Method to get generic object from the list - Not used
-            return mLeDevices.get(i);
+            return mDeviceList.get(i);
         }
 
         @Override
@@ -242,14 +446,14 @@ public class ScanActivity extends ListActivity {
                 viewHolder = (ViewHolder) view.getTag();                                //View already exists so get the ViewHolder that was used tag the view
             }
 
-            BluetoothDevice device = mLeDevices.get(i);                                 //Get the device associated with this view
-            final String deviceName = device.getName();                                 //Get the name of the device
+            DeviceListModel.Row row = mDeviceList.get(i);                               //Get the board associated with this view
+            final String deviceName = row.getName();                                    //Get the name of the device
             if (deviceName != null && deviceName.length() > 0) {                        //Check that the name is valid (name is not required in the BLE advertising packet)
                 viewHolder.deviceName.setText(deviceName);                              //If so show it on the screen in the TextView
             } else {
                 viewHolder.deviceName.setText(R.string.unknown_device);                 //If name is invalid, put "Unknown Device" on the screen
             }                                                                           //(this happens if the advertisement packet does not contain a name)
-            viewHolder.deviceAddress.setText(device.getAddress());                      //Print the MAC address on the screen
+            viewHolder.deviceAddress.setText(row.address);                              //Print the MAC address on the screen
             return view;
         }
     }
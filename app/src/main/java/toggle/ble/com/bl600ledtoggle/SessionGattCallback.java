@@ -0,0 +1,106 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothProfile;
+import android.os.Handler;
+
+import java.util.UUID;
+
+/**
+ * Hands the GATT events of a {@link GattLink} to a {@link LedDeviceSession} on the thread the session is confined to.
+ * Used where no screen is attached to the link; ControlActivity has its own callback that also updates its views.
+ */
+public class SessionGattCallback extends BluetoothGattCallback {
+
+    private final LedDeviceSession mSession;
+    private final Handler mHandler;
+
+    public SessionGattCallback(LedDeviceSession session, Handler sessionHandler) {
+        mSession = session;
+        mHandler = sessionHandler;
+    }
+
+    @Override
+    public void onConnectionStateChange(BluetoothGatt gatt, final int status, final int newState) {
+        if (newState != BluetoothProfile.STATE_CONNECTED && newState != BluetoothProfile.STATE_DISCONNECTED) {
+            return;                                                                     //Only connected and disconnected matter to the session
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mSession.onConnectionStateChange(status, newState == BluetoothProfile.STATE_CONNECTED);
+            }
+        });
+    }
+
+    @Override
+    public void onServicesDiscovered(BluetoothGatt gatt, final int status) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mSession.onServicesDiscovered(status);
+            }
+        });
+    }
+
+    @Override
+    public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, final int status) {
+        final UUID uuid = characteristic.getUuid();
+        final byte[] value = characteristic.getValue();                                 //Copy of the value, the characteristic is reused for the next read
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mSession.onCharacteristicRead(uuid, status, value);
+            }
+        });
+    }
+
+    @Override
+    public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, final int status) {
+        final UUID uuid = characteristic.getUuid();
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mSession.onCharacteristicWrite(uuid, status);
+            }
+        });
+    }
+
+    @Override
+    public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, final int status) {
+        final UUID characteristicUuid = descriptor.getCharacteristic().getUuid();
+        final UUID descriptorUuid = descriptor.getUuid();
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mSession.onDescriptorWrite(characteristicUuid, descriptorUuid, status);
+            }
+        });
+    }
+
+    @Override
+    public void onMtuChanged(BluetoothGatt gatt, final int mtu, final int status) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mSession.onMtuChanged(mtu, status);
+            }
+        });
+    }
+
+    @Override
+    public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+        final UUID uuid = characteristic.getUuid();
+        final byte[] value = characteristic.getValue();
+        final long receivedNanos = System.nanoTime();
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mSession.onCharacteristicChanged(uuid, value, value.length, receivedNanos);
+            }
+        });
+    }
+}
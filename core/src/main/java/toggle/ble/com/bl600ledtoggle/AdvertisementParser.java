@@ -0,0 +1,112 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import java.util.UUID;
+
+/**
+ * Reads AD structures straight out of the raw scan record bytes without copying them. An advertisement is a sequence
+ * of [length][type][data...] structures; {@link Cursor} walks them and exposes each one as an offset and a length
+ * into the original array.
+ */
+public final class AdvertisementParser {
+
+    public static final int TYPE_FLAGS = 0x01;
+    public static final int TYPE_INCOMPLETE_UUID_128 = 0x06;
+    public static final int TYPE_COMPLETE_UUID_128 = 0x07;
+    public static final int TYPE_SHORT_LOCAL_NAME = 0x08;
+    public static final int TYPE_COMPLETE_LOCAL_NAME = 0x09;
+    public static final int TYPE_TX_POWER_LEVEL = 0x0A;
+    public static final int TYPE_MANUFACTURER_DATA = 0xFF;
+
+    public static final int TX_POWER_UNKNOWN = Integer.MIN_VALUE;
+
+    /**
+     * Reusable iterator over the AD structures of one scan record.
+     */
+    public static class Cursor {
+        private byte[] mRecord;
+        private int mNext;                                                              //Offset of the next length byte
+        public int type;                                                                //AD type of the current structure
+        public int offset;                                                              //Offset of the first data byte of the current structure
+        public int length;                                                              //Number of data bytes in the current structure
+
+        public Cursor reset(byte[] record) {
+            mRecord = record;
+            mNext = 0;
+            type = offset = length = 0;
+            return this;
+        }
+
+        // ------------------------------------------------------------------------------------------------------------
+        // Move to the next structure. Returns false at the end of the record, at zero padding or at a truncated structure.
+        public boolean next() {
+            if (mRecord == null || mNext >= mRecord.length) {
+                return false;
+            }
+            int fieldLength = mRecord[mNext] & 0xFF;                                    //Length covers the type byte and the data
+            if (fieldLength == 0 || mNext + 1 + fieldLength > mRecord.length) {        //Zero padding after the last structure, or a truncated one
+                mNext = mRecord.length;
+                return false;
+            }
+            type = mRecord[mNext + 1] & 0xFF;
+            offset = mNext + 2;
+            length = fieldLength - 1;
+            mNext += fieldLength + 1;
+            return true;
+        }
+    }
+
+    private AdvertisementParser() {
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // See whether the record lists the 128-bit service UUID, complete or incomplete list
+    public static boolean hasServiceUuid(byte[] record, UUID uuid, Cursor cursor) {
+        cursor.reset(record);
+        long lsb = uuid.getLeastSignificantBits();
+        long msb = uuid.getMostSignificantBits();
+        while (cursor.next()) {
+            if (cursor.type != TYPE_COMPLETE_UUID_128 && cursor.type != TYPE_INCOMPLETE_UUID_128) {
+                continue;
+            }
+            for (int i = cursor.offset; i + 16 <= cursor.offset + cursor.length; i += 16) {
+                if (readLongLittleEndian(record, i) == lsb && readLongLittleEndian(record, i + 8) == msb) {
+                    return true;                                                        //UUIDs are sent least significant byte first
+                }
+            }
+        }
+        return false;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Advertised TX power in dBm, or TX_POWER_UNKNOWN
+    public static int txPowerLevel(byte[] record, Cursor cursor) {
+        cursor.reset(record);
+        while (cursor.next()) {
+            if (cursor.type == TYPE_TX_POWER_LEVEL && cursor.length >= 1) {
+                return record[cursor.offset];
+            }
+        }
+        return TX_POWER_UNKNOWN;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Position the cursor on the local name. Returns false if the record has none. The name is UTF-8 at
+    // cursor.offset for cursor.length bytes, so it is only decoded if someone needs it as a String.
+    public static boolean findLocalName(byte[] record, Cursor cursor) {
+        cursor.reset(record);
+        while (cursor.next()) {
+            if (cursor.type == TYPE_COMPLETE_LOCAL_NAME || cursor.type == TYPE_SHORT_LOCAL_NAME) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long readLongLittleEndian(byte[] buffer, int offset) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = (value << 8) | (buffer[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,14 @@
+package toggle.ble.com.bl600ledtoggle;
+
+/**
+ * Switches for logging on the BLE hot paths. The flags are compile time constants, so a guarded
+ * {@code if (BleLog.PACKETS) Log.d(...)} is removed by the compiler when the flag is off and the log message is
+ * never built.
+ */
+public final class BleLog {
+
+    public static final boolean PACKETS = false;                                        //Log every notification, read and write payload. Only for debugging the link
+
+    private BleLog() {
+    }
+}
@@ -0,0 +1,128 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms for the BLE paths: connection setup, service discovery, each kind of GATT operation,
+ * notifications and scanning. Everything is lock free and allocation free to record, so one instance per process
+ * ({@link #global()}) is recorded into all the time. {@link #snapshot()} formats the current values and
+ * {@link #dump(File)} writes them to a file for a bug report. The counters of a {@link ConnectionPool} given to
+ * {@link #setConnectionPool(ConnectionPool)} are included.
+ */
+public class BleMetrics {
+
+    private static final BleMetrics GLOBAL = new BleMetrics();
+
+    public final LatencyHistogram connectTime = new LatencyHistogram("connect");
+    public final LatencyHistogram discoveryTime = new LatencyHistogram("discovery");
+    public final LatencyHistogram readLatency = new LatencyHistogram("read");
+    public final LatencyHistogram writeLatency = new LatencyHistogram("write");
+    public final LatencyHistogram descriptorWriteLatency = new LatencyHistogram("descriptor write");
+    public final LatencyHistogram mtuLatency = new LatencyHistogram("mtu exchange");
+    public final LatencyHistogram notifyLatency = new LatencyHistogram("notify");         //Binder callback to handled on the BLE thread
+    public final LatencyHistogram recoveryTime = new LatencyHistogram("recovery");       //Link dropped to LED service ready again
+
+    public final AtomicLong retries = new AtomicLong();
+    public final AtomicLong failures = new AtomicLong();
+    public final AtomicLong timeouts = new AtomicLong();
+    public final AtomicLong notifications = new AtomicLong();
+    public final AtomicLong scanCallbacks = new AtomicLong();
+    public final AtomicLong reconnects = new AtomicLong();
+
+    private volatile long mStartNanos = System.nanoTime();
+    private volatile ConnectionPool<?> mPool;                                           //Optional, its hit rate and setup time saved are reported
+
+    public static BleMetrics global() {
+        return GLOBAL;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Called by GattOperationQueue when an operation finishes, with its service time on the last attempt
+    public void recordOperation(GattOperation.Type type, int status, long serviceNanos) {
+        if (status != GattOperation.GATT_SUCCESS) {
+            failures.incrementAndGet();
+            if (status == GattOperation.STATUS_TIMEOUT) {
+                timeouts.incrementAndGet();
+            }
+            return;
+        }
+        switch (type) {
+            case READ:
+                readLatency.record(serviceNanos);
+                break;
+            case WRITE:
+                writeLatency.record(serviceNanos);
+                break;
+            case WRITE_DESCRIPTOR:
+                descriptorWriteLatency.record(serviceNanos);
+                break;
+            default:
+                mtuLatency.record(serviceNanos);
+                break;
+        }
+    }
+
+    public void setConnectionPool(ConnectionPool<?> pool) {
+        mPool = pool;
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : histograms()) {
+            histogram.reset();
+        }
+        retries.set(0);
+        failures.set(0);
+        timeouts.set(0);
+        notifications.set(0);
+        scanCallbacks.set(0);
+        reconnects.set(0);
+        mStartNanos = System.nanoTime();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Current values as text, one metric per line. Counter rates are per second since start or the last reset.
+    public String snapshot() {
+        double seconds = Math.max(1e-9, (System.nanoTime() - mStartNanos) / 1e9);
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("uptime=%.1fs%n", seconds));
+        for (LatencyHistogram histogram : histograms()) {
+            out.append(histogram.snapshot()).append('\n');
+        }
+        appendCounter(out, "retries", retries.get(), seconds);
+        appendCounter(out, "failures", failures.get(), seconds);
+        appendCounter(out, "timeouts", timeouts.get(), seconds);
+        appendCounter(out, "notifications", notifications.get(), seconds);
+        appendCounter(out, "scan callbacks", scanCallbacks.get(), seconds);
+        appendCounter(out, "reconnect attempts", reconnects.get(), seconds);
+        ConnectionPool<?> pool = mPool;
+        if (pool != null) {
+            out.append(String.format("link pool hits=%d misses=%d hit rate=%.1f%% evictions=%d expirations=%d "
+                            + "setup saved=%.1fs%n", pool.getHits(), pool.getMisses(), 100 * pool.getHitRate(),
+                    pool.getEvictions(), pool.getExpirations(), pool.getSetupNanosSaved() / 1e9));
+        }
+        return out.toString();
+    }
+
+    public void dump(File file) throws IOException {
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write(snapshot());
+        }
+        finally {
+            writer.close();
+        }
+    }
+
+    private LatencyHistogram[] histograms() {
+        return new LatencyHistogram[] {connectTime, discoveryTime, readLatency, writeLatency, descriptorWriteLatency,
+                mtuLatency, notifyLatency, recoveryTime};
+    }
+
+    private static void appendCounter(StringBuilder out, String name, long count, double seconds) {
+        out.append(String.format("%s count=%d rate=%.2f/s%n", name, count, count / seconds));
+    }
+}
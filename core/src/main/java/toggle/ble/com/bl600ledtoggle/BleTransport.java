@@ -0,0 +1,28 @@
+package toggle.ble.com.bl600ledtoggle;
+
+/**
+ * A GATT link to one board: the ATT operations of {@link GattTransport} plus the calls that manage the link itself.
+ * On the phone it wraps a BluetoothGatt, in the simulator and in tests it is plain Java. The transport does not call
+ * back; whoever receives its events (the BluetoothGattCallback on the phone) passes them to the
+ * {@link DeviceSession} on the session thread.
+ */
+public interface BleTransport extends GattTransport {
+
+    String getAddress();
+
+    boolean connect();                                                                  //Completes with DeviceSession.onConnectionStateChange
+
+    boolean reconnect(boolean background);                                              //After a drop, background = autoConnect, completes when the board next advertises
+
+    void disconnect();
+
+    void reset();                                                                       //Close the GATT client and open a new one, for stacks stuck after GATT_ERROR
+
+    boolean discoverServices();                                                         //Completes with DeviceSession.onServicesDiscovered
+
+    GattLayout getLayout();                                                             //Services found by the last discovery, null if there has been none
+
+    boolean setNotificationsEnabled(GattLayout.Characteristic characteristic, boolean enabled); //Local routing only, the peer is told through the CCCD
+
+    boolean isBonded();                                                                 //The peer keeps notification config values between connections
+}
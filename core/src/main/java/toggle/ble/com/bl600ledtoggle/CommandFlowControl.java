@@ -0,0 +1,139 @@
+package toggle.ble.com.bl600ledtoggle;
+
+/**
+ * Decides when the next LED command may be sent. Each command takes a credit and gives it back when the
+ * GATT operation for it completes. With one credit the next command is allowed as soon as the previous one is
+ * acknowledged; with a larger window several WRITE_TYPE_NO_RESPONSE writes can be outstanding at once.
+ *
+ * {@link #fixedDelay} keeps the old behaviour of waiting a fixed time after each acknowledgement. It is only
+ * kept to compare against.
+ */
+public class CommandFlowControl {
+
+    public static final long LEGACY_DELAY_MILLIS = 100;                                //Delay the app used to wait after every acknowledgement
+
+    /**
+     * Called when a credit becomes available after all of them were in use, for example to re-enable buttons.
+     */
+    public interface Listener {
+        void onReady();
+    }
+
+    private int mWindow;                                                                //Number of commands allowed in flight
+    private final long mReleaseDelayMillis;                                             //Extra wait before a returned credit can be used again
+    private final TaskScheduler mScheduler;                                             //Runs delayed releases, only needed for the fixed delay mode
+    private int mCredits;                                                               //Credits available right now
+    private Listener mListener;
+
+    private final Runnable mDelayedRelease = new Runnable() {
+        @Override
+        public void run() {
+            returnCredit();
+        }
+    };
+
+    private CommandFlowControl(int window, long releaseDelayMillis, TaskScheduler scheduler) {
+        checkWindow(window);
+        mWindow = window;
+        mCredits = window;
+        mReleaseDelayMillis = releaseDelayMillis;
+        mScheduler = scheduler;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Allow the next command as soon as the previous one has been acknowledged
+    public static CommandFlowControl ackDriven() {
+        return new CommandFlowControl(1, 0, null);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Allow up to window commands in flight, for writes without response
+    public static CommandFlowControl creditWindow(int window) {
+        return new CommandFlowControl(window, 0, null);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Wait delayMillis after each acknowledgement before allowing the next command
+    public static CommandFlowControl fixedDelay(TaskScheduler scheduler, long delayMillis) {
+        return new CommandFlowControl(1, delayMillis, scheduler);
+    }
+
+    public synchronized void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Take a credit for a new command. Returns false if the command has to wait.
+    public synchronized boolean tryAcquire() {
+        if (mCredits == 0) {
+            return false;
+        }
+        mCredits--;
+        return true;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // The command holding a credit has completed, successfully or not
+    public void release() {
+        if (mReleaseDelayMillis > 0) {
+            mScheduler.postDelayed(mDelayedRelease, mReleaseDelayMillis);
+        }
+        else {
+            returnCredit();
+        }
+    }
+
+    public synchronized boolean isReady() {
+        return mCredits > 0;
+    }
+
+    public synchronized int getWindow() {
+        return mWindow;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Give everything back, for example after the link dropped and the outstanding commands were cancelled
+    public void reset() {
+        reset(getWindow());
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Give everything back and allow window commands in flight from now on, for example once the link is ready and it
+    // is known whether the characteristic takes writes without response
+    public void reset(int window) {
+        checkWindow(window);
+        if (mScheduler != null) {
+            mScheduler.removeCallbacks(mDelayedRelease);
+        }
+        Listener listener;
+        synchronized (this) {
+            boolean wasBlocked = mCredits == 0;
+            mWindow = window;
+            mCredits = window;
+            listener = wasBlocked ? mListener : null;
+        }
+        if (listener != null) {
+            listener.onReady();
+        }
+    }
+
+    private static void checkWindow(int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("window must be at least 1");
+        }
+    }
+
+    private void returnCredit() {
+        Listener listener;
+        synchronized (this) {
+            if (mCredits == mWindow) {
+                return;                                                                 //Already released by reset()
+            }
+            mCredits++;
+            listener = mCredits == 1 ? mListener : null;
+        }
+        if (listener != null) {
+            listener.onReady();
+        }
+    }
+}
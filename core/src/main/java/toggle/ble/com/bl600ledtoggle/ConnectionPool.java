@@ -0,0 +1,195 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Keeps links open after the screen that used them lets go, so the next borrower for the same device gets a link that
+ * is already connected and set up. A returned link is closed once it has been idle for the TTL. When the phone's link
+ * limit is reached the least recently used idle link is closed to make room.
+ *
+ * A link has one borrower at a time: two sessions on one link would each take the other's GATT callbacks as their own.
+ */
+public class ConnectionPool<C> {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 7;                                //Most Android controllers cannot hold more LE links than this
+    public static final long DEFAULT_IDLE_TTL_MILLIS = 30000;
+
+    public interface Factory<C> {
+        C open(String address);
+        void close(C connection);
+    }
+
+    private class Entry implements Runnable {
+        final String address;
+        final C connection;
+        boolean borrowed;
+        long setupNanos;                                                                //Last measured time to bring this link into use
+
+        Entry(String address, C connection) {
+            this.address = address;
+            this.connection = connection;
+        }
+
+        @Override
+        public void run() {                                                             //Idle TTL expired
+            expire(this);
+        }
+    }
+
+    private final Factory<C> mFactory;
+    private final TaskScheduler mScheduler;
+    private final int mMaxConnections;
+    private final long mIdleTtlMillis;
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true); //Access order, eldest is least recently used
+    private long mHits, mMisses, mEvictions, mExpirations, mSetupNanosSaved;
+
+    public ConnectionPool(Factory<C> factory, TaskScheduler scheduler) {
+        this(factory, scheduler, DEFAULT_MAX_CONNECTIONS, DEFAULT_IDLE_TTL_MILLIS);
+    }
+
+    public ConnectionPool(Factory<C> factory, TaskScheduler scheduler, int maxConnections, long idleTtlMillis) {
+        mFactory = factory;
+        mScheduler = scheduler;
+        mMaxConnections = maxConnections;
+        mIdleTtlMillis = idleTtlMillis;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Get the link to a device, opening one only if the pool has none. Throws IllegalStateException if the link is
+    // borrowed already, or the link limit is reached and every link is borrowed.
+    public C borrow(String address) {
+        C evicted = null;
+        C connection;
+        synchronized (this) {
+            Entry entry = mEntries.get(address);
+            if (entry != null) {
+                if (entry.borrowed) {
+                    throw new IllegalStateException("The link to " + address + " is in use");
+                }
+                mHits++;
+                mSetupNanosSaved += entry.setupNanos;
+                mScheduler.removeCallbacks(entry);
+            }
+            else {
+                mMisses++;
+                if (mEntries.size() >= mMaxConnections) {
+                    Entry eldest = eldestIdle();
+                    if (eldest == null) {
+                        throw new IllegalStateException("All " + mMaxConnections + " pooled links are in use");
+                    }
+                    mEntries.remove(eldest.address);
+                    mScheduler.removeCallbacks(eldest);
+                    mEvictions++;
+                    evicted = eldest.connection;
+                }
+                entry = new Entry(address, mFactory.open(address));
+                mEntries.put(address, entry);
+            }
+            entry.borrowed = true;
+            connection = entry.connection;
+        }
+        if (evicted != null) {
+            mFactory.close(evicted);
+        }
+        return connection;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Give a link back, it stays open for the idle TTL once nobody is using it
+    public synchronized void release(String address) {
+        Entry entry = mEntries.get(address);
+        if (entry == null || !entry.borrowed) {
+            return;
+        }
+        entry.borrowed = false;
+        mScheduler.postDelayed(entry, mIdleTtlMillis);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Record how long a freshly opened link took to become usable, each later hit on it is counted as that much saved
+    public synchronized void recordSetupTime(String address, long setupNanos) {
+        Entry entry = mEntries.get(address);
+        if (entry != null) {
+            entry.setupNanos = setupNanos;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Close a link straight away, for a link that has failed and should not be handed out again
+    public void discard(String address) {
+        Entry entry;
+        synchronized (this) {
+            entry = mEntries.remove(address);
+            if (entry == null) {
+                return;
+            }
+            mScheduler.removeCallbacks(entry);
+        }
+        mFactory.close(entry.connection);
+    }
+
+    public void closeAll() {
+        List<Entry> entries;
+        synchronized (this) {
+            entries = new ArrayList<Entry>(mEntries.values());
+            mEntries.clear();
+            for (Entry entry : entries) {
+                mScheduler.removeCallbacks(entry);
+            }
+        }
+        for (Entry entry : entries) {
+            mFactory.close(entry.connection);
+        }
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    public synchronized long getHits() {
+        return mHits;
+    }
+
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+    public synchronized long getEvictions() {
+        return mEvictions;
+    }
+
+    public synchronized long getExpirations() {
+        return mExpirations;
+    }
+
+    public synchronized double getHitRate() {
+        long total = mHits + mMisses;
+        return total == 0 ? 0 : (double) mHits / total;
+    }
+
+    public synchronized long getSetupNanosSaved() {
+        return mSetupNanosSaved;
+    }
+
+    private Entry eldestIdle() {
+        for (Entry entry : mEntries.values()) {             //Least recently used first
+            if (!entry.borrowed) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private void expire(Entry entry) {
+        synchronized (this) {
+            if (mEntries.get(entry.address) != entry || entry.borrowed) {
+                return;                                                                 //Borrowed again or already gone
+            }
+            mEntries.remove(entry.address);
+            mExpirations++;
+        }
+        mFactory.close(entry.connection);
+    }
+}
@@ -0,0 +1,156 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rows of the scan list, one per board. Rows from the {@link RecentDevices} snapshot are shown first, before the radio is
+ * even up; a live scan result for a board already on the list updates its row instead of adding a second one, and marks
+ * it as heard in this scan. The boards a {@link ProximityRanking} puts nearest are shown first, in rank order, and the
+ * others after them in the order they were found.
+ *
+ * Not thread safe, used from the UI thread.
+ */
+public class DeviceListModel {
+
+    /**
+     * One board on the list.
+     */
+    public static class Row {
+        public final String address;
+        String mName;
+        int mRssi;
+        boolean mLive;                                                                  //Heard in this scan, not just remembered
+        int mRank = -1;                                                                 //Place among the nearest boards, -1 if not one of them
+
+        Row(String address, String name, int rssi, boolean live) {
+            this.address = address;
+            mName = name != null ? name : "";
+            mRssi = rssi;
+            mLive = live;
+        }
+
+        public String getName() {                                                       //Empty if no advertisement had one
+            return mName;
+        }
+
+        public int getRssi() {
+            return mRssi;
+        }
+
+        public boolean isLive() {
+            return mLive;
+        }
+
+        public int getRank() {
+            return mRank;
+        }
+    }
+
+    private final List<Row> mRows = new ArrayList<Row>();
+    private final Map<String, Row> mByAddress = new HashMap<String, Row>();
+    private final List<String> mNearest = new ArrayList<String>();                      //Addresses to show first, nearest first
+    private final List<Row> mShown = new ArrayList<Row>();                              //Rows in screen order while some are ranked
+    private boolean mShownStale;                                                        //Rows or ranking changed since mShown was built
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Show remembered boards not already on the list. Returns the number of rows added.
+    public int addRecent(List<RecentDevices.Device> devices) {
+        int added = 0;
+        for (RecentDevices.Device device : devices) {
+            if (!mByAddress.containsKey(device.address)) {
+                add(new Row(device.address, device.name, device.rssi, false));
+                added++;
+            }
+        }
+        return added;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Merge a live scan result. Returns true if the board is new to the list, false if its row was updated.
+    public boolean onLive(String address, String name, int rssi) {
+        Row row = mByAddress.get(address);
+        if (row == null) {
+            add(new Row(address, name, rssi, true));
+            return true;
+        }
+        if (name != null && name.length() > 0) {
+            row.mName = name;
+        }
+        row.mRssi = rssi;
+        row.mLive = true;
+        return false;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Show these boards first, in this order. Returns true if the order on screen changes.
+    public boolean setNearest(List<String> addresses) {
+        if (addresses.equals(mNearest)) {
+            return false;
+        }
+        mNearest.clear();
+        mNearest.addAll(addresses);
+        if (mNearest.isEmpty()) {
+            for (Row row : mRows) {
+                row.mRank = -1;                                                         //Back to the order they were found in
+            }
+        }
+        mShownStale = true;
+        return true;
+    }
+
+    public Row get(int position) {
+        return shown().get(position);
+    }
+
+    public Row find(String address) {
+        return mByAddress.get(address);
+    }
+
+    public int size() {
+        return mRows.size();
+    }
+
+    public void clear() {
+        mRows.clear();
+        mByAddress.clear();
+        mNearest.clear();
+        mShown.clear();
+    }
+
+    private void add(Row row) {
+        mRows.add(row);
+        mByAddress.put(row.address, row);
+        mShownStale = true;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Rows in screen order, rebuilt at most once per change of the rows or the ranking
+    private List<Row> shown() {
+        if (mNearest.isEmpty()) {
+            return mRows;
+        }
+        if (mShownStale) {
+            mShown.clear();
+            for (Row row : mRows) {
+                row.mRank = -1;
+            }
+            for (String address : mNearest) {
+                Row row = mByAddress.get(address);
+                if (row != null && row.mRank < 0) {
+                    row.mRank = mShown.size();
+                    mShown.add(row);
+                }
+            }
+            for (Row row : mRows) {
+                if (row.mRank < 0) {
+                    mShown.add(row);
+                }
+            }
+            mShownStale = false;
+        }
+        return mShown;
+    }
+}
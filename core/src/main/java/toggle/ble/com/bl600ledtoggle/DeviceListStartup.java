@@ -0,0 +1,64 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * The cold start path of the scan list. Reading the snapshot of recent boards is the only work between launch and the
+ * first row; getting the Bluetooth manager and adapter, which can take hundreds of milliseconds on a cold process, runs
+ * after it on the background executor, and the scan only starts once that is done.
+ *
+ * Listener calls are posted to the UI executor, recent devices always before the adapter.
+ */
+public class DeviceListStartup {
+
+    /**
+     * The slow platform setup, called once on the background executor.
+     */
+    public interface Adapter {
+        boolean open();                                                                 //False if the device has no Bluetooth
+    }
+
+    /**
+     * Told on the UI executor as the startup steps finish.
+     */
+    public interface Listener {
+        void onRecentDevices(List<RecentDevices.Device> devices);
+
+        void onAdapterReady(boolean available);
+    }
+
+    private final RecentDevices mRecentDevices;
+    private final Adapter mAdapter;
+    private final Executor mBackground;
+    private final Executor mUi;
+
+    public DeviceListStartup(RecentDevices recentDevices, Adapter adapter, Executor background, Executor ui) {
+        mRecentDevices = recentDevices;
+        mAdapter = adapter;
+        mBackground = background;
+        mUi = ui;
+    }
+
+    public void start(final Listener listener) {
+        mBackground.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<RecentDevices.Device> devices = mRecentDevices.load();
+                mUi.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onRecentDevices(devices);
+                    }
+                });
+                final boolean available = mAdapter.open();
+                mUi.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onAdapterReady(available);
+                    }
+                });
+            }
+        });
+    }
+}
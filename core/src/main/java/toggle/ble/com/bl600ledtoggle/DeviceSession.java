@@ -0,0 +1,59 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import java.util.UUID;
+
+/**
+ * The life of a connection to one board: connecting, tuning the link, discovering and setting up services, and
+ * tearing it all down again when the link drops. A session is confined to one thread, the session thread. Every method,
+ * including the events passed in from the {@link BleTransport}, must be called on it, and listeners are called on it.
+ * A headless service can run many sessions, each on its own thread or several on one.
+ */
+public interface DeviceSession {
+
+    enum State { DISCONNECTED, CONNECTING, CONNECTED, READY, RECONNECTING }             //READY once the LED service is in use
+
+    interface Listener {
+        void onStateChanged(DeviceSession session, State state);
+    }
+
+    String getAddress();
+
+    State getState();
+
+    void setListener(Listener listener);
+
+    void connect();
+
+    void disconnect();
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Get a dropped link back on its own, keeping the operations that were queued on it. Null, the default, leaves the
+    // session disconnected. Stops a reconnect in progress.
+    void setReconnectPolicy(ReconnectPolicy policy);
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Applied straight away if the link is up, and on every later connection
+    void setLinkProfile(LinkProfile profile);
+
+    LinkProfile getLinkProfile();
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // The transport is already connected, for a link kept open by a pool. Call before onConnectionStateChange.
+    void onLinkReused(int mtu, boolean servicesDiscovered);
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Events from the transport
+    void onConnectionStateChange(int status, boolean connected);
+
+    void onServicesDiscovered(int status);
+
+    void onCharacteristicRead(UUID characteristic, int status, byte[] value);
+
+    void onCharacteristicWrite(UUID characteristic, int status);
+
+    void onDescriptorWrite(UUID characteristic, UUID descriptor, int status);
+
+    void onMtuChanged(int mtu, int status);
+
+    void onCharacteristicChanged(UUID characteristic, byte[] value, int length, long receivedNanos);
+}
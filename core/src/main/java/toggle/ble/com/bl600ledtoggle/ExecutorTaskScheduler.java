@@ -0,0 +1,77 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TaskScheduler on a single background thread, the plain Java counterpart of a Handler on a HandlerThread. Work posted
+ * with {@link #execute(Runnable)} and delayed tasks run on the same thread, so it can serve as the thread a
+ * {@link DeviceSession} is confined to.
+ */
+public class ExecutorTaskScheduler implements TaskScheduler, Executor {
+
+    private final ScheduledExecutorService mExecutor;
+    private final Map<Runnable, ScheduledFuture<?>> mFutures = new IdentityHashMap<Runnable, ScheduledFuture<?>>();
+
+    public ExecutorTaskScheduler() {
+        this("BleSession");
+    }
+
+    public ExecutorTaskScheduler(final String threadName) {
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, threadName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        try {
+            mExecutor.execute(command);
+        }
+        catch (RejectedExecutionException e) {
+            //Shut down, like posting to a Handler whose looper has quit
+        }
+    }
+
+    @Override
+    public synchronized void postDelayed(final Runnable task, long delayMillis) {
+        try {
+            mFutures.put(task, mExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (ExecutorTaskScheduler.this) {
+                        mFutures.remove(task);
+                    }
+                    task.run();
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS));
+        }
+        catch (RejectedExecutionException e) {
+            //Shut down, the task would never run
+        }
+    }
+
+    @Override
+    public synchronized void removeCallbacks(Runnable task) {
+        ScheduledFuture<?> future = mFutures.remove(task);
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,857 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local HTTP and WebSocket API for a {@link LedGateway}, so boards can be driven by other systems without the app's
+ * screens. One thread runs a selector over every connection and never blocks: a request starts its LED command and the
+ * answer is written when the session thread reports back, while the same thread goes on serving other clients.
+ *
+ * <pre>
+ * GET  /devices                  every board with its last known state
+ * GET  /devices/{address}/led    read the LED state
+ * PUT  /devices/{address}/led    write it, body 0 or 1, or {"state":1}
+ * PUT  /led                      write every board, body 0 or 1, or {"state":1}
+ * POST /led                      write several boards at once, body {"00:16:A4:12:34:56":1, ...}
+ * POST /scene                    write several boards so that they flip together, body as for POST /led
+ * GET  /events                   WebSocket, one text message per state a board reports
+ * GET  /metrics                  request counts and latency
+ * </pre>
+ *
+ * Responses are JSON. Connections are kept alive and pipelined requests are answered in order, one at a time. A
+ * WebSocket client that falls more than {@link #MAX_PENDING_EVENT_BYTES} behind is disconnected rather than buffered
+ * without bound.
+ */
+public class GatewayServer {
+
+    public static final int MAX_REQUEST_BYTES = 16384;
+    public static final int MAX_PENDING_EVENT_BYTES = 256 * 1024;
+
+    private static final int INITIAL_BUFFER_BYTES = 2048;
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    /**
+     * One client, touched by the selector thread only.
+     */
+    private static class Connection {
+        final SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);                      //Bytes received and not yet parsed
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+        int outBytes;                                                                   //Bytes queued and not yet written
+        boolean busy;                                                                   //A request is waiting for the gateway
+        boolean keepAlive;
+        boolean closeAfterWrite;
+        boolean webSocket;
+        boolean open = true;
+        long requestStartNanos;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * A parsed HTTP request.
+     */
+    private static class Request {
+        String method;
+        String path;
+        final Map<String, String> headers = new HashMap<String, String>();             //Names in lower case
+        String body;
+        boolean keepAlive;
+    }
+
+    private final LedGateway mGateway;
+    private final InetSocketAddress mBindAddress;
+    private Selector mSelector;
+    private ServerSocketChannel mServer;
+    private Thread mThread;
+    private volatile boolean mRunning;
+    private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<Runnable>(); //Replies handed over from session threads
+    private final List<Connection> mWebSockets = new ArrayList<Connection>();
+    private int mConnections;
+
+    private final LatencyHistogram mLatency = new LatencyHistogram("gateway request");
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mEvents = new AtomicLong();
+    private final AtomicLong mDroppedClients = new AtomicLong();
+
+    public GatewayServer(LedGateway gateway, InetSocketAddress bindAddress) {
+        mGateway = gateway;
+        mBindAddress = bindAddress;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Bind and start serving on a thread of its own
+    public synchronized void start() throws IOException {
+        if (mRunning) {
+            return;
+        }
+        mSelector = Selector.open();
+        mServer = ServerSocketChannel.open();
+        try {
+            mServer.socket().setReuseAddress(true);
+            mServer.socket().bind(mBindAddress, 256);
+            mServer.configureBlocking(false);
+            mServer.register(mSelector, SelectionKey.OP_ACCEPT);
+        }
+        catch (IOException e) {
+            mServer.close();
+            mSelector.close();
+            throw e;
+        }
+        mRunning = true;
+        mGateway.addListener(mStateListener);
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "Gateway");
+        mThread.start();
+    }
+
+    public synchronized void close() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        mGateway.removeListener(mStateListener);
+        mSelector.wakeup();
+        try {
+            mThread.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getPort() {
+        return mServer.socket().getLocalPort();
+    }
+
+    public LatencyHistogram getLatency() {                                              //From a complete request to its response being queued
+        return mLatency;
+    }
+
+    public long getRequestCount() {
+        return mRequests.get();
+    }
+
+    public long getEventCount() {                                                       //State messages sent to WebSocket clients
+        return mEvents.get();
+    }
+
+    public long getDroppedClientCount() {                                               //WebSocket clients disconnected for falling behind
+        return mDroppedClients.get();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Selector loop
+    private void serve() {
+        try {
+            while (mRunning) {
+                mSelector.select();
+                Runnable task;
+                while ((task = mTasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            read(connection);
+                        }
+                        if (connection.open && key.isValid() && key.isWritable()) {
+                            flush(connection);
+                        }
+                    }
+                    catch (IOException e) {
+                        close(connection);                                              //Reset by the client
+                    }
+                }
+            }
+        }
+        catch (IOException e) {
+            mRunning = false;
+        }
+        finally {
+            for (SelectionKey key : mSelector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    close((Connection) key.attachment());
+                }
+            }
+            try {
+                mServer.close();
+                mSelector.close();
+            }
+            catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = mServer.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);                                       //Responses are small and latency bound
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(mSelector, SelectionKey.OP_READ, connection);
+            mConnections++;
+        }
+    }
+
+    private void read(Connection connection) throws IOException {
+        while (true) {
+            if (!connection.in.hasRemaining()) {
+                if (connection.in.capacity() >= MAX_REQUEST_BYTES) {
+                    break;                                                              //Full, parsing decides whether that is an error
+                }
+                ByteBuffer larger = ByteBuffer.allocate(Math.min(MAX_REQUEST_BYTES, connection.in.capacity() * 2));
+                connection.in.flip();
+                larger.put(connection.in);
+                connection.in = larger;
+            }
+            int read = connection.channel.read(connection.in);
+            if (read < 0) {
+                close(connection);
+                return;
+            }
+            if (read == 0) {
+                break;
+            }
+        }
+        process(connection);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Handle every complete request or frame received, stopping while a request waits for the gateway. A client that
+    // pipelines a full buffer of requests behind a slow one is not read from until there is room again.
+    private void process(Connection connection) {
+        processReceived(connection);
+        if (connection.open) {
+            boolean room = connection.in.hasRemaining() || connection.in.capacity() < MAX_REQUEST_BYTES;
+            int ops = connection.key.interestOps();
+            connection.key.interestOps(room ? ops | SelectionKey.OP_READ : ops & ~SelectionKey.OP_READ);
+        }
+    }
+
+    private void processReceived(Connection connection) {
+        while (connection.open && !connection.busy && !connection.closeAfterWrite) {
+            if (connection.webSocket) {
+                if (!readFrame(connection)) {
+                    return;
+                }
+                continue;
+            }
+            Request request;
+            try {
+                request = parseRequest(connection);
+            }
+            catch (IllegalArgumentException e) {
+                connection.keepAlive = false;
+                respond(connection, 400, error(e.getMessage()));
+                return;
+            }
+            if (request == null) {
+                if (!connection.in.hasRemaining() && connection.in.capacity() >= MAX_REQUEST_BYTES) {
+                    connection.keepAlive = false;
+                    respond(connection, 413, error("Request too large"));
+                }
+                return;
+            }
+            connection.keepAlive = request.keepAlive;
+            connection.requestStartNanos = System.nanoTime();
+            mRequests.incrementAndGet();
+            handle(connection, request);
+        }
+    }
+
+    private void handle(final Connection connection, Request request) {
+        String path = request.path;
+        int query = path.indexOf('?');
+        if (query >= 0) {
+            path = path.substring(0, query);
+        }
+        String[] segments = path.split("/");
+        try {
+            if (path.equals("/devices")) {
+                if (!request.method.equals("GET")) {
+                    respond(connection, 405, error("Use GET"));
+                    return;
+                }
+                StringBuilder json = new StringBuilder("{\"devices\":[");
+                boolean first = true;
+                for (String address : mGateway.getAddresses()) {
+                    json.append(first ? "" : ",").append("{\"address\":").append(quote(address))
+                            .append(",\"state\":").append(mGateway.getLastState(address)).append('}');
+                    first = false;
+                }
+                respond(connection, 200, json.append("]}").toString());
+            }
+            else if (segments.length == 4 && segments[1].equals("devices") && segments[3].equals("led")) {
+                String address = URLDecoder.decode(segments[2], "UTF-8");
+                if (!mGateway.hasDevice(address)) {
+                    respond(connection, 404, error("No board " + address));
+                }
+                else if (request.method.equals("GET")) {
+                    connection.busy = true;
+                    mGateway.readLed(address, replyTo(connection));
+                }
+                else if (request.method.equals("PUT") || request.method.equals("POST")) {
+                    int state = parseStateBody(request.body);
+                    connection.busy = true;
+                    mGateway.setLed(address, state, replyTo(connection));
+                }
+                else {
+                    respond(connection, 405, error("Use GET or PUT"));
+                }
+            }
+            else if (path.equals("/led")) {
+                if (request.method.equals("PUT")) {
+                    int state = parseStateBody(request.body);
+                    connection.busy = true;
+                    mGateway.setAll(state, batchReplyTo(connection));
+                }
+                else if (request.method.equals("POST")) {
+                    Map<String, Integer> states = parseStates(request.body);
+                    connection.busy = true;
+                    mGateway.setLeds(states, batchReplyTo(connection));
+                }
+                else {
+                    respond(connection, 405, error("Use PUT or POST"));
+                }
+            }
+            else if (path.equals("/scene")) {
+                if (!request.method.equals("POST")) {
+                    respond(connection, 405, error("Use POST"));
+                    return;
+                }
+                SceneEngine.Scene scene = new SceneEngine.Scene();
+                for (Map.Entry<String, Integer> entry : parseStates(request.body).entrySet()) {
+                    scene.set(entry.getKey(), entry.getValue());
+                }
+                connection.busy = true;
+                mGateway.runScene(scene, sceneReplyTo(connection));
+            }
+            else if (path.equals("/events")) {
+                upgrade(connection, request);
+            }
+            else if (path.equals("/metrics")) {
+                respond(connection, 200, metrics());
+            }
+            else {
+                respond(connection, 404, error("No such resource"));
+            }
+        }
+        catch (IllegalArgumentException e) {
+            connection.busy = false;
+            respond(connection, 400, error(e.getMessage()));
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);                                                //Every JVM has UTF-8
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Answer a single board command once the session thread reports back
+    private LedGateway.Reply replyTo(final Connection connection) {
+        return new LedGateway.Reply() {
+            @Override
+            public void onReply(final String address, final int status, final int state) {
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        connection.busy = false;
+                        respond(connection, httpStatus(status), "{\"address\":" + quote(address) + ",\"state\":" + state
+                                + ",\"status\":" + status + "}");
+                        process(connection);
+                    }
+                });
+            }
+        };
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Status of every board, the completion latency of those that acknowledged and the aggregate rate
+    private LedGateway.BatchReply batchReplyTo(final Connection connection) {
+        return new LedGateway.BatchReply() {
+            @Override
+            public void onBatchReply(final LedGateway.BatchResult result) {
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        connection.busy = false;
+                        StringBuilder json = new StringBuilder("{\"results\":{");
+                        boolean first = true;
+                        for (Map.Entry<String, Integer> entry : result.getStatuses().entrySet()) {
+                            json.append(first ? "" : ",").append(quote(entry.getKey())).append(':').append(entry.getValue());
+                            first = false;
+                        }
+                        json.append("},\"latencyMicros\":{");
+                        first = true;
+                        for (Map.Entry<String, Long> entry : result.getLatencies().entrySet()) {
+                            json.append(first ? "" : ",").append(quote(entry.getKey())).append(':').append(entry.getValue() / 1000);
+                            first = false;
+                        }
+                        json.append("},\"writesPerSecond\":").append(Math.round(result.getThroughput()));
+                        respond(connection, 200, json.append(",\"ok\":").append(result.isOk()).append('}').toString());
+                        process(connection);                                            //Requests pipelined behind this one
+                    }
+                });
+            }
+        };
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // The skew a scene achieved, when each board flipped relative to the first, how far ahead of the flip each write was
+    // sent and the boards that failed
+    private SceneEngine.Listener sceneReplyTo(final Connection connection) {
+        return new SceneEngine.Listener() {
+            @Override
+            public void onSceneComplete(final SceneEngine.SceneResult result) {
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        connection.busy = false;
+                        StringBuilder json = new StringBuilder("{\"skewMicros\":").append(result.getSkewNanos() / 1000);
+                        json.append(",\"withinBound\":").append(result.isWithinBound()).append(",\"flipOffsetMicros\":");
+                        appendMicros(json, result.getFlipOffsets());
+                        json.append(",\"leadMicros\":");
+                        appendMicros(json, result.getLeads());
+                        json.append(",\"failed\":[");
+                        boolean first = true;
+                        for (String address : result.getFailed()) {
+                            json.append(first ? "" : ",").append(quote(address));
+                            first = false;
+                        }
+                        respond(connection, 200, json.append("]}").toString());
+                        process(connection);
+                    }
+                });
+            }
+        };
+    }
+
+    private static void appendMicros(StringBuilder json, Map<String, Long> nanos) {
+        json.append('{');
+        boolean first = true;
+        for (Map.Entry<String, Long> entry : new TreeMap<String, Long>(nanos).entrySet()) {
+            json.append(first ? "" : ",").append(quote(entry.getKey())).append(':').append(entry.getValue() / 1000);
+            first = false;
+        }
+        json.append('}');
+    }
+
+    private void post(Runnable task) {
+        mTasks.add(task);
+        mSelector.wakeup();
+    }
+
+    private static int httpStatus(int status) {
+        switch (status) {
+            case GattOperation.GATT_SUCCESS:
+                return 200;
+            case LedGateway.STATUS_NO_DEVICE:
+                return 404;
+            case GattOperation.STATUS_REJECTED:
+                return 503;                                                             //LED service not ready, try again later
+            case GattOperation.STATUS_TIMEOUT:
+                return 504;
+            default:
+                return 502;                                                             //The board refused or the link went down
+        }
+    }
+
+    private static String reason(int code) {
+        switch (code) {
+            case 101: return "Switching Protocols";
+            case 200: return "OK";
+            case 400: return "Bad Request";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 413: return "Payload Too Large";
+            case 502: return "Bad Gateway";
+            case 503: return "Service Unavailable";
+            case 504: return "Gateway Timeout";
+            default: return "Error";
+        }
+    }
+
+    private void respond(Connection connection, int code, String json) {
+        if (!connection.open) {
+            return;
+        }
+        byte[] body = json.getBytes(UTF_8);
+        String head = "HTTP/1.1 " + code + " " + reason(code) + "\r\nContent-Type: application/json\r\nContent-Length: "
+                + body.length + (connection.keepAlive ? "" : "\r\nConnection: close") + "\r\n\r\n";
+        byte[] headBytes = head.getBytes(ASCII);
+        ByteBuffer response = ByteBuffer.allocate(headBytes.length + body.length);
+        response.put(headBytes).put(body).flip();
+        mLatency.record(System.nanoTime() - connection.requestStartNanos);
+        if (!connection.keepAlive) {
+            connection.closeAfterWrite = true;
+        }
+        send(connection, response);
+    }
+
+    private static String error(String message) {
+        return "{\"error\":" + quote(message) + "}";
+    }
+
+    private String metrics() {
+        LatencyHistogram.Snapshot latency = mLatency.snapshot();
+        return "{\"requests\":" + mRequests.get() + ",\"connections\":" + mConnections + ",\"webSockets\":"
+                + mWebSockets.size() + ",\"events\":" + mEvents.get() + ",\"droppedClients\":" + mDroppedClients.get()
+                + ",\"latencyP50Micros\":" + latency.getPercentile(50) / 1000 + ",\"latencyP99Micros\":"
+                + latency.getPercentile(99) / 1000 + "}";
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Write queued bytes until the socket would block, then wait for it to drain
+    private void send(Connection connection, ByteBuffer buffer) {
+        connection.out.add(buffer);
+        connection.outBytes += buffer.remaining();
+        try {
+            flush(connection);
+        }
+        catch (IOException e) {
+            close(connection);
+        }
+    }
+
+    private void flush(Connection connection) throws IOException {
+        while (!connection.out.isEmpty()) {
+            ByteBuffer buffer = connection.out.peek();
+            int written = connection.channel.write(buffer);
+            connection.outBytes -= written;
+            if (buffer.hasRemaining()) {
+                connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            connection.out.poll();
+        }
+        if (connection.closeAfterWrite) {
+            close(connection);
+            return;
+        }
+        connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    private void close(Connection connection) {
+        if (!connection.open) {
+            return;
+        }
+        connection.open = false;
+        connection.key.cancel();
+        mWebSockets.remove(connection);
+        mConnections--;
+        try {
+            connection.channel.close();
+        }
+        catch (IOException ignored) {
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // HTTP/1.1 request parsing. Returns null until the whole request, body included, has arrived.
+    private static Request parseRequest(Connection connection) {
+        ByteBuffer in = connection.in;
+        byte[] bytes = in.array();
+        int filled = in.position();
+        int headerEnd = -1;
+        for (int i = 3; i < filled; i++) {
+            if (bytes[i] == '\n' && bytes[i - 1] == '\r' && bytes[i - 2] == '\n' && bytes[i - 3] == '\r') {
+                headerEnd = i + 1;
+                break;
+            }
+        }
+        if (headerEnd < 0) {
+            return null;
+        }
+        String[] lines = new String(bytes, 0, headerEnd - 4, ASCII).split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+            throw new IllegalArgumentException("Malformed request line");
+        }
+        Request request = new Request();
+        request.method = requestLine[0];
+        request.path = requestLine[1];
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0) {
+                request.headers.put(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon + 1).trim());
+            }
+        }
+        if (request.headers.containsKey("transfer-encoding")) {
+            throw new IllegalArgumentException("Chunked requests are not supported, send Content-Length");
+        }
+        int length = 0;
+        String contentLength = request.headers.get("content-length");
+        if (contentLength != null) {
+            try {
+                length = Integer.parseInt(contentLength);
+            }
+            catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad Content-Length");
+            }
+            if (length < 0 || headerEnd + length > MAX_REQUEST_BYTES) {
+                throw new IllegalArgumentException("Bad Content-Length");
+            }
+        }
+        if (filled < headerEnd + length) {
+            return null;
+        }
+        request.body = new String(bytes, headerEnd, length, UTF_8);
+        String connectionHeader = request.headers.get("connection");
+        request.keepAlive = requestLine[2].equals("HTTP/1.1")
+                ? connectionHeader == null || !connectionHeader.equalsIgnoreCase("close")
+                : connectionHeader != null && connectionHeader.equalsIgnoreCase("keep-alive");
+        consume(in, headerEnd + length);
+        return request;
+    }
+
+    private static void consume(ByteBuffer in, int bytes) {
+        in.flip();
+        in.position(bytes);
+        in.compact();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Request bodies: a flat JSON object of address to 0 or 1, or for a single board 0, 1 or {"state":1}
+    static Map<String, Integer> parseStates(String body) {
+        String json = body.trim();
+        if (!json.startsWith("{") || !json.endsWith("}")) {
+            throw new IllegalArgumentException("Expected a JSON object");
+        }
+        json = json.substring(1, json.length() - 1).trim();
+        Map<String, Integer> states = new LinkedHashMap<String, Integer>();
+        if (json.length() == 0) {
+            return states;
+        }
+        for (String member : json.split(",")) {
+            int colon = member.lastIndexOf(':');                                        //Addresses have colons, values do not
+            String key = colon > 0 ? member.substring(0, colon).trim() : "";
+            if (key.length() < 2 || key.charAt(0) != '"' || key.charAt(key.length() - 1) != '"') {
+                throw new IllegalArgumentException("Expected \"address\": state");
+            }
+            states.put(key.substring(1, key.length() - 1), parseState(member.substring(colon + 1)));
+        }
+        return states;
+    }
+
+    static int parseStateBody(String body) {
+        String value = body.trim();
+        if (value.startsWith("{")) {
+            Integer state = parseStates(value).get("state");
+            if (state == null) {
+                throw new IllegalArgumentException("Expected {\"state\": 0 or 1}");
+            }
+            return state;
+        }
+        return parseState(value);
+    }
+
+    private static int parseState(String value) {
+        value = value.trim();
+        if (value.equals("1") || value.equals("true")) {
+            return 1;
+        }
+        if (value.equals("0") || value.equals("false")) {
+            return 0;
+        }
+        throw new IllegalArgumentException("LED state must be 0 or 1");
+    }
+
+    static String quote(String value) {
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            }
+            else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            }
+            else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // WebSocket (RFC 6455). The handshake answers with the current state of every board, then each state a board
+    // reports is sent as {"address":..., "state":..., "fromRead":...}.
+    private void upgrade(Connection connection, Request request) {
+        String key = request.headers.get("sec-websocket-key");
+        String upgrade = request.headers.get("upgrade");
+        if (!request.method.equals("GET") || key == null || upgrade == null || !upgrade.equalsIgnoreCase("websocket")) {
+            respond(connection, 400, error("Expected a WebSocket upgrade"));
+            return;
+        }
+        String accept;
+        try {
+            accept = base64(MessageDigest.getInstance("SHA-1").digest((key + WEBSOCKET_GUID).getBytes(ASCII)));
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);                                                //Every JVM has SHA-1
+        }
+        String head = "HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                + "Sec-WebSocket-Accept: " + accept + "\r\n\r\n";
+        mLatency.record(System.nanoTime() - connection.requestStartNanos);
+        connection.webSocket = true;
+        send(connection, ByteBuffer.wrap(head.getBytes(ASCII)));
+        mWebSockets.add(connection);
+        for (String address : mGateway.getAddresses()) {
+            int state = mGateway.getLastState(address);
+            if (state >= 0) {
+                send(connection, ByteBuffer.wrap(frame(0x1, event(address, state, true).getBytes(UTF_8))));
+            }
+        }
+    }
+
+    private static String event(String address, int state, boolean fromRead) {
+        return "{\"address\":" + quote(address) + ",\"state\":" + state + ",\"fromRead\":" + fromRead + "}";
+    }
+
+    static byte[] frame(int opcode, byte[] payload) {
+        int header = payload.length < 126 ? 2 : payload.length < 65536 ? 4 : 10;
+        ByteBuffer frame = ByteBuffer.allocate(header + payload.length);
+        frame.put((byte) (0x80 | opcode));                                              //FIN, server frames are not masked
+        if (payload.length < 126) {
+            frame.put((byte) payload.length);
+        }
+        else if (payload.length < 65536) {
+            frame.put((byte) 126).putShort((short) payload.length);
+        }
+        else {
+            frame.put((byte) 127).putLong(payload.length);
+        }
+        return frame.put(payload).array();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Handle one client frame: close and ping are answered, data frames are ignored. Returns false until a whole frame
+    // has arrived.
+    private boolean readFrame(Connection connection) {
+        ByteBuffer in = connection.in;
+        byte[] bytes = in.array();
+        int filled = in.position();
+        if (filled < 2) {
+            return false;
+        }
+        int opcode = bytes[0] & 0x0f;
+        boolean masked = (bytes[1] & 0x80) != 0;
+        long length = bytes[1] & 0x7f;
+        int offset = 2;
+        if (length == 126) {
+            if (filled < 4) {
+                return false;
+            }
+            length = ((bytes[2] & 0xff) << 8) | (bytes[3] & 0xff);
+            offset = 4;
+        }
+        else if (length == 127) {
+            if (filled < 10) {
+                return false;
+            }
+            length = ByteBuffer.wrap(bytes, 2, 8).getLong();
+            offset = 10;
+        }
+        if (!masked || length > MAX_REQUEST_BYTES - 14) {
+            close(connection);                                                          //Clients must mask, and control messages are small
+            return false;
+        }
+        if (filled < offset + 4 + length) {
+            return false;
+        }
+        byte[] payload = new byte[(int) length];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) (bytes[offset + 4 + i] ^ bytes[offset + (i & 3)]);
+        }
+        consume(in, offset + 4 + (int) length);
+        if (opcode == 0x8) {
+            connection.closeAfterWrite = true;
+            send(connection, ByteBuffer.wrap(frame(0x8, new byte[0])));
+            return false;
+        }
+        if (opcode == 0x9) {
+            send(connection, ByteBuffer.wrap(frame(0xA, payload)));
+        }
+        return true;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // States reported by the boards, on their session threads, handed to the selector thread and sent once encoded
+    private final LedGateway.StateListener mStateListener = new LedGateway.StateListener() {
+        @Override
+        public void onStateChanged(final String address, final int state, final boolean fromRead) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mWebSockets.isEmpty()) {
+                        return;
+                    }
+                    byte[] frame = frame(0x1, event(address, state, fromRead).getBytes(UTF_8));
+                    for (Connection connection : new ArrayList<Connection>(mWebSockets)) {
+                        if (connection.outBytes > MAX_PENDING_EVENT_BYTES) {
+                            mDroppedClients.incrementAndGet();
+                            close(connection);                                          //Too slow to keep up, let it reconnect and start over
+                            continue;
+                        }
+                        send(connection, ByteBuffer.wrap(frame));
+                        mEvents.incrementAndGet();
+                    }
+                }
+            });
+        }
+    };
+
+    static String base64(byte[] data) {
+        StringBuilder encoded = new StringBuilder((data.length + 2) / 3 * 4);
+        for (int i = 0; i < data.length; i += 3) {
+            int b = (data[i] & 0xff) << 16 | (i + 1 < data.length ? (data[i + 1] & 0xff) << 8 : 0)
+                    | (i + 2 < data.length ? data[i + 2] & 0xff : 0);
+            encoded.append(BASE64[b >> 18 & 0x3f]).append(BASE64[b >> 12 & 0x3f])
+                    .append(i + 1 < data.length ? BASE64[b >> 6 & 0x3f] : '=')
+                    .append(i + 2 < data.length ? BASE64[b & 0x3f] : '=');
+        }
+        return encoded.toString();
+    }
+}
@@ -0,0 +1,65 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Counts the {@link GattOperationQueue}s that have work in progress, so a scan can step aside while GATT operations are
+ * on the air: the controller shares one radio between scanning and connections, and scan windows take connection
+ * events away from the links. One instance per process ({@link #global()}) is shared by every queue.
+ */
+public class GattActivity {
+
+    private static final GattActivity GLOBAL = new GattActivity();
+
+    /**
+     * Told when the first queue gets busy and when the last one goes idle, on the thread of that queue.
+     */
+    public interface Listener {
+        void onGattActivityChanged(boolean busy);
+    }
+
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+    private int mBusyQueues;
+
+    public static GattActivity global() {
+        return GLOBAL;
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    public synchronized boolean isBusy() {
+        return mBusyQueues > 0;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Called by a queue when it gets its first operation and when its last one finishes
+    public void onBusy() {
+        synchronized (this) {
+            if (mBusyQueues++ > 0) {
+                return;
+            }
+        }
+        notifyListeners(true);
+    }
+
+    public void onIdle() {
+        synchronized (this) {
+            if (mBusyQueues == 0 || --mBusyQueues > 0) {
+                return;
+            }
+        }
+        notifyListeners(false);
+    }
+
+    private void notifyListeners(boolean busy) {
+        for (Listener listener : mListeners) {
+            listener.onGattActivityChanged(busy);                                       //Listeners check isBusy() again, calls may race
+        }
+    }
+}
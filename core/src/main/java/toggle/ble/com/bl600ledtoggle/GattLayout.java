@@ -0,0 +1,122 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The services and characteristics a device exposes, flattened to one entry per characteristic. This is what
+ * {@link GattLayoutCache} stores per device so a reconnect does not have to work the layout out again.
+ */
+public class GattLayout {
+
+    public static final int PROPERTY_READ = 0x02;                                       //Same values as BluetoothGattCharacteristic.PROPERTY_*
+    public static final int PROPERTY_WRITE_NO_RESPONSE = 0x04;
+    public static final int PROPERTY_WRITE = 0x08;
+    public static final int PROPERTY_NOTIFY = 0x10;
+    public static final int PROPERTY_INDICATE = 0x20;
+
+    /**
+     * One characteristic, with the service it belongs to and whether it has a notification config descriptor.
+     */
+    public static class Characteristic {
+        public final UUID service;
+        public final UUID uuid;
+        public final int properties;
+        public final boolean hasCccd;
+
+        public Characteristic(UUID service, UUID uuid, int properties, boolean hasCccd) {
+            this.service = service;
+            this.uuid = uuid;
+            this.properties = properties;
+            this.hasCccd = hasCccd;
+        }
+
+        public boolean has(int property) {
+            return (properties & property) != 0;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Characteristic)) {
+                return false;
+            }
+            Characteristic other = (Characteristic) o;
+            return service.equals(other.service) && uuid.equals(other.uuid) && properties == other.properties && hasCccd == other.hasCccd;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * service.hashCode() + uuid.hashCode()) + properties * 2 + (hasCccd ? 1 : 0);
+        }
+    }
+
+    private final List<Characteristic> mCharacteristics;
+
+    public GattLayout(List<Characteristic> characteristics) {
+        mCharacteristics = Collections.unmodifiableList(new ArrayList<Characteristic>(characteristics));
+    }
+
+    public List<Characteristic> getCharacteristics() {
+        return mCharacteristics;
+    }
+
+    public Characteristic find(UUID service, UUID characteristic) {
+        for (Characteristic entry : mCharacteristics) {
+            if (entry.uuid.equals(characteristic) && entry.service.equals(service)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    public boolean hasService(UUID service) {
+        for (Characteristic entry : mCharacteristics) {
+            if (entry.service.equals(service)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Compact binary form: count, then 16 + 16 bytes of UUIDs, 1 byte of properties and 1 byte of flags each
+    public void write(DataOutput out) throws IOException {
+        out.writeShort(mCharacteristics.size());
+        for (Characteristic entry : mCharacteristics) {
+            out.writeLong(entry.service.getMostSignificantBits());
+            out.writeLong(entry.service.getLeastSignificantBits());
+            out.writeLong(entry.uuid.getMostSignificantBits());
+            out.writeLong(entry.uuid.getLeastSignificantBits());
+            out.writeByte(entry.properties);
+            out.writeByte(entry.hasCccd ? 1 : 0);
+        }
+    }
+
+    public static GattLayout read(DataInput in) throws IOException {
+        int count = in.readUnsignedShort();
+        List<Characteristic> characteristics = new ArrayList<Characteristic>(count);
+        for (int i = 0; i < count; i++) {
+            UUID service = new UUID(in.readLong(), in.readLong());
+            UUID uuid = new UUID(in.readLong(), in.readLong());
+            int properties = in.readUnsignedByte();
+            boolean hasCccd = in.readByte() != 0;
+            characteristics.add(new Characteristic(service, uuid, properties, hasCccd));
+        }
+        return new GattLayout(characteristics);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof GattLayout && mCharacteristics.equals(((GattLayout) o).mCharacteristics);
+    }
+
+    @Override
+    public int hashCode() {
+        return mCharacteristics.hashCode();
+    }
+}
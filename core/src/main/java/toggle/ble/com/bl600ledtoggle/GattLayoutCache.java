@@ -0,0 +1,120 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the GATT layout of every device the app has set up, together with the firmware revision it was read from.
+ * Each device has one small file named after its MAC address; entries are also kept in memory once loaded. A file
+ * that is missing, from another format version or unreadable is treated as a miss and deleted.
+ */
+public class GattLayoutCache {
+
+    private static final int MAGIC = 0x47415454;                                        //"GATT"
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".gatt";
+
+    /**
+     * A cached layout and the firmware revision it belongs to.
+     */
+    public static class Entry {
+        public final String firmwareRevision;                                           //Empty if the device has no Device Information service
+        public final GattLayout layout;
+
+        public Entry(String firmwareRevision, GattLayout layout) {
+            this.firmwareRevision = firmwareRevision;
+            this.layout = layout;
+        }
+    }
+
+    private final File mDirectory;
+    private final ConcurrentHashMap<String, Entry> mEntries = new ConcurrentHashMap<String, Entry>();
+
+    public GattLayoutCache(File directory) {
+        mDirectory = directory;
+    }
+
+    public Entry load(String address) {
+        Entry entry = mEntries.get(address);
+        if (entry != null) {
+            return entry;
+        }
+        File file = fileFor(address);
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+                throw new IOException("Unknown layout cache format");
+            }
+            entry = new Entry(in.readUTF(), GattLayout.read(in));
+            mEntries.put(address, entry);
+            return entry;
+        }
+        catch (IOException e) {
+            file.delete();                                                              //Corrupt or stale format, rediscover next time
+            return null;
+        }
+        finally {
+            closeQuietly(in);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Save the layout, writing to a temporary file first so a crash never leaves a half written entry
+    public void store(String address, String firmwareRevision, GattLayout layout) throws IOException {
+        Entry entry = new Entry(firmwareRevision, layout);
+        File file = fileFor(address);
+        File temp = new File(mDirectory, file.getName() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                throw new IOException("Cannot create " + mDirectory);
+            }
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeUTF(firmwareRevision);
+            layout.write(out);
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                throw new IOException("Cannot replace " + file);
+            }
+            mEntries.put(address, entry);
+        }
+        finally {
+            closeQuietly(out);
+            temp.delete();
+        }
+    }
+
+    public void invalidate(String address) {
+        mEntries.remove(address);
+        fileFor(address).delete();
+    }
+
+    private File fileFor(String address) {
+        return new File(mDirectory, address.replace(':', '_') + SUFFIX);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            }
+            catch (IOException ignored) {
+            }
+        }
+    }
+}
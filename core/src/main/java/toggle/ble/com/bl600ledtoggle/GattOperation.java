@@ -0,0 +1,172 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import java.util.UUID;
+
+/**
+ * A single read, write, descriptor write or MTU request waiting in a {@link GattOperationQueue}. The operation records when it
+ * was queued, started and completed so callers can measure queueing delay and over-the-air latency.
+ */
+public class GattOperation {
+
+    public enum Type { READ, WRITE, WRITE_DESCRIPTOR, REQUEST_MTU }
+
+    public static final int GATT_SUCCESS = 0;                                          //Same value as BluetoothGatt.GATT_SUCCESS
+    public static final int GATT_ERROR = 133;                                           //Android's catch-all status for a failed connection
+    public static final int STATUS_TIMEOUT = -1;                                        //No completion callback arrived before the timeout on the last attempt
+    public static final int STATUS_REJECTED = -2;                                       //BluetoothGatt refused to start the operation on the last attempt
+    public static final int STATUS_CANCELLED = -3;                                      //Queue was cleared, normally because the link went down
+
+    public static final int WRITE_TYPE_NO_RESPONSE = 1;                                 //Same value as BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE
+    public static final int WRITE_TYPE_DEFAULT = 2;                                     //Same value as BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 2000;
+    public static final int DEFAULT_MAX_RETRIES = 2;
+
+    /**
+     * Notified once when an operation finishes, successfully or not. Called on the thread that delivered the
+     * completion (normally the Binder thread that runs the BluetoothGattCallback).
+     */
+    public interface Callback {
+        void onOperationComplete(GattOperation operation, int status, byte[] value);
+    }
+
+    private final Type mType;
+    private final UUID mService, mCharacteristic, mDescriptor;
+    private final byte[] mValue;
+    private final int mWriteType;                                                       //Write type, or the MTU asked for by REQUEST_MTU
+    private long mTimeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    private int mMaxRetries = DEFAULT_MAX_RETRIES;
+    private Callback mCallback;
+
+    int mAttempts;                                                                      //Number of times the operation has been started, updated by the queue
+    long mEnqueuedNanos, mStartedNanos, mCompletedNanos;                                //Timestamps recorded by the queue
+
+    private GattOperation(Type type, UUID service, UUID characteristic, UUID descriptor, byte[] value, int writeType) {
+        mType = type;
+        mService = service;
+        mCharacteristic = characteristic;
+        mDescriptor = descriptor;
+        mValue = value;
+        mWriteType = writeType;
+    }
+
+    public static GattOperation read(UUID service, UUID characteristic) {
+        return new GattOperation(Type.READ, service, characteristic, null, null, 0);
+    }
+
+    public static GattOperation write(UUID service, UUID characteristic, byte[] value, int writeType) {
+        return new GattOperation(Type.WRITE, service, characteristic, null, value.clone(), writeType);
+    }
+
+    public static GattOperation writeDescriptor(UUID service, UUID characteristic, UUID descriptor, byte[] value) {
+        return new GattOperation(Type.WRITE_DESCRIPTOR, service, characteristic, descriptor, value.clone(), 0);
+    }
+
+    public static GattOperation requestMtu(int mtu) {
+        return new GattOperation(Type.REQUEST_MTU, null, null, null, null, mtu);
+    }
+
+    public GattOperation setTimeout(long timeoutMillis) {
+        mTimeoutMillis = timeoutMillis;
+        return this;
+    }
+
+    public GattOperation setMaxRetries(int maxRetries) {
+        mMaxRetries = maxRetries;
+        return this;
+    }
+
+    public GattOperation setCallback(Callback callback) {
+        mCallback = callback;
+        return this;
+    }
+
+    public Type getType() {
+        return mType;
+    }
+
+    public UUID getService() {
+        return mService;
+    }
+
+    public UUID getCharacteristic() {
+        return mCharacteristic;
+    }
+
+    public UUID getDescriptor() {
+        return mDescriptor;
+    }
+
+    public byte[] getValue() {
+        return mValue;
+    }
+
+    public int getWriteType() {
+        return mWriteType;
+    }
+
+    public int getMtu() {
+        return mType == Type.REQUEST_MTU ? mWriteType : 0;
+    }
+
+    public long getTimeoutMillis() {
+        return mTimeoutMillis;
+    }
+
+    public int getMaxRetries() {
+        return mMaxRetries;
+    }
+
+    public Callback getCallback() {
+        return mCallback;
+    }
+
+    public int getAttempts() {
+        return mAttempts;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Time from enqueue to completion, including time spent waiting behind other operations
+    public long getLatencyNanos() {
+        return mCompletedNanos - mEnqueuedNanos;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Time from the last start on the radio to completion
+    public long getServiceTimeNanos() {
+        return mCompletedNanos - mStartedNanos;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Ask the transport to start this operation
+    boolean start(GattTransport transport) {
+        switch (mType) {
+            case READ:
+                return transport.readCharacteristic(mService, mCharacteristic);
+            case WRITE:
+                return transport.writeCharacteristic(mService, mCharacteristic, mValue, mWriteType);
+            case REQUEST_MTU:
+                return transport.requestMtu(mWriteType);
+            default:
+                return transport.writeDescriptor(mService, mCharacteristic, mDescriptor, mValue);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // See whether a completion callback belongs to this operation
+    boolean matches(Type type, UUID characteristic, UUID descriptor) {
+        if (mType == Type.REQUEST_MTU) {
+            return type == Type.REQUEST_MTU;                                            //Only one MTU exchange per link, nothing else to compare
+        }
+        return mType == type && mCharacteristic.equals(characteristic)
+                && (mDescriptor == null || mDescriptor.equals(descriptor));
+    }
+
+    @Override
+    public String toString() {
+        if (mType == Type.REQUEST_MTU) {
+            return mType + " " + mWriteType;
+        }
+        return mType + " " + mCharacteristic + (mDescriptor != null ? "/" + mDescriptor : "");
+    }
+}
@@ -0,0 +1,332 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Serializes GATT operations on one connection. Android silently drops a read or write that is issued while another
+ * one is still in flight, so every read, write and descriptor write goes through this queue and only one of them is
+ * ever outstanding. The next operation is started directly from the completion callback of the previous one, with no
+ * Handler hop in between, so the link is never left idle while work is waiting.
+ *
+ * Operations that are rejected by the stack, fail with an error status or get no callback before their timeout are
+ * retried up to their retry limit and then completed with an error status.
+ *
+ * The BluetoothGattCallback must forward onCharacteristicRead, onCharacteristicWrite, onDescriptorWrite and
+ * onMtuChanged to this queue, and call {@link #clear()} when the connection drops, or {@link #drain()} to keep the
+ * operations for the next connection.
+ */
+public class GattOperationQueue {
+
+    public static final long RETRY_DELAY_MILLIS = 20;                                   //Delay before re-issuing an operation the stack refused to start
+
+    private final GattTransport mTransport;                                             //Connection the operations are sent over
+    private final TaskScheduler mScheduler;                                             //Runs timeouts and delayed retries
+    private final ArrayDeque<GattOperation> mPending = new ArrayDeque<GattOperation>(); //Operations waiting for the link
+    private GattOperation mActive;                                                      //Operation currently on the radio, or null when idle
+    private TimeoutTask mTimeoutTask;                                                   //Timeout armed for the active operation
+    private boolean mDispatching;                                                       //A thread is inside dispatch(), others leave the work to it
+    private long mCompletedCount, mFailedCount, mRetryCount;
+    private volatile BleMetrics mMetrics;                                               //Optional, records latency and failures of every operation
+    private final Object mActivityLock = new Object();                                  //Keeps busy and idle reports in order
+    private GattActivity mActivity;                                                     //Optional, told when this queue gets busy or goes idle
+    private boolean mReportedBusy;
+
+    private final Runnable mRetryTask = new Runnable() {
+        @Override
+        public void run() {
+            dispatch();
+            reportActivity();
+        }
+    };
+
+    public GattOperationQueue(GattTransport transport, TaskScheduler scheduler) {
+        mTransport = transport;
+        mScheduler = scheduler;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Add an operation to the end of the queue and start it right away if the link is idle
+    public void enqueue(GattOperation operation) {
+        synchronized (this) {
+            operation.mEnqueuedNanos = System.nanoTime();
+            mPending.addLast(operation);
+        }
+        dispatch();
+        reportActivity();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Completion callbacks, forwarded from the BluetoothGattCallback
+    public void onCharacteristicRead(UUID characteristic, int status, byte[] value) {
+        onComplete(GattOperation.Type.READ, characteristic, null, status, value);
+    }
+
+    public void onCharacteristicWrite(UUID characteristic, int status) {
+        onComplete(GattOperation.Type.WRITE, characteristic, null, status, null);
+    }
+
+    public void onDescriptorWrite(UUID characteristic, UUID descriptor, int status) {
+        onComplete(GattOperation.Type.WRITE_DESCRIPTOR, characteristic, descriptor, status, null);
+    }
+
+    public void onMtuChanged(int mtu, int status) {
+        onComplete(GattOperation.Type.REQUEST_MTU, null, null, status, null);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Drop the active and all pending operations, completing them with STATUS_CANCELLED
+    public void clear() {
+        List<GattOperation> cancelled;
+        synchronized (this) {
+            cancelled = new ArrayList<GattOperation>(mPending.size() + 1);
+            if (mActive != null) {
+                cancelled.add(mActive);
+                mActive = null;
+            }
+            cancelled.addAll(mPending);
+            mPending.clear();
+            disarmTimeout();
+            mScheduler.removeCallbacks(mRetryTask);
+        }
+        for (GattOperation operation : cancelled) {
+            finish(operation, GattOperation.STATUS_CANCELLED, null);
+        }
+        reportActivity();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Take the active and all pending operations out of the queue without completing them, so they can be queued again
+    // on a new connection. The active one may have reached the board already, and is sent again.
+    public List<GattOperation> drain() {
+        List<GattOperation> drained;
+        synchronized (this) {
+            drained = new ArrayList<GattOperation>(mPending.size() + 1);
+            if (mActive != null) {
+                drained.add(mActive);
+                mActive = null;
+            }
+            drained.addAll(mPending);
+            mPending.clear();
+            disarmTimeout();
+            mScheduler.removeCallbacks(mRetryTask);
+            for (GattOperation operation : drained) {
+                operation.mAttempts = 0;                                                //Retries start over on the new connection
+            }
+        }
+        reportActivity();
+        return drained;
+    }
+
+    public void setMetrics(BleMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    public void setActivity(GattActivity activity) {
+        synchronized (mActivityLock) {
+            if (mReportedBusy) {
+                mActivity.onIdle();                                                     //Leave the old one balanced
+                mReportedBusy = false;
+            }
+            mActivity = activity;
+        }
+        reportActivity();
+    }
+
+    public synchronized int size() {
+        return mPending.size() + (mActive != null ? 1 : 0);
+    }
+
+    public synchronized boolean isIdle() {
+        return mActive == null && mPending.isEmpty();
+    }
+
+    public synchronized long getCompletedCount() {
+        return mCompletedCount;
+    }
+
+    public synchronized long getFailedCount() {
+        return mFailedCount;
+    }
+
+    public synchronized long getRetryCount() {
+        return mRetryCount;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Match a completion callback with the active operation, retry it or finish it, then start the next operation
+    private void onComplete(GattOperation.Type type, UUID characteristic, UUID descriptor, int status, byte[] value) {
+        GattOperation operation;
+        synchronized (this) {
+            operation = mActive;
+            if (operation == null || !operation.matches(type, characteristic, descriptor)) {
+                return;                                                                 //Not ours, for example a write issued outside the queue
+            }
+            mActive = null;
+            disarmTimeout();
+            if (status != GattOperation.GATT_SUCCESS && operation.mAttempts <= operation.getMaxRetries()) {
+                countRetry();
+                mPending.addFirst(operation);                                           //Retry before anything queued behind it to keep ordering
+                operation = null;
+            }
+        }
+        if (operation != null) {
+            finish(operation, status, value);
+        }
+        dispatch();
+        reportActivity();                                                               //After the next operation started, so back to back work stays busy
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Start pending operations until one is in flight or the queue is empty
+    private void dispatch() {
+        synchronized (this) {
+            if (mDispatching) {
+                return;                                                                 //Another thread is dispatching and will pick up this work
+            }
+            mDispatching = true;
+        }
+        while (true) {
+            GattOperation operation;
+            synchronized (this) {
+                if (mActive != null || mPending.isEmpty()) {
+                    mDispatching = false;
+                    return;
+                }
+                operation = mPending.pollFirst();
+                mActive = operation;
+                operation.mAttempts++;
+                operation.mStartedNanos = System.nanoTime();
+            }
+
+            boolean accepted = operation.start(mTransport);                             //Called without the lock held, the transport may complete synchronously
+
+            synchronized (this) {
+                if (accepted) {
+                    if (mActive == operation) {                                         //Still in flight, arm the timeout and wait for the callback
+                        armTimeout(operation);
+                        mDispatching = false;
+                        return;
+                    }
+                    continue;                                                           //Already completed, go straight on to the next one
+                }
+                if (mActive != operation) {
+                    continue;                                                           //Cleared or drained while starting, no longer ours to retry or finish
+                }
+                mActive = null;
+                if (operation.mAttempts <= operation.getMaxRetries()) {
+                    countRetry();
+                    mPending.addFirst(operation);
+                    mScheduler.postDelayed(mRetryTask, RETRY_DELAY_MILLIS);             //Give the stack a moment before asking again
+                    mDispatching = false;
+                    return;
+                }
+            }
+            finish(operation, GattOperation.STATUS_REJECTED, null);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Called by the scheduler when the active operation got no callback in time
+    private void onTimeout(TimeoutTask task) {
+        GattOperation operation;
+        synchronized (this) {
+            if (mTimeoutTask != task || mActive != task.mOperation || mActive.mAttempts != task.mAttempt) {
+                return;                                                                 //Stale timeout, the operation has already moved on
+            }
+            operation = mActive;
+            mActive = null;
+            mTimeoutTask = null;
+            if (operation.mAttempts <= operation.getMaxRetries()) {
+                countRetry();
+                mPending.addFirst(operation);
+                operation = null;
+            }
+        }
+        if (operation != null) {
+            finish(operation, GattOperation.STATUS_TIMEOUT, null);
+        }
+        dispatch();
+        reportActivity();
+    }
+
+    private void finish(GattOperation operation, int status, byte[] value) {
+        operation.mCompletedNanos = System.nanoTime();
+        synchronized (this) {
+            if (status == GattOperation.GATT_SUCCESS) {
+                mCompletedCount++;
+            }
+            else {
+                mFailedCount++;
+            }
+        }
+        BleMetrics metrics = mMetrics;
+        if (metrics != null && status != GattOperation.STATUS_CANCELLED) {              //Cancelled operations never reached the radio
+            metrics.recordOperation(operation.getType(), status, operation.getServiceTimeNanos());
+        }
+        GattOperation.Callback callback = operation.getCallback();
+        if (callback != null) {
+            callback.onOperationComplete(operation, status, value);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Tell the activity tracker when the queue changes between having work and having none
+    private void reportActivity() {
+        synchronized (mActivityLock) {
+            if (mActivity == null) {
+                return;
+            }
+            boolean busy = !isIdle();
+            if (busy == mReportedBusy) {
+                return;
+            }
+            mReportedBusy = busy;
+            if (busy) {
+                mActivity.onBusy();
+            }
+            else {
+                mActivity.onIdle();
+            }
+        }
+    }
+
+    private void countRetry() {                                                         //Called with the lock held
+        mRetryCount++;
+        BleMetrics metrics = mMetrics;
+        if (metrics != null) {
+            metrics.retries.incrementAndGet();
+        }
+    }
+
+    private void armTimeout(GattOperation operation) {
+        mTimeoutTask = new TimeoutTask(operation);
+        mScheduler.postDelayed(mTimeoutTask, operation.getTimeoutMillis());
+    }
+
+    private void disarmTimeout() {
+        if (mTimeoutTask != null) {
+            mScheduler.removeCallbacks(mTimeoutTask);
+            mTimeoutTask = null;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Timeout for one attempt of one operation, so a late timeout can never fail the operation that follows it
+    private class TimeoutTask implements Runnable {
+        final GattOperation mOperation;
+        final int mAttempt;
+
+        TimeoutTask(GattOperation operation) {
+            mOperation = operation;
+            mAttempt = operation.mAttempts;
+        }
+
+        @Override
+        public void run() {
+            onTimeout(this);
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The GATT traffic of one board as written by {@link GattTraceRecorder}: the events the session received and the ATT
+ * requests it started, with the time of each, for {@link GattTraceReplayer}.
+ *
+ * The file is a header followed by records. A record is a type byte, the nanoseconds since the record before it as a
+ * varint and the fields of its type; statuses are zigzag varints and values are a varint length and the bytes. Each
+ * UUID is written in full once and referred to by a small index after that. A record cut short by a crash ends the
+ * trace.
+ */
+public class GattTrace {
+
+    public static final int CONNECTION_STATE = 1;                                       //status, connected
+    public static final int SERVICES_DISCOVERED = 2;                                    //status
+    public static final int CHARACTERISTIC_READ = 3;                                    //characteristic, status, value
+    public static final int CHARACTERISTIC_WRITE = 4;                                   //characteristic, status
+    public static final int DESCRIPTOR_WRITE = 5;                                       //characteristic, descriptor, status
+    public static final int MTU_CHANGED = 6;                                            //mtu, status
+    public static final int CHARACTERISTIC_CHANGED = 7;                                 //characteristic, value
+    public static final int READ_REQUEST = 16;                                          //service, characteristic
+    public static final int WRITE_REQUEST = 17;                                         //service, characteristic, write type, value
+    public static final int DESCRIPTOR_REQUEST = 18;                                    //service, characteristic, descriptor, value
+    public static final int MTU_REQUEST = 19;                                           //mtu
+
+    static final int UUID_DEFINITION = 0;                                               //index, most and least significant bits
+    static final int GAP = 8;                                                           //Records dropped by the recorder before this point
+    static final int MAGIC = 0x47545243;                                                //"GTRC"
+    static final int VERSION = 1;
+
+    /**
+     * One record. Fields that its type does not have are 0 or null.
+     */
+    public static class Event {
+        public int type;
+        public long nanos;                                                              //Since the start of the trace
+        public int status;
+        public boolean connected;
+        public int mtu;
+        public int writeType;
+        public UUID service, characteristic, descriptor;
+        public byte[] value;
+
+        public boolean isRequest() {
+            return type >= READ_REQUEST;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.3f ms type %d status %d %s", nanos / 1e6, type, status,
+                    characteristic != null ? characteristic : "");
+        }
+    }
+
+    private final String mAddress;
+    private final long mStartMillis;
+    private final List<Event> mEvents;
+    private final long mDroppedCount;
+
+    private GattTrace(String address, long startMillis, List<Event> events, long droppedCount) {
+        mAddress = address;
+        mStartMillis = startMillis;
+        mEvents = Collections.unmodifiableList(events);
+        mDroppedCount = droppedCount;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public long getStartMillis() {                                                      //Wall clock time of the first record
+        return mStartMillis;
+    }
+
+    public List<Event> getEvents() {
+        return mEvents;
+    }
+
+    public long getDroppedCount() {                                                     //Records the recorder could not keep up with
+        return mDroppedCount;
+    }
+
+    public long getDurationNanos() {
+        return mEvents.isEmpty() ? 0 : mEvents.get(mEvents.size() - 1).nanos;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Read a trace file. Throws if it is not one; a trace cut short keeps the records before the cut.
+    public static GattTrace read(File file) throws IOException {
+        ByteBuffer in;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            in = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+        finally {
+            raf.close();
+        }
+        String address;
+        long startMillis;
+        try {
+            if (in.getInt() != MAGIC || in.get() != VERSION) {
+                throw new IOException("Not a GATT trace: " + file);
+            }
+            startMillis = in.getLong();
+            byte[] chars = new byte[in.get() & 0xff];
+            in.get(chars);
+            address = new String(chars, "US-ASCII");
+        }
+        catch (BufferUnderflowException e) {
+            throw new IOException("Not a GATT trace: " + file);
+        }
+
+        List<Event> events = new ArrayList<Event>();
+        Map<Integer, UUID> uuids = new HashMap<Integer, UUID>();
+        long nanos = 0;
+        long dropped = 0;
+        try {
+            while (in.hasRemaining()) {
+                int type = in.get();
+                if (type == UUID_DEFINITION) {
+                    int index = (int) getVarLong(in);
+                    uuids.put(index, new UUID(in.getLong(), in.getLong()));
+                    continue;
+                }
+                Event event = new Event();
+                event.type = type;
+                event.nanos = nanos + getVarLong(in);
+                switch (type) {
+                    case GAP:
+                        dropped += getVarLong(in);
+                        nanos = event.nanos;
+                        continue;
+                    case CONNECTION_STATE:
+                        event.status = getStatus(in);
+                        event.connected = in.get() != 0;
+                        break;
+                    case SERVICES_DISCOVERED:
+                        event.status = getStatus(in);
+                        break;
+                    case CHARACTERISTIC_READ:
+                        event.characteristic = getUuid(in, uuids);
+                        event.status = getStatus(in);
+                        event.value = getValue(in);
+                        break;
+                    case CHARACTERISTIC_WRITE:
+                        event.characteristic = getUuid(in, uuids);
+                        event.status = getStatus(in);
+                        break;
+                    case DESCRIPTOR_WRITE:
+                        event.characteristic = getUuid(in, uuids);
+                        event.descriptor = getUuid(in, uuids);
+                        event.status = getStatus(in);
+                        break;
+                    case MTU_CHANGED:
+                        event.mtu = (int) getVarLong(in);
+                        event.status = getStatus(in);
+                        break;
+                    case CHARACTERISTIC_CHANGED:
+                        event.characteristic = getUuid(in, uuids);
+                        event.value = getValue(in);
+                        break;
+                    case READ_REQUEST:
+                        event.service = getUuid(in, uuids);
+                        event.characteristic = getUuid(in, uuids);
+                        break;
+                    case WRITE_REQUEST:
+                        event.service = getUuid(in, uuids);
+                        event.characteristic = getUuid(in, uuids);
+                        event.writeType = (int) getVarLong(in);
+                        event.value = getValue(in);
+                        break;
+                    case DESCRIPTOR_REQUEST:
+                        event.service = getUuid(in, uuids);
+                        event.characteristic = getUuid(in, uuids);
+                        event.descriptor = getUuid(in, uuids);
+                        event.value = getValue(in);
+                        break;
+                    case MTU_REQUEST:
+                        event.mtu = (int) getVarLong(in);
+                        break;
+                    default:
+                        throw new IOException("Unknown record type " + type + " in " + file);
+                }
+                nanos = event.nanos;
+                events.add(event);
+            }
+        }
+        catch (BufferUnderflowException e) {
+            //Torn last record, keep what came before it
+        }
+        return new GattTrace(address, startMillis, events, dropped);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Field encoding, shared with the recorder
+    static void putVarLong(ByteBuffer out, long value) {                                //Unsigned LEB128
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    static long getVarLong(ByteBuffer in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    static void putStatus(ByteBuffer out, int status) {                                 //Zigzag, the queue's own statuses are negative
+        putVarLong(out, ((status << 1) ^ (status >> 31)) & 0xFFFFFFFFL);
+    }
+
+    private static int getStatus(ByteBuffer in) throws IOException {
+        int zigzag = (int) getVarLong(in);
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    static void putValue(ByteBuffer out, byte[] value, int length) {                    //Length + 1, 0 for no value
+        if (value == null) {
+            out.put((byte) 0);
+            return;
+        }
+        putVarLong(out, length + 1);
+        out.put(value, 0, length);
+    }
+
+    private static byte[] getValue(ByteBuffer in) throws IOException {
+        int length = (int) getVarLong(in);
+        if (length == 0) {
+            return null;
+        }
+        byte[] value = new byte[length - 1];
+        in.get(value);
+        return value;
+    }
+
+    private static UUID getUuid(ByteBuffer in, Map<Integer, UUID> uuids) throws IOException {
+        int index = (int) getVarLong(in);
+        UUID uuid = uuids.get(index);
+        if (uuid == null) {
+            throw new IOException("UUID " + index + " used before it is defined");
+        }
+        return uuid;
+    }
+}
@@ -0,0 +1,395 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records the GATT traffic of one board into a {@link GattTrace} file. The session reports the events it receives
+ * (see {@link LedDeviceSession#setTraceRecorder}) and the transport returned by {@link #wrap(BleTransport)} reports the
+ * ATT requests the stack accepted.
+ *
+ * Recording costs a few dozen bytes of encoding per event and no allocation: records go into one of a few buffers
+ * allocated up front, and a full buffer is handed to the writer executor while the next one fills. When the writer
+ * falls behind and no buffer is free, records are dropped and counted, and the trace notes the gap. The writer executor
+ * must run its tasks one at a time and in order.
+ */
+public class GattTraceRecorder {
+
+    public static final int DEFAULT_BUFFER_BYTES = 64 << 10;
+    public static final int DEFAULT_BUFFERS = 4;
+    private static final int MAX_RECORD_BYTES = 1024;                                   //Largest value plus four UUID definitions and the fields
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final FileChannel mChannel;
+    private final Executor mWriterExecutor;
+    private final ConcurrentLinkedQueue<ByteBuffer> mFree = new ConcurrentLinkedQueue<ByteBuffer>();
+    private ByteBuffer mCurrent;                                                        //Buffer being filled, null while none is free
+    private final Map<UUID, Integer> mUuids = new HashMap<UUID, Integer>();             //Index of every UUID defined in the file
+    private long mLastNanos;                                                            //Time of the last record written
+    private long mGap;                                                                  //Records dropped since the last one written
+    private boolean mClosed;
+    private final AtomicLong mRecordCount = new AtomicLong();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private final AtomicLong mBytesWritten = new AtomicLong();
+    private volatile IOException mWriteError;
+
+    public GattTraceRecorder(File file, String address, Executor writerExecutor) throws IOException {
+        this(file, address, DEFAULT_BUFFER_BYTES, DEFAULT_BUFFERS, writerExecutor);
+    }
+
+    public GattTraceRecorder(File file, String address, int bufferBytes, int buffers, Executor writerExecutor)
+            throws IOException {
+        if (bufferBytes < 2 * MAX_RECORD_BYTES || buffers < 2) {
+            throw new IllegalArgumentException("Need at least two buffers of " + 2 * MAX_RECORD_BYTES + " bytes");
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        mChannel = raf.getChannel();
+        mWriterExecutor = writerExecutor;
+        for (int i = 1; i < buffers; i++) {
+            mFree.add(ByteBuffer.allocate(bufferBytes));
+        }
+        mCurrent = ByteBuffer.allocate(bufferBytes);
+        byte[] chars = address.getBytes(ASCII);
+        mCurrent.putInt(GattTrace.MAGIC);
+        mCurrent.put((byte) GattTrace.VERSION);
+        mCurrent.putLong(System.currentTimeMillis());
+        mCurrent.put((byte) chars.length);
+        mCurrent.put(chars);
+        mLastNanos = System.nanoTime();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // A transport that records each request the wrapped one accepts
+    public BleTransport wrap(BleTransport transport) {
+        return new RecordingTransport(transport);
+    }
+
+    public long getRecordCount() {
+        return mRecordCount.get();
+    }
+
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    public long getBytesWritten() {
+        return mBytesWritten.get();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Events received by the session
+    public synchronized void onConnectionStateChange(int status, boolean connected) {
+        if (begin(GattTrace.CONNECTION_STATE, System.nanoTime())) {
+            GattTrace.putStatus(mCurrent, status);
+            mCurrent.put((byte) (connected ? 1 : 0));
+        }
+    }
+
+    public synchronized void onServicesDiscovered(int status) {
+        if (begin(GattTrace.SERVICES_DISCOVERED, System.nanoTime())) {
+            GattTrace.putStatus(mCurrent, status);
+        }
+    }
+
+    public synchronized void onCharacteristicRead(UUID characteristic, int status, byte[] value) {
+        if (define(characteristic) && begin(GattTrace.CHARACTERISTIC_READ, System.nanoTime())) {
+            putUuid(characteristic);
+            GattTrace.putStatus(mCurrent, status);
+            GattTrace.putValue(mCurrent, value, value != null ? clamp(value.length) : 0);
+        }
+    }
+
+    public synchronized void onCharacteristicWrite(UUID characteristic, int status) {
+        if (define(characteristic) && begin(GattTrace.CHARACTERISTIC_WRITE, System.nanoTime())) {
+            putUuid(characteristic);
+            GattTrace.putStatus(mCurrent, status);
+        }
+    }
+
+    public synchronized void onDescriptorWrite(UUID characteristic, UUID descriptor, int status) {
+        if (define(characteristic) && define(descriptor) && begin(GattTrace.DESCRIPTOR_WRITE, System.nanoTime())) {
+            putUuid(characteristic);
+            putUuid(descriptor);
+            GattTrace.putStatus(mCurrent, status);
+        }
+    }
+
+    public synchronized void onMtuChanged(int mtu, int status) {
+        if (begin(GattTrace.MTU_CHANGED, System.nanoTime())) {
+            GattTrace.putVarLong(mCurrent, mtu);
+            GattTrace.putStatus(mCurrent, status);
+        }
+    }
+
+    public synchronized void onCharacteristicChanged(UUID characteristic, byte[] value, int length, long receivedNanos) {
+        if (define(characteristic) && begin(GattTrace.CHARACTERISTIC_CHANGED, receivedNanos)) { //Stamped on arrival, not when the session got to it
+            putUuid(characteristic);
+            GattTrace.putValue(mCurrent, value, clamp(length));
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Requests started on the transport
+    synchronized void onReadRequest(UUID service, UUID characteristic) {
+        if (define(service) && define(characteristic) && begin(GattTrace.READ_REQUEST, System.nanoTime())) {
+            putUuid(service);
+            putUuid(characteristic);
+        }
+    }
+
+    synchronized void onWriteRequest(UUID service, UUID characteristic, byte[] value, int writeType) {
+        if (define(service) && define(characteristic) && begin(GattTrace.WRITE_REQUEST, System.nanoTime())) {
+            putUuid(service);
+            putUuid(characteristic);
+            GattTrace.putVarLong(mCurrent, writeType);
+            GattTrace.putValue(mCurrent, value, value != null ? clamp(value.length) : 0);
+        }
+    }
+
+    synchronized void onDescriptorRequest(UUID service, UUID characteristic, UUID descriptor, byte[] value) {
+        if (define(service) && define(characteristic) && define(descriptor)
+                && begin(GattTrace.DESCRIPTOR_REQUEST, System.nanoTime())) {
+            putUuid(service);
+            putUuid(characteristic);
+            putUuid(descriptor);
+            GattTrace.putValue(mCurrent, value, value != null ? clamp(value.length) : 0);
+        }
+    }
+
+    synchronized void onMtuRequest(int mtu) {
+        if (begin(GattTrace.MTU_REQUEST, System.nanoTime())) {
+            GattTrace.putVarLong(mCurrent, mtu);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Hand what has been recorded so far to the writer
+    public synchronized void flush() {
+        if (mCurrent != null && mCurrent.position() > 0) {
+            submit(mCurrent);
+            mCurrent = mFree.poll();
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Write what is left and close the file, on the writer. Events recorded after this are dropped.
+    public void close() {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            flush();
+            mClosed = true;
+            mCurrent = null;
+        }
+        mWriterExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mChannel.close();
+                }
+                catch (IOException e) {
+                    mWriteError = e;
+                }
+            }
+        });
+    }
+
+    public IOException getWriteError() {                                                //First failed write, the trace ends there
+        return mWriteError;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Make sure a UUID has an index, writing its definition first if it is new. False if the record must be dropped.
+    private boolean define(UUID uuid) {
+        if (mUuids.containsKey(uuid)) {
+            return true;
+        }
+        if (!ensureSpace()) {
+            return false;
+        }
+        int index = mUuids.size();
+        mUuids.put(uuid, index);
+        mCurrent.put((byte) GattTrace.UUID_DEFINITION);
+        GattTrace.putVarLong(mCurrent, index);
+        mCurrent.putLong(uuid.getMostSignificantBits());
+        mCurrent.putLong(uuid.getLeastSignificantBits());
+        return true;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Start a record: type and time since the last one, after a gap record if some were dropped
+    private boolean begin(int type, long nanos) {
+        if (!ensureSpace()) {
+            return false;
+        }
+        long delta = Math.max(0, nanos - mLastNanos);                                   //Arrival stamps can be a little older than the last record
+        mLastNanos += delta;
+        if (mGap > 0) {
+            mCurrent.put((byte) GattTrace.GAP);
+            GattTrace.putVarLong(mCurrent, delta);
+            GattTrace.putVarLong(mCurrent, mGap);
+            mGap = 0;
+            delta = 0;
+        }
+        mCurrent.put((byte) type);
+        GattTrace.putVarLong(mCurrent, delta);
+        mRecordCount.incrementAndGet();
+        return true;
+    }
+
+    private boolean ensureSpace() {
+        if (mCurrent != null && mCurrent.remaining() >= MAX_RECORD_BYTES) {
+            return true;
+        }
+        if (mCurrent != null) {
+            submit(mCurrent);
+        }
+        mCurrent = mClosed ? null : mFree.poll();
+        if (mCurrent == null) {
+            mGap++;
+            mDroppedCount.incrementAndGet();
+            mUuids.clear();                                                             //The dropped record may have held a definition, define again
+            return false;
+        }
+        return true;
+    }
+
+    private void putUuid(UUID uuid) {
+        GattTrace.putVarLong(mCurrent, mUuids.get(uuid));
+    }
+
+    private static int clamp(int length) {
+        return Math.min(length, NotificationPipeline.MAX_PAYLOAD);
+    }
+
+    private void submit(final ByteBuffer buffer) {
+        buffer.flip();
+        mWriterExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (mWriteError == null) {
+                        int bytes = buffer.remaining();
+                        while (buffer.hasRemaining()) {
+                            mChannel.write(buffer);
+                        }
+                        mBytesWritten.addAndGet(bytes);
+                    }
+                }
+                catch (IOException e) {
+                    mWriteError = e;
+                }
+                buffer.clear();
+                mFree.add(buffer);
+            }
+        });
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Passes every call on, recording the ATT requests that were accepted
+    private class RecordingTransport implements BleTransport {
+        private final BleTransport mTransport;
+
+        RecordingTransport(BleTransport transport) {
+            mTransport = transport;
+        }
+
+        @Override
+        public boolean readCharacteristic(UUID service, UUID characteristic) {
+            boolean accepted = mTransport.readCharacteristic(service, characteristic);
+            if (accepted) {
+                onReadRequest(service, characteristic);
+            }
+            return accepted;
+        }
+
+        @Override
+        public boolean writeCharacteristic(UUID service, UUID characteristic, byte[] value, int writeType) {
+            boolean accepted = mTransport.writeCharacteristic(service, characteristic, value, writeType);
+            if (accepted) {
+                onWriteRequest(service, characteristic, value, writeType);
+            }
+            return accepted;
+        }
+
+        @Override
+        public boolean writeDescriptor(UUID service, UUID characteristic, UUID descriptor, byte[] value) {
+            boolean accepted = mTransport.writeDescriptor(service, characteristic, descriptor, value);
+            if (accepted) {
+                onDescriptorRequest(service, characteristic, descriptor, value);
+            }
+            return accepted;
+        }
+
+        @Override
+        public boolean requestMtu(int mtu) {
+            boolean accepted = mTransport.requestMtu(mtu);
+            if (accepted) {
+                onMtuRequest(mtu);
+            }
+            return accepted;
+        }
+
+        @Override
+        public boolean requestConnectionPriority(int priority) {
+            return mTransport.requestConnectionPriority(priority);
+        }
+
+        @Override
+        public String getAddress() {
+            return mTransport.getAddress();
+        }
+
+        @Override
+        public boolean connect() {
+            return mTransport.connect();
+        }
+
+        @Override
+        public boolean reconnect(boolean background) {
+            return mTransport.reconnect(background);
+        }
+
+        @Override
+        public void disconnect() {
+            mTransport.disconnect();
+        }
+
+        @Override
+        public void reset() {
+            mTransport.reset();
+        }
+
+        @Override
+        public boolean discoverServices() {
+            return mTransport.discoverServices();
+        }
+
+        @Override
+        public GattLayout getLayout() {
+            return mTransport.getLayout();
+        }
+
+        @Override
+        public boolean setNotificationsEnabled(GattLayout.Characteristic characteristic, boolean enabled) {
+            return mTransport.setNotificationsEnabled(characteristic, enabled);
+        }
+
+        @Override
+        public boolean isBonded() {
+            return mTransport.isBonded();
+        }
+    }
+}
@@ -0,0 +1,362 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays a {@link GattTrace} back through the GATT handling of the app, as a repeatable benchmark with the traffic of a
+ * real session. Each recorded request is queued on a {@link GattOperationQueue} on a session thread at the time it was
+ * made, and is answered by a transport that replays the recorded response after the recorded delay. Notifications are
+ * offered to a {@link NotificationPipeline} at the time they arrived, and decoded with {@link LedStateCodec} on the
+ * session thread.
+ *
+ * The clock runs at the speed given: 1 plays the trace as it happened, 10 ten times faster, and
+ * {@link #AS_FAST_AS_POSSIBLE} feeds every event as soon as the one before it was taken, which measures the cost of
+ * the handling itself. Requests whose response is not in the trace, because the link dropped or the recording started
+ * after them, are left out.
+ */
+public class GattTraceReplayer {
+
+    public static final double AS_FAST_AS_POSSIBLE = 0;
+
+    /**
+     * Counts and latency of one replay. Operation latency runs from queueing to completion, notification latency from
+     * the offer to the decode on the session thread.
+     */
+    public static class Result {
+        private final LatencyHistogram mOperationLatency = new LatencyHistogram("replayed operation");
+        private final LatencyHistogram mNotifyLatency = new LatencyHistogram("replayed notification");
+        private final AtomicLong mFailed = new AtomicLong();
+        private final AtomicLong mDecodeFailures = new AtomicLong();
+        private long mOperations, mNotifications, mDropped, mSkipped, mConnectionEvents;
+        private long mDurationNanos, mTracedNanos;
+        private boolean mComplete;
+
+        public long getOperations() {
+            return mOperations;
+        }
+
+        public long getFailed() {                                                       //Operations completed with an error status
+            return mFailed.get();
+        }
+
+        public long getNotifications() {
+            return mNotifications;
+        }
+
+        public long getDecodeFailures() {                                               //LED values the codec did not accept
+            return mDecodeFailures.get();
+        }
+
+        public long getDropped() {                                                      //Notifications the pipeline had no room for
+            return mDropped;
+        }
+
+        public long getSkipped() {                                                      //Requests left out for lack of a response
+            return mSkipped;
+        }
+
+        public long getConnectionEvents() {
+            return mConnectionEvents;
+        }
+
+        public boolean isComplete() {                                                   //Everything was handled before the timeout
+            return mComplete;
+        }
+
+        public LatencyHistogram getOperationLatency() {
+            return mOperationLatency;
+        }
+
+        public LatencyHistogram getNotifyLatency() {
+            return mNotifyLatency;
+        }
+
+        public long getDurationNanos() {
+            return mDurationNanos;
+        }
+
+        public double getEventsPerSecond() {
+            return mDurationNanos > 0 ? (mOperations + mNotifications) * 1e9 / mDurationNanos : 0;
+        }
+
+        public double getSpeedup() {                                                    //Traced time over replay time
+            return mDurationNanos > 0 ? (double) mTracedNanos / mDurationNanos : 0;
+        }
+
+        @Override
+        public String toString() {
+            LatencyHistogram.Snapshot operations = mOperationLatency.snapshot();
+            LatencyHistogram.Snapshot notifications = mNotifyLatency.snapshot();
+            return String.format("%d operations (%d failed, %d skipped), %d notifications (%d dropped), %.0f events/s, "
+                            + "%.1fx, operation p50 %.2f ms p99 %.2f ms, notification p50 %.3f ms p99 %.3f ms",
+                    mOperations, getFailed(), mSkipped, mNotifications, mDropped, getEventsPerSecond(), getSpeedup(),
+                    operations.getPercentile(50) / 1e6, operations.getPercentile(99) / 1e6,
+                    notifications.getPercentile(50) / 1e6, notifications.getPercentile(99) / 1e6);
+        }
+    }
+
+    /**
+     * A recorded request with the response that completed it.
+     */
+    private static class Exchange {
+        final GattTrace.Event request;
+        final GattTrace.Event response;
+
+        Exchange(GattTrace.Event request, GattTrace.Event response) {
+            this.request = request;
+            this.response = response;
+        }
+    }
+
+    private final GattTrace mTrace;
+    private final List<Object> mSchedule = new ArrayList<Object>();                    //Exchanges and notifications in request and arrival order
+    private int mSkipped;
+
+    public GattTraceReplayer(GattTrace trace) {
+        mTrace = trace;
+        pair();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Replay the whole trace and wait for it to be handled, at most timeoutMillis after the last event was fed
+    public Result replay(double speed, long timeoutMillis) throws InterruptedException {
+        final Result result = new Result();
+        result.mTracedNanos = mTrace.getDurationNanos();
+        result.mSkipped = mSkipped;
+        final ExecutorTaskScheduler session = new ExecutorTaskScheduler("ReplaySession");
+        final ReplayTransport transport = new ReplayTransport(session, speed);
+        final GattOperationQueue queue = new GattOperationQueue(transport, session);
+        transport.mQueue = queue;
+        int work = 0;
+        for (Object item : mSchedule) {
+            work++;
+            if (item instanceof GattTrace.Event && ((GattTrace.Event) item).type == GattTrace.CONNECTION_STATE) {
+                work--;
+            }
+        }
+        final CountDownLatch done = new CountDownLatch(work);
+        final GattOperation.Callback completion = new GattOperation.Callback() {
+            @Override
+            public void onOperationComplete(GattOperation operation, int status, byte[] value) {
+                result.mOperationLatency.record(operation.getLatencyNanos());
+                if (status != GattOperation.GATT_SUCCESS) {
+                    result.mFailed.incrementAndGet();
+                }
+                done.countDown();
+            }
+        };
+        NotificationPipeline pipeline = new NotificationPipeline(NotificationPipeline.DEFAULT_SLOTS,
+                NotificationPipeline.MAX_PAYLOAD, session, new NotificationPipeline.Consumer() {
+            private final LedState mState = new LedState();
+            private LedStateCodec mCodec;
+
+            @Override
+            public void onNotification(byte[] payload, int length, long timestampNanos) {
+                if (mCodec == null) {
+                    mCodec = new LedStateCodec(LedStateCodec.detect(payload, length));  //Like the session, the first value sets the format
+                }
+                if (!mCodec.decode(payload, length, mState)) {
+                    result.mDecodeFailures.incrementAndGet();
+                }
+                result.mNotifyLatency.record(System.nanoTime() - timestampNanos);
+                done.countDown();
+            }
+        });
+
+        long start = System.nanoTime();
+        try {
+            for (Object item : mSchedule) {
+                if (item instanceof Exchange) {
+                    final Exchange exchange = (Exchange) item;
+                    waitUntil(start, exchange.request.nanos, speed);
+                    session.execute(new Runnable() {                                   //Queued from the session thread, as the app does
+                        @Override
+                        public void run() {
+                            transport.mExchanges.addLast(exchange);
+                            queue.enqueue(operation(exchange.request).setMaxRetries(0).setCallback(completion));
+                        }
+                    });
+                    result.mOperations++;
+                    continue;
+                }
+                GattTrace.Event event = (GattTrace.Event) item;
+                waitUntil(start, event.nanos, speed);
+                if (event.type == GattTrace.CONNECTION_STATE) {
+                    result.mConnectionEvents++;
+                    continue;
+                }
+                byte[] value = event.value != null ? event.value : new byte[0];
+                result.mNotifications++;
+                while (!pipeline.offer(value, System.nanoTime())) {
+                    if (speed > AS_FAST_AS_POSSIBLE) {
+                        result.mDropped++;                                              //The phone would have lost it too
+                        done.countDown();
+                        break;
+                    }
+                    Thread.yield();                                                     //Flat out, wait for the session thread to catch up
+                }
+            }
+            result.mComplete = done.await(timeoutMillis, TimeUnit.MILLISECONDS);
+            result.mDurationNanos = System.nanoTime() - start;
+        }
+        finally {
+            session.shutdown();
+        }
+        return result;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Match each request with the first later response of the same kind, and build the schedule
+    private void pair() {
+        List<GattTrace.Event> events = mTrace.getEvents();
+        boolean[] used = new boolean[events.size()];
+        for (int i = 0; i < events.size(); i++) {
+            GattTrace.Event event = events.get(i);
+            if (event.type == GattTrace.CHARACTERISTIC_CHANGED || event.type == GattTrace.CONNECTION_STATE) {
+                mSchedule.add(event);
+                continue;
+            }
+            if (!event.isRequest()) {
+                continue;
+            }
+            GattTrace.Event response = null;
+            for (int j = i + 1; j < events.size(); j++) {
+                GattTrace.Event candidate = events.get(j);
+                if (candidate.type == GattTrace.CONNECTION_STATE && !candidate.connected) {
+                    break;                                                              //Link went down with the request on it
+                }
+                if (!used[j] && answers(event, candidate)) {
+                    used[j] = true;
+                    response = candidate;
+                    break;
+                }
+            }
+            if (response != null) {
+                mSchedule.add(new Exchange(event, response));
+            }
+            else {
+                mSkipped++;
+            }
+        }
+    }
+
+    private static boolean answers(GattTrace.Event request, GattTrace.Event response) {
+        switch (request.type) {
+            case GattTrace.READ_REQUEST:
+                return response.type == GattTrace.CHARACTERISTIC_READ
+                        && request.characteristic.equals(response.characteristic);
+            case GattTrace.WRITE_REQUEST:
+                return response.type == GattTrace.CHARACTERISTIC_WRITE
+                        && request.characteristic.equals(response.characteristic);
+            case GattTrace.DESCRIPTOR_REQUEST:
+                return response.type == GattTrace.DESCRIPTOR_WRITE
+                        && request.characteristic.equals(response.characteristic)
+                        && request.descriptor.equals(response.descriptor);
+            case GattTrace.MTU_REQUEST:
+                return response.type == GattTrace.MTU_CHANGED;
+            default:
+                return false;
+        }
+    }
+
+    private static GattOperation operation(GattTrace.Event request) {
+        switch (request.type) {
+            case GattTrace.READ_REQUEST:
+                return GattOperation.read(request.service, request.characteristic);
+            case GattTrace.WRITE_REQUEST:
+                return GattOperation.write(request.service, request.characteristic, request.value, request.writeType);
+            case GattTrace.DESCRIPTOR_REQUEST:
+                return GattOperation.writeDescriptor(request.service, request.characteristic, request.descriptor,
+                        request.value);
+            default:
+                return GattOperation.requestMtu(request.mtu);
+        }
+    }
+
+    private static long scale(long nanos, double speed) {
+        return speed > AS_FAST_AS_POSSIBLE ? (long) (nanos / speed) : 0;
+    }
+
+    private static void waitUntil(long start, long tracedNanos, double speed) {
+        long deadline = start + scale(tracedNanos, speed);
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Answers each operation the queue starts with the recorded response of its exchange, after the recorded delay.
+    // Only used on the session thread.
+    private static class ReplayTransport implements GattTransport {
+        final ArrayDeque<Exchange> mExchanges = new ArrayDeque<Exchange>();             //Queued in the order the operations start
+        private final TaskScheduler mSession;
+        private final double mSpeed;
+        GattOperationQueue mQueue;
+
+        ReplayTransport(TaskScheduler session, double speed) {
+            mSession = session;
+            mSpeed = speed;
+        }
+
+        @Override
+        public boolean readCharacteristic(UUID service, UUID characteristic) {
+            return answer();
+        }
+
+        @Override
+        public boolean writeCharacteristic(UUID service, UUID characteristic, byte[] value, int writeType) {
+            return answer();
+        }
+
+        @Override
+        public boolean writeDescriptor(UUID service, UUID characteristic, UUID descriptor, byte[] value) {
+            return answer();
+        }
+
+        @Override
+        public boolean requestMtu(int mtu) {
+            return answer();
+        }
+
+        @Override
+        public boolean requestConnectionPriority(int priority) {
+            return true;
+        }
+
+        private boolean answer() {
+            final Exchange exchange = mExchanges.pollFirst();
+            if (exchange == null) {
+                return false;
+            }
+            final GattTrace.Event response = exchange.response;
+            mSession.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    switch (response.type) {
+                        case GattTrace.CHARACTERISTIC_READ:
+                            mQueue.onCharacteristicRead(response.characteristic, response.status, response.value);
+                            break;
+                        case GattTrace.CHARACTERISTIC_WRITE:
+                            mQueue.onCharacteristicWrite(response.characteristic, response.status);
+                            break;
+                        case GattTrace.DESCRIPTOR_WRITE:
+                            mQueue.onDescriptorWrite(response.characteristic, response.descriptor, response.status);
+                            break;
+                        default:
+                            mQueue.onMtuChanged(response.mtu, response.status);
+                            break;
+                    }
+                }
+            }, TimeUnit.NANOSECONDS.toMillis(scale(response.nanos - exchange.request.nanos, mSpeed)));
+            return true;
+        }
+    }
+}
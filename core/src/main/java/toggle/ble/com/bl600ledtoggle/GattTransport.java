@@ -0,0 +1,21 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import java.util.UUID;
+
+/**
+ * The calls on a GATT connection that start an over-the-air ATT operation. On the phone this is backed by
+ * {@code BluetoothGattTransport}; on the JVM it is backed by a fake so that {@link GattOperationQueue} can be tested
+ * without a radio. Each method returns false if the request was not accepted, exactly like {@code BluetoothGatt}.
+ */
+public interface GattTransport {
+
+    boolean readCharacteristic(UUID service, UUID characteristic);
+
+    boolean writeCharacteristic(UUID service, UUID characteristic, byte[] value, int writeType);
+
+    boolean writeDescriptor(UUID service, UUID characteristic, UUID descriptor, byte[] value);
+
+    boolean requestMtu(int mtu);                                                        //Completes with onMtuChanged, false where the platform cannot ask
+
+    boolean requestConnectionPriority(int priority);                                    //Takes effect without a callback, false where the platform cannot ask
+}
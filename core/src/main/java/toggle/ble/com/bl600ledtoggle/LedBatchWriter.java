@@ -0,0 +1,248 @@
+package toggle.ble.com.bl600ledtoggle;
+
+/**
+ * Sends a {@link LedCommandBatch} to the LED_TOGGLE characteristic with as few ATT round trips as the link allows.
+ *
+ * Firmware that speaks the binary format also takes batch frames:
+ * <pre>
+ *   byte 0  FRAME_MARKER  0xB5, never a valid state so single messages and frames cannot be confused
+ *   byte 1  sequence      incremented for every frame, wraps at 255
+ *   byte 2  step count
+ *   then 4 bytes per step: state, brightness (0xFF = keep), hold time in ms (16 bit little endian)
+ * </pre>
+ * {@link Mode#FRAMED} fills each write up to the negotiated MTU. {@link Mode#LONG_WRITE} sends up to 512 bytes per
+ * write, which the stack carries as queued (prepare and execute) writes, so a whole schedule reaches the board at once
+ * even where the MTU cannot be raised. {@link Mode#PER_WRITE} is the fallback for legacy firmware: one ordinary LED
+ * write per step, with the hold times kept by the phone.
+ */
+public class LedBatchWriter {
+
+    public enum Mode { PER_WRITE, FRAMED, LONG_WRITE }
+
+    public static final int DEFAULT_MTU = 23;                                           //ATT MTU before any exchange
+    public static final int PREFERRED_MTU = 247;                                        //Largest that fits one LE data length extended packet
+    public static final int ATT_WRITE_OVERHEAD = 3;                                     //Opcode and handle
+    public static final int MAX_ATTRIBUTE_LENGTH = 512;
+    public static final int FRAME_MARKER = 0xB5;
+    public static final int FRAME_HEADER = 3;
+    public static final int STEP_LENGTH = 4;
+
+    private static final int KEEP_BRIGHTNESS_VALUE = 0xFF;
+
+    /**
+     * Called once per batch, after the last write or on the first failure.
+     */
+    public interface Listener {
+        void onBatchComplete(LedCommandBatch batch, int status, int writes);
+    }
+
+    private final GattOperationQueue mQueue;
+    private final TaskScheduler mScheduler;
+    private volatile int mMtu = DEFAULT_MTU;
+    private volatile Mode mMode = Mode.PER_WRITE;
+    private volatile LedStateCodec mCodec = new LedStateCodec(LedStateCodec.Mode.LEGACY_STRING);
+    private int mSequence;
+
+    public LedBatchWriter(GattOperationQueue queue, TaskScheduler scheduler) {
+        mQueue = queue;
+        mScheduler = scheduler;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Frames are only understood by firmware that uses the binary LED format
+    public static Mode modeFor(LedStateCodec.Mode codecMode) {
+        return codecMode == LedStateCodec.Mode.BINARY ? Mode.FRAMED : Mode.PER_WRITE;
+    }
+
+    public void setMtu(int mtu) {
+        mMtu = mtu;
+    }
+
+    public int getMtu() {
+        return mMtu;
+    }
+
+    public void setMode(Mode mode) {
+        mMode = mode;
+    }
+
+    public Mode getMode() {
+        return mMode;
+    }
+
+    public void setCodec(LedStateCodec codec) {
+        mCodec = codec;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Largest frame one write can carry in the current mode
+    public int getMaxFrameLength() {
+        return mMode == Mode.LONG_WRITE ? MAX_ATTRIBUTE_LENGTH : Math.min(mMtu - ATT_WRITE_OVERHEAD, MAX_ATTRIBUTE_LENGTH);
+    }
+
+    public static int stepsPerFrame(int maxFrameLength) {
+        return Math.max(0, (maxFrameLength - FRAME_HEADER) / STEP_LENGTH);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Queue the writes for a batch and return how many writes it takes. The listener runs on the queue's callback thread.
+    public int send(LedCommandBatch batch, Listener listener) {
+        if (batch.size() == 0) {
+            if (listener != null) {
+                listener.onBatchComplete(batch, GattOperation.GATT_SUCCESS, 0);
+            }
+            return 0;
+        }
+        if (mMode == Mode.PER_WRITE) {
+            new PerWriteSender(batch, listener).sendStep(0);
+            return batch.size();
+        }
+        int maxFrameLength = getMaxFrameLength();
+        int stepsPerFrame = stepsPerFrame(maxFrameLength);
+        if (stepsPerFrame == 0) {
+            throw new IllegalStateException("MTU " + mMtu + " is too small for a batch frame");
+        }
+        int frames = (batch.size() + stepsPerFrame - 1) / stepsPerFrame;
+        FrameCallback callback = new FrameCallback(batch, listener, frames);
+        byte[] frame = new byte[Math.min(maxFrameLength, FRAME_HEADER + STEP_LENGTH * batch.size())];
+        for (int from = 0; from < batch.size(); ) {
+            int length = encodeFrame(batch, from, stepsPerFrame, nextSequence(), frame);
+            from += (length - FRAME_HEADER) / STEP_LENGTH;
+            mQueue.enqueue(writeOf(frame, length).setCallback(callback));              //The operation takes its own copy of the frame
+        }
+        return frames;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Encode up to maxSteps steps starting at from into dst, returning the frame length
+    public static int encodeFrame(LedCommandBatch batch, int from, int maxSteps, int sequence, byte[] dst) {
+        int steps = Math.min(maxSteps, Math.min(batch.size() - from, (dst.length - FRAME_HEADER) / STEP_LENGTH));
+        dst[0] = (byte) FRAME_MARKER;
+        dst[1] = (byte) sequence;
+        dst[2] = (byte) steps;
+        int offset = FRAME_HEADER;
+        for (int i = from; i < from + steps; i++) {
+            int brightness = batch.getBrightness(i);
+            int hold = batch.getHoldMillis(i);
+            dst[offset++] = (byte) batch.getState(i);
+            dst[offset++] = (byte) (brightness == LedCommandBatch.KEEP_BRIGHTNESS ? KEEP_BRIGHTNESS_VALUE : brightness);
+            dst[offset++] = (byte) hold;
+            dst[offset++] = (byte) (hold >> 8);
+        }
+        return offset;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Append the steps of a received frame to out, returning false if the bytes are not a valid frame
+    public static boolean decodeFrame(byte[] buffer, int length, LedCommandBatch out) {
+        if (length < FRAME_HEADER || (buffer[0] & 0xFF) != FRAME_MARKER) {
+            return false;
+        }
+        int steps = buffer[2] & 0xFF;
+        if (length != FRAME_HEADER + steps * STEP_LENGTH) {
+            return false;
+        }
+        for (int offset = FRAME_HEADER; offset < length; offset += STEP_LENGTH) {
+            int state = buffer[offset] & 0xFF;
+            int brightness = buffer[offset + 1] & 0xFF;
+            if (state > 1) {
+                return false;
+            }
+            out.add(state, brightness == KEEP_BRIGHTNESS_VALUE ? LedCommandBatch.KEEP_BRIGHTNESS : brightness,
+                    (buffer[offset + 2] & 0xFF) | (buffer[offset + 3] & 0xFF) << 8);
+        }
+        return true;
+    }
+
+    private GattOperation writeOf(byte[] buffer, int length) {
+        byte[] value = buffer;
+        if (length != buffer.length) {
+            value = new byte[length];
+            System.arraycopy(buffer, 0, value, 0, length);
+        }
+        return GattOperation.write(LedGattProfile.LED_SERVICE, LedGattProfile.LED_TOGGLE, value, GattOperation.WRITE_TYPE_DEFAULT);
+    }
+
+    private synchronized int nextSequence() {
+        return mSequence = (mSequence + 1) & 0xFF;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Counts frame completions and reports the batch once, on the last frame or the first failure
+    private static class FrameCallback implements GattOperation.Callback {
+        private final LedCommandBatch mBatch;
+        private final Listener mListener;
+        private final int mFrames;
+        private int mCompleted;
+        private boolean mReported;
+
+        FrameCallback(LedCommandBatch batch, Listener listener, int frames) {
+            mBatch = batch;
+            mListener = listener;
+            mFrames = frames;
+        }
+
+        @Override
+        public void onOperationComplete(GattOperation operation, int status, byte[] value) {
+            int completed;
+            synchronized (this) {
+                if (mReported) {
+                    return;                                                             //Later frames of a failed batch are not reported again
+                }
+                if (status == GattOperation.GATT_SUCCESS && ++mCompleted < mFrames) {
+                    return;
+                }
+                mReported = true;
+                completed = mCompleted;
+            }
+            if (mListener != null) {
+                mListener.onBatchComplete(mBatch, status, completed);
+            }
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Legacy firmware: one LED write per step, the next one sent when the previous step's hold time is up
+    private class PerWriteSender implements GattOperation.Callback, Runnable {
+        private final LedCommandBatch mBatch;
+        private final Listener mListener;
+        private final LedStateCodec mStepCodec = mCodec;                                //Format fixed for the whole batch
+        private final LedState mState = new LedState();
+        private final byte[] mBuffer = new byte[LedStateCodec.MAX_LENGTH];
+        private int mIndex;
+
+        PerWriteSender(LedCommandBatch batch, Listener listener) {
+            mBatch = batch;
+            mListener = listener;
+        }
+
+        void sendStep(int index) {
+            mIndex = index;
+            mState.set(mBatch.getState(index), nextSequence(), mBatch.getBrightness(index), LedState.ABSENT);
+            int length = mStepCodec.encode(mState, mBuffer);
+            mQueue.enqueue(writeOf(mBuffer, length).setCallback(this));
+        }
+
+        @Override
+        public void onOperationComplete(GattOperation operation, int status, byte[] value) {
+            if (status != GattOperation.GATT_SUCCESS || mIndex == mBatch.size() - 1) {
+                if (mListener != null) {
+                    mListener.onBatchComplete(mBatch, status, status == GattOperation.GATT_SUCCESS ? mBatch.size() : mIndex);
+                }
+                return;
+            }
+            int hold = mBatch.getHoldMillis(mIndex);
+            if (hold == 0) {
+                sendStep(mIndex + 1);                                                   //Straight from the callback, like the queue itself
+            }
+            else {
+                mScheduler.postDelayed(this, hold);
+            }
+        }
+
+        @Override
+        public void run() {
+            sendStep(mIndex + 1);
+        }
+    }
+}
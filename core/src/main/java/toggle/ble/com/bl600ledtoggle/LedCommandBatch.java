@@ -0,0 +1,84 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import java.util.Arrays;
+
+/**
+ * A sequence of LED states, each held for a number of milliseconds before the next one, such as a blink pattern or a
+ * timed schedule. Sent with {@link LedBatchWriter}. Steps are kept in parallel int arrays so a long schedule is a
+ * handful of objects rather than one per step.
+ */
+public class LedCommandBatch {
+
+    public static final int KEEP_BRIGHTNESS = LedState.ABSENT;                          //Leave the brightness as it is
+    public static final int MAX_HOLD_MILLIS = 0xFFFF;                                   //Hold time is sent as 16 bits
+
+    private int[] mStates, mBrightness, mHolds;
+    private int mSize;
+
+    public LedCommandBatch() {
+        this(16);
+    }
+
+    public LedCommandBatch(int capacity) {
+        mStates = new int[capacity];
+        mBrightness = new int[capacity];
+        mHolds = new int[capacity];
+    }
+
+    public LedCommandBatch add(int state, int holdMillis) {
+        return add(state, KEEP_BRIGHTNESS, holdMillis);
+    }
+
+    public LedCommandBatch add(int state, int brightness, int holdMillis) {
+        if (state != 0 && state != 1) {
+            throw new IllegalArgumentException("State must be 0 or 1: " + state);
+        }
+        if (brightness != KEEP_BRIGHTNESS && (brightness < 0 || brightness > 254)) {    //255 is the keep marker on the air
+            throw new IllegalArgumentException("Brightness out of range: " + brightness);
+        }
+        if (holdMillis < 0 || holdMillis > MAX_HOLD_MILLIS) {
+            throw new IllegalArgumentException("Hold out of range: " + holdMillis);
+        }
+        if (mSize == mStates.length) {
+            int capacity = mSize * 2 + 1;
+            mStates = Arrays.copyOf(mStates, capacity);
+            mBrightness = Arrays.copyOf(mBrightness, capacity);
+            mHolds = Arrays.copyOf(mHolds, capacity);
+        }
+        mStates[mSize] = state;
+        mBrightness[mSize] = brightness;
+        mHolds[mSize] = holdMillis;
+        mSize++;
+        return this;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // On for onMillis then off for offMillis, count times
+    public static LedCommandBatch blink(int count, int onMillis, int offMillis) {
+        LedCommandBatch batch = new LedCommandBatch(count * 2);
+        for (int i = 0; i < count; i++) {
+            batch.add(1, onMillis).add(0, offMillis);
+        }
+        return batch;
+    }
+
+    public void clear() {
+        mSize = 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int getState(int index) {
+        return mStates[index];
+    }
+
+    public int getBrightness(int index) {
+        return mBrightness[index];
+    }
+
+    public int getHoldMillis(int index) {
+        return mHolds[index];
+    }
+}
@@ -0,0 +1,51 @@
+package toggle.ble.com.bl600ledtoggle;
+
+/**
+ * Commands for the LED on a board. Like the {@link DeviceSession} that carries them, a controller is used from the
+ * session thread only. Commands return false, sending nothing, until the LED service is ready.
+ */
+public interface LedController {
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // ORDERED sends every state in turn. LATEST keeps one LED write outstanding at a time and replaces any state waiting
+    // behind it with a newer one, so only the end state of a burst goes on the air; callers whose state was replaced
+    // complete with the write that carried the newest one. Batches are always sent in full.
+    enum WriteMode { ORDERED, LATEST }
+
+    interface Listener {
+        void onLedStateChanged(LedState state, boolean fromRead);                       //The state object is reused, copy what is kept
+    }
+
+    void setLedListener(Listener listener);
+
+    boolean isReady();
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // The characteristic takes writes without response, so several commands may be in flight at once
+    boolean isWriteWithoutResponse();
+
+    void setWriteMode(WriteMode mode);
+
+    WriteMode getWriteMode();
+
+    boolean setLed(int state, GattOperation.Callback callback);
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // One LED write of its own with response, whatever the write mode, so the callback completes with the board's
+    // acknowledgement of this very write. A state waiting in LATEST mode is replaced by it and its callers complete with
+    // it. False, sending nothing, if the characteristic takes writes without response only.
+    boolean setLedAcknowledged(int state, GattOperation.Callback callback);
+
+    boolean toggle(GattOperation.Callback callback);                                    //Opposite of the last state sent or reported
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Answered from the state cache while it is fresh, with a null operation, otherwise over the air. Reads that miss
+    // the cache while one is on its way share it. The value also goes to the listener.
+    boolean readLed(GattOperation.Callback callback);
+
+    boolean readLed(boolean force, GattOperation.Callback callback);                    //force = always read over the air
+
+    boolean sendBatch(LedCommandBatch batch, LedBatchWriter.Listener listener);
+
+    LedStateCodec.Mode getFormat();
+}
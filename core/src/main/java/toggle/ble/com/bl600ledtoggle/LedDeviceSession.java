@@ -0,0 +1,687 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A session with a BL600 running the LED toggle firmware. When the link comes up the {@link LinkProfile} is applied,
+ * services are discovered once the MTU exchange is done and {@link LedServiceSetup} brings the LED service into use,
+ * from the {@link GattLayoutCache} where it can. The LED format is taken from the first value the board sends, and
+ * batches switch to frames for firmware that uses the binary format.
+ *
+ * All reads and writes go through one {@link GattOperationQueue}. Notification values are decoded in place into a
+ * reused {@link LedState}, so the notification path does not allocate. Notifications, acknowledged writes and reads
+ * keep a {@link LedStateCache} up to date, so a read can be answered locally while the cached value is fresh, and reads
+ * that miss it while another is on its way share that one ATT read. In {@link WriteMode#LATEST} a burst of LED
+ * commands collapses to the newest state while a write is outstanding.
+ *
+ * With a {@link ReconnectPolicy} set, a link that drops is brought back on its own. Operations queued on it are held
+ * and sent once the LED service is ready again, and the time from the drop until then is recorded as recovery time.
+ */
+public class LedDeviceSession implements DeviceSession, LedController {
+
+    private final BleTransport mTransport;
+    private final TaskScheduler mScheduler;
+    private final GattOperationQueue mQueue;
+    private final LinkTuner mTuner;
+    private final LedServiceSetup mSetup;
+    private final LedBatchWriter mBatchWriter;
+    private BleMetrics mMetrics;                                                        //Optional, records connection setup and notifications
+    private DeviceSession.Listener mListener;
+    private LedController.Listener mLedListener;
+    private volatile State mState = State.DISCONNECTED;
+    private volatile LinkProfile mLinkProfile = LinkProfile.LOW_LATENCY;
+    private boolean mDiscoveryPending;                                                  //Services are discovered once the link has been tuned
+    private boolean mServicesDiscovered;                                                //Discovery has completed on this connection
+    private boolean mLinkReused;                                                        //Connection was set up before this session took it over
+    private long mConnectStartNanos, mDiscoveryStartNanos;                              //0 when not in progress
+    private GattLayout.Characteristic mLedToggle;                                       //Null until the LED service is ready
+    private int mLedWriteType = GattOperation.WRITE_TYPE_DEFAULT;                       //Write type for single commands, batches always use write with response
+    private LedStateCodec mCodec = new LedStateCodec(LedStateCodec.Mode.LEGACY_STRING); //Switched to binary if the board turns out to use it
+    private boolean mCodecDetected;                                                     //Format has been checked against a value from the board
+    private final LedState mSentState = new LedState();
+    private final LedState mReceivedState = new LedState();
+    private int mSequence;                                                              //Sequence number of the last command sent
+    private int mLedState;                                                              //Last state sent or reported
+    private WriteMode mWriteMode = WriteMode.ORDERED;
+    private int mLedWritesOutstanding;                                                  //LED writes queued or on the air
+    private boolean mHasNextState;                                                      //LATEST mode: a state is waiting for the outstanding write
+    private int mNextState;
+    private final List<GattOperation.Callback> mNextWaiters = new ArrayList<GattOperation.Callback>(); //Callers whose state the next write carries
+    private long mSupersededWrites;                                                     //States replaced by a newer one before going on the air
+    private boolean mLedNotifies;                                                       //The board reports changes, so the state cache can be trusted
+    private final LedStateCache mStateCache = new LedStateCache();
+    private final List<GattOperation.Callback> mReadWaiters = new ArrayList<GattOperation.Callback>(); //Callers sharing the read on its way
+    private ReconnectPolicy mReconnectPolicy;                                           //Null to stay disconnected when the link drops
+    private boolean mDisconnectRequested;                                               //The app asked for the link to go down, do not bring it back
+    private int mReconnectAttempt;                                                      //Attempts made since the link dropped
+    private long mDropNanos;                                                            //When the link dropped, 0 when not reconnecting
+    private long mLastRecoveryNanos = -1;
+    private long mRecoveries, mResets;
+    private final List<GattOperation> mHeld = new ArrayList<GattOperation>();          //Operations of the dropped link, sent again once ready
+    private LedEventJournal mJournal;                                                   //Optional, keeps the history of LED states
+    private long mDeviceId;
+    private long mLastWriteNanos;                                                       //When the last LED command was queued
+    private GattTraceRecorder mTrace;                                                   //Optional, records the events of the link
+
+    public LedDeviceSession(BleTransport transport, TaskScheduler scheduler, GattLayoutCache cache) {
+        mTransport = transport;
+        mScheduler = scheduler;
+        mQueue = new GattOperationQueue(transport, scheduler);
+        mTuner = new LinkTuner(transport, mQueue, mTunerListener);
+        mSetup = new LedServiceSetup(cache, mQueue, mSetupListener);
+        mBatchWriter = new LedBatchWriter(mQueue, scheduler);
+        mBatchWriter.setCodec(mCodec);
+    }
+
+    public void setMetrics(BleMetrics metrics) {
+        mMetrics = metrics;
+        mQueue.setMetrics(metrics);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Report when this session has GATT operations on the air, so scanning can pause meanwhile
+    public void setGattActivity(GattActivity activity) {
+        mQueue.setActivity(activity);
+    }
+
+    public void setJournal(LedEventJournal journal) {
+        mJournal = journal;
+        mDeviceId = LedEventJournal.deviceId(getAddress());
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Record every event of the link. The requests are recorded by passing the transport through trace.wrap() first.
+    public void setTraceRecorder(GattTraceRecorder trace) {
+        mTrace = trace;
+    }
+
+    @Override
+    public String getAddress() {
+        return mTransport.getAddress();
+    }
+
+    @Override
+    public State getState() {
+        return mState;
+    }
+
+    @Override
+    public void setListener(DeviceSession.Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void setLedListener(LedController.Listener listener) {
+        mLedListener = listener;
+    }
+
+    public GattOperationQueue getQueue() {
+        return mQueue;
+    }
+
+    public LinkTuner getTuner() {
+        return mTuner;
+    }
+
+    public LedServiceSetup getSetup() {
+        return mSetup;
+    }
+
+    public LedBatchWriter getBatchWriter() {
+        return mBatchWriter;
+    }
+
+    public LedStateCache getStateCache() {
+        return mStateCache;
+    }
+
+    public long getSupersededWrites() {
+        return mSupersededWrites;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Links brought back by the reconnect policy, and the time the last one took from the drop until ready, -1 if none
+    public long getRecoveryCount() {
+        return mRecoveries;
+    }
+
+    public long getLastRecoveryMillis() {
+        return mLastRecoveryNanos >= 0 ? mLastRecoveryNanos / 1000000L : -1;
+    }
+
+    public long getResetCount() {
+        return mResets;
+    }
+
+    public int getHeldCount() {
+        return mHeld.size();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // True if the connection was already set up when this session took it over
+    public boolean isLinkReused() {
+        return mLinkReused;
+    }
+
+    @Override
+    public void connect() {
+        if (mState != State.DISCONNECTED) {
+            return;
+        }
+        mDisconnectRequested = false;
+        mConnectStartNanos = System.nanoTime();
+        setState(State.CONNECTING);
+        if (!mTransport.connect()) {
+            mConnectStartNanos = 0;
+            setState(State.DISCONNECTED);
+        }
+    }
+
+    @Override
+    public void disconnect() {
+        mDisconnectRequested = true;
+        mTransport.disconnect();
+        if (mState == State.RECONNECTING) {
+            stopReconnecting();                                                         //There may be no link to report the disconnect
+        }
+    }
+
+    @Override
+    public void setReconnectPolicy(ReconnectPolicy policy) {
+        mReconnectPolicy = policy;
+        if (policy == null && mState == State.RECONNECTING) {
+            mTransport.disconnect();                                                    //Cancel an attempt on its way
+            stopReconnecting();
+        }
+    }
+
+    @Override
+    public void setLinkProfile(LinkProfile profile) {
+        mLinkProfile = profile;
+        if (isConnected() && !mDiscoveryPending) {
+            mTuner.apply(profile);
+        }
+    }
+
+    @Override
+    public LinkProfile getLinkProfile() {
+        return mLinkProfile;
+    }
+
+    @Override
+    public void onLinkReused(int mtu, boolean servicesDiscovered) {
+        mTuner.onLinkReused(mtu);                                                       //MTU was exchanged while the link was used before
+        mBatchWriter.setMtu(mTuner.getFrameMtu());
+        mServicesDiscovered = servicesDiscovered;
+        mLinkReused = servicesDiscovered;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Transport events
+    @Override
+    public void onConnectionStateChange(int status, boolean connected) {
+        if (mTrace != null) {
+            mTrace.onConnectionStateChange(status, connected);
+        }
+        if (connected) {
+            if (isConnected()) {
+                return;                                                                 //Already handled, a pooled link and its callback can both report it
+            }
+            if (mConnectStartNanos != 0 && mMetrics != null) {
+                mMetrics.connectTime.record(System.nanoTime() - mConnectStartNanos);
+            }
+            mConnectStartNanos = 0;
+            setState(State.CONNECTED);
+            if (mServicesDiscovered) {
+                mTuner.apply(mLinkProfile);                                             //MTU was exchanged before, only the priority is asked for
+                onServicesDiscovered(GattOperation.GATT_SUCCESS);                       //Discovered before, no need to do it again
+            }
+            else {
+                mDiscoveryPending = true;                                               //Discover services once the MTU exchange is done
+                mTuner.apply(mLinkProfile);
+            }
+            return;
+        }
+        mConnectStartNanos = 0;
+        mDiscoveryPending = false;
+        mServicesDiscovered = false;
+        mLinkReused = false;
+        mLedToggle = null;
+        mStateCache.invalidate();                                                       //Changes made while the link is down are not seen
+        mTuner.onDisconnected();
+        if (mReconnectPolicy != null && !mDisconnectRequested && mState != State.DISCONNECTED) {
+            mHeld.addAll(mQueue.drain());                                               //Kept for the next connection
+            scheduleReconnect(status);
+            return;
+        }
+        mQueue.clear();                                                                 //Operations still queued for this link will never complete
+        stopReconnecting();
+    }
+
+    @Override
+    public void onServicesDiscovered(int status) {
+        if (mTrace != null) {
+            mTrace.onServicesDiscovered(status);
+        }
+        if (mDiscoveryStartNanos != 0 && mMetrics != null) {
+            mMetrics.discoveryTime.record(System.nanoTime() - mDiscoveryStartNanos);
+        }
+        mDiscoveryStartNanos = 0;
+        GattLayout layout = mTransport.getLayout();
+        if (status != GattOperation.GATT_SUCCESS || layout == null) {
+            return;                                                                     //Stays connected without the LED service
+        }
+        mServicesDiscovered = true;
+        mSetup.onServicesDiscovered(getAddress(), layout,                               //Use the cached layout if it still matches the device
+                mLinkReused || mTransport.isBonded());                                  //Notifications are still on for a link kept open
+    }
+
+    @Override
+    public void onCharacteristicRead(UUID characteristic, int status, byte[] value) {
+        if (mTrace != null) {
+            mTrace.onCharacteristicRead(characteristic, status, value);
+        }
+        if (status == GattOperation.GATT_SUCCESS && value != null && LedGattProfile.LED_TOGGLE.equals(characteristic)
+                && decodeLedState(value, value.length, true)) {                         //Before the queue, so the read callback sees the format
+            mStateCache.update(value, value.length, System.nanoTime());
+            journalReceivedState(LedEventJournal.TYPE_READ);
+        }
+        mQueue.onCharacteristicRead(characteristic, status, value);                     //Let the queue start the next operation
+    }
+
+    @Override
+    public void onCharacteristicWrite(UUID characteristic, int status) {
+        if (mTrace != null) {
+            mTrace.onCharacteristicWrite(characteristic, status);
+        }
+        mQueue.onCharacteristicWrite(characteristic, status);
+    }
+
+    @Override
+    public void onDescriptorWrite(UUID characteristic, UUID descriptor, int status) {
+        if (mTrace != null) {
+            mTrace.onDescriptorWrite(characteristic, descriptor, status);
+        }
+        mQueue.onDescriptorWrite(characteristic, descriptor, status);
+    }
+
+    @Override
+    public void onMtuChanged(int mtu, int status) {
+        if (mTrace != null) {
+            mTrace.onMtuChanged(mtu, status);
+        }
+        mTuner.onMtuChanged(mtu, status);                                               //Record the granted MTU before the queue completes the request
+        mQueue.onMtuChanged(mtu, status);
+    }
+
+    @Override
+    public void onCharacteristicChanged(UUID characteristic, byte[] value, int length, long receivedNanos) {
+        if (mTrace != null) {
+            mTrace.onCharacteristicChanged(characteristic, value, length, receivedNanos);
+        }
+        if (mMetrics != null) {
+            mMetrics.notifications.incrementAndGet();
+            mMetrics.notifyLatency.record(System.nanoTime() - receivedNanos);          //Time from the platform callback to the session thread
+        }
+        if (LedGattProfile.LED_TOGGLE.equals(characteristic) && decodeLedState(value, length, false)) {
+            mStateCache.update(value, length, System.nanoTime());
+            journalReceivedState(LedEventJournal.TYPE_NOTIFY);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // LED commands
+    @Override
+    public boolean isReady() {
+        return mLedToggle != null;
+    }
+
+    @Override
+    public boolean isWriteWithoutResponse() {
+        return mLedWriteType == GattOperation.WRITE_TYPE_NO_RESPONSE;
+    }
+
+    @Override
+    public void setWriteMode(WriteMode mode) {
+        mWriteMode = mode;
+    }
+
+    @Override
+    public WriteMode getWriteMode() {
+        return mWriteMode;
+    }
+
+    @Override
+    public boolean setLed(int state, GattOperation.Callback callback) {
+        GattLayout.Characteristic ledToggle = mLedToggle;
+        if (ledToggle == null || !(ledToggle.has(GattLayout.PROPERTY_WRITE) || ledToggle.has(GattLayout.PROPERTY_WRITE_NO_RESPONSE))) {
+            return false;
+        }
+        mLedState = state;
+        if (mWriteMode == WriteMode.LATEST && mLedWritesOutstanding > 0) {
+            if (mHasNextState) {
+                mSupersededWrites++;                                                    //Never goes on the air
+            }
+            mHasNextState = true;
+            mNextState = state;
+            mNextWaiters.add(callback);                                                 //Completed with the write that carries the newest state
+            return true;
+        }
+        writeLedState(ledToggle, state, mLedWriteType, new WriteAck(Collections.singletonList(callback)));
+        return true;
+    }
+
+    @Override
+    public boolean setLedAcknowledged(int state, GattOperation.Callback callback) {
+        GattLayout.Characteristic ledToggle = mLedToggle;
+        if (ledToggle == null || !ledToggle.has(GattLayout.PROPERTY_WRITE)) {
+            return false;
+        }
+        mLedState = state;
+        List<GattOperation.Callback> callbacks = new ArrayList<GattOperation.Callback>();
+        if (mHasNextState) {
+            mHasNextState = false;
+            mSupersededWrites++;                                                        //Replaced by this state before going on the air
+            callbacks.addAll(mNextWaiters);
+            mNextWaiters.clear();
+        }
+        callbacks.add(callback);
+        writeLedState(ledToggle, state, GattOperation.WRITE_TYPE_DEFAULT, new WriteAck(callbacks));
+        return true;
+    }
+
+    private void writeLedState(GattLayout.Characteristic ledToggle, int state, int writeType, WriteAck ack) {
+        mSequence = (mSequence + 1) & 0xFF;
+        mSentState.set(state, mSequence, LedState.ABSENT, LedState.ABSENT);
+        mLedWritesOutstanding++;
+        mLastWriteNanos = System.nanoTime();
+        ack.mState = state;
+        ack.mSequence = mSequence;
+        mStateCache.invalidate();                                                       //A read queued behind the write must see the new state
+        mQueue.enqueue(GattOperation.write(ledToggle.service, ledToggle.uuid, mCodec.encode(mSentState), writeType)
+                .setCallback(ack));                                                     //Queued with its own copy of the value, it starts when the link is free
+    }
+
+    @Override
+    public boolean toggle(GattOperation.Callback callback) {
+        return setLed(mLedState != 0 ? 0 : 1, callback);
+    }
+
+    @Override
+    public boolean readLed(GattOperation.Callback callback) {
+        return readLed(false, callback);
+    }
+
+    @Override
+    public boolean readLed(boolean force, GattOperation.Callback callback) {
+        GattLayout.Characteristic ledToggle = mLedToggle;
+        if (ledToggle == null || !ledToggle.has(GattLayout.PROPERTY_READ)) {
+            return false;
+        }
+        if (force) {
+            mStateCache.countForced();
+            mQueue.enqueue(GattOperation.read(ledToggle.service, ledToggle.uuid).setCallback(callback));
+            return true;
+        }
+        if (mLedNotifies && mStateCache.isFresh(System.nanoTime())) {
+            mStateCache.countHit();
+            decodeLedState(mStateCache.getBuffer(), mStateCache.getLength(), true);     //Reported as a read, like the value from the board would be
+            if (callback != null) {
+                callback.onOperationComplete(null, GattOperation.GATT_SUCCESS, mStateCache.copyValue());
+            }
+            return true;
+        }
+        mReadWaiters.add(callback);
+        if (mReadWaiters.size() > 1) {
+            mStateCache.countCoalesced();                                               //Answered by the read already on its way
+            return true;
+        }
+        mStateCache.countMiss();
+        mQueue.enqueue(GattOperation.read(ledToggle.service, ledToggle.uuid).setCallback(mSharedRead));
+        return true;
+    }
+
+    @Override
+    public boolean sendBatch(LedCommandBatch batch, LedBatchWriter.Listener listener) {
+        if (mLedToggle == null) {
+            return false;
+        }
+        if (batch.size() > 0) {
+            mLedState = batch.getState(batch.size() - 1);
+        }
+        mStateCache.invalidate();                                                       //Refreshed by the next notification or read
+        mBatchWriter.send(batch, listener);
+        return true;
+    }
+
+    @Override
+    public LedStateCodec.Mode getFormat() {
+        return mCodec.getMode();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Decode an LED_TOGGLE value into mReceivedState, checking the format against the first value the board sends
+    // Returns false if the value could not be decoded
+    private boolean decodeLedState(byte[] buffer, int length, boolean fromRead) {
+        if (!mCodecDetected && length > 0) {
+            mCodec = new LedStateCodec(LedStateCodec.detect(buffer, length));
+            mCodecDetected = true;
+            mBatchWriter.setCodec(mCodec);
+            mBatchWriter.setMode(LedBatchWriter.modeFor(mCodec.getMode()));            //Only binary format firmware takes batch frames
+        }
+        if (!mCodec.decode(buffer, length, mReceivedState)) {
+            return false;
+        }
+        if (mLedWritesOutstanding == 0 && !mHasNextState) {
+            mLedState = mReceivedState.state;                                           //Reports of older writes do not replace a newer state sent
+        }
+        if (mLedListener != null) {
+            mLedListener.onLedStateChanged(mReceivedState, fromRead);
+        }
+        return true;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Journal a state the board sent. The round trip is known when it reports the last command sent.
+    private void journalReceivedState(int type) {
+        if (mJournal == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        int rttMicros = mReceivedState.sequence == mSequence && mLastWriteNanos != 0
+                ? (int) ((now - mLastWriteNanos) / 1000) : -1;
+        mJournal.append(System.currentTimeMillis(), mDeviceId, mReceivedState.sequence, mReceivedState.state, rttMicros,
+                type, 0);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Completes every read that was waiting for the shared one, successfully or not
+    private final GattOperation.Callback mSharedRead = new GattOperation.Callback() {
+        @Override
+        public void onOperationComplete(GattOperation operation, int status, byte[] value) {
+            GattOperation.Callback[] waiters = mReadWaiters.toArray(new GattOperation.Callback[mReadWaiters.size()]);
+            mReadWaiters.clear();                                                       //A read started from a callback gets an ATT read of its own
+            for (GattOperation.Callback waiter : waiters) {
+                if (waiter != null) {
+                    waiter.onOperationComplete(operation, status, value);
+                }
+            }
+        }
+    };
+
+    /**
+     * Puts the value of an acknowledged write in the state cache before passing the result on. A write without response
+     * is only confirmed by the notification that follows it. In LATEST mode it then sends the newest state that waited.
+     */
+    private class WriteAck implements GattOperation.Callback {
+        private final List<GattOperation.Callback> mCallbacks;
+        int mState, mSequence;                                                          //Set when the write is queued, for the journal
+
+        WriteAck(List<GattOperation.Callback> callbacks) {
+            mCallbacks = callbacks;
+        }
+
+        @Override
+        public void onOperationComplete(GattOperation operation, int status, byte[] value) {
+            mLedWritesOutstanding--;
+            if (mJournal != null) {
+                mJournal.append(System.currentTimeMillis(), mDeviceId, mSequence, mState,
+                        status == GattOperation.GATT_SUCCESS ? (int) (operation.getServiceTimeNanos() / 1000) : -1,
+                        LedEventJournal.TYPE_WRITE, status);
+            }
+            if (status == GattOperation.GATT_SUCCESS && operation.getWriteType() == GattOperation.WRITE_TYPE_DEFAULT
+                    && mLedWritesOutstanding == 0 && !mHasNextState) {
+                byte[] written = operation.getValue();
+                mStateCache.update(written, written.length, System.nanoTime());
+            }
+            if (mHasNextState && mLedWritesOutstanding == 0) {
+                mHasNextState = false;
+                List<GattOperation.Callback> waiters = new ArrayList<GattOperation.Callback>(mNextWaiters);
+                mNextWaiters.clear();
+                if (status != GattOperation.STATUS_CANCELLED && mLedToggle != null) {
+                    writeLedState(mLedToggle, mNextState, mLedWriteType, new WriteAck(waiters));
+                }
+                else {
+                    complete(waiters, operation, status, value);                        //Link went down, the newest state is not sent either
+                }
+            }
+            complete(mCallbacks, operation, status, value);
+        }
+    }
+
+    private static void complete(List<GattOperation.Callback> callbacks, GattOperation operation, int status, byte[] value) {
+        for (GattOperation.Callback callback : callbacks) {
+            if (callback != null) {
+                callback.onOperationComplete(operation, status, value);
+            }
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Reconnecting
+    private void scheduleReconnect(int status) {
+        if (mDropNanos == 0) {
+            mDropNanos = System.nanoTime();                                             //The link dropped
+            mReconnectAttempt = 0;
+        }
+        else {
+            mReconnectAttempt++;                                                        //An attempt failed
+        }
+        if (mReconnectPolicy.needsReset(status)) {
+            mResets++;
+            mTransport.reset();
+        }
+        setState(State.RECONNECTING);
+        mScheduler.removeCallbacks(mReconnectTask);
+        mScheduler.postDelayed(mReconnectTask, mReconnectPolicy.getDelayMillis(mReconnectAttempt));
+    }
+
+    private final Runnable mReconnectTask = new Runnable() {
+        @Override
+        public void run() {
+            if (mState != State.RECONNECTING || mReconnectPolicy == null) {
+                return;
+            }
+            if (mMetrics != null) {
+                mMetrics.reconnects.incrementAndGet();
+            }
+            mConnectStartNanos = System.nanoTime();
+            if (!mTransport.reconnect(mReconnectPolicy.isBackground(mReconnectAttempt))) {
+                scheduleReconnect(GattOperation.STATUS_REJECTED);                       //Counts as a failed attempt
+            }
+        }
+    };
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Called when the LED service is ready on a link that was brought back
+    private void onRecovered() {
+        mLastRecoveryNanos = System.nanoTime() - mDropNanos;
+        mDropNanos = 0;
+        mRecoveries++;
+        if (mMetrics != null) {
+            mMetrics.recoveryTime.record(mLastRecoveryNanos);
+        }
+        List<GattOperation> held = new ArrayList<GattOperation>(mHeld);
+        mHeld.clear();
+        for (GattOperation operation : held) {
+            mQueue.enqueue(operation);                                                  //Behind the setup of the new connection, in their old order
+        }
+    }
+
+    private void stopReconnecting() {
+        mScheduler.removeCallbacks(mReconnectTask);
+        mDropNanos = 0;
+        mConnectStartNanos = 0;
+        cancelHeld();
+        setState(State.DISCONNECTED);
+    }
+
+    private void cancelHeld() {
+        List<GattOperation> held = new ArrayList<GattOperation>(mHeld);
+        mHeld.clear();
+        for (GattOperation operation : held) {
+            if (operation.getCallback() != null) {
+                operation.getCallback().onOperationComplete(operation, GattOperation.STATUS_CANCELLED, null);
+            }
+        }
+    }
+
+    private boolean isConnected() {
+        return mState == State.CONNECTED || mState == State.READY;
+    }
+
+    private void setState(State state) {
+        if (mState == state) {
+            return;
+        }
+        mState = state;
+        if (mListener != null) {
+            mListener.onStateChanged(this, state);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Called with what the stack granted for the link profile
+    private final LinkTuner.Listener mTunerListener = new LinkTuner.Listener() {
+        @Override
+        public void onLinkTuned(LinkProfile profile, int frameMtu, boolean priorityGranted) {
+            mBatchWriter.setMtu(frameMtu);                                              //Batches are sized for the active profile
+            if (mDiscoveryPending) {
+                mDiscoveryPending = false;
+                mDiscoveryStartNanos = System.nanoTime();
+                mTransport.discoverServices();
+            }
+        }
+    };
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Called by LedServiceSetup once the LED service layout is known, from the cache or from discovery
+    private final LedServiceSetup.Listener mSetupListener = new LedServiceSetup.Listener() {
+        @Override
+        public void onNotificationsEnabled(GattLayout.Characteristic characteristic) {
+            mTransport.setNotificationsEnabled(characteristic, true);
+        }
+
+        @Override
+        public void onLedServiceReady(GattLayout.Characteristic ledToggle, boolean fromCache) {
+            mLedToggle = ledToggle;
+            mLedNotifies = ledToggle.has(GattLayout.PROPERTY_NOTIFY) || ledToggle.has(GattLayout.PROPERTY_INDICATE);
+            mLedWriteType = ledToggle.has(GattLayout.PROPERTY_WRITE_NO_RESPONSE)
+                    ? GattOperation.WRITE_TYPE_NO_RESPONSE : GattOperation.WRITE_TYPE_DEFAULT;
+            if (mDropNanos != 0) {
+                onRecovered();                                                          //Held operations go before anything the listener sends
+            }
+            setState(State.READY);
+        }
+
+        @Override
+        public void onLedServiceMissing() {
+            mLedToggle = null;
+            mDropNanos = 0;
+            cancelHeld();                                                               //Nowhere to send them on this board
+        }
+    };
+}
@@ -0,0 +1,500 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Append-only history of LED state changes: every notification, read and write result of every board, for audits and
+ * replay. Records have a fixed size and are written into memory-mapped segment files. A full segment is closed and a new
+ * one started; when there are more than the max segments the oldest is deleted.
+ *
+ * {@link #append} never blocks. It copies the fields into a ring of slots allocated once, like
+ * {@link NotificationPipeline}, and the writer executor moves them into the mapped segment. Any thread may append;
+ * when the ring is full the record is dropped and counted. Times are made non-decreasing in journal order, so a record
+ * that lost a race with another board's is stamped with the later time.
+ *
+ * The writer keeps, per segment, the records of each device in time order, so {@link #scan(long, long, long, Visitor)}
+ * finds a device's range with a binary search and reads nothing else. The index is rebuilt from the files when a
+ * journal is opened again. A record is only valid once its last field, a marker, is written, so a record torn by a
+ * crash ends the segment.
+ */
+public class LedEventJournal {
+
+    public static final int TYPE_NOTIFY = 1;
+    public static final int TYPE_READ = 2;
+    public static final int TYPE_WRITE = 3;                                             //Result of an LED write, with its GATT status
+
+    public static final int DEFAULT_SLOTS = 1024;
+    public static final int DEFAULT_SEGMENT_BYTES = 4 << 20;                            //131071 records
+    public static final int DEFAULT_MAX_SEGMENTS = 16;
+
+    static final int RECORD_BYTES = 32;
+    static final int HEADER_BYTES = 32;                                                 //Keeps records aligned
+    private static final int MAGIC = 0x4C45444A;                                        //"LEDJ"
+    private static final int VERSION = 1;
+    private static final int RECORD_MARKER = 0x4C454431;                                //"LED1", written last
+    private static final String SUFFIX = ".ledj";
+
+    // Record layout
+    private static final int TIME = 0, DEVICE = 8, SEQUENCE = 16, RTT = 20, STATUS = 24, STATE = 26, TYPE = 27, MARKER = 28;
+
+    /**
+     * One record. The object is reused for every record of a scan, copy what is kept.
+     */
+    public static class Event {
+        public long timeMillis;
+        public long device;                                                             //See deviceId()
+        public int sequence;                                                            //Sequence number of the LED message, LedState.ABSENT if none
+        public int state;
+        public int rttMicros;                                                           //Command to result, -1 if not known
+        public int type;                                                                //TYPE_*
+        public int status;                                                              //GATT status of a write, 0 otherwise
+    }
+
+    /**
+     * Receives the records of a scan in time order. Return false to stop.
+     */
+    public interface Visitor {
+        boolean onEvent(Event event);
+    }
+
+    private final File mDirectory;
+    private final int mSegmentBytes;
+    private final int mMaxSegments;
+    private final Executor mWriterExecutor;
+
+    private final long[] mTimes, mDevices;                                              //Ring slots, allocated once
+    private final int[] mSequences, mStates, mRtts, mTypes, mStatuses;
+    private final AtomicLongArray mPublished;                                           //Position + 1 once a slot's fields are written
+    private final int mMask;
+    private final AtomicLong mHead = new AtomicLong();                                  //Next position the writer reads
+    private final AtomicLong mTail = new AtomicLong();                                  //Next position a producer claims
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+
+    private final Object mLock = new Object();                                          //Segments and index, held by the writer and by scans
+    private final List<Segment> mSegments = new ArrayList<Segment>();
+    private long mLastMillis;
+    private long mWrittenCount;
+    private boolean mClosed;
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    public LedEventJournal(File directory, Executor writerExecutor) throws IOException {
+        this(directory, DEFAULT_SLOTS, DEFAULT_SEGMENT_BYTES, DEFAULT_MAX_SEGMENTS, writerExecutor);
+    }
+
+    public LedEventJournal(File directory, int slots, int segmentBytes, int maxSegments, Executor writerExecutor)
+            throws IOException {
+        if (slots < 1 || (slots & (slots - 1)) != 0) {
+            throw new IllegalArgumentException("slots must be a power of two");
+        }
+        if (segmentBytes < HEADER_BYTES + RECORD_BYTES || maxSegments < 1) {
+            throw new IllegalArgumentException("Segment too small or no segments");
+        }
+        mDirectory = directory;
+        mSegmentBytes = segmentBytes;
+        mMaxSegments = maxSegments;
+        mWriterExecutor = writerExecutor;
+        mTimes = new long[slots];
+        mDevices = new long[slots];
+        mSequences = new int[slots];
+        mStates = new int[slots];
+        mRtts = new int[slots];
+        mTypes = new int[slots];
+        mStatuses = new int[slots];
+        mPublished = new AtomicLongArray(slots);
+        mMask = slots - 1;
+        open();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // MAC address as a number, the device id of a record
+    public static long deviceId(String address) {
+        long id = 0;
+        for (int i = 0; i < address.length(); i++) {
+            char c = address.charAt(i);
+            if (c != ':') {
+                id = (id << 4) | Character.digit(c, 16);
+            }
+        }
+        return id;
+    }
+
+    public static String address(long deviceId) {
+        StringBuilder address = new StringBuilder(17);
+        for (int shift = 40; shift >= 0; shift -= 8) {
+            address.append(String.format("%02X", (deviceId >> shift) & 0xFF));
+            if (shift > 0) {
+                address.append(':');
+            }
+        }
+        return address.toString();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Called on the BLE thread. Returns false, without waiting, if the ring was full or the journal is closed.
+    public boolean append(long timeMillis, long device, int sequence, int state, int rttMicros, int type, int status) {
+        long tail;
+        do {
+            tail = mTail.get();
+            if (tail - mHead.get() > mMask) {
+                mDroppedCount.incrementAndGet();
+                return false;
+            }
+        } while (!mTail.compareAndSet(tail, tail + 1));
+        int slot = (int) tail & mMask;
+        mTimes[slot] = timeMillis;
+        mDevices[slot] = device;
+        mSequences[slot] = sequence;
+        mStates[slot] = state;
+        mRtts[slot] = rttMicros;
+        mTypes[slot] = type;
+        mStatuses[slot] = status;
+        mPublished.lazySet(slot, tail + 1);                                             //Publish the slot after its fields are written
+        if (mScheduled.compareAndSet(false, true)) {
+            mWriterExecutor.execute(mDrain);
+        }
+        return true;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Records of one device from fromMillis to toMillis inclusive, oldest first. Returns the number visited.
+    public int scan(long device, long fromMillis, long toMillis, Visitor visitor) {
+        Event event = new Event();
+        int visited = 0;
+        synchronized (mLock) {
+            for (Segment segment : mSegments) {
+                if (segment.mCount == 0 || segment.mLastMillis < fromMillis || segment.mFirstMillis > toMillis) {
+                    continue;
+                }
+                IntList records = segment.mRecords.get(device);
+                if (records == null) {
+                    continue;
+                }
+                int low = 0, high = records.mSize;                                      //First record at or after fromMillis
+                while (low < high) {
+                    int middle = (low + high) >>> 1;
+                    if (segment.time(records.mValues[middle]) < fromMillis) {
+                        low = middle + 1;
+                    }
+                    else {
+                        high = middle;
+                    }
+                }
+                for (int i = low; i < records.mSize; i++) {
+                    int index = records.mValues[i];
+                    if (segment.time(index) > toMillis) {
+                        break;
+                    }
+                    segment.read(index, event);
+                    visited++;
+                    if (!visitor.onEvent(event)) {
+                        return visited;
+                    }
+                }
+            }
+        }
+        return visited;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Records of every device from fromMillis to toMillis inclusive, in journal order, for replay
+    public int scan(long fromMillis, long toMillis, Visitor visitor) {
+        Event event = new Event();
+        int visited = 0;
+        synchronized (mLock) {
+            for (Segment segment : mSegments) {
+                if (segment.mCount == 0 || segment.mLastMillis < fromMillis || segment.mFirstMillis > toMillis) {
+                    continue;
+                }
+                int low = 0, high = segment.mCount;
+                while (low < high) {
+                    int middle = (low + high) >>> 1;
+                    if (segment.time(middle) < fromMillis) {
+                        low = middle + 1;
+                    }
+                    else {
+                        high = middle;
+                    }
+                }
+                for (int index = low; index < segment.mCount && segment.time(index) <= toMillis; index++) {
+                    segment.read(index, event);
+                    visited++;
+                    if (!visitor.onEvent(event)) {
+                        return visited;
+                    }
+                }
+            }
+        }
+        return visited;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Write what is waiting in the ring and force the current segment to storage
+    public void flush() {
+        drain();
+        synchronized (mLock) {
+            if (!mClosed && !mSegments.isEmpty()) {
+                mSegments.get(mSegments.size() - 1).mBuffer.force();
+            }
+        }
+    }
+
+    public void close() {
+        flush();
+        synchronized (mLock) {
+            mClosed = true;
+            mSegments.clear();                                                          //Mappings go with the buffers
+        }
+    }
+
+    public long getWrittenCount() {
+        synchronized (mLock) {
+            return mWrittenCount;
+        }
+    }
+
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    public int getSegmentCount() {
+        synchronized (mLock) {
+            return mSegments.size();
+        }
+    }
+
+    public int getPendingCount() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Writer side. Moves every published slot into the current segment, then goes idle unless more arrived.
+    private void drain() {
+        while (true) {
+            synchronized (mLock) {
+                long head = mHead.get();
+                while (mPublished.get((int) head & mMask) == head + 1) {
+                    int slot = (int) head & mMask;
+                    if (!mClosed) {
+                        write(slot);
+                    }
+                    head++;
+                    mHead.lazySet(head);                                                //Slot can be reused by a producer
+                }
+            }
+            mScheduled.set(false);
+            long head = mHead.get();
+            if (mPublished.get((int) head & mMask) != head + 1 || !mScheduled.compareAndSet(false, true)) {
+                return;                                                                 //Nothing new, or a producer already posted another drain
+            }
+        }
+    }
+
+    private void write(int slot) {                                                      //Called with mLock held
+        Segment segment = mSegments.isEmpty() ? null : mSegments.get(mSegments.size() - 1);
+        if (segment == null || segment.isFull()) {
+            try {
+                segment = rotate(segment == null ? 0 : segment.mNumber + 1);
+            }
+            catch (IOException e) {
+                mDroppedCount.incrementAndGet();                                        //Storage full or gone, keep the BLE side running
+                return;
+            }
+        }
+        long time = Math.max(mTimes[slot], mLastMillis);
+        mLastMillis = time;
+        segment.append(time, mDevices[slot], mSequences[slot], mStates[slot], mRtts[slot], mTypes[slot], mStatuses[slot]);
+        mWrittenCount++;
+    }
+
+    private Segment rotate(int number) throws IOException {
+        if (mSegments.size() >= mMaxSegments) {
+            Segment oldest = mSegments.remove(0);
+            oldest.mFile.delete();
+        }
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Cannot create " + mDirectory);
+        }
+        Segment segment = Segment.create(new File(mDirectory, String.format("%08d%s", number, SUFFIX)), number, mSegmentBytes);
+        mSegments.add(segment);
+        return segment;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Map the segments already on disk and rebuild the index. A file that is not a journal segment is skipped.
+    private void open() throws IOException {
+        File[] files = mDirectory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File directory, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);                                                             //Zero padded numbers sort in order
+        for (File file : files) {
+            int number;
+            try {
+                number = Integer.parseInt(file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+            }
+            catch (NumberFormatException e) {
+                continue;
+            }
+            Segment segment = Segment.open(file, number);
+            if (segment == null) {
+                continue;
+            }
+            mSegments.add(segment);
+            mWrittenCount += segment.mCount;
+            if (segment.mCount > 0) {
+                mLastMillis = Math.max(mLastMillis, segment.mLastMillis);
+            }
+        }
+        while (mSegments.size() > mMaxSegments) {
+            mSegments.remove(0).mFile.delete();
+        }
+    }
+
+    /**
+     * One mapped segment file and the index of its records.
+     */
+    private static class Segment {
+        final File mFile;
+        final int mNumber;
+        final MappedByteBuffer mBuffer;
+        final int mCapacity;                                                            //Records that fit
+        final HashMap<Long, IntList> mRecords = new HashMap<Long, IntList>();          //Record indexes of each device, in time order
+        int mCount;
+        long mFirstMillis, mLastMillis;
+
+        private Segment(File file, int number, MappedByteBuffer buffer) {
+            mFile = file;
+            mNumber = number;
+            mBuffer = buffer;
+            mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+            mCapacity = (buffer.capacity() - HEADER_BYTES) / RECORD_BYTES;
+        }
+
+        static Segment create(File file, int number, int bytes) throws IOException {
+            Segment segment = new Segment(file, number, map(file, bytes));
+            segment.mBuffer.putInt(0, MAGIC);
+            segment.mBuffer.putInt(4, VERSION);
+            segment.mBuffer.putInt(8, RECORD_BYTES);
+            return segment;
+        }
+
+        static Segment open(File file, int number) throws IOException {
+            if (file.length() < HEADER_BYTES + RECORD_BYTES || file.length() > Integer.MAX_VALUE) {
+                return null;
+            }
+            Segment segment = new Segment(file, number, map(file, (int) file.length()));
+            if (segment.mBuffer.getInt(0) != MAGIC || segment.mBuffer.getInt(4) != VERSION
+                    || segment.mBuffer.getInt(8) != RECORD_BYTES) {
+                return null;
+            }
+            while (segment.mCount < segment.mCapacity
+                    && segment.mBuffer.getInt(offset(segment.mCount) + MARKER) == RECORD_MARKER) {
+                segment.index(segment.mCount, segment.mBuffer.getLong(offset(segment.mCount) + DEVICE));
+            }
+            return segment;
+        }
+
+        private static MappedByteBuffer map(File file, int bytes) throws IOException {
+            RandomAccessFile access = new RandomAccessFile(file, "rw");
+            try {
+                access.setLength(bytes);                                                //Zero filled, so every marker starts unset
+                return access.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+            }
+            finally {
+                access.close();                                                         //The mapping stays valid
+            }
+        }
+
+        private static int offset(int index) {
+            return HEADER_BYTES + index * RECORD_BYTES;
+        }
+
+        boolean isFull() {
+            return mCount == mCapacity;
+        }
+
+        void append(long time, long device, int sequence, int state, int rttMicros, int type, int status) {
+            int offset = offset(mCount);
+            mBuffer.putLong(offset + TIME, time);
+            mBuffer.putLong(offset + DEVICE, device);
+            mBuffer.putInt(offset + SEQUENCE, sequence);
+            mBuffer.putInt(offset + RTT, rttMicros);
+            mBuffer.putShort(offset + STATUS, (short) status);
+            mBuffer.put(offset + STATE, (byte) state);
+            mBuffer.put(offset + TYPE, (byte) type);
+            mBuffer.putInt(offset + MARKER, RECORD_MARKER);                             //Last, the record is valid from here on
+            index(mCount, device);
+        }
+
+        private void index(int index, long device) {
+            long time = time(index);
+            if (mCount == 0) {
+                mFirstMillis = time;
+            }
+            mLastMillis = time;
+            IntList records = mRecords.get(device);
+            if (records == null) {
+                records = new IntList();
+                mRecords.put(device, records);
+            }
+            records.add(index);
+            mCount++;
+        }
+
+        long time(int index) {
+            return mBuffer.getLong(offset(index) + TIME);
+        }
+
+        void read(int index, Event event) {
+            int offset = offset(index);
+            event.timeMillis = mBuffer.getLong(offset + TIME);
+            event.device = mBuffer.getLong(offset + DEVICE);
+            event.sequence = mBuffer.getInt(offset + SEQUENCE);
+            event.rttMicros = mBuffer.getInt(offset + RTT);
+            event.status = mBuffer.getShort(offset + STATUS);
+            event.state = mBuffer.get(offset + STATE) & 0xFF;
+            event.type = mBuffer.get(offset + TYPE);
+        }
+    }
+
+    /**
+     * Growable int array, so the index does not box a record number per record.
+     */
+    private static class IntList {
+        int[] mValues = new int[16];
+        int mSize;
+
+        void add(int value) {
+            if (mSize == mValues.length) {
+                mValues = Arrays.copyOf(mValues, mSize * 2);
+            }
+            mValues[mSize++] = value;
+        }
+    }
+}
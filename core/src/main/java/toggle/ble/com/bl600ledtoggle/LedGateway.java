@@ -0,0 +1,296 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * LED commands for a set of boards, for callers on any thread: the local network API of {@link GatewayServer}, or
+ * anything else that drives boards without a screen. Boards are added with the thread their session is confined to;
+ * every command is posted to that thread and answered from it, so the sessions run exactly as they do under
+ * ControlActivity.
+ *
+ * Commands for several boards, and broadcasts to all of them, are posted to every session at once, so each board's
+ * write goes out on its own link in parallel while every link keeps its own queue order. Their result has the
+ * completion latency of each board and the aggregate rate. Scenes go through a {@link SceneEngine} instead, which
+ * staggers the writes by each link's round trip so that the LEDs flip together.
+ *
+ * The gateway is the LED listener of every board it holds and passes each state it reports on to its own listeners.
+ */
+public class LedGateway {
+
+    public static final int STATUS_NO_DEVICE = -10;                                     //No board with that address has been added
+
+    /**
+     * Outcome of a command for one board. The state is the one written or read, -1 if there is none.
+     */
+    public interface Reply {
+        void onReply(String address, int status, int state);
+    }
+
+    /**
+     * Outcome of a command for several boards.
+     */
+    public interface BatchReply {
+        void onBatchReply(BatchResult result);
+    }
+
+    /**
+     * Status per address of a command for several boards, how long each board took to complete from the moment the
+     * command was given, and the aggregate rate of the boards that acknowledged.
+     */
+    public static class BatchResult {
+        private final long mStartNanos;
+        private long mEndNanos;
+        private final Map<String, Integer> mStatuses = new LinkedHashMap<String, Integer>();
+        private final Map<String, Long> mLatencies = new LinkedHashMap<String, Long>(); //Boards that acknowledged only
+
+        BatchResult(long startNanos) {
+            mStartNanos = mEndNanos = startNanos;
+        }
+
+        public synchronized Map<String, Integer> getStatuses() {
+            return new LinkedHashMap<String, Integer>(mStatuses);
+        }
+
+        public synchronized Map<String, Long> getLatencies() {
+            return new LinkedHashMap<String, Long>(mLatencies);
+        }
+
+        public synchronized boolean isOk() {
+            return mLatencies.size() == mStatuses.size();
+        }
+
+        public synchronized long getDurationNanos() {
+            return mEndNanos - mStartNanos;
+        }
+
+        // ------------------------------------------------------------------------------------------------------------
+        // Acknowledged writes per second across all boards
+        public synchronized double getThroughput() {
+            long duration = mEndNanos - mStartNanos;
+            return duration > 0 ? mLatencies.size() * 1e9 / duration : 0;
+        }
+
+        synchronized int record(String address, int status) {                          //Returns the number of boards answered
+            long now = System.nanoTime();
+            mStatuses.put(address, status);
+            if (status == GattOperation.GATT_SUCCESS) {
+                mLatencies.put(address, now - mStartNanos);
+            }
+            mEndNanos = Math.max(mEndNanos, now);
+            return mStatuses.size();
+        }
+    }
+
+    /**
+     * Told of every LED state a board reports, on the session thread of that board.
+     */
+    public interface StateListener {
+        void onStateChanged(String address, int state, boolean fromRead);
+    }
+
+    private static class Target {
+        final String address;
+        final LedController controller;
+        final TaskScheduler thread;
+
+        Target(String address, LedController controller, TaskScheduler thread) {
+            this.address = address;
+            this.controller = controller;
+            this.thread = thread;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Target> mTargets = new ConcurrentHashMap<String, Target>();
+    private final ConcurrentHashMap<String, Integer> mStates = new ConcurrentHashMap<String, Integer>();
+    private final CopyOnWriteArrayList<StateListener> mListeners = new CopyOnWriteArrayList<StateListener>();
+    private final SceneEngine mScenes = new SceneEngine();
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Serve the board through its controller. Its LED listener is replaced by the gateway's, on the session thread.
+    public void addDevice(final String address, final LedController controller, TaskScheduler sessionThread) {
+        mTargets.put(address, new Target(address, controller, sessionThread));
+        mScenes.addDevice(address, controller, sessionThread);
+        sessionThread.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                controller.setLedListener(new LedController.Listener() {
+                    @Override
+                    public void onLedStateChanged(LedState state, boolean fromRead) {
+                        if (!fromRead) {
+                            mScenes.onStateReported(address, state);
+                        }
+                        publish(address, state.state, fromRead);
+                    }
+                });
+            }
+        }, 0);
+    }
+
+    public void removeDevice(String address) {
+        mTargets.remove(address);
+        mScenes.removeDevice(address);
+        mStates.remove(address);
+    }
+
+    public boolean hasDevice(String address) {
+        return mTargets.containsKey(address);
+    }
+
+    public List<String> getAddresses() {
+        List<String> addresses = new ArrayList<String>(mTargets.keySet());
+        Collections.sort(addresses);
+        return addresses;
+    }
+
+    public SceneEngine getScenes() {
+        return mScenes;
+    }
+
+    public int getLastState(String address) {                                           //Last state written or reported, -1 if none yet
+        Integer state = mStates.get(address);
+        return state != null ? state : -1;
+    }
+
+    public void addListener(StateListener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(StateListener listener) {
+        mListeners.remove(listener);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Write the LED state of one board. Answered when the board acknowledges, or at once if it is unknown, with the
+    // state that went out: in LATEST write mode a newer command may have taken this one's place.
+    public void setLed(final String address, final int state, final Reply reply) {
+        final Target target = mTargets.get(address);
+        if (target == null) {
+            reply.onReply(address, STATUS_NO_DEVICE, -1);
+            return;
+        }
+        target.thread.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                boolean sent = target.controller.setLed(state, new GattOperation.Callback() {
+                    @Override
+                    public void onOperationComplete(GattOperation operation, int status, byte[] value) {
+                        int written = writtenState(target.controller, operation, state);
+                        if (status == GattOperation.GATT_SUCCESS) {
+                            mStates.put(address, written);
+                        }
+                        reply.onReply(address, status, written);
+                    }
+                });
+                if (!sent) {
+                    reply.onReply(address, GattOperation.STATUS_REJECTED, state);       //LED service not ready
+                }
+            }
+        }, 0);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Read the LED state of one board, from the state cache while it is fresh
+    public void readLed(final String address, final Reply reply) {
+        final Target target = mTargets.get(address);
+        if (target == null) {
+            reply.onReply(address, STATUS_NO_DEVICE, -1);
+            return;
+        }
+        target.thread.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                boolean sent = target.controller.readLed(new GattOperation.Callback() {
+                    @Override
+                    public void onOperationComplete(GattOperation operation, int status, byte[] value) {
+                        LedState state = new LedState();
+                        if (status == GattOperation.GATT_SUCCESS
+                                && new LedStateCodec(target.controller.getFormat()).decode(value, state)) {
+                            mStates.put(address, state.state);
+                            reply.onReply(address, status, state.state);
+                        }
+                        else {
+                            reply.onReply(address, status, -1);
+                        }
+                    }
+                });
+                if (!sent) {
+                    reply.onReply(address, GattOperation.STATUS_REJECTED, -1);
+                }
+            }
+        }, 0);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Write several boards at once, each on its own link in parallel. Answered when the last one has completed.
+    public void setLeds(Map<String, Integer> states, final BatchReply reply) {
+        final BatchResult result = new BatchResult(System.nanoTime());
+        if (states.isEmpty()) {
+            reply.onBatchReply(result);
+            return;
+        }
+        final int boards = states.size();
+        Reply collect = new Reply() {
+            @Override
+            public void onReply(String address, int status, int state) {
+                if (result.record(address, status) == boards) {
+                    reply.onBatchReply(result);                                         //Every board has answered
+                }
+            }
+        };
+        for (Map.Entry<String, Integer> entry : states.entrySet()) {
+            setLed(entry.getKey(), entry.getValue(), collect);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Broadcast: write the same state to every board, for example "set all LEDs to 1"
+    public void setAll(int state, BatchReply reply) {
+        Map<String, Integer> states = new LinkedHashMap<String, Integer>();
+        for (String address : getAddresses()) {
+            states.put(address, state);
+        }
+        setLeds(states, reply);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Write several boards so that their LEDs flip together, as far as the round trips learned so far allow. Answered
+    // when the last one has completed, with the skew achieved.
+    public void runScene(final SceneEngine.Scene scene, final SceneEngine.Listener listener) {
+        mScenes.run(scene, new SceneEngine.Listener() {
+            @Override
+            public void onSceneComplete(SceneEngine.SceneResult result) {
+                List<String> failed = result.getFailed();
+                for (Map.Entry<String, Integer> entry : scene.getStates().entrySet()) {
+                    if (!failed.contains(entry.getKey())) {
+                        mStates.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                listener.onSceneComplete(result);
+            }
+        });
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // The LED state carried by the write that completed a command, the requested one if the write cannot be decoded
+    private static int writtenState(LedController controller, GattOperation operation, int requested) {
+        LedState written = new LedState();
+        if (operation != null && operation.getValue() != null
+                && new LedStateCodec(controller.getFormat()).decode(operation.getValue(), written)) {
+            return written.state;
+        }
+        return requested;
+    }
+
+    private void publish(String address, int state, boolean fromRead) {
+        mStates.put(address, state);
+        for (StateListener listener : mListeners) {
+            listener.onStateChanged(address, state, fromRead);
+        }
+    }
+}
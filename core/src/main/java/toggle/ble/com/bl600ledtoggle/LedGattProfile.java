@@ -0,0 +1,18 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import java.util.UUID;
+
+/**
+ * UUIDs of the private LED service on the BL600 and the standard descriptor used to enable notifications.
+ */
+public final class LedGattProfile {
+
+    public static final UUID LED_SERVICE = UUID.fromString("cdea40a1-dcdb-42bb-8557-5c3d7d5135cb");     //Private service for LED Toggle
+    public static final UUID LED_TOGGLE = UUID.fromString("f7552729-9d2c-45cc-ba33-a3327a3bb6d0");      //Characteristic for LED Toggle, properties - notify, write, read
+    public static final UUID CHARACTERISTIC_NOTIFICATION_CONFIG = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb"); //Descriptor needed to enable notifications
+    public static final UUID DEVICE_INFORMATION_SERVICE = UUID.fromString("0000180a-0000-1000-8000-00805f9b34fb"); //Standard Device Information service
+    public static final UUID FIRMWARE_REVISION = UUID.fromString("00002a26-0000-1000-8000-00805f9b34fb");  //Firmware revision string, keys the GATT layout cache
+
+    private LedGattProfile() {
+    }
+}
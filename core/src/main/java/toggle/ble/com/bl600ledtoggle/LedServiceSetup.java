@@ -0,0 +1,140 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Brings the LED service into use once a link is up. A device that has been set up before is taken from the
+ * {@link GattLayoutCache}: its characteristics are known without walking the discovered services, notifications the
+ * peer keeps for a bonded phone are not enabled again, and the firmware revision is checked after the first command
+ * instead of before it. A layout that does not match the cache drops the entry and gets a full setup.
+ */
+public class LedServiceSetup {
+
+    private static final byte[] ENABLE_NOTIFICATION_VALUE = {0x01, 0x00};              //Same values as BluetoothGattDescriptor.ENABLE_*_VALUE
+    private static final byte[] ENABLE_INDICATION_VALUE = {0x02, 0x00};
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public interface Listener {
+        void onNotificationsEnabled(GattLayout.Characteristic characteristic);          //Turn notifications on at our end of the link
+        void onLedServiceReady(GattLayout.Characteristic ledToggle, boolean fromCache);
+        void onLedServiceMissing();
+    }
+
+    private final GattLayoutCache mCache;
+    private final GattOperationQueue mQueue;
+    private final Listener mListener;
+    private int mCacheHits, mCacheMisses, mInvalidations;
+
+    public LedServiceSetup(GattLayoutCache cache, GattOperationQueue queue, Listener listener) {
+        mCache = cache;
+        mQueue = queue;
+        mListener = listener;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Set up from the cache alone, for transports that can reach attributes without discovering services first
+    public boolean startFromCache(String address, boolean cccdPersistent) {
+        GattLayoutCache.Entry entry = mCache.load(address);
+        if (entry == null) {
+            mCacheMisses++;
+            return false;
+        }
+        mCacheHits++;
+        setUp(address, entry.layout, cccdPersistent, entry.firmwareRevision);
+        return true;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Set up from a discovered layout, using the cached one if it still matches
+    public void onServicesDiscovered(String address, GattLayout discovered, boolean cccdPersistent) {
+        GattLayoutCache.Entry entry = mCache.load(address);
+        if (entry != null && entry.layout.equals(discovered)) {
+            mCacheHits++;
+            setUp(address, entry.layout, cccdPersistent, entry.firmwareRevision);
+            return;
+        }
+        if (entry != null) {                                                            //Layout changed, normally a firmware update
+            mCache.invalidate(address);
+            mInvalidations++;
+        }
+        mCacheMisses++;
+        setUp(address, discovered, false, null);
+    }
+
+    public int getCacheHits() {
+        return mCacheHits;
+    }
+
+    public int getCacheMisses() {
+        return mCacheMisses;
+    }
+
+    public int getInvalidations() {
+        return mInvalidations;
+    }
+
+    private void setUp(final String address, final GattLayout layout, boolean cccdPersistent, final String knownRevision) {
+        GattLayout.Characteristic ledToggle = layout.find(LedGattProfile.LED_SERVICE, LedGattProfile.LED_TOGGLE);
+        if (ledToggle == null) {
+            mListener.onLedServiceMissing();
+            return;
+        }
+        for (GattLayout.Characteristic characteristic : layout.getCharacteristics()) {
+            if (!characteristic.service.equals(LedGattProfile.LED_SERVICE)
+                    || !(characteristic.has(GattLayout.PROPERTY_NOTIFY) || characteristic.has(GattLayout.PROPERTY_INDICATE))) {
+                continue;
+            }
+            mListener.onNotificationsEnabled(characteristic);
+            if (cccdPersistent || !characteristic.hasCccd) {                            //Bonded peers keep the descriptor value between connections
+                continue;
+            }
+            if (characteristic.has(GattLayout.PROPERTY_NOTIFY)) {
+                mQueue.enqueue(enableOnServer(characteristic, ENABLE_NOTIFICATION_VALUE));
+            }
+            if (characteristic.has(GattLayout.PROPERTY_INDICATE)) {
+                mQueue.enqueue(enableOnServer(characteristic, ENABLE_INDICATION_VALUE));
+            }
+        }
+        mListener.onLedServiceReady(ledToggle, knownRevision != null);
+
+        GattLayout.Characteristic firmware = layout.find(LedGattProfile.DEVICE_INFORMATION_SERVICE, LedGattProfile.FIRMWARE_REVISION);
+        if (firmware == null || !firmware.has(GattLayout.PROPERTY_READ)) {
+            if (knownRevision == null) {
+                store(address, "", layout);
+            }
+            return;
+        }
+        mQueue.enqueue(GattOperation.read(firmware.service, firmware.uuid)              //Queued behind the setup so it never delays the first command
+                .setCallback(new GattOperation.Callback() {
+                    @Override
+                    public void onOperationComplete(GattOperation operation, int status, byte[] value) {
+                        if (status != GattOperation.GATT_SUCCESS || value == null) {
+                            return;
+                        }
+                        String revision = new String(value, UTF_8);
+                        if (knownRevision == null) {
+                            store(address, revision, layout);
+                        }
+                        else if (!revision.equals(knownRevision)) {                     //Same layout on new firmware, keep it under the new revision
+                            mInvalidations++;
+                            store(address, revision, layout);
+                        }
+                    }
+                }));
+    }
+
+    private GattOperation enableOnServer(GattLayout.Characteristic characteristic, byte[] value) {
+        return GattOperation.writeDescriptor(characteristic.service, characteristic.uuid,
+                LedGattProfile.CHARACTERISTIC_NOTIFICATION_CONFIG, value);
+    }
+
+    private void store(String address, String revision, GattLayout layout) {
+        try {
+            mCache.store(address, revision, layout);
+        }
+        catch (IOException e) {
+            mCache.invalidate(address);                                                 //The cache only saves time, carry on without it
+        }
+    }
+}
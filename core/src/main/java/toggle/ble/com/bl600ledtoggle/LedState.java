@@ -0,0 +1,32 @@
+package toggle.ble.com.bl600ledtoggle;
+
+/**
+ * Mutable LED_TOGGLE value, filled in place by {@link LedStateCodec#decode} so that decoding does not allocate.
+ * Brightness and pattern are {@link #ABSENT} when the message did not carry them.
+ */
+public class LedState {
+
+    public static final int ABSENT = -1;
+
+    public int state;                                                                   //0 = off, 1 = on
+    public int sequence;                                                                //Sequence number, 0-255, ABSENT for legacy messages
+    public int brightness = ABSENT;                                                     //0-255
+    public int pattern = ABSENT;                                                        //Firmware defined pattern id, 0-255
+
+    public LedState set(int state, int sequence, int brightness, int pattern) {
+        this.state = state;
+        this.sequence = sequence;
+        this.brightness = brightness;
+        this.pattern = pattern;
+        return this;
+    }
+
+    public boolean isOn() {
+        return state != 0;
+    }
+
+    @Override
+    public String toString() {
+        return "LedState{state=" + state + ", sequence=" + sequence + ", brightness=" + brightness + ", pattern=" + pattern + "}";
+    }
+}
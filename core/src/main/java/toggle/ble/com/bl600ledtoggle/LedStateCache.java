@@ -0,0 +1,102 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import java.util.Arrays;
+
+/**
+ * The last LED_TOGGLE value known for one board, kept up to date by notifications, acknowledged writes and reads. While
+ * it is fresh a read can be answered without going over the air. It goes stale after the max age, when a command is
+ * sent whose result the board has not confirmed yet, and when the link drops.
+ *
+ * Values are copied into a buffer that is reused, so updating the cache from the notification path does not allocate.
+ * Used from the session thread only.
+ */
+public class LedStateCache {
+
+    public static final long DEFAULT_MAX_AGE_MILLIS = 10000;                            //Safety net for a notification lost in the stack
+    private static final int INITIAL_CAPACITY = 20;                                     //Any single LED message, a longer value grows the buffer once
+
+    private byte[] mValue = new byte[INITIAL_CAPACITY];
+    private int mLength = -1;                                                           //-1 when there is no valid value
+    private long mUpdatedNanos;
+    private long mMaxAgeNanos = DEFAULT_MAX_AGE_MILLIS * 1000000L;
+    private long mHits, mMisses, mCoalesced, mForced;
+
+    public void setMaxAgeMillis(long maxAgeMillis) {
+        mMaxAgeNanos = maxAgeMillis * 1000000L;
+    }
+
+    public long getMaxAgeMillis() {
+        return mMaxAgeNanos / 1000000L;
+    }
+
+    public void update(byte[] buffer, int length, long nowNanos) {
+        if (length > mValue.length) {
+            mValue = new byte[length];
+        }
+        System.arraycopy(buffer, 0, mValue, 0, length);
+        mLength = length;
+        mUpdatedNanos = nowNanos;
+    }
+
+    public void invalidate() {
+        mLength = -1;
+    }
+
+    public boolean isFresh(long nowNanos) {
+        return mLength >= 0 && nowNanos - mUpdatedNanos <= mMaxAgeNanos;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Age of the cached value, -1 if there is none
+    public long getAgeMillis(long nowNanos) {
+        return mLength >= 0 ? (nowNanos - mUpdatedNanos) / 1000000L : -1;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // The cached value without copying, valid until the next update. Null if there is none.
+    public byte[] getBuffer() {
+        return mLength >= 0 ? mValue : null;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    public byte[] copyValue() {
+        return mLength >= 0 ? Arrays.copyOf(mValue, mLength) : null;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Counters for reads: answered locally, sent over the air, joined to a read already on its way, and forced
+    public long getHits() {
+        return mHits;
+    }
+
+    public long getMisses() {
+        return mMisses;
+    }
+
+    public long getCoalesced() {
+        return mCoalesced;
+    }
+
+    public long getForced() {
+        return mForced;
+    }
+
+    void countHit() {
+        mHits++;
+    }
+
+    void countMiss() {
+        mMisses++;
+    }
+
+    void countCoalesced() {
+        mCoalesced++;
+    }
+
+    void countForced() {
+        mForced++;
+    }
+}
@@ -0,0 +1,110 @@
+package toggle.ble.com.bl600ledtoggle;
+
+/**
+ * Encodes and decodes the value of the LED_TOGGLE characteristic.
+ *
+ * The binary format is
+ * <pre>
+ *   byte 0  state       0 = off, 1 = on
+ *   byte 1  sequence    incremented by the sender for every message, wraps at 255
+ *   byte 2  brightness  optional, 0-255
+ *   byte 3  pattern     optional, firmware defined pattern id
+ * </pre>
+ * so a plain toggle is two bytes. Older firmware uses ASCII "0" / "1" instead, and reports it with a leading byte once
+ * the value has been set; {@link Mode#LEGACY_STRING} keeps that format. Decoding reads straight from the byte array
+ * returned by {@code getValue()} into a reusable {@link LedState} and never allocates.
+ */
+public class LedStateCodec {
+
+    public enum Mode { BINARY, LEGACY_STRING }
+
+    public static final int MAX_LENGTH = 4;
+
+    private static final int STATE = 0, SEQUENCE = 1, BRIGHTNESS = 2, PATTERN = 3;      //Byte offsets in the binary format
+
+    private final Mode mMode;
+
+    public LedStateCodec(Mode mode) {
+        mMode = mode;
+    }
+
+    public Mode getMode() {
+        return mMode;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Guess the format from a value read from the board. Legacy firmware sends ASCII digits.
+    public static Mode detect(byte[] value) {
+        return value == null ? Mode.LEGACY_STRING : detect(value, value.length);
+    }
+
+    public static Mode detect(byte[] buffer, int length) {
+        if (length == 0) {
+            return Mode.LEGACY_STRING;
+        }
+        byte digit = buffer[length > 1 ? 1 : 0];
+        return digit == '0' || digit == '1' ? Mode.LEGACY_STRING : Mode.BINARY;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Write the message for state into dst and return its length. Absent optional fields are not sent.
+    public int encode(LedState state, byte[] dst) {
+        if (mMode == Mode.LEGACY_STRING) {
+            dst[0] = (byte) (state.isOn() ? '1' : '0');
+            return 1;
+        }
+        dst[STATE] = (byte) (state.isOn() ? 1 : 0);
+        dst[SEQUENCE] = (byte) state.sequence;
+        if (state.brightness == LedState.ABSENT) {
+            return 2;
+        }
+        dst[BRIGHTNESS] = (byte) state.brightness;
+        if (state.pattern == LedState.ABSENT) {
+            return 3;
+        }
+        dst[PATTERN] = (byte) state.pattern;
+        return 4;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Encode into a new array of exactly the right length, for BluetoothGattCharacteristic.setValue()
+    public byte[] encode(LedState state) {
+        byte[] buffer = new byte[MAX_LENGTH];
+        int length = encode(state, buffer);
+        if (length == MAX_LENGTH) {
+            return buffer;
+        }
+        byte[] value = new byte[length];
+        System.arraycopy(buffer, 0, value, 0, length);
+        return value;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Fill out from a received value. Returns false, leaving out untouched, if the value is not a valid message.
+    public boolean decode(byte[] value, LedState out) {
+        return value != null && decode(value, value.length, out);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Decode the first length bytes of buffer, for values held in reusable buffers
+    public boolean decode(byte[] buffer, int length, LedState out) {
+        if (length == 0) {
+            return false;
+        }
+        if (mMode == Mode.LEGACY_STRING) {
+            int digit = buffer[length > 1 ? 1 : 0] - '0';                               //Skip the leading byte once the value has been set
+            if (digit != 0 && digit != 1) {
+                return false;
+            }
+            out.set(digit, LedState.ABSENT, LedState.ABSENT, LedState.ABSENT);
+            return true;
+        }
+        if (length < 2 || length > MAX_LENGTH || (buffer[STATE] & 0xFF) > 1) {
+            return false;
+        }
+        out.set(buffer[STATE], buffer[SEQUENCE] & 0xFF,
+                length > BRIGHTNESS ? buffer[BRIGHTNESS] & 0xFF : LedState.ABSENT,
+                length > PATTERN ? buffer[PATTERN] & 0xFF : LedState.ABSENT);
+        return true;
+    }
+}
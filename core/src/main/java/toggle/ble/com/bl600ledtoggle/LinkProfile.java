@@ -0,0 +1,37 @@
+package toggle.ble.com.bl600ledtoggle;
+
+/**
+ * Connection priority and MTU to ask for on a link, chosen by what the link is being used for. The interval ranges are
+ * what Android uses for each connection priority; the phone cannot ask for an exact interval.
+ */
+public enum LinkProfile {
+
+    LOW_LATENCY(LinkProfile.PRIORITY_HIGH, 64, 11.25, 15),                              //Buttons and single commands, small frames go out fastest
+    HIGH_THROUGHPUT(LinkProfile.PRIORITY_HIGH, LedBatchWriter.PREFERRED_MTU, 11.25, 15), //Batches and provisioning, largest frames
+    LOW_POWER(LinkProfile.PRIORITY_LOW_POWER, LedBatchWriter.DEFAULT_MTU, 100, 125);    //Link kept open while nothing is happening
+
+    public static final int PRIORITY_BALANCED = 0;                                      //Same values as BluetoothGatt.CONNECTION_PRIORITY_*
+    public static final int PRIORITY_HIGH = 1;
+    public static final int PRIORITY_LOW_POWER = 2;
+
+    public final int connectionPriority;
+    public final int mtu;                                                               //Largest MTU this profile fills frames to
+    public final double minIntervalMillis, maxIntervalMillis;
+
+    LinkProfile(int connectionPriority, int mtu, double minIntervalMillis, double maxIntervalMillis) {
+        this.connectionPriority = connectionPriority;
+        this.mtu = mtu;
+        this.minIntervalMillis = minIntervalMillis;
+        this.maxIntervalMillis = maxIntervalMillis;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // MTU to ask for in the one exchange a connection allows, large enough for every profile
+    public static int exchangeMtu() {
+        int mtu = LedBatchWriter.DEFAULT_MTU;
+        for (LinkProfile profile : values()) {
+            mtu = Math.max(mtu, profile.mtu);
+        }
+        return mtu;
+    }
+}
@@ -0,0 +1,99 @@
+package toggle.ble.com.bl600ledtoggle;
+
+/**
+ * Applies a {@link LinkProfile} to a connection and keeps track of what the peer and the stack actually granted.
+ * Connection priority is changed straight away on every profile switch. The MTU can only be exchanged once per
+ * connection, so the first profile applied asks for {@link LinkProfile#exchangeMtu()} and later profiles only change
+ * how much of the granted MTU frames use.
+ *
+ * The BluetoothGattCallback must pass onMtuChanged to {@link #onMtuChanged(int, int)} before it passes it to the
+ * {@link GattOperationQueue}, so the granted MTU is known when the exchange completes.
+ */
+public class LinkTuner {
+
+    public interface Listener {
+        void onLinkTuned(LinkProfile profile, int frameMtu, boolean priorityGranted);
+    }
+
+    private final GattTransport mTransport;
+    private final GattOperationQueue mQueue;
+    private final Listener mListener;
+    private volatile LinkProfile mProfile = LinkProfile.LOW_LATENCY;
+    private volatile int mGrantedMtu = LedBatchWriter.DEFAULT_MTU;
+    private volatile boolean mPriorityGranted;
+    private boolean mMtuExchanged;
+
+    private final GattOperation.Callback mMtuCallback = new GattOperation.Callback() {
+        @Override
+        public void onOperationComplete(GattOperation operation, int status, byte[] value) {
+            notifyTuned();                                                              //Refused or failed exchanges leave the default MTU
+        }
+    };
+
+    public LinkTuner(GattTransport transport, GattOperationQueue queue, Listener listener) {
+        mTransport = transport;
+        mQueue = queue;
+        mListener = listener;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Switch to a profile. The listener is called once the result is known, after the MTU exchange on a new connection.
+    public void apply(LinkProfile profile) {
+        boolean exchange;
+        synchronized (this) {
+            mProfile = profile;
+            mPriorityGranted = mTransport.requestConnectionPriority(profile.connectionPriority);
+            exchange = !mMtuExchanged;
+            mMtuExchanged = true;
+        }
+        if (exchange) {
+            mQueue.enqueue(GattOperation.requestMtu(LinkProfile.exchangeMtu()).setMaxRetries(0).setCallback(mMtuCallback));
+        }
+        else {
+            notifyTuned();
+        }
+    }
+
+    public void onMtuChanged(int mtu, int status) {
+        if (status == GattOperation.GATT_SUCCESS) {
+            mGrantedMtu = mtu;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // A pooled link that is already connected has had its MTU exchange
+    public synchronized void onLinkReused(int grantedMtu) {
+        mMtuExchanged = true;
+        mGrantedMtu = grantedMtu;
+    }
+
+    public synchronized void onDisconnected() {
+        mMtuExchanged = false;
+        mGrantedMtu = LedBatchWriter.DEFAULT_MTU;
+        mPriorityGranted = false;
+    }
+
+    public LinkProfile getProfile() {
+        return mProfile;
+    }
+
+    public int getGrantedMtu() {
+        return mGrantedMtu;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // MTU the command layer should size frames for: what was granted, capped by the active profile
+    public int getFrameMtu() {
+        return Math.min(mGrantedMtu, mProfile.mtu);
+    }
+
+    public boolean isPriorityGranted() {
+        return mPriorityGranted;
+    }
+
+    private void notifyTuned() {
+        if (mListener != null) {
+            mListener.onLinkTuned(mProfile, getFrameMtu(), mPriorityGranted);
+        }
+    }
+}
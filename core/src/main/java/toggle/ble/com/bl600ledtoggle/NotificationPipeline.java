@@ -0,0 +1,114 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands notification payloads from the Binder thread to a consumer thread without allocating. Payloads are copied
+ * into slots of a ring buffer that is allocated once; the consumer is woken with a single reusable Runnable that is
+ * only posted when it is not already pending, so a burst of notifications costs one wake-up.
+ *
+ * There must be only one producer at a time (GATT callbacks for one connection are delivered one after another) and
+ * one consumer, the executor passed in. When the ring is full new payloads are dropped and counted.
+ */
+public class NotificationPipeline {
+
+    /**
+     * Receives payloads on the consumer executor. The buffer is reused as soon as the call returns.
+     */
+    public interface Consumer {
+        void onNotification(byte[] payload, int length, long timestampNanos);
+    }
+
+    public static final int DEFAULT_SLOTS = 32;
+    public static final int MAX_PAYLOAD = 512;                                          //Largest attribute value allowed by ATT
+
+    private final byte[][] mPayloads;                                                   //Slot buffers, allocated once
+    private final int[] mLengths;
+    private final long[] mTimestamps;
+    private final int mMask;                                                            //Slot count - 1, slot count is a power of two
+    private final AtomicLong mHead = new AtomicLong();                                  //Next slot the consumer reads
+    private final AtomicLong mTail = new AtomicLong();                                  //Next slot the producer writes
+    private final AtomicBoolean mScheduled = new AtomicBoolean();                       //Drain task is already posted
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private final AtomicLong mTruncatedCount = new AtomicLong();
+    private final Executor mConsumerExecutor;
+    private final Consumer mConsumer;
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    public NotificationPipeline(int slots, int slotSize, Executor consumerExecutor, Consumer consumer) {
+        if (slots < 1 || (slots & (slots - 1)) != 0) {
+            throw new IllegalArgumentException("slots must be a power of two");
+        }
+        mPayloads = new byte[slots][slotSize];
+        mLengths = new int[slots];
+        mTimestamps = new long[slots];
+        mMask = slots - 1;
+        mConsumerExecutor = consumerExecutor;
+        mConsumer = consumer;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Called on the Binder thread with the value from BluetoothGattCharacteristic.getValue()
+    // Returns false if the ring was full and the payload was dropped
+    public boolean offer(byte[] value, long timestampNanos) {
+        long tail = mTail.get();
+        if (tail - mHead.get() > mMask) {
+            mDroppedCount.incrementAndGet();
+            return false;
+        }
+        int slot = (int) tail & mMask;
+        byte[] buffer = mPayloads[slot];
+        int length = value.length;
+        if (length > buffer.length) {
+            length = buffer.length;
+            mTruncatedCount.incrementAndGet();
+        }
+        System.arraycopy(value, 0, buffer, 0, length);
+        mLengths[slot] = length;
+        mTimestamps[slot] = timestampNanos;
+        mTail.lazySet(tail + 1);                                                        //Publish the slot after its contents are written
+        if (mScheduled.compareAndSet(false, true)) {
+            mConsumerExecutor.execute(mDrain);
+        }
+        return true;
+    }
+
+    public int size() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    public long getTruncatedCount() {
+        return mTruncatedCount.get();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Hand every published slot to the consumer, then go idle unless more arrived in the meantime
+    private void drain() {
+        while (true) {
+            long head = mHead.get();
+            long tail = mTail.get();
+            while (head < tail) {
+                int slot = (int) head & mMask;
+                mConsumer.onNotification(mPayloads[slot], mLengths[slot], mTimestamps[slot]);
+                head++;
+                mHead.lazySet(head);                                                    //Slot can be reused by the producer
+            }
+            mScheduled.set(false);
+            if (mTail.get() == head || !mScheduled.compareAndSet(false, true)) {
+                return;                                                                 //Nothing new, or the producer already posted another drain
+            }
+        }
+    }
+}
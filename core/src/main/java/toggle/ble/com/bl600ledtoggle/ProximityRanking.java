@@ -0,0 +1,312 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The boards nearest to the phone, by filtered RSSI, kept up to date one advertisement at a time. Each device's RSSI
+ * goes through a one-dimensional Kalman filter whose uncertainty grows with the time since the last sample, so a
+ * board that is heard often settles quickly and a single outlier moves it little.
+ *
+ * The nearest boards are held in a small array in rank order, and all others in a max-heap on filtered RSSI, so an
+ * advertisement costs O(size + log n) and the full set is never sorted. A board only takes the place of a nearer one
+ * when its filtered RSSI is stronger by at least the hysteresis, which keeps the ranking still while the readings of
+ * boards at about the same distance jitter.
+ *
+ * Not thread safe, used from the UI thread like {@link DeviceListModel}.
+ */
+public class ProximityRanking {
+
+    public static final int DEFAULT_SIZE = 8;
+    public static final double DEFAULT_HYSTERESIS_DB = 3;
+    static final double MEASUREMENT_VARIANCE = 16;                                      //dB^2, single RSSI readings scatter by about 4 dB
+    static final double PROCESS_VARIANCE_PER_SECOND = 8;                                //dB^2 per second, how fast a carried phone changes the path loss
+    private static final long MAX_GAP_MILLIS = 10000;                                   //Beyond this the old estimate is worth no more than after 10 s
+
+    /**
+     * One device and its filtered RSSI.
+     */
+    public static class Device {
+        public final String address;
+        double mRssi;                                                                   //Filtered estimate
+        double mVariance;                                                               //Uncertainty of the estimate
+        long mLastSeenMillis;
+        int mRank = -1;                                                                 //Index in the nearest array, -1 if not nearest
+        int mHeapIndex = -1;                                                            //Index in the heap of the others, -1 if nearest
+
+        Device(String address, int rssi, long nowMillis) {
+            this.address = address;
+            mRssi = rssi;
+            mVariance = MEASUREMENT_VARIANCE;
+            mLastSeenMillis = nowMillis;
+        }
+
+        public double getRssi() {
+            return mRssi;
+        }
+
+        public int getRank() {
+            return mRank;
+        }
+
+        public long getLastSeenMillis() {
+            return mLastSeenMillis;
+        }
+
+        // ------------------------------------------------------------------------------------------------------------
+        // Kalman update with a random walk model: predict by adding process noise for the time passed, then correct
+        void update(int rssi, long nowMillis) {
+            long gap = Math.min(Math.max(nowMillis - mLastSeenMillis, 0), MAX_GAP_MILLIS);
+            double predicted = mVariance + PROCESS_VARIANCE_PER_SECOND * gap / 1000.0;
+            double gain = predicted / (predicted + MEASUREMENT_VARIANCE);
+            mRssi += gain * (rssi - mRssi);
+            mVariance = (1 - gain) * predicted;
+            mLastSeenMillis = nowMillis;
+        }
+    }
+
+    private final int mSize;
+    private final double mHysteresis;
+    private final HashMap<String, Device> mDevices = new HashMap<String, Device>();
+    private final Device[] mNearest;                                                    //Rank order, nearest first
+    private int mNearestCount;
+    private Device[] mHeap = new Device[64];                                            //Max-heap on filtered RSSI of the other devices
+    private int mHeapCount;
+    private boolean mChanged;                                                           //Set by the operations when the nearest list moved
+
+    public ProximityRanking() {
+        this(DEFAULT_SIZE, DEFAULT_HYSTERESIS_DB);
+    }
+
+    public ProximityRanking(int size, double hysteresisDb) {
+        if (size < 1) {
+            throw new IllegalArgumentException("size must be at least 1");
+        }
+        mSize = size;
+        mHysteresis = hysteresisDb;
+        mNearest = new Device[size];
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Filter one RSSI reading into the device's estimate. Returns true if the nearest list changed order or members.
+    public boolean onAdvertisement(String address, int rssi, long nowMillis) {
+        mChanged = false;
+        Device device = mDevices.get(address);
+        if (device == null) {
+            device = new Device(address, rssi, nowMillis);
+            mDevices.put(address, device);
+            if (mNearestCount < mSize) {
+                device.mRank = mNearestCount;
+                mNearest[mNearestCount++] = device;
+                mChanged = true;
+                settle(device);
+                return true;
+            }
+            heapAdd(device);
+        }
+        else {
+            device.update(rssi, nowMillis);
+            if (device.mRank >= 0) {
+                settle(device);
+            }
+            else {
+                heapFix(device.mHeapIndex);
+            }
+        }
+        promote();
+        return mChanged;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Copy the nearest devices into out, nearest first
+    public void getNearest(List<Device> out) {
+        out.clear();
+        for (int i = 0; i < mNearestCount; i++) {
+            out.add(mNearest[i]);
+        }
+    }
+
+    public Device get(String address) {
+        return mDevices.get(address);
+    }
+
+    public int size() {
+        return mDevices.size();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Forget a device. Returns true if the nearest list changed.
+    public boolean remove(String address) {
+        Device device = mDevices.remove(address);
+        if (device == null) {
+            return false;
+        }
+        if (device.mRank < 0) {
+            heapRemove(device.mHeapIndex);
+            return false;
+        }
+        for (int i = device.mRank; i < mNearestCount - 1; i++) {
+            mNearest[i] = mNearest[i + 1];
+            mNearest[i].mRank = i;
+        }
+        mNearest[--mNearestCount] = null;
+        device.mRank = -1;
+        if (mHeapCount > 0) {                                                           //The strongest of the others fills the gap
+            Device next = mHeap[0];
+            heapRemove(0);
+            next.mRank = mNearestCount;
+            mNearest[mNearestCount++] = next;
+            settle(next);
+        }
+        return true;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Forget devices not heard for maxAgeMillis, for example once per scan window. Returns true if the nearest list
+    // changed.
+    public boolean expire(long nowMillis, long maxAgeMillis) {
+        List<String> stale = new ArrayList<String>();
+        for (Device device : mDevices.values()) {
+            if (nowMillis - device.mLastSeenMillis > maxAgeMillis) {
+                stale.add(device.address);
+            }
+        }
+        boolean changed = false;
+        for (String address : stale) {
+            changed |= remove(address);
+        }
+        return changed;
+    }
+
+    public void clear() {
+        mDevices.clear();
+        for (int i = 0; i < mNearestCount; i++) {
+            mNearest[i] = null;
+        }
+        mNearestCount = 0;
+        for (int i = 0; i < mHeapCount; i++) {
+            mHeap[i] = null;
+        }
+        mHeapCount = 0;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Move a nearest device past its neighbours when it is stronger or weaker than them by more than the hysteresis
+    private void settle(Device device) {
+        int i = device.mRank;
+        while (i > 0 && device.mRssi > mNearest[i - 1].mRssi + mHysteresis) {
+            swapNearest(i, i - 1);
+            i--;
+        }
+        while (i < mNearestCount - 1 && mNearest[i + 1].mRssi > device.mRssi + mHysteresis) {
+            swapNearest(i, i + 1);
+            i++;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Let the strongest of the others in while it beats the weakest nearest device by more than the hysteresis
+    private void promote() {
+        while (mHeapCount > 0 && mNearestCount == mSize) {
+            int weakest = 0;
+            for (int i = 1; i < mNearestCount; i++) {
+                if (mNearest[i].mRssi < mNearest[weakest].mRssi) {
+                    weakest = i;
+                }
+            }
+            Device candidate = mHeap[0];
+            Device out = mNearest[weakest];
+            if (candidate.mRssi <= out.mRssi + mHysteresis) {
+                return;
+            }
+            out.mRank = -1;                                                             //Swap them: the candidate takes the slot, the other goes to the heap
+            mHeap[0] = out;
+            out.mHeapIndex = 0;
+            candidate.mHeapIndex = -1;
+            candidate.mRank = weakest;
+            mNearest[weakest] = candidate;
+            siftDown(0);
+            mChanged = true;
+            settle(candidate);
+        }
+    }
+
+    private void swapNearest(int a, int b) {
+        Device device = mNearest[a];
+        mNearest[a] = mNearest[b];
+        mNearest[b] = device;
+        mNearest[a].mRank = a;
+        mNearest[b].mRank = b;
+        mChanged = true;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Max-heap of the devices that are not nearest, each knowing its index so an update is a local sift
+    private void heapAdd(Device device) {
+        if (mHeapCount == mHeap.length) {
+            mHeap = Arrays.copyOf(mHeap, mHeap.length * 2);
+        }
+        mHeap[mHeapCount] = device;
+        device.mHeapIndex = mHeapCount++;
+        siftUp(device.mHeapIndex);
+    }
+
+    private void heapRemove(int index) {
+        Device removed = mHeap[index];
+        removed.mHeapIndex = -1;
+        Device last = mHeap[--mHeapCount];
+        mHeap[mHeapCount] = null;
+        if (index < mHeapCount) {
+            mHeap[index] = last;
+            last.mHeapIndex = index;
+            heapFix(index);
+        }
+    }
+
+    private void heapFix(int index) {
+        if (index > 0 && mHeap[index].mRssi > mHeap[(index - 1) / 2].mRssi) {
+            siftUp(index);
+        }
+        else {
+            siftDown(index);
+        }
+    }
+
+    private void siftUp(int index) {
+        Device device = mHeap[index];
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (mHeap[parent].mRssi >= device.mRssi) {
+                break;
+            }
+            mHeap[index] = mHeap[parent];
+            mHeap[index].mHeapIndex = index;
+            index = parent;
+        }
+        mHeap[index] = device;
+        device.mHeapIndex = index;
+    }
+
+    private void siftDown(int index) {
+        Device device = mHeap[index];
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= mHeapCount) {
+                break;
+            }
+            if (child + 1 < mHeapCount && mHeap[child + 1].mRssi > mHeap[child].mRssi) {
+                child++;
+            }
+            if (mHeap[child].mRssi <= device.mRssi) {
+                break;
+            }
+            mHeap[index] = mHeap[child];
+            mHeap[index].mHeapIndex = index;
+            index = child;
+        }
+        mHeap[index] = device;
+        device.mHeapIndex = index;
+    }
+}
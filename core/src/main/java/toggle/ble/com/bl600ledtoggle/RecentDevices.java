@@ -0,0 +1,188 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The boards seen most recently, kept in one small file so the scan list can show them at launch before the radio has
+ * heard anything. Holds at most {@link #MAX_DEVICES}, the oldest are dropped first. A file that is missing, from another
+ * format version or unreadable is treated as an empty list and deleted.
+ *
+ * Thread safe. Loading and saving do file I/O and belong on a background thread.
+ */
+public class RecentDevices {
+
+    public static final int MAX_DEVICES = 32;
+
+    private static final int MAGIC = 0x52434e54;                                        //"RCNT"
+    private static final int VERSION = 1;
+
+    /**
+     * A board as it was last seen.
+     */
+    public static class Device {
+        public final String address;
+        public final String name;                                                       //Empty if the advertisement had none
+        public final int rssi;
+        public final long lastSeenMillis;                                               //Wall clock time
+
+        public Device(String address, String name, int rssi, long lastSeenMillis) {
+            this.address = address;
+            this.name = name != null ? name : "";
+            this.rssi = rssi;
+            this.lastSeenMillis = lastSeenMillis;
+        }
+    }
+
+    private static final Comparator<Device> NEWEST_FIRST = new Comparator<Device>() {
+        @Override
+        public int compare(Device a, Device b) {
+            return a.lastSeenMillis < b.lastSeenMillis ? 1 : a.lastSeenMillis > b.lastSeenMillis ? -1 : 0;
+        }
+    };
+
+    private final File mFile;
+    private final Map<String, Device> mDevices = new HashMap<String, Device>();
+    private boolean mLoaded;
+    private boolean mDirty;
+
+    public RecentDevices(File file) {
+        mFile = file;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Read the file on first use, the newest board first
+    public synchronized List<Device> load() {
+        if (!mLoaded) {
+            mLoaded = true;
+            readFile();
+        }
+        return getDevices();
+    }
+
+    public synchronized List<Device> getDevices() {
+        List<Device> devices = new ArrayList<Device>(mDevices.values());
+        Collections.sort(devices, NEWEST_FIRST);
+        return devices;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Remember a board seen now. A missing name keeps the one already known.
+    public synchronized void record(String address, String name, int rssi, long nowMillis) {
+        Device known = mDevices.get(address);
+        if ((name == null || name.length() == 0) && known != null) {
+            name = known.name;
+        }
+        mDevices.put(address, new Device(address, name, rssi, nowMillis));
+        mDirty = true;
+        trim();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Write the list if it changed, to a temporary file first so a crash never leaves a half written one
+    public void save() throws IOException {
+        List<Device> devices;
+        synchronized (this) {
+            if (!mDirty) {
+                return;
+            }
+            devices = getDevices();
+            mDirty = false;
+        }
+        File temp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            File directory = mFile.getParentFile();
+            if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Cannot create " + directory);
+            }
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeShort(devices.size());
+            for (Device device : devices) {
+                out.writeUTF(device.address);
+                out.writeUTF(device.name);
+                out.writeShort(device.rssi);
+                out.writeLong(device.lastSeenMillis);
+            }
+            out.close();
+            out = null;
+            if (!temp.renameTo(mFile)) {
+                throw new IOException("Cannot replace " + mFile);
+            }
+        }
+        catch (IOException e) {
+            synchronized (this) {
+                mDirty = true;                                                          //Try again on the next save
+            }
+            throw e;
+        }
+        finally {
+            closeQuietly(out);
+            temp.delete();
+        }
+    }
+
+    private void readFile() {
+        if (!mFile.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+                throw new IOException("Unknown recent devices format");
+            }
+            int count = in.readUnsignedShort();
+            List<Device> devices = new ArrayList<Device>(count);
+            for (int i = 0; i < count; i++) {
+                devices.add(new Device(in.readUTF(), in.readUTF(), in.readShort(), in.readLong()));
+            }
+            for (Device device : devices) {
+                if (!mDevices.containsKey(device.address)) {                            //Boards recorded before the load are newer
+                    mDevices.put(device.address, device);
+                }
+            }
+            trim();
+        }
+        catch (IOException e) {
+            mFile.delete();                                                             //Corrupt or stale format, start an empty list
+        }
+        finally {
+            closeQuietly(in);
+        }
+    }
+
+    private void trim() {
+        if (mDevices.size() > MAX_DEVICES) {
+            List<Device> devices = getDevices();
+            for (int i = MAX_DEVICES; i < devices.size(); i++) {
+                mDevices.remove(devices.get(i).address);
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            }
+            catch (IOException ignored) {
+            }
+        }
+    }
+}
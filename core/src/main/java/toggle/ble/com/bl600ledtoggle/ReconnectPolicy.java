@@ -0,0 +1,86 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import java.util.Random;
+
+/**
+ * When a {@link DeviceSession} tries to get a dropped link back. The first attempts are direct connections made at
+ * once, the quickest way back while the board is still in range. After those, direct attempts are spaced out by an
+ * exponential backoff with jitter, so phones near a board that rebooted do not all call it at the same moment. When
+ * the backoff attempts are used up the link is left to a background (autoConnect) connection, which the controller
+ * completes whenever the board advertises again without the app doing anything.
+ *
+ * A connection that fails with {@link GattOperation#GATT_ERROR} leaves some Android stacks with a GATT client that
+ * never connects again, so the transport is closed and opened again before the next attempt.
+ *
+ * Attempts are numbered from 0 for the first one after the link dropped. Used from the session thread only.
+ */
+public class ReconnectPolicy {
+
+    public static final int DEFAULT_IMMEDIATE_ATTEMPTS = 2;
+    public static final int DEFAULT_BACKOFF_ATTEMPTS = 5;
+    public static final long DEFAULT_BASE_DELAY_MILLIS = 500;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 30000;
+
+    private int mImmediateAttempts = DEFAULT_IMMEDIATE_ATTEMPTS;
+    private int mBackoffAttempts = DEFAULT_BACKOFF_ATTEMPTS;
+    private long mBaseDelayMillis = DEFAULT_BASE_DELAY_MILLIS;
+    private long mMaxDelayMillis = DEFAULT_MAX_DELAY_MILLIS;
+    private double mJitter = 0.5;                                                       //Fraction of each backoff delay that is random
+    private Random mRandom = new Random();
+
+    public ReconnectPolicy setImmediateAttempts(int attempts) {
+        mImmediateAttempts = attempts;
+        return this;
+    }
+
+    public ReconnectPolicy setBackoffAttempts(int attempts) {
+        mBackoffAttempts = attempts;
+        return this;
+    }
+
+    public ReconnectPolicy setBackoff(long baseDelayMillis, long maxDelayMillis) {
+        mBaseDelayMillis = baseDelayMillis;
+        mMaxDelayMillis = maxDelayMillis;
+        return this;
+    }
+
+    public ReconnectPolicy setJitter(double fractionOfDelay) {
+        if (fractionOfDelay < 0 || fractionOfDelay > 1) {
+            throw new IllegalArgumentException("Jitter must be in [0, 1]: " + fractionOfDelay);
+        }
+        mJitter = fractionOfDelay;
+        return this;
+    }
+
+    public ReconnectPolicy setSeed(long seed) {
+        mRandom = new Random(seed);
+        return this;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Delay before the given attempt. Backoff doubles from the base delay up to the max, less a random part of it. The
+    // first background attempt starts at once, one that failed is only started again after the max delay.
+    public long getDelayMillis(int attempt) {
+        if (attempt < mImmediateAttempts) {
+            return 0;
+        }
+        int step = attempt - mImmediateAttempts;
+        if (step >= mBackoffAttempts) {
+            return step == mBackoffAttempts ? 0 : mMaxDelayMillis;
+        }
+        long delay = step < 30 ? Math.min(mMaxDelayMillis, mBaseDelayMillis << step) : mMaxDelayMillis;
+        return delay - (long) (mRandom.nextDouble() * mJitter * delay);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // True once direct attempts are used up and the link is left to autoConnect
+    public boolean isBackground(int attempt) {
+        return attempt >= mImmediateAttempts + mBackoffAttempts;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // True if the transport should be closed and opened again before the next attempt
+    public boolean needsReset(int status) {
+        return status == GattOperation.GATT_ERROR;
+    }
+}
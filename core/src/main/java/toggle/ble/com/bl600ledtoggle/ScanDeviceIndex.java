@@ -0,0 +1,130 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Devices seen during a scan, indexed by MAC address. Every advertisement is an O(1) lookup that updates the
+ * device's latest RSSI and last-seen time. Changes the list has to show (a new device, or an RSSI move of at least
+ * {@link #RSSI_CHANGE_DB}) are collected into a change set that the UI picks up once per refresh interval, so
+ * repeated advertisements from devices already on screen cost no UI work at all.
+ *
+ * Advertisements may be recorded from any thread. {@link #swapChanges()} must always be called from the same (UI)
+ * thread, which owns the returned change set until its next call.
+ */
+public class ScanDeviceIndex<D> {
+
+    public static final int RSSI_CHANGE_DB = 5;                                         //Smallest RSSI change worth redrawing a row for
+
+    /**
+     * One device in the index. Position is the order in which devices were found.
+     */
+    public static class Entry<D> {
+        public final String address;
+        public final D device;
+        public final int position;
+        volatile int mRssi;                                                             //Latest RSSI seen
+        volatile long mLastSeenMillis;                                                  //Time of the latest advertisement
+        int mPublishedRssi;                                                             //RSSI the UI was last told about
+        boolean mPending;                                                               //Already in the pending change set
+
+        Entry(String address, D device, int position, int rssi, long nowMillis) {
+            this.address = address;
+            this.device = device;
+            this.position = position;
+            mRssi = rssi;
+            mPublishedRssi = rssi;
+            mLastSeenMillis = nowMillis;
+        }
+
+        public int getRssi() {
+            return mRssi;
+        }
+
+        public long getLastSeenMillis() {
+            return mLastSeenMillis;
+        }
+    }
+
+    /**
+     * Entries added and entries whose RSSI changed since the previous change set.
+     */
+    public static class ChangeSet<D> {
+        public final List<Entry<D>> added = new ArrayList<Entry<D>>();
+        public final List<Entry<D>> updated = new ArrayList<Entry<D>>();
+
+        public boolean isEmpty() {
+            return added.isEmpty() && updated.isEmpty();
+        }
+
+        void clear() {
+            added.clear();
+            updated.clear();
+        }
+    }
+
+    private final HashMap<String, Entry<D>> mEntries = new HashMap<String, Entry<D>>();
+    private ChangeSet<D> mPending = new ChangeSet<D>();                                 //Filled by advertisements
+    private ChangeSet<D> mPublished = new ChangeSet<D>();                               //Handed to the UI by the last swap
+    private long mAdvertisementCount;
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Record one advertisement. Returns true if this made the pending change set non-empty, meaning the caller should
+    // schedule a UI refresh. Further changes before that refresh runs return false and ride along with it.
+    public synchronized boolean onAdvertisement(String address, D device, int rssi, long nowMillis) {
+        mAdvertisementCount++;
+        boolean wasEmpty = mPending.isEmpty();
+        Entry<D> entry = mEntries.get(address);
+        if (entry == null) {
+            entry = new Entry<D>(address, device, mEntries.size(), rssi, nowMillis);
+            mEntries.put(address, entry);
+            entry.mPending = true;
+            mPending.added.add(entry);
+            return wasEmpty;
+        }
+        entry.mRssi = rssi;
+        entry.mLastSeenMillis = nowMillis;
+        if (!entry.mPending && Math.abs(rssi - entry.mPublishedRssi) >= RSSI_CHANGE_DB) {
+            entry.mPending = true;
+            mPending.updated.add(entry);
+            return wasEmpty;
+        }
+        return false;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Take the changes collected since the last call. The returned set is reused, it is valid until the next call.
+    public synchronized ChangeSet<D> swapChanges() {
+        ChangeSet<D> changes = mPending;
+        mPending = mPublished;
+        mPending.clear();
+        mPublished = changes;
+        for (Entry<D> entry : changes.added) {
+            entry.mPending = false;
+        }
+        for (Entry<D> entry : changes.updated) {
+            entry.mPending = false;
+            entry.mPublishedRssi = entry.mRssi;
+        }
+        return changes;
+    }
+
+    public synchronized Entry<D> get(String address) {
+        return mEntries.get(address);
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    public synchronized long getAdvertisementCount() {
+        return mAdvertisementCount;
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+        mPending.clear();
+        mPublished.clear();
+    }
+}
@@ -0,0 +1,38 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import java.util.UUID;
+
+/**
+ * Which advertisements should reach the app: devices that advertise a service UUID and/or whose MAC address starts
+ * with a prefix. Either part may be null to accept anything. The service UUID is also handed to the controller as a
+ * hardware filter where the platform supports it; {@link #matches} applies both parts in software, for older
+ * platforms and for the MAC prefix, which hardware filters cannot express.
+ */
+public class ScanFilterSpec {
+
+    private final UUID mServiceUuid;
+    private final String mAddressPrefix;                                                //For example "00:16:A4", compared ignoring case
+    private final AdvertisementParser.Cursor mCursor = new AdvertisementParser.Cursor(); //Reused, matches() is only called from the scan callback thread
+
+    public ScanFilterSpec(UUID serviceUuid, String addressPrefix) {
+        mServiceUuid = serviceUuid;
+        mAddressPrefix = addressPrefix;
+    }
+
+    public UUID getServiceUuid() {
+        return mServiceUuid;
+    }
+
+    public String getAddressPrefix() {
+        return mAddressPrefix;
+    }
+
+    public boolean matches(String address, byte[] scanRecord) {
+        if (mAddressPrefix != null
+                && (address == null || !address.regionMatches(true, 0, mAddressPrefix, 0, mAddressPrefix.length()))) {
+            return false;
+        }
+        return mServiceUuid == null
+                || (scanRecord != null && AdvertisementParser.hasServiceUuid(scanRecord, mServiceUuid, mCursor));
+    }
+}
@@ -0,0 +1,10 @@
+package toggle.ble.com.bl600ledtoggle;
+
+/**
+ * Scan duty cycle requested from the controller, from least to most power hungry.
+ */
+public enum ScanMode {
+    LOW_POWER,                                                                          //Long gaps between scan windows, slow to find devices
+    BALANCED,
+    LOW_LATENCY                                                                         //Scan continuously, only while the user is waiting on the list
+}
@@ -0,0 +1,180 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Bounded hand-off of scan results from the scan callback thread to a consumer. While a device is waiting to be
+ * consumed, newer results for it replace the pending one, so a slow consumer sees the latest RSSI of every device
+ * rather than a growing backlog of stale packets. When the number of distinct waiting devices reaches the capacity,
+ * the stream asks the scanner to pause through its {@link FlowListener} and asks it to resume once the consumer has
+ * worked the backlog down to half, so results are neither dropped silently nor queued without bound.
+ */
+public class ScanResultStream<D> {
+
+    /**
+     * Receives results from {@link #drain}.
+     */
+    public interface Consumer<D> {
+        void onScanResult(String address, D device, int rssi, byte[] scanRecord, long timestampMillis);
+    }
+
+    /**
+     * Back-pressure signals for the producer. Called on the thread that caused the change.
+     */
+    public interface FlowListener {
+        void onPause();
+
+        void onResume();
+    }
+
+    private static class Pending<D> {
+        String address;
+        D device;
+        int rssi;
+        byte[] scanRecord;
+        long timestampMillis;
+    }
+
+    private final int mCapacity;                                                        //Maximum distinct devices waiting
+    private final LinkedHashMap<String, Pending<D>> mPending = new LinkedHashMap<String, Pending<D>>(); //In order of first arrival
+    private final ArrayDeque<Pending<D>> mFree = new ArrayDeque<Pending<D>>();          //Recycled holders
+    private FlowListener mFlowListener;
+    private boolean mPaused;
+    private long mOfferedCount, mCoalescedCount, mRefusedCount;
+
+    public ScanResultStream(int capacity) {
+        mCapacity = capacity;
+    }
+
+    public synchronized void setFlowListener(FlowListener listener) {
+        mFlowListener = listener;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Called for every result that passed the filter. Returns true if the stream was empty, meaning the caller should
+    // schedule the consumer. A result that would exceed the capacity is refused and pauses the producer.
+    public boolean offer(String address, D device, int rssi, byte[] scanRecord, long timestampMillis) {
+        FlowListener pause = null;
+        boolean becameNonEmpty;
+        synchronized (this) {
+            mOfferedCount++;
+            boolean wasEmpty = mPending.isEmpty();
+            Pending<D> pending = mPending.get(address);
+            if (pending == null) {
+                if (mPending.size() >= mCapacity) {
+                    mRefusedCount++;
+                    if (!mPaused) {
+                        mPaused = true;
+                        pause = mFlowListener;
+                    }
+                }
+                else {
+                    pending = mFree.isEmpty() ? new Pending<D>() : mFree.pollFirst();
+                    pending.address = address;
+                    mPending.put(address, pending);
+                }
+            }
+            else {
+                mCoalescedCount++;
+            }
+            if (pending != null) {
+                pending.device = device;
+                pending.rssi = rssi;
+                pending.scanRecord = scanRecord;
+                pending.timestampMillis = timestampMillis;
+            }
+            becameNonEmpty = wasEmpty && !mPending.isEmpty();
+        }
+        if (pause != null) {
+            pause.onPause();
+        }
+        return becameNonEmpty;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Hand up to max waiting results to the consumer, oldest device first. Returns the number delivered.
+    public int drain(Consumer<D> consumer, int max) {
+        int delivered = 0;
+        while (delivered < max) {
+            String address;
+            D device;
+            int rssi;
+            byte[] scanRecord;
+            long timestamp;
+            synchronized (this) {
+                Iterator<Pending<D>> iterator = mPending.values().iterator();
+                if (!iterator.hasNext()) {
+                    break;
+                }
+                Pending<D> pending = iterator.next();
+                iterator.remove();
+                address = pending.address;
+                device = pending.device;
+                rssi = pending.rssi;
+                scanRecord = pending.scanRecord;
+                timestamp = pending.timestampMillis;
+                pending.device = null;
+                pending.scanRecord = null;
+                mFree.addLast(pending);
+            }
+            consumer.onScanResult(address, device, rssi, scanRecord, timestamp);        //Outside the lock, the producer is never held up by the consumer
+            delivered++;
+        }
+        FlowListener resume = null;
+        synchronized (this) {
+            if (mPaused && mPending.size() <= mCapacity / 2) {
+                mPaused = false;
+                resume = mFlowListener;
+            }
+        }
+        if (resume != null) {
+            resume.onResume();
+        }
+        return delivered;
+    }
+
+    public synchronized boolean isEmpty() {
+        return mPending.isEmpty();
+    }
+
+    public synchronized int size() {
+        return mPending.size();
+    }
+
+    public synchronized boolean isPaused() {
+        return mPaused;
+    }
+
+    public synchronized long getOfferedCount() {
+        return mOfferedCount;
+    }
+
+    public synchronized long getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    public synchronized long getRefusedCount() {
+        return mRefusedCount;
+    }
+
+    public void clear() {
+        FlowListener resume = null;
+        synchronized (this) {
+            for (Pending<D> pending : mPending.values()) {
+                pending.device = null;
+                pending.scanRecord = null;
+                mFree.addLast(pending);
+            }
+            mPending.clear();
+            if (mPaused) {
+                mPaused = false;
+                resume = mFlowListener;
+            }
+        }
+        if (resume != null) {
+            resume.onResume();
+        }
+    }
+}
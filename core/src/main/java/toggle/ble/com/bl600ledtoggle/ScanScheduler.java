@@ -0,0 +1,307 @@
+package toggle.ble.com.bl600ledtoggle;
+
+/**
+ * Turns the scanner on and off in a duty cycle: a scan window at the start of every interval, for a set duration or
+ * until stopped. In adaptive mode the interval starts short and doubles, up to a maximum, after windows that found no new
+ * device, and drops back to the start as soon as one does: the radio works hard while boards are turning up and backs
+ * off once the list is stable.
+ *
+ * The radio is also kept off while the scan is held, by back-pressure from the result list or while GATT operations are
+ * on the air (see {@link GattActivity}). Android 7 and later silently ignores scans started more than five times in 30
+ * seconds, so a window that would break that budget starts late instead.
+ *
+ * Used from the thread of its {@link TaskScheduler} only, apart from {@link #onGattActivityChanged} which may come from
+ * any thread.
+ */
+public class ScanScheduler implements GattActivity.Listener {
+
+    public static final int START_LIMIT = 5;                                            //Scan starts Android allows per START_LIMIT_MILLIS
+    public static final long START_LIMIT_MILLIS = 30000;
+
+    /**
+     * The scanner being cycled.
+     */
+    public interface Radio {
+        void startScan();
+
+        void stopScan();
+    }
+
+    /**
+     * Told when the scan duration is over.
+     */
+    public interface Listener {
+        void onScanFinished();
+    }
+
+    /**
+     * Time source, replaced in tests to run on virtual time.
+     */
+    public interface Clock {
+        long uptimeMillis();
+    }
+
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long uptimeMillis() {
+            return System.nanoTime() / 1000000;
+        }
+    };
+
+    private final Radio mRadio;
+    private final TaskScheduler mScheduler;
+    private Clock mClock = SYSTEM_CLOCK;
+    private Listener mListener;
+    private GattActivity mGattActivity;                                                 //Pauses the radio while busy, null to ignore GATT traffic
+
+    private long mWindowMillis = 10000;
+    private long mIntervalMillis = 10000;                                               //Scans continuously until changed
+    private long mMaxIntervalMillis;                                                    //Adaptive backoff limit, 0 for a fixed duty cycle
+    private int mStableWindows = 1;                                                     //Windows without a new device before backing off
+    private long mDurationMillis;                                                       //0 to scan until stopped
+    private boolean mLimitStarts = true;
+
+    private boolean mRunning;                                                           //Between start() and stop() or the end of the duration
+    private boolean mInWindow;                                                          //The duty cycle wants the radio on
+    private boolean mRadioOn;
+    private int mHolds;
+    private boolean mGattBusy;
+    private long mCurrentIntervalMillis;
+    private int mQuietWindows;                                                          //Windows in a row without a new device
+    private int mFoundInWindow;
+    private final long[] mStartTimes = new long[START_LIMIT];                           //Ring of the latest radio starts
+    private int mStartIndex;
+    private long mRadioOnSinceMillis, mRadioOnMillis;
+    private long mWindowCount, mRadioStarts, mDeferredStarts;
+
+    private final Runnable mBeginWindow = new Runnable() {
+        @Override
+        public void run() {
+            beginWindow();
+        }
+    };
+
+    private final Runnable mEndWindow = new Runnable() {
+        @Override
+        public void run() {
+            endWindow();
+        }
+    };
+
+    private final Runnable mApplyRadio = new Runnable() {
+        @Override
+        public void run() {
+            mGattBusy = mGattActivity != null && mGattActivity.isBusy();
+            applyRadio();
+        }
+    };
+
+    private final Runnable mFinish = new Runnable() {
+        @Override
+        public void run() {
+            stop();
+            if (mListener != null) {
+                mListener.onScanFinished();
+            }
+        }
+    };
+
+    public ScanScheduler(Radio radio, TaskScheduler scheduler) {
+        mRadio = radio;
+        mScheduler = scheduler;
+    }
+
+    public void setClock(Clock clock) {
+        mClock = clock;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Scan for windowMillis at the start of every intervalMillis. Equal values scan continuously. In adaptive mode this
+    // is the fastest cycle, the one used while new devices are turning up.
+    public void setDutyCycle(long windowMillis, long intervalMillis) {
+        if (windowMillis <= 0 || intervalMillis < windowMillis) {
+            throw new IllegalArgumentException("Window must be positive and fit the interval: " + windowMillis + "/" + intervalMillis);
+        }
+        mWindowMillis = windowMillis;
+        mIntervalMillis = intervalMillis;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Double the interval after stableWindows windows without a new device, up to maxIntervalMillis. 0 turns it off.
+    public void setAdaptive(long maxIntervalMillis, int stableWindows) {
+        mMaxIntervalMillis = maxIntervalMillis;
+        mStableWindows = Math.max(1, stableWindows);
+    }
+
+    public void setDuration(long durationMillis) {
+        mDurationMillis = durationMillis;
+    }
+
+    public void setLimitStarts(boolean limitStarts) {                                   //Off on platforms without the start budget
+        mLimitStarts = limitStarts;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Pause the radio while the given tracker reports GATT operations on the air, null to stop watching
+    public void setGattActivity(GattActivity activity) {
+        if (mGattActivity != null) {
+            mGattActivity.removeListener(this);
+        }
+        mGattActivity = activity;
+        if (activity != null) {
+            activity.addListener(this);
+        }
+        mApplyRadio.run();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Start a scan, or start the duration and the backoff over if one is running
+    public void start() {
+        mScheduler.removeCallbacks(mFinish);
+        if (mDurationMillis > 0) {
+            mScheduler.postDelayed(mFinish, mDurationMillis);
+        }
+        mCurrentIntervalMillis = mIntervalMillis;
+        mQuietWindows = 0;
+        if (!mRunning) {
+            mRunning = true;
+            beginWindow();
+        }
+        else if (!mInWindow) {
+            mScheduler.removeCallbacks(mBeginWindow);
+            beginWindow();                                                              //A new device is likely what the user is after
+        }
+    }
+
+    public void stop() {
+        mRunning = false;
+        mInWindow = false;
+        mScheduler.removeCallbacks(mBeginWindow);
+        mScheduler.removeCallbacks(mEndWindow);
+        mScheduler.removeCallbacks(mApplyRadio);
+        mScheduler.removeCallbacks(mFinish);
+        applyRadio();
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    public boolean isRadioOn() {
+        return mRadioOn;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Keep the radio off until as many release() calls, without ending the scan
+    public void hold() {
+        mHolds++;
+        applyRadio();
+    }
+
+    public void release() {
+        if (mHolds > 0) {
+            mHolds--;
+            applyRadio();
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Devices seen for the first time in this scan. Keeps the adaptive cycle fast.
+    public void onDevicesFound(int newDevices) {
+        mFoundInWindow += newDevices;
+        if (newDevices > 0 && mCurrentIntervalMillis > mIntervalMillis) {
+            mCurrentIntervalMillis = mIntervalMillis;                                   //Back to the fast cycle from the next window on
+            mQuietWindows = 0;
+        }
+    }
+
+    @Override
+    public void onGattActivityChanged(boolean busy) {
+        mScheduler.postDelayed(mApplyRadio, 0);                                         //Checked again on the scheduler thread
+    }
+
+    public long getCurrentIntervalMillis() {
+        return mCurrentIntervalMillis;
+    }
+
+    public long getRadioOnMillis() {
+        return mRadioOnMillis + (mRadioOn ? mClock.uptimeMillis() - mRadioOnSinceMillis : 0);
+    }
+
+    public long getWindowCount() {
+        return mWindowCount;
+    }
+
+    public long getRadioStarts() {
+        return mRadioStarts;
+    }
+
+    public long getDeferredStarts() {                                                   //Radio starts pushed back by the start budget
+        return mDeferredStarts;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Duty cycle
+    private void beginWindow() {
+        mGattBusy = mGattActivity != null && mGattActivity.isBusy();                    //A change posted before stop() was dropped
+        mInWindow = true;
+        mFoundInWindow = 0;
+        mWindowCount++;
+        mScheduler.postDelayed(mEndWindow, mWindowMillis);
+        applyRadio();
+    }
+
+    private void endWindow() {
+        if (mMaxIntervalMillis > mIntervalMillis) {
+            if (mFoundInWindow > 0) {
+                mCurrentIntervalMillis = mIntervalMillis;
+                mQuietWindows = 0;
+            }
+            else if (++mQuietWindows >= mStableWindows) {
+                mCurrentIntervalMillis = Math.min(mMaxIntervalMillis, mCurrentIntervalMillis * 2);
+                mQuietWindows = 0;
+            }
+        }
+        long offMillis = mCurrentIntervalMillis - mWindowMillis;
+        if (offMillis <= 0) {
+            mWindowCount--;                                                             //Continuous, the same window goes on
+            beginWindow();
+            return;
+        }
+        mInWindow = false;
+        applyRadio();
+        mScheduler.postDelayed(mBeginWindow, offMillis);
+    }
+
+    private void applyRadio() {
+        boolean on = mRunning && mInWindow && mHolds == 0 && !mGattBusy;
+        if (on == mRadioOn) {
+            return;
+        }
+        long now = mClock.uptimeMillis();
+        if (on) {
+            long waitMillis = mLimitStarts ? mStartTimes[mStartIndex] + START_LIMIT_MILLIS - now : 0;
+            if (mRadioStarts >= START_LIMIT && waitMillis > 0) {
+                mDeferredStarts++;
+                mScheduler.removeCallbacks(mApplyRadio);
+                mScheduler.postDelayed(mApplyRadio, waitMillis);                        //The oldest start has left the budget by then
+                return;
+            }
+            mStartTimes[mStartIndex] = now;
+            mStartIndex = (mStartIndex + 1) % START_LIMIT;
+            mRadioStarts++;
+            mRadioOn = true;
+            mRadioOnSinceMillis = now;
+            mRadio.startScan();
+        }
+        else {
+            mRadioOn = false;
+            mRadioOnMillis += now - mRadioOnSinceMillis;
+            mRadio.stopScan();
+        }
+    }
+}
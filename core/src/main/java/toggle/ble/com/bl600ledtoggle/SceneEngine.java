@@ -0,0 +1,318 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sets the LEDs of several boards so that they change together. Sent one after another, the writes land whenever each
+ * link's next connection events come round, tens of milliseconds apart on links with different intervals.
+ *
+ * The BL600 applies a write as soon as it arrives and keeps no clock the phone could set, so the engine lines up arrival
+ * times instead. It keeps, per board, a smoothed write round trip and its deviation, learned from the acknowledgements of
+ * earlier writes. The part of that offset between the board applying a value and the phone seeing the acknowledgement is
+ * the same for every board, so it drops out of the difference. A scene sends each board's write ahead of a common flip
+ * time by that board's expected round trip, so the slowest link is sent first and the fastest last.
+ *
+ * Scene writes are sent with {@link LedController#setLedAcknowledged}, with response and never coalesced, so every
+ * acknowledgement belongs to the write it times even on a session in LATEST mode or one that writes single commands
+ * without response. Boards whose characteristic takes writes without response only cannot be timed and fail the scene.
+ * The notification a board sends once it has applied a scene's state gives a second round trip, kept in an estimator of
+ * its own since it may come a connection event after the acknowledgement; it sets the lead of a board whose writes
+ * have not been acknowledged yet. Notifications reach the engine through {@link #onStateReported}.
+ *
+ * The achieved skew of a scene is the spread of the acknowledgement times, which are the flip times shifted by that
+ * common offset. What is left is the connection event jitter of each link, which no dispatch time can take out; a low
+ * latency {@link LinkProfile} keeps it small.
+ *
+ * Boards are added with the thread their session is confined to, and each write is posted to that thread. Scenes may be
+ * run from any thread; results are delivered on the thread of the last board to answer. {@link LedGateway} runs scenes
+ * for its boards and for the gateway API.
+ */
+public class SceneEngine {
+
+    public static final long DEFAULT_LATENCY_NANOS = 30000000L;                        //Assumed round trip until a board has answered once
+    public static final long DEFAULT_SKEW_BOUND_NANOS = 20000000L;
+
+    /**
+     * Receives the outcome of a scene.
+     */
+    public interface Listener {
+        void onSceneComplete(SceneResult result);
+    }
+
+    /**
+     * LED states for a set of boards, keyed by MAC address.
+     */
+    public static class Scene {
+        private final Map<String, Integer> mStates = new LinkedHashMap<String, Integer>();
+
+        public Scene set(String address, int state) {
+            mStates.put(address, state);
+            return this;
+        }
+
+        public Map<String, Integer> getStates() {
+            return mStates;
+        }
+    }
+
+    /**
+     * Smoothed round trip and mean deviation, the estimator TCP uses for its retransmission timer (RFC 6298).
+     */
+    public static class LatencyEstimator {
+        private long mSmoothedNanos = -1, mDeviationNanos;
+        private long mSamples;
+
+        public synchronized void record(long nanos) {
+            if (mSmoothedNanos < 0) {
+                mSmoothedNanos = nanos;
+                mDeviationNanos = nanos / 2;
+            }
+            else {
+                mDeviationNanos += (Math.abs(mSmoothedNanos - nanos) - mDeviationNanos) / 4;
+                mSmoothedNanos += (nanos - mSmoothedNanos) / 8;
+            }
+            mSamples++;
+        }
+
+        public synchronized long getExpectedNanos() {                                   //-1 before the first sample
+            return mSmoothedNanos;
+        }
+
+        public synchronized long getDeviationNanos() {
+            return mDeviationNanos;
+        }
+
+        public synchronized long getSampleCount() {
+            return mSamples;
+        }
+    }
+
+    /**
+     * Outcome of one scene. Flip offsets are estimated from the acknowledgements, relative to the board that changed first.
+     */
+    public static class SceneResult {
+        private final Map<String, Long> mFlipOffsets = new HashMap<String, Long>();
+        private final Map<String, Long> mLeads = new HashMap<String, Long>();
+        private final List<String> mFailed = new ArrayList<String>();
+        private final long mSkewBoundNanos;
+        private long mSkewNanos;
+
+        SceneResult(long skewBoundNanos) {
+            mSkewBoundNanos = skewBoundNanos;
+        }
+
+        public synchronized long getSkewNanos() {                                       //Spread of the flip times of the boards that succeeded
+            return mSkewNanos;
+        }
+
+        public synchronized boolean isWithinBound() {
+            return mFailed.isEmpty() && mSkewNanos <= mSkewBoundNanos;
+        }
+
+        public synchronized Map<String, Long> getFlipOffsets() {
+            return new HashMap<String, Long>(mFlipOffsets);
+        }
+
+        public synchronized Map<String, Long> getLeads() {                              //How far ahead of the flip each write was sent
+            return new HashMap<String, Long>(mLeads);
+        }
+
+        public synchronized List<String> getFailed() {
+            return new ArrayList<String>(mFailed);
+        }
+    }
+
+    private static class Target {
+        final LedController controller;
+        final TaskScheduler thread;
+        final LatencyEstimator estimator = new LatencyEstimator();                      //Write acknowledgements
+        final LatencyEstimator notifications = new LatencyEstimator();
+        long notifySentNanos;                                                           //Scene write waiting for its notification, 0 if none
+        int notifyState;
+
+        Target(LedController controller, TaskScheduler thread) {
+            this.controller = controller;
+            this.thread = thread;
+        }
+    }
+
+    private final Map<String, Target> mTargets = new HashMap<String, Target>();
+    private volatile long mSkewBoundNanos = DEFAULT_SKEW_BOUND_NANOS;
+    private final LatencyHistogram mSkew = new LatencyHistogram("scene skew");
+
+    public synchronized void addDevice(String address, LedController controller, TaskScheduler sessionThread) {
+        mTargets.put(address, new Target(controller, sessionThread));
+    }
+
+    public synchronized void removeDevice(String address) {
+        mTargets.remove(address);
+    }
+
+    public synchronized LatencyEstimator getEstimator(String address) {
+        Target target = mTargets.get(address);
+        return target != null ? target.estimator : null;
+    }
+
+    public synchronized LatencyEstimator getNotificationEstimator(String address) {
+        Target target = mTargets.get(address);
+        return target != null ? target.notifications : null;
+    }
+
+    public void setSkewBound(long nanos) {
+        mSkewBoundNanos = nanos;
+    }
+
+    public LatencyHistogram getSkewHistogram() {
+        return mSkew;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // A state the board reported, from the LED listener of its session and on its session thread. The first report of
+    // the state of a scene write completes that write's notification round trip.
+    public void onStateReported(String address, LedState state) {
+        Target target;
+        synchronized (this) {
+            target = mTargets.get(address);
+        }
+        if (target != null && target.notifySentNanos != 0 && state.state == target.notifyState) {
+            target.notifications.record(System.nanoTime() - target.notifySentNanos);
+            target.notifySentNanos = 0;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Send every board its state so that they all flip at the same time, as far as the estimates allow
+    public void run(Scene scene, Listener listener) {
+        SceneResult result = new SceneResult(mSkewBoundNanos);
+        List<String> addresses = new ArrayList<String>();
+        List<Target> targets = new ArrayList<Target>();
+        synchronized (this) {
+            for (String address : scene.getStates().keySet()) {
+                Target target = mTargets.get(address);
+                if (target == null) {
+                    result.mFailed.add(address);                                        //Not a board this engine knows
+                    continue;
+                }
+                addresses.add(address);
+                targets.add(target);
+            }
+        }
+        if (targets.isEmpty()) {
+            listener.onSceneComplete(result);
+            return;
+        }
+
+        long[] leads = new long[targets.size()];
+        long maxLead = 0;
+        for (int i = 0; i < leads.length; i++) {
+            long expected = targets.get(i).estimator.getExpectedNanos();
+            if (expected < 0) {
+                expected = targets.get(i).notifications.getExpectedNanos();
+            }
+            leads[i] = expected >= 0 ? expected : DEFAULT_LATENCY_NANOS;
+            maxLead = Math.max(maxLead, leads[i]);
+        }
+
+        SceneRun run = new SceneRun(result, addresses, listener);
+        for (int i = 0; i < targets.size(); i++) {
+            String address = addresses.get(i);
+            result.mLeads.put(address, leads[i]);
+            Command command = new Command(run, i, targets.get(i), scene.getStates().get(address));
+            targets.get(i).thread.postDelayed(command, Math.round((maxLead - leads[i]) / 1e6)); //Slowest link first
+        }
+    }
+
+    /**
+     * State shared by the commands of one scene.
+     */
+    private static class SceneRun {
+        final SceneResult result;
+        final List<String> addresses;
+        final Listener listener;
+        final long[] acks;                                                              //Acknowledgement time per board, 0 if it failed
+        final AtomicInteger remaining;
+
+        SceneRun(SceneResult result, List<String> addresses, Listener listener) {
+            this.result = result;
+            this.addresses = addresses;
+            this.listener = listener;
+            acks = new long[addresses.size()];
+            remaining = new AtomicInteger(addresses.size());
+        }
+    }
+
+    /**
+     * The write for one board: posted to its session thread at its dispatch time, then completed by its acknowledgement.
+     */
+    private class Command implements Runnable, GattOperation.Callback {
+        private final SceneRun mRun;
+        private final int mIndex;
+        private final Target mTarget;
+        private final int mState;
+        private long mSentNanos;
+
+        Command(SceneRun run, int index, Target target, int state) {
+            mRun = run;
+            mIndex = index;
+            mTarget = target;
+            mState = state;
+        }
+
+        @Override
+        public void run() {
+            mSentNanos = System.nanoTime();
+            mTarget.notifySentNanos = mSentNanos;
+            mTarget.notifyState = mState;
+            if (!mTarget.controller.setLedAcknowledged(mState, this)) {
+                mTarget.notifySentNanos = 0;
+                onOperationComplete(null, GattOperation.STATUS_REJECTED, null);        //Not ready, or no write with response
+            }
+        }
+
+        @Override
+        public void onOperationComplete(GattOperation operation, int status, byte[] value) {
+            long now = System.nanoTime();
+            if (status == GattOperation.GATT_SUCCESS) {
+                mTarget.estimator.record(now - mSentNanos);
+                synchronized (mRun.result) {
+                    mRun.acks[mIndex] = now;
+                }
+            }
+            else {
+                synchronized (mRun.result) {
+                    mRun.result.mFailed.add(mRun.addresses.get(mIndex));
+                }
+            }
+            if (mRun.remaining.decrementAndGet() == 0) {
+                finish(mRun);
+            }
+        }
+    }
+
+    private void finish(SceneRun run) {
+        SceneResult result = run.result;
+        long[] acks = run.acks;
+        synchronized (result) {
+            long first = Long.MAX_VALUE, last = Long.MIN_VALUE;
+            for (int i = 0; i < acks.length; i++) {
+                if (acks[i] != 0) {
+                    first = Math.min(first, acks[i]);
+                    last = Math.max(last, acks[i]);
+                }
+            }
+            for (int i = 0; i < acks.length; i++) {
+                if (acks[i] != 0) {
+                    result.mFlipOffsets.put(run.addresses.get(i), acks[i] - first);
+                }
+            }
+            result.mSkewNanos = first <= last ? last - first : 0;
+        }
+        mSkew.record(result.getSkewNanos());
+        run.listener.onSceneComplete(result);
+    }
+}
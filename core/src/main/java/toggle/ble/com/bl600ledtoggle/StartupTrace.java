@@ -0,0 +1,55 @@
+package toggle.ble.com.bl600ledtoggle;
+
+/**
+ * Times a cold start: from launch to the first row the operator can tap, and from launch to the first board connected
+ * and ready. Each mark counts once per launch, later calls are ignored. One instance per process ({@link #global()}).
+ */
+public class StartupTrace {
+
+    private static final StartupTrace GLOBAL = new StartupTrace();
+
+    private long mLaunchNanos = -1;
+    private long mFirstRowNanos = -1, mFirstConnectNanos = -1;
+
+    public static StartupTrace global() {
+        return GLOBAL;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Start timing a launch, forgetting the marks of the previous one
+    public synchronized void markLaunch(long nowNanos) {
+        mLaunchNanos = nowNanos;
+        mFirstRowNanos = -1;
+        mFirstConnectNanos = -1;
+    }
+
+    public synchronized boolean markFirstRow(long nowNanos) {                           //True for the mark that counted
+        if (mLaunchNanos < 0 || mFirstRowNanos >= 0) {
+            return false;
+        }
+        mFirstRowNanos = nowNanos;
+        return true;
+    }
+
+    public synchronized boolean markFirstConnect(long nowNanos) {
+        if (mLaunchNanos < 0 || mFirstConnectNanos >= 0) {
+            return false;
+        }
+        mFirstConnectNanos = nowNanos;
+        return true;
+    }
+
+    public synchronized long getFirstRowNanos() {                                       //Since launch, -1 if not reached
+        return mFirstRowNanos >= 0 ? mFirstRowNanos - mLaunchNanos : -1;
+    }
+
+    public synchronized long getFirstConnectNanos() {
+        return mFirstConnectNanos >= 0 ? mFirstConnectNanos - mLaunchNanos : -1;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("startup: first row %.1f ms, first connect %.1f ms",
+                getFirstRowNanos() / 1e6, getFirstConnectNanos() / 1e6);
+    }
+}
@@ -0,0 +1,12 @@
+package toggle.ble.com.bl600ledtoggle;
+
+/**
+ * The subset of {@code android.os.Handler} used to run delayed work such as GATT operation timeouts.
+ * Kept as an interface so the classes that need it can run on a plain JVM.
+ */
+public interface TaskScheduler {
+
+    void postDelayed(Runnable task, long delayMillis);
+
+    void removeCallbacks(Runnable task);
+}
@@ -0,0 +1,63 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands values from the BLE thread to the UI thread, keeping only the latest one. However fast values are published,
+ * at most one update is waiting on the UI thread, and when it runs it shows the newest value. A burst of
+ * notifications therefore costs one view update instead of one per packet, and the UI never falls behind the link.
+ */
+public class UiUpdateCoalescer<T> {
+
+    /**
+     * Applies a value to the views. Always called on the UI executor.
+     */
+    public interface Sink<T> {
+        void apply(T value);
+    }
+
+    private final Executor mUiExecutor;                                                 //Runs updates on the UI thread, for example Activity.runOnUiThread
+    private final Sink<T> mSink;
+    private final AtomicReference<T> mLatest = new AtomicReference<T>();                //Newest value not yet shown
+    private final AtomicBoolean mScheduled = new AtomicBoolean();                       //An update is already waiting on the UI thread
+    private final AtomicLong mPublishedCount = new AtomicLong();
+    private final AtomicLong mAppliedCount = new AtomicLong();
+
+    private final Runnable mApply = new Runnable() {
+        @Override
+        public void run() {
+            mScheduled.set(false);                                                      //Clear first so a value published from here on schedules another update
+            T value = mLatest.getAndSet(null);
+            if (value != null) {
+                mAppliedCount.incrementAndGet();
+                mSink.apply(value);
+            }
+        }
+    };
+
+    public UiUpdateCoalescer(Executor uiExecutor, Sink<T> sink) {
+        mUiExecutor = uiExecutor;
+        mSink = sink;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Called from any thread with a new value, replaces any value that has not been shown yet
+    public void publish(T value) {
+        mPublishedCount.incrementAndGet();
+        mLatest.set(value);
+        if (mScheduled.compareAndSet(false, true)) {
+            mUiExecutor.execute(mApply);
+        }
+    }
+
+    public long getPublishedCount() {
+        return mPublishedCount.get();
+    }
+
+    public long getAppliedCount() {
+        return mAppliedCount.get();
+    }
+}
@@ -0,0 +1,17 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures bytes allocated by the current thread, using the HotSpot extension of ThreadMXBean. Only used by tests
+ * that run on a desktop JVM.
+ */
+public class AllocationMeter {
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static long allocatedBytes() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,154 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class BleMetricsTest {
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void bucketsCoverTheirValues() {
+        for (long value = 0; value < 1L << 41; value = value * 5 / 4 + 1) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            assertTrue(value <= LatencyHistogram.highestValueIn(bucket));
+            assertTrue(bucket == 0 || value > LatencyHistogram.highestValueIn(bucket - 1));
+        }
+    }
+
+    @Test
+    public void percentilesAreWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        Random random = new Random(42);
+        long[] values = new long[100000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) (Math.exp(random.nextGaussian() + 15));                  //Log normal around 3 ms, like radio latency
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(values.length, snapshot.getCount());
+        assertEquals(values[values.length - 1], snapshot.getMax());
+        for (double percentile : new double[] {50, 90, 99, 99.9}) {
+            long exact = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+            long reported = snapshot.getPercentile(percentile);
+            assertTrue(percentile + "%: " + reported + " vs " + exact, reported >= exact && reported <= exact + exact / 16 + 1);
+        }
+    }
+
+    @Test
+    public void queueRecordsLatencyRetriesAndFailures() {
+        BleMetrics metrics = new BleMetrics();
+        FakeGattTransport transport = new FakeGattTransport();
+        GattOperationQueue queue = new GattOperationQueue(transport, new ManualTaskScheduler());
+        queue.setMetrics(metrics);
+
+        queue.enqueue(GattOperation.read(LedGattProfile.LED_SERVICE, LedGattProfile.LED_TOGGLE));
+        queue.onCharacteristicRead(LedGattProfile.LED_TOGGLE, GattOperation.GATT_SUCCESS, new byte[] {'1'});
+        queue.enqueue(GattOperation.write(LedGattProfile.LED_SERVICE, LedGattProfile.LED_TOGGLE, new byte[] {'1'},
+                GattOperation.WRITE_TYPE_DEFAULT).setMaxRetries(1));
+        queue.onCharacteristicWrite(LedGattProfile.LED_TOGGLE, 133);
+        queue.onCharacteristicWrite(LedGattProfile.LED_TOGGLE, 133);
+        queue.enqueue(GattOperation.read(LedGattProfile.LED_SERVICE, LedGattProfile.LED_TOGGLE));
+        queue.clear();
+
+        assertEquals(1, metrics.readLatency.snapshot().getCount());
+        assertEquals(0, metrics.writeLatency.snapshot().getCount());
+        assertEquals(1, metrics.retries.get());
+        assertEquals(1, metrics.failures.get());                                        //The cancelled read is not a failure
+    }
+
+    @Test
+    public void dumpWritesEveryMetric() throws Exception {
+        BleMetrics metrics = new BleMetrics();
+        metrics.connectTime.record(850000000L);
+        metrics.scanCallbacks.addAndGet(12);
+        File file = new File(mFolder.getRoot(), "metrics.txt");
+        metrics.dump(file);
+
+        String dump = new String(Files.readAllBytes(file.toPath()), Charset.forName("UTF-8"));
+        assertTrue(dump, dump.contains("connect count=1"));
+        assertTrue(dump, dump.contains("scan callbacks count=12"));
+        assertTrue(dump, dump.contains("notify count=0"));
+        assertFalse(dump, dump.contains("link pool"));                                  //No pool given
+    }
+
+    @Test
+    public void snapshotReportsTheLinkPool() {
+        ConnectionPool<String> pool = new ConnectionPool<String>(new ConnectionPool.Factory<String>() {
+            @Override
+            public String open(String address) {
+                return address;
+            }
+
+            @Override
+            public void close(String connection) {
+            }
+        }, new ManualTaskScheduler());
+        pool.borrow("00:16:A4:00:00:01");
+        pool.recordSetupTime("00:16:A4:00:00:01", 1500000000L);
+        pool.release("00:16:A4:00:00:01");
+        pool.borrow("00:16:A4:00:00:01");
+        BleMetrics metrics = new BleMetrics();
+        metrics.setConnectionPool(pool);
+
+        String snapshot = metrics.snapshot();
+        assertTrue(snapshot, snapshot.contains("link pool hits=1 misses=1 hit rate=50.0%"));
+        assertTrue(snapshot, snapshot.contains("setup saved=1.5s"));
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Recording into a histogram and a counter allocates nothing, and no sample is lost with four threads recording
+    // into the same metrics. The cost per record is measured by MetricsBenchmark in the simulator.
+    @Test
+    public void recordingDoesNotAllocateOrLoseSamples() throws Exception {
+        final BleMetrics metrics = new BleMetrics();
+        final int count = 200000;
+        for (int i = 0; i < count; i++) {                                               //Warm up
+            metrics.writeLatency.record(i);
+        }
+
+        long allocatedBefore = AllocationMeter.allocatedBytes();
+        for (int i = 0; i < count; i++) {
+            metrics.writeLatency.record(1000 + (i & 0xFFFFF));
+            metrics.notifications.incrementAndGet();
+        }
+        assertEquals(0, AllocationMeter.allocatedBytes() - allocatedBefore);
+
+        final int threads = 4;
+        final CountDownLatch go = new CountDownLatch(1), done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        go.await();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < count; i++) {
+                        metrics.readLatency.record(1000 + (i & 0xFFFFF));
+                        metrics.notifications.incrementAndGet();
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        go.countDown();
+        done.await();
+        assertEquals((long) threads * count, metrics.readLatency.snapshot().getCount());
+        assertEquals((long) (threads + 1) * count, metrics.notifications.get());
+    }
+}
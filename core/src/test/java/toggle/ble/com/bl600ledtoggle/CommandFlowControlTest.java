@@ -0,0 +1,143 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CommandFlowControlTest {
+
+    private static final UUID SERVICE = UUID.fromString("cdea40a1-dcdb-42bb-8557-5c3d7d5135cb");
+    private static final UUID LED = UUID.fromString("f7552729-9d2c-45cc-ba33-a3327a3bb6d0");
+
+    private int mReadyCount;
+
+    private final CommandFlowControl.Listener mCounter = new CommandFlowControl.Listener() {
+        @Override
+        public void onReady() {
+            mReadyCount++;
+        }
+    };
+
+    @Test
+    public void ackDrivenAllowsNextCommandOnRelease() {
+        CommandFlowControl flowControl = CommandFlowControl.ackDriven();
+        flowControl.setListener(mCounter);
+        assertTrue(flowControl.tryAcquire());
+        assertFalse(flowControl.tryAcquire());
+        flowControl.release();
+        assertEquals(1, mReadyCount);
+        assertTrue(flowControl.tryAcquire());
+    }
+
+    @Test
+    public void creditWindowAllowsSeveralInFlight() {
+        CommandFlowControl flowControl = CommandFlowControl.creditWindow(3);
+        flowControl.setListener(mCounter);
+        assertTrue(flowControl.tryAcquire());
+        assertTrue(flowControl.tryAcquire());
+        assertTrue(flowControl.tryAcquire());
+        assertFalse(flowControl.tryAcquire());
+        flowControl.release();
+        flowControl.release();
+        assertEquals(1, mReadyCount);                                                   //Only the transition out of the blocked state is reported
+        assertTrue(flowControl.isReady());
+    }
+
+    @Test
+    public void fixedDelayWaitsForScheduler() {
+        ManualTaskScheduler scheduler = new ManualTaskScheduler();
+        CommandFlowControl flowControl = CommandFlowControl.fixedDelay(scheduler, CommandFlowControl.LEGACY_DELAY_MILLIS);
+        assertTrue(flowControl.tryAcquire());
+        flowControl.release();
+        assertFalse(flowControl.isReady());
+        scheduler.runPending();
+        assertTrue(flowControl.isReady());
+    }
+
+    @Test
+    public void resetReturnsAllCredits() {
+        CommandFlowControl flowControl = CommandFlowControl.creditWindow(2);
+        flowControl.setListener(mCounter);
+        flowControl.tryAcquire();
+        flowControl.tryAcquire();
+        flowControl.reset();
+        flowControl.release();                                                          //Late completion after the reset must not overflow the window
+        assertTrue(flowControl.tryAcquire());
+        assertTrue(flowControl.tryAcquire());
+        assertFalse(flowControl.tryAcquire());
+    }
+
+    @Test
+    public void resetToALargerWindowReleasesAHeldCommand() {
+        CommandFlowControl flowControl = CommandFlowControl.ackDriven();
+        flowControl.setListener(mCounter);
+        assertTrue(flowControl.tryAcquire());
+        assertFalse(flowControl.tryAcquire());                                          //Held while the link comes up
+        flowControl.reset(3);                                                           //Ready, and the characteristic takes writes without response
+        assertEquals(1, mReadyCount);
+        assertEquals(3, flowControl.getWindow());
+        assertTrue(flowControl.tryAcquire());
+        assertTrue(flowControl.tryAcquire());
+        assertTrue(flowControl.tryAcquire());
+        assertFalse(flowControl.tryAcquire());
+        flowControl.release();
+        assertEquals(2, mReadyCount);                                                   //Blocked again and released by the new window
+        flowControl.reset(1);
+        assertTrue(flowControl.tryAcquire());
+        assertFalse(flowControl.tryAcquire());
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Toggle the LED as fast as the flow control allows against a peripheral that acknowledges after 2 ms: the next
+    // command is allowed well before the old fixed 100 ms delay would have ended
+    @Test
+    public void ackDrivenRoundTripBeatsTheFixedDelay() throws Exception {
+        ExecutorTaskScheduler scheduler = new ExecutorTaskScheduler();
+        long[] fixed = toggleRoundTrips(CommandFlowControl.fixedDelay(scheduler, CommandFlowControl.LEGACY_DELAY_MILLIS), scheduler, 10);
+        long[] acked = toggleRoundTrips(CommandFlowControl.ackDriven(), scheduler, 200);
+        scheduler.shutdown();
+
+        assertTrue(fixed[0] >= TimeUnit.MILLISECONDS.toNanos(CommandFlowControl.LEGACY_DELAY_MILLIS));
+        assertTrue(acked[acked.length / 2] < fixed[fixed.length / 2]);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Time from sending a toggle to being allowed to send the next one
+    private long[] toggleRoundTrips(CommandFlowControl flowControl, TaskScheduler scheduler, int count) throws Exception {
+        final Semaphore ready = new Semaphore(0);
+        final CommandFlowControl control = flowControl;
+        control.setListener(new CommandFlowControl.Listener() {
+            @Override
+            public void onReady() {
+                ready.release();
+            }
+        });
+        FakeGattTransport peripheral = new FakeGattTransport();
+        GattOperationQueue queue = new GattOperationQueue(peripheral, scheduler);
+        peripheral.autoComplete(queue, TimeUnit.MILLISECONDS.toNanos(2));
+        GattOperation.Callback release = new GattOperation.Callback() {
+            @Override
+            public void onOperationComplete(GattOperation operation, int status, byte[] value) {
+                control.release();
+            }
+        };
+
+        long[] roundTrips = new long[count];
+        for (int i = 0; i < count; i++) {
+            long start = System.nanoTime();
+            assertTrue(control.tryAcquire());
+            queue.enqueue(GattOperation.write(SERVICE, LED, new byte[] {(byte) ('0' + (i & 1))}, GattOperation.WRITE_TYPE_DEFAULT)
+                    .setCallback(release));
+            assertTrue(ready.tryAcquire(5, TimeUnit.SECONDS));
+            roundTrips[i] = System.nanoTime() - start;
+        }
+        peripheral.shutdown();
+        Arrays.sort(roundTrips);
+        return roundTrips;
+    }
+}
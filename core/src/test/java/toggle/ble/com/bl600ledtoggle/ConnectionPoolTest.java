@@ -0,0 +1,135 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ConnectionPoolTest {
+
+    private static final String BOARD_A = "00:16:A4:00:00:01";
+    private static final String BOARD_B = "00:16:A4:00:00:02";
+    private static final String BOARD_C = "00:16:A4:00:00:03";
+
+    private final List<String> mOpened = new ArrayList<String>();
+    private final List<String> mClosed = new ArrayList<String>();
+    private final ManualTaskScheduler mScheduler = new ManualTaskScheduler();
+
+    private final ConnectionPool.Factory<String> mFactory = new ConnectionPool.Factory<String>() {
+        @Override
+        public String open(String address) {
+            mOpened.add(address);
+            return address;
+        }
+
+        @Override
+        public void close(String connection) {
+            mClosed.add(connection);
+        }
+    };
+
+    private final ConnectionPool<String> mPool = new ConnectionPool<String>(mFactory, mScheduler, 2, 30000);
+
+    @Test
+    public void returnedLinkIsReusedWithoutReconnecting() {
+        mPool.borrow(BOARD_A);
+        mPool.release(BOARD_A);                                                         //Screen rotation: onPause then onResume
+        mPool.borrow(BOARD_A);
+
+        assertEquals(1, mOpened.size());
+        assertTrue(mClosed.isEmpty());
+        assertEquals(0, mScheduler.size());                                             //Idle timer was cancelled by the second borrow
+        assertEquals(1, mPool.getHits());
+        assertEquals(0.5, mPool.getHitRate(), 1e-9);
+    }
+
+    @Test
+    public void idleLinkIsClosedAfterTtl() {
+        mPool.borrow(BOARD_A);
+        mPool.release(BOARD_A);
+        mScheduler.runPending();
+
+        assertEquals(1, mClosed.size());
+        assertEquals(0, mPool.size());
+        assertEquals(1, mPool.getExpirations());
+    }
+
+    @Test
+    public void borrowedLinkDoesNotExpire() {
+        mPool.borrow(BOARD_A);
+        mPool.borrow(BOARD_B);
+        mPool.release(BOARD_B);
+        mScheduler.runPending();
+        assertEquals(1, mPool.size());                                                  //Only the idle link expired
+        assertEquals(Arrays.asList(BOARD_B), mClosed);
+    }
+
+    @Test
+    public void borrowedLinkIsNotLentTwice() {
+        mPool.borrow(BOARD_A);                                                          //A screen has the link
+        try {
+            mPool.borrow(BOARD_A);                                                      //The gateway asks for the same board
+            fail();
+        }
+        catch (IllegalStateException expected) {
+        }
+        assertEquals(1, mOpened.size());
+        assertEquals(0, mPool.getHits());
+        mPool.release(BOARD_A);
+        mPool.release(BOARD_A);                                                         //A second return is ignored
+        assertEquals(1, mScheduler.size());
+        mPool.borrow(BOARD_A);                                                          //Free again once returned
+        assertEquals(1, mPool.getHits());
+    }
+
+    @Test
+    public void leastRecentlyUsedIdleLinkIsEvictedAtLimit() {
+        mPool.borrow(BOARD_A);
+        mPool.borrow(BOARD_B);
+        mPool.release(BOARD_B);
+        mPool.release(BOARD_A);
+        mPool.borrow(BOARD_B);                                                          //A is now the least recently used
+        mPool.release(BOARD_B);
+
+        mPool.borrow(BOARD_C);
+        assertEquals(1, mClosed.size());
+        assertEquals(BOARD_A, mClosed.get(0));
+        assertEquals(1, mPool.getEvictions());
+        assertEquals(2, mPool.size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void limitWithEveryLinkBorrowedIsRefused() {
+        mPool.borrow(BOARD_A);
+        mPool.borrow(BOARD_B);
+        mPool.borrow(BOARD_C);
+    }
+
+    @Test
+    public void setupTimeIsCountedAsSavedOnEveryHit() {
+        mPool.borrow(BOARD_A);
+        mPool.recordSetupTime(BOARD_A, 1500000000L);                                    //Connect and discovery took 1.5 s
+        for (int i = 0; i < 3; i++) {
+            mPool.release(BOARD_A);
+            mPool.borrow(BOARD_A);
+        }
+        assertEquals(4500000000L, mPool.getSetupNanosSaved());
+        assertEquals(0.75, mPool.getHitRate(), 1e-9);
+    }
+
+    @Test
+    public void closeAllClosesIdleAndBorrowedLinks() {
+        mPool.borrow(BOARD_A);
+        mPool.borrow(BOARD_B);
+        mPool.release(BOARD_B);
+        mPool.closeAll();
+
+        assertEquals(2, mClosed.size());
+        assertEquals(0, mScheduler.size());
+        mPool.release(BOARD_A);                                                         //Late return after closeAll is ignored
+        assertEquals(0, mScheduler.size());
+    }
+}
@@ -0,0 +1,160 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class DeviceListStartupTest {
+
+    private static final long ADAPTER_SETUP_MILLIS = 300;                               //A slow cold BluetoothManager
+    private static final long FIRST_ROW_BUDGET_MILLIS = 100;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void recentDevicesSurviveARestartNewestFirst() throws Exception {
+        File file = new File(mFolder.getRoot(), "recent");
+        RecentDevices recent = new RecentDevices(file);
+        recent.record("00:00:00:00:00:01", "BL600 one", -60, 1000);
+        recent.record("00:00:00:00:00:02", "BL600 two", -70, 2000);
+        recent.record("00:00:00:00:00:01", null, -55, 3000);                            //Seen again without a name
+        recent.save();
+
+        List<RecentDevices.Device> loaded = new RecentDevices(file).load();
+        assertEquals(2, loaded.size());
+        assertEquals("00:00:00:00:00:01", loaded.get(0).address);
+        assertEquals("BL600 one", loaded.get(0).name);
+        assertEquals(-55, loaded.get(0).rssi);
+        assertEquals("00:00:00:00:00:02", loaded.get(1).address);
+    }
+
+    @Test
+    public void onlyTheNewestDevicesAreKept() throws Exception {
+        File file = new File(mFolder.getRoot(), "recent");
+        RecentDevices recent = new RecentDevices(file);
+        for (int i = 0; i < RecentDevices.MAX_DEVICES + 8; i++) {
+            recent.record(String.format("00:00:00:00:01:%02X", i), "", -60, i);
+        }
+        recent.save();
+        List<RecentDevices.Device> loaded = new RecentDevices(file).load();
+        assertEquals(RecentDevices.MAX_DEVICES, loaded.size());
+        assertEquals(RecentDevices.MAX_DEVICES + 7, loaded.get(0).lastSeenMillis);
+        assertEquals(8, loaded.get(loaded.size() - 1).lastSeenMillis);
+    }
+
+    @Test
+    public void corruptSnapshotStartsAnEmptyList() throws Exception {
+        File file = new File(mFolder.getRoot(), "recent");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[] {1, 2, 3});
+        out.close();
+        assertTrue(new RecentDevices(file).load().isEmpty());
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void liveResultsUpdateRememberedRowsInPlace() {
+        DeviceListModel list = new DeviceListModel();
+        RecentDevices recent = new RecentDevices(new File(mFolder.getRoot(), "recent"));
+        recent.record("00:00:00:00:00:01", "BL600 one", -60, 1000);
+        recent.record("00:00:00:00:00:02", "BL600 two", -70, 2000);
+        assertEquals(2, list.addRecent(recent.getDevices()));
+        assertFalse(list.get(0).isLive());
+
+        assertFalse(list.onLive("00:00:00:00:00:01", null, -50));                       //Already shown, no second row
+        assertTrue(list.onLive("00:00:00:00:00:03", "BL600 three", -80));
+        assertEquals(3, list.size());
+        DeviceListModel.Row one = list.find("00:00:00:00:00:01");
+        assertTrue(one.isLive());
+        assertEquals("BL600 one", one.getName());
+        assertEquals(-50, one.getRssi());
+        assertEquals(0, list.addRecent(recent.getDevices()));                           //Showing the snapshot again adds nothing
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Cold start against a stub adapter that takes ADAPTER_SETUP_MILLIS to come up. The remembered boards must be on
+    // the list well before that, and the scan result that arrives once it is up must merge into them.
+    @Test
+    public void firstRowDoesNotWaitForTheAdapter() throws Exception {
+        File file = new File(mFolder.getRoot(), "recent");
+        RecentDevices previous = new RecentDevices(file);
+        for (int i = 0; i < 8; i++) {
+            previous.record(String.format("00:00:00:00:00:%02X", i), "BL600 " + i, -60 - i, 1000 + i);
+        }
+        previous.save();
+
+        final CountDownLatch adapterOpened = new CountDownLatch(1);
+        DeviceListStartup.Adapter stub = new DeviceListStartup.Adapter() {
+            @Override
+            public boolean open() {
+                try {
+                    Thread.sleep(ADAPTER_SETUP_MILLIS);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                adapterOpened.countDown();
+                return true;
+            }
+        };
+
+        final LinkedBlockingQueue<Runnable> uiQueue = new LinkedBlockingQueue<Runnable>();
+        ExecutorService background = Executors.newSingleThreadExecutor();
+        final StartupTrace trace = new StartupTrace();
+        final DeviceListModel list = new DeviceListModel();
+        final boolean[] adapterReady = new boolean[1];
+        try {
+            trace.markLaunch(System.nanoTime());
+            new DeviceListStartup(new RecentDevices(file), stub, background, new java.util.concurrent.Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    uiQueue.add(command);
+                }
+            }).start(new DeviceListStartup.Listener() {
+                @Override
+                public void onRecentDevices(List<RecentDevices.Device> devices) {
+                    list.addRecent(devices);
+                    if (list.size() > 0) {
+                        trace.markFirstRow(System.nanoTime());
+                    }
+                }
+
+                @Override
+                public void onAdapterReady(boolean available) {
+                    adapterReady[0] = available;
+                    list.onLive("00:00:00:00:00:03", "BL600 3", -40);                  //First live result after the scan starts
+                }
+            });
+
+            uiQueue.poll(5, TimeUnit.SECONDS).run();                                    //The UI thread picks up the snapshot
+            assertEquals(8, list.size());
+            assertEquals(1, adapterOpened.getCount());                                  //Adapter still coming up
+            long firstRowMillis = trace.getFirstRowNanos() / 1000000;
+            assertTrue("first row after " + firstRowMillis + " ms", firstRowMillis < FIRST_ROW_BUDGET_MILLIS);
+
+            uiQueue.poll(5, TimeUnit.SECONDS).run();
+            assertTrue(adapterReady[0]);
+            assertEquals(8, list.size());
+            assertTrue(list.find("00:00:00:00:00:03").isLive());
+
+            trace.markFirstConnect(System.nanoTime());
+            assertTrue(trace.getFirstConnectNanos() >= TimeUnit.MILLISECONDS.toNanos(ADAPTER_SETUP_MILLIS));
+            assertFalse(trace.markFirstRow(System.nanoTime()));                         //Counted once per launch
+        }
+        finally {
+            background.shutdownNow();
+        }
+    }
+}
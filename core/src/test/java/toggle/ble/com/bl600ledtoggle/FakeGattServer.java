@@ -0,0 +1,230 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * In-process stand-in for a room full of BL600 boards, on virtual time. Each board is driven by a
+ * {@link LedDeviceSession} over a link of its own that answers every ATT operation one link delay after it starts. All
+ * sessions share one {@link VirtualTimeScheduler}, so the links run side by side as the test advances the clock, and
+ * the server counts the operations on the air, per board and across the room.
+ */
+public class FakeGattServer {
+
+    /**
+     * One board and the link to it. Events are delivered to the session on the shared scheduler.
+     */
+    public class Board implements BleTransport {
+        private final String mAddress;
+        private final LedDeviceSession mSession;
+        private final List<byte[]> mWrites = new ArrayList<byte[]>();                  //Values written to LED_TOGGLE, in order
+        private byte[] mValue = {'0'};
+        private int mInFlight, mMaxInFlight;
+
+        Board(String address) {
+            mAddress = address;
+            mSession = new LedDeviceSession(this, mScheduler, mCache);
+        }
+
+        public LedDeviceSession getSession() {
+            return mSession;
+        }
+
+        public List<byte[]> getWrites() {
+            return new ArrayList<byte[]>(mWrites);
+        }
+
+        public int getMaxInFlight() {
+            return mMaxInFlight;
+        }
+
+        @Override
+        public String getAddress() {
+            return mAddress;
+        }
+
+        @Override
+        public boolean connect() {
+            answer(new Runnable() {
+                @Override
+                public void run() {
+                    mSession.onConnectionStateChange(GattOperation.GATT_SUCCESS, true);
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public boolean reconnect(boolean background) {
+            return connect();
+        }
+
+        @Override
+        public void disconnect() {
+            answer(new Runnable() {
+                @Override
+                public void run() {
+                    mSession.onConnectionStateChange(GattOperation.GATT_SUCCESS, false);
+                }
+            });
+        }
+
+        @Override
+        public void reset() {
+        }
+
+        @Override
+        public boolean discoverServices() {
+            answer(new Runnable() {
+                @Override
+                public void run() {
+                    mSession.onServicesDiscovered(GattOperation.GATT_SUCCESS);
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public GattLayout getLayout() {
+            return new GattLayout(Arrays.asList(new GattLayout.Characteristic(LedGattProfile.LED_SERVICE,
+                    LedGattProfile.LED_TOGGLE, GattLayout.PROPERTY_READ | GattLayout.PROPERTY_WRITE
+                    | GattLayout.PROPERTY_NOTIFY, true)));
+        }
+
+        @Override
+        public boolean setNotificationsEnabled(GattLayout.Characteristic characteristic, boolean enabled) {
+            return true;
+        }
+
+        @Override
+        public boolean isBonded() {
+            return false;
+        }
+
+        @Override
+        public boolean readCharacteristic(UUID service, final UUID characteristic) {
+            final byte[] value = mValue.clone();
+            onAir(new Runnable() {
+                @Override
+                public void run() {
+                    mSession.onCharacteristicRead(characteristic, GattOperation.GATT_SUCCESS, value);
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public boolean writeCharacteristic(UUID service, final UUID characteristic, byte[] value, int writeType) {
+            mWrites.add(value.clone());
+            mValue = value.clone();
+            onAir(new Runnable() {
+                @Override
+                public void run() {
+                    mSession.onCharacteristicWrite(characteristic, GattOperation.GATT_SUCCESS);
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public boolean writeDescriptor(UUID service, final UUID characteristic, final UUID descriptor, byte[] value) {
+            onAir(new Runnable() {
+                @Override
+                public void run() {
+                    mSession.onDescriptorWrite(characteristic, descriptor, GattOperation.GATT_SUCCESS);
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public boolean requestMtu(final int mtu) {
+            onAir(new Runnable() {
+                @Override
+                public void run() {
+                    mSession.onMtuChanged(mtu, GattOperation.GATT_SUCCESS);
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public boolean requestConnectionPriority(int priority) {
+            return true;
+        }
+
+        // ------------------------------------------------------------------------------------------------------------
+        // An ATT operation: counted as on the air until its answer is delivered one link delay later
+        private void onAir(final Runnable answer) {
+            mInFlight++;
+            mMaxInFlight = Math.max(mMaxInFlight, mInFlight);
+            mRoomInFlight++;
+            mMaxRoomInFlight = Math.max(mMaxRoomInFlight, mRoomInFlight);
+            answer(new Runnable() {
+                @Override
+                public void run() {
+                    mInFlight--;
+                    mRoomInFlight--;
+                    answer.run();
+                }
+            });
+        }
+
+        private void answer(Runnable event) {
+            mScheduler.postDelayed(event, mLinkDelayMillis);
+        }
+    }
+
+    private final VirtualTimeScheduler mScheduler = new VirtualTimeScheduler();
+    private final long mLinkDelayMillis;
+    private final GattLayoutCache mCache;
+    private final Map<String, Board> mBoards = new LinkedHashMap<String, Board>();
+    private int mRoomInFlight, mMaxRoomInFlight;
+
+    public FakeGattServer(long linkDelayMillis, File cacheDirectory) throws IOException {
+        mLinkDelayMillis = linkDelayMillis;
+        mCache = new GattLayoutCache(cacheDirectory);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Add a board and start connecting its session. The LED service is ready after a few link delays of virtual time.
+    public Board add(String address) {
+        Board board = new Board(address);
+        mBoards.put(address, board);
+        board.getSession().connect();
+        return board;
+    }
+
+    public Board getBoard(String address) {
+        return mBoards.get(address);
+    }
+
+    public VirtualTimeScheduler getScheduler() {                                        //The thread every session is confined to
+        return mScheduler;
+    }
+
+    public int getMaxInFlight() {                                                       //Most operations on the air at once across all boards
+        return mMaxRoomInFlight;
+    }
+
+    public void resetMaxInFlight() {
+        mMaxRoomInFlight = mRoomInFlight;
+        for (Board board : mBoards.values()) {
+            board.mMaxInFlight = board.mInFlight;
+        }
+    }
+
+    public static List<String> addresses(int count) {
+        List<String> addresses = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            addresses.add(String.format("00:16:A4:00:%02X:%02X", i >> 8, i & 0xFF));
+        }
+        return addresses;
+    }
+}
@@ -0,0 +1,209 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * GattTransport for tests. Records every operation that is started. When an executor is attached with
+ * {@link #autoComplete(GattOperationQueue, long)} each accepted operation is acknowledged on a separate thread after a
+ * simulated link delay, the way the Binder thread delivers BluetoothGattCallback events on a phone. With
+ * {@link #setMtu(int)} the link also models the ATT MTU: a write longer than MTU - 3 goes out as queued writes, one
+ * prepare per MTU - 5 bytes plus an execute, each costing a link delay, and a write without response that does not fit
+ * is refused.
+ */
+public class FakeGattTransport implements GattTransport {
+
+    public static class Call {
+        public final GattOperation.Type type;
+        public final UUID characteristic, descriptor;
+        public final byte[] value;
+
+        Call(GattOperation.Type type, UUID characteristic, UUID descriptor, byte[] value) {
+            this.type = type;
+            this.characteristic = characteristic;
+            this.descriptor = descriptor;
+            this.value = value;
+        }
+    }
+
+    private static final long PARK_THRESHOLD_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    private final List<Call> mCalls = new ArrayList<Call>();
+    private int mRejectCount;                                                           //Number of upcoming calls to refuse
+    private byte[] mReadValue = new byte[] {'0'};
+    private ExecutorService mLink;
+    private GattOperationQueue mQueue;
+    private long mLinkDelayNanos;
+    private int mMtu;                                                                   //0 = not modelled
+    private int mMtuGranted = 23;                                                       //Largest MTU the simulated board accepts
+    private final List<Integer> mPriorities = new ArrayList<Integer>();
+    private boolean mPrioritySupported = true;
+
+    public synchronized void rejectNext(int count) {
+        mRejectCount = count;
+    }
+
+    public synchronized void setReadValue(byte[] value) {
+        mReadValue = value;
+    }
+
+    public synchronized void setMtu(int mtu) {
+        mMtu = mtu;
+    }
+
+    public synchronized void setMtuGranted(int mtu) {
+        mMtuGranted = mtu;
+    }
+
+    public synchronized void setPrioritySupported(boolean supported) {
+        mPrioritySupported = supported;
+    }
+
+    public synchronized List<Integer> getPriorities() {
+        return new ArrayList<Integer>(mPriorities);
+    }
+
+    public synchronized List<Call> getCalls() {
+        return new ArrayList<Call>(mCalls);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Acknowledge every accepted operation on a background thread after linkDelayNanos
+    public void autoComplete(GattOperationQueue queue, long linkDelayNanos) {
+        mQueue = queue;
+        mLinkDelayNanos = linkDelayNanos;
+        mLink = Executors.newSingleThreadExecutor();
+    }
+
+    public void shutdown() throws InterruptedException {
+        if (mLink != null) {
+            mLink.shutdown();
+            mLink.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    public boolean readCharacteristic(UUID service, final UUID characteristic) {
+        if (!record(GattOperation.Type.READ, characteristic, null, null)) {
+            return false;
+        }
+        final byte[] value;
+        synchronized (this) {
+            value = mReadValue;
+        }
+        complete(new Runnable() {
+            @Override
+            public void run() {
+                mQueue.onCharacteristicRead(characteristic, GattOperation.GATT_SUCCESS, value);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean writeCharacteristic(UUID service, final UUID characteristic, byte[] value, int writeType) {
+        int roundTrips = 1;
+        synchronized (this) {
+            if (mMtu > 0 && value.length > mMtu - 3) {
+                if (writeType == GattOperation.WRITE_TYPE_NO_RESPONSE || value.length > 512) {
+                    return false;
+                }
+                roundTrips = (value.length + mMtu - 6) / (mMtu - 5) + 1;                //Prepare writes then execute
+            }
+        }
+        if (!record(GattOperation.Type.WRITE, characteristic, null, value)) {
+            return false;
+        }
+        complete(new Runnable() {
+            @Override
+            public void run() {
+                mQueue.onCharacteristicWrite(characteristic, GattOperation.GATT_SUCCESS);
+            }
+        }, roundTrips);
+        return true;
+    }
+
+    @Override
+    public boolean writeDescriptor(UUID service, final UUID characteristic, final UUID descriptor, byte[] value) {
+        if (!record(GattOperation.Type.WRITE_DESCRIPTOR, characteristic, descriptor, value)) {
+            return false;
+        }
+        complete(new Runnable() {
+            @Override
+            public void run() {
+                mQueue.onDescriptorWrite(characteristic, descriptor, GattOperation.GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+        if (!record(GattOperation.Type.REQUEST_MTU, null, null, null)) {
+            return false;
+        }
+        final int granted;
+        synchronized (this) {
+            granted = Math.min(mtu, mMtuGranted);
+            if (mMtu > 0) {
+                mMtu = granted;
+            }
+        }
+        complete(new Runnable() {
+            @Override
+            public void run() {
+                mQueue.onMtuChanged(granted, GattOperation.GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public synchronized boolean requestConnectionPriority(int priority) {
+        if (!mPrioritySupported) {
+            return false;
+        }
+        mPriorities.add(priority);
+        return true;
+    }
+
+    private synchronized boolean record(GattOperation.Type type, UUID characteristic, UUID descriptor, byte[] value) {
+        if (mRejectCount > 0) {
+            mRejectCount--;
+            return false;
+        }
+        mCalls.add(new Call(type, characteristic, descriptor, value));
+        return true;
+    }
+
+    private void complete(Runnable ack) {
+        complete(ack, 1);
+    }
+
+    private void complete(final Runnable ack, final int roundTrips) {
+        if (mLink == null) {
+            return;                                                                     //Manual mode, the test delivers the callback
+        }
+        mLink.execute(new Runnable() {
+            @Override
+            public void run() {
+                long delayNanos = mLinkDelayNanos * roundTrips;
+                if (delayNanos >= PARK_THRESHOLD_NANOS) {
+                    LockSupport.parkNanos(delayNanos);                                 //Long enough to give the CPU to other simulated links
+                }
+                else {
+                    long until = System.nanoTime() + delayNanos;
+                    while (System.nanoTime() < until) {
+                        //Spin for the simulated air time, parking is far too coarse for a few microseconds
+                    }
+                }
+                ack.run();
+            }
+        });
+    }
+}
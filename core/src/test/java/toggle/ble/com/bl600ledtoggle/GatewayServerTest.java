@@ -0,0 +1,355 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class GatewayServerTest {
+
+    private static final String BOARD_A = "00:16:A4:12:34:56";
+    private static final String BOARD_B = "00:16:A4:12:34:57";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * A board whose LED writes and reads complete at once, reporting each write as a notification would.
+     */
+    private static class FakeController implements LedController {
+        private final LedStateCodec mCodec = new LedStateCodec(LedStateCodec.Mode.BINARY);
+        private final LedState mState = new LedState();
+        private Listener mListener;
+        boolean ready = true;
+
+        @Override
+        public void setLedListener(Listener listener) {
+            mListener = listener;
+        }
+
+        @Override
+        public boolean isReady() {
+            return ready;
+        }
+
+        @Override
+        public boolean isWriteWithoutResponse() {
+            return false;
+        }
+
+        @Override
+        public void setWriteMode(WriteMode mode) {
+        }
+
+        @Override
+        public WriteMode getWriteMode() {
+            return WriteMode.ORDERED;
+        }
+
+        @Override
+        public boolean setLed(int state, GattOperation.Callback callback) {
+            if (!ready) {
+                return false;
+            }
+            mState.set(state, 0, LedState.ABSENT, LedState.ABSENT);
+            callback.onOperationComplete(null, GattOperation.GATT_SUCCESS, null);
+            if (mListener != null) {
+                mListener.onLedStateChanged(mState, false);
+            }
+            return true;
+        }
+
+        @Override
+        public boolean setLedAcknowledged(int state, GattOperation.Callback callback) {
+            return setLed(state, callback);
+        }
+
+        @Override
+        public boolean toggle(GattOperation.Callback callback) {
+            return setLed(mState.state != 0 ? 0 : 1, callback);
+        }
+
+        @Override
+        public boolean readLed(GattOperation.Callback callback) {
+            return readLed(false, callback);
+        }
+
+        @Override
+        public boolean readLed(boolean force, GattOperation.Callback callback) {
+            if (!ready) {
+                return false;
+            }
+            callback.onOperationComplete(null, GattOperation.GATT_SUCCESS, mCodec.encode(mState));
+            return true;
+        }
+
+        @Override
+        public boolean sendBatch(LedCommandBatch batch, LedBatchWriter.Listener listener) {
+            return false;
+        }
+
+        @Override
+        public LedStateCodec.Mode getFormat() {
+            return mCodec.getMode();
+        }
+    }
+
+    private final ExecutorTaskScheduler mSessionThread = new ExecutorTaskScheduler("FakeSession");
+    private final FakeController mBoardA = new FakeController();
+    private final FakeController mBoardB = new FakeController();
+    private GatewayServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        LedGateway gateway = new LedGateway();
+        gateway.addDevice(BOARD_A, mBoardA, mSessionThread);
+        gateway.addDevice(BOARD_B, mBoardB, mSessionThread);
+        mServer = new GatewayServer(gateway, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.close();
+        mSessionThread.shutdown();
+    }
+
+    @Test
+    public void writesAndReadsOneBoard() throws IOException {
+        Socket socket = connect();
+        assertEquals("200 {\"address\":\"00:16:A4:12:34:56\",\"state\":1,\"status\":0}",
+                call(socket, "PUT", "/devices/" + BOARD_A + "/led", "1"));
+        assertEquals("200 {\"address\":\"00:16:A4:12:34:56\",\"state\":1,\"status\":0}",
+                call(socket, "GET", "/devices/" + BOARD_A + "/led", null));
+        assertEquals("200 {\"address\":\"00:16:A4:12:34:56\",\"state\":0,\"status\":0}",
+                call(socket, "PUT", "/devices/00%3A16%3AA4%3A12%3A34%3A56/led", "{\"state\": 0}"));
+        assertEquals("200 {\"devices\":[{\"address\":\"00:16:A4:12:34:56\",\"state\":0},"
+                + "{\"address\":\"00:16:A4:12:34:57\",\"state\":-1}]}", call(socket, "GET", "/devices", null));
+        socket.close();
+    }
+
+    @Test
+    public void errorsMapToHttpStatus() throws IOException {
+        Socket socket = connect();
+        assertTrue(call(socket, "GET", "/devices/00:00:00:00:00:00/led", null).startsWith("404 "));
+        assertTrue(call(socket, "PUT", "/devices/" + BOARD_A + "/led", "on").startsWith("400 "));
+        assertTrue(call(socket, "DELETE", "/devices", null).startsWith("405 "));
+        mBoardB.ready = false;
+        assertTrue(call(socket, "PUT", "/devices/" + BOARD_B + "/led", "1").startsWith("503 "));
+        assertTrue(call(socket, "GET", "/nothing", null).startsWith("404 "));
+        assertTrue(call(socket, "GET", "/devices", null).startsWith("200 "));           //Still usable after the errors
+        socket.close();
+    }
+
+    @Test
+    public void batchWritesEveryBoard() throws IOException {
+        Socket socket = connect();
+        String response = call(socket, "POST", "/led",
+                "{\"" + BOARD_A + "\": 1, \"" + BOARD_B + "\": 1, \"00:00:00:00:00:00\": 0}");
+        assertTrue(response, response.startsWith("200 "));
+        assertTrue(response, response.contains("\"" + BOARD_A + "\":0"));
+        assertTrue(response, response.contains("\"" + BOARD_B + "\":0"));
+        assertTrue(response, response.contains("\"00:00:00:00:00:00\":" + LedGateway.STATUS_NO_DEVICE));
+        assertTrue(response, response.endsWith("\"ok\":false}"));
+        assertTrue(call(socket, "GET", "/devices", null).contains("{\"address\":\"" + BOARD_B + "\",\"state\":1}"));
+        socket.close();
+    }
+
+    @Test
+    public void broadcastWritesEveryBoard() throws IOException {
+        Socket socket = connect();
+        String response = call(socket, "PUT", "/led", "{\"state\": 1}");
+        assertTrue(response, response.startsWith("200 {\"results\":{"));
+        assertTrue(response, response.contains("\"latencyMicros\":{\"" + BOARD_A + "\":"));
+        assertTrue(response, response.endsWith("\"ok\":true}"));
+        assertEquals("200 {\"devices\":[{\"address\":\"00:16:A4:12:34:56\",\"state\":1},"
+                + "{\"address\":\"00:16:A4:12:34:57\",\"state\":1}]}", call(socket, "GET", "/devices", null));
+        socket.close();
+    }
+
+    @Test
+    public void sceneWritesEveryBoardAndReportsTheSkew() throws IOException {
+        Socket socket = connect();
+        String response = call(socket, "POST", "/scene", "{\"" + BOARD_A + "\": 1, \"" + BOARD_B + "\": 1}");
+        assertTrue(response, response.startsWith("200 {\"skewMicros\":"));
+        assertTrue(response, response.contains("\"withinBound\":true"));
+        assertTrue(response, response.contains("\"leadMicros\":{\"" + BOARD_A + "\":"));
+        assertTrue(response, response.endsWith("\"failed\":[]}"));
+        assertEquals("200 {\"devices\":[{\"address\":\"00:16:A4:12:34:56\",\"state\":1},"
+                + "{\"address\":\"00:16:A4:12:34:57\",\"state\":1}]}", call(socket, "GET", "/devices", null));
+        assertTrue(call(socket, "PUT", "/scene", "1").startsWith("405 "));
+        socket.close();
+    }
+
+    @Test
+    public void pipelinedRequestsAreAnsweredInOrder() throws IOException {
+        Socket socket = connect();
+        String request = "PUT /devices/" + BOARD_A + "/led HTTP/1.1\r\nContent-Length: 1\r\n\r\n1"
+                + "GET /devices/" + BOARD_A + "/led HTTP/1.1\r\n\r\n"
+                + "PUT /devices/" + BOARD_A + "/led HTTP/1.1\r\nContent-Length: 1\r\n\r\n0"
+                + "GET /devices/" + BOARD_A + "/led HTTP/1.1\r\nConnection: close\r\n\r\n";
+        socket.getOutputStream().write(request.getBytes(UTF_8));
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        assertTrue(readResponse(in).contains("\"state\":1"));
+        assertTrue(readResponse(in).contains("\"state\":1"));
+        assertTrue(readResponse(in).contains("\"state\":0"));
+        assertTrue(readResponse(in).contains("\"state\":0"));
+        assertEquals(-1, in.read());                                                    //Closed as asked
+        socket.close();
+    }
+
+    @Test
+    public void webSocketStreamsStateChanges() throws IOException {
+        Socket events = connect();
+        events.getOutputStream().write(("GET /events HTTP/1.1\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\nSec-WebSocket-Version: 13\r\n\r\n").getBytes(UTF_8));
+        InputStream in = new BufferedInputStream(events.getInputStream());
+        String head = readHead(in);
+        assertTrue(head, head.startsWith("HTTP/1.1 101 "));
+        assertTrue(head, head.contains("Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo="));  //The example of RFC 6455
+
+        Socket commands = connect();
+        call(commands, "PUT", "/devices/" + BOARD_B + "/led", "1");
+        assertEquals("{\"address\":\"" + BOARD_B + "\",\"state\":1,\"fromRead\":false}", readTextFrame(in));
+        call(commands, "PUT", "/devices/" + BOARD_B + "/led", "0");
+        assertEquals("{\"address\":\"" + BOARD_B + "\",\"state\":0,\"fromRead\":false}", readTextFrame(in));
+        commands.close();
+
+        OutputStream out = events.getOutputStream();
+        out.write(new byte[] {(byte) 0x88, (byte) 0x80, 1, 2, 3, 4});                  //Masked close frame
+        out.flush();
+        assertEquals(0x88, in.read());
+        assertEquals(0, in.read());
+        assertEquals(-1, in.read());
+        events.close();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // In LATEST write mode a command waiting behind a write in flight is answered by the write of the newest state,
+    // and the gateway reports that state rather than the one asked for
+    @Test
+    public void supersededCommandIsAnsweredWithTheStateWritten() {
+        final List<GattOperation.Callback> waiting = new ArrayList<GattOperation.Callback>();
+        FakeController coalescing = new FakeController() {
+            @Override
+            public boolean setLed(int state, GattOperation.Callback callback) {
+                waiting.add(callback);
+                return true;
+            }
+        };
+        ManualTaskScheduler sessionThread = new ManualTaskScheduler();
+        LedGateway gateway = new LedGateway();
+        gateway.addDevice(BOARD_A, coalescing, sessionThread);
+        final List<Integer> replies = new ArrayList<Integer>();
+        LedGateway.Reply reply = new LedGateway.Reply() {
+            @Override
+            public void onReply(String address, int status, int state) {
+                replies.add(state);
+            }
+        };
+        gateway.setLed(BOARD_A, 0, reply);
+        gateway.setLed(BOARD_A, 1, reply);                                              //Takes the place of 0 before it is sent
+        sessionThread.runPending();
+
+        LedState newest = new LedState();
+        newest.set(1, 0, LedState.ABSENT, LedState.ABSENT);
+        GattOperation write = GattOperation.write(LedGattProfile.LED_SERVICE, LedGattProfile.LED_TOGGLE,
+                new LedStateCodec(LedStateCodec.Mode.BINARY).encode(newest), GattOperation.WRITE_TYPE_DEFAULT);
+        for (GattOperation.Callback callback : waiting) {
+            callback.onOperationComplete(write, GattOperation.GATT_SUCCESS, null);
+        }
+        assertEquals(2, replies.size());
+        assertEquals(Integer.valueOf(1), replies.get(0));
+        assertEquals(Integer.valueOf(1), replies.get(1));
+        assertEquals(1, gateway.getLastState(BOARD_A));
+    }
+
+    @Test
+    public void parsesStateBodies() {
+        Map<String, Integer> states = GatewayServer.parseStates(" {\"" + BOARD_A + "\":1 , \"" + BOARD_B + "\": false} ");
+        assertEquals(Integer.valueOf(1), states.get(BOARD_A));
+        assertEquals(Integer.valueOf(0), states.get(BOARD_B));
+        assertEquals(1, GatewayServer.parseStateBody("true"));
+        assertEquals(0, GatewayServer.parseStateBody("{\"state\":0}"));
+        assertEquals("Zm9vYg==", GatewayServer.base64("foob".getBytes(UTF_8)));
+        try {
+            GatewayServer.parseStates("[1]");
+            fail();
+        }
+        catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), mServer.getPort());
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Send one request on the connection and return "status body"
+    private static String call(Socket socket, String method, String path, String body) throws IOException {
+        byte[] content = body != null ? body.getBytes(UTF_8) : new byte[0];
+        String head = method + " " + path + " HTTP/1.1\r\nHost: test\r\n"
+                + (body != null ? "Content-Length: " + content.length + "\r\n" : "") + "\r\n";
+        OutputStream out = socket.getOutputStream();
+        out.write(head.getBytes(UTF_8));
+        out.write(content);
+        out.flush();
+        return readResponse(socket.getInputStream());
+    }
+
+    private static String readResponse(InputStream in) throws IOException {
+        String head = readHead(in);
+        String status = head.substring(9, 12);
+        int length = 0;
+        for (String line : head.split("\r\n")) {
+            if (line.startsWith("Content-Length: ")) {
+                length = Integer.parseInt(line.substring(16));
+            }
+        }
+        byte[] body = new byte[length];
+        for (int i = 0; i < length; i++) {
+            body[i] = (byte) in.read();
+        }
+        return status + " " + new String(body, UTF_8);
+    }
+
+    private static String readHead(InputStream in) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int matched = 0;
+        while (matched < 4) {
+            int c = in.read();
+            if (c < 0) {
+                throw new IOException("Closed in the head");
+            }
+            head.write(c);
+            matched = (c == '\r' && (matched == 0 || matched == 2)) || (c == '\n' && (matched == 1 || matched == 3))
+                    ? matched + 1 : (c == '\r' ? 1 : 0);
+        }
+        return new String(head.toByteArray(), UTF_8);
+    }
+
+    private static String readTextFrame(InputStream in) throws IOException {
+        assertEquals(0x81, in.read());
+        int length = in.read();
+        assertTrue(length < 126);
+        byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) {
+            payload[i] = (byte) in.read();
+        }
+        return new String(payload, UTF_8);
+    }
+}
@@ -0,0 +1,227 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class GattLayoutCacheTest {
+
+    private static final String ADDRESS = "00:16:A4:12:34:56";
+    private static final UUID GAP_SERVICE = UUID.fromString("00001800-0000-1000-8000-00805f9b34fb");
+    private static final UUID DEVICE_NAME = UUID.fromString("00002a00-0000-1000-8000-00805f9b34fb");
+    private static final UUID APPEARANCE = UUID.fromString("00002a01-0000-1000-8000-00805f9b34fb");
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final FakeGattTransport mTransport = new FakeGattTransport();
+    private final GattOperationQueue mQueue = new GattOperationQueue(mTransport, new ManualTaskScheduler());
+    private final List<String> mEvents = new ArrayList<String>();
+
+    private final LedServiceSetup.Listener mRecorder = new LedServiceSetup.Listener() {
+        @Override
+        public void onNotificationsEnabled(GattLayout.Characteristic characteristic) {
+            mEvents.add("notify");
+        }
+
+        @Override
+        public void onLedServiceReady(GattLayout.Characteristic ledToggle, boolean fromCache) {
+            mEvents.add(fromCache ? "ready cached" : "ready");
+        }
+
+        @Override
+        public void onLedServiceMissing() {
+            mEvents.add("missing");
+        }
+    };
+
+    private static GattLayout bl600Layout(int ledProperties) {
+        return new GattLayout(Arrays.asList(
+                new GattLayout.Characteristic(GAP_SERVICE, DEVICE_NAME, GattLayout.PROPERTY_READ, false),
+                new GattLayout.Characteristic(GAP_SERVICE, APPEARANCE, GattLayout.PROPERTY_READ, false),
+                new GattLayout.Characteristic(LedGattProfile.DEVICE_INFORMATION_SERVICE, LedGattProfile.FIRMWARE_REVISION,
+                        GattLayout.PROPERTY_READ, false),
+                new GattLayout.Characteristic(LedGattProfile.LED_SERVICE, LedGattProfile.LED_TOGGLE, ledProperties, true)));
+    }
+
+    private static GattLayout bl600Layout() {
+        return bl600Layout(GattLayout.PROPERTY_READ | GattLayout.PROPERTY_WRITE | GattLayout.PROPERTY_NOTIFY);
+    }
+
+    @Test
+    public void layoutSurvivesRestart() throws Exception {
+        File directory = mFolder.newFolder();
+        new GattLayoutCache(directory).store(ADDRESS, "1.8.88.0", bl600Layout());
+
+        GattLayoutCache.Entry entry = new GattLayoutCache(directory).load(ADDRESS);    //Fresh instance has to read the file
+        assertNotNull(entry);
+        assertEquals("1.8.88.0", entry.firmwareRevision);
+        assertEquals(bl600Layout(), entry.layout);
+        assertNull(new GattLayoutCache(directory).load("00:16:A4:00:00:01"));
+    }
+
+    @Test
+    public void corruptFileIsAMiss() throws Exception {
+        File directory = mFolder.newFolder();
+        new GattLayoutCache(directory).store(ADDRESS, "1.8.88.0", bl600Layout());
+        File[] files = directory.listFiles();
+        assertEquals(1, files.length);
+        FileOutputStream out = new FileOutputStream(files[0]);
+        out.write(new byte[] {1, 2, 3});
+        out.close();
+
+        assertNull(new GattLayoutCache(directory).load(ADDRESS));
+        assertFalse(files[0].exists());
+    }
+
+    @Test
+    public void coldSetupEnablesNotificationsThenStoresLayoutUnderFirmwareRevision() throws Exception {
+        GattLayoutCache cache = new GattLayoutCache(mFolder.newFolder());
+        LedServiceSetup setup = new LedServiceSetup(cache, mQueue, mRecorder);
+
+        setup.onServicesDiscovered(ADDRESS, bl600Layout(), false);
+        assertEquals(Arrays.asList("notify", "ready"), mEvents);
+        assertEquals(GattOperation.Type.WRITE_DESCRIPTOR, mTransport.getCalls().get(0).type);
+        assertNull(cache.load(ADDRESS));                                                //Not stored until the revision is known
+
+        mQueue.onDescriptorWrite(LedGattProfile.LED_TOGGLE, LedGattProfile.CHARACTERISTIC_NOTIFICATION_CONFIG, GattOperation.GATT_SUCCESS);
+        assertEquals(LedGattProfile.FIRMWARE_REVISION, mTransport.getCalls().get(1).characteristic);
+        mQueue.onCharacteristicRead(LedGattProfile.FIRMWARE_REVISION, GattOperation.GATT_SUCCESS, "1.8.88.0".getBytes("UTF-8"));
+
+        assertEquals("1.8.88.0", cache.load(ADDRESS).firmwareRevision);
+        assertEquals(1, setup.getCacheMisses());
+    }
+
+    @Test
+    public void warmSetupOnBondedLinkSkipsDescriptorWrite() throws Exception {
+        GattLayoutCache cache = new GattLayoutCache(mFolder.newFolder());
+        cache.store(ADDRESS, "1.8.88.0", bl600Layout());
+        LedServiceSetup setup = new LedServiceSetup(cache, mQueue, mRecorder);
+
+        setup.onServicesDiscovered(ADDRESS, bl600Layout(), true);
+        assertEquals(Arrays.asList("notify", "ready cached"), mEvents);
+        assertEquals(1, mTransport.getCalls().size());
+        assertEquals(GattOperation.Type.READ, mTransport.getCalls().get(0).type);      //Only the revision check, after the first command
+        assertEquals(1, setup.getCacheHits());
+    }
+
+    @Test
+    public void changedLayoutInvalidatesEntry() throws Exception {
+        GattLayoutCache cache = new GattLayoutCache(mFolder.newFolder());
+        cache.store(ADDRESS, "1.8.88.0", bl600Layout());
+        LedServiceSetup setup = new LedServiceSetup(cache, mQueue, mRecorder);
+
+        GattLayout updated = bl600Layout(GattLayout.PROPERTY_READ | GattLayout.PROPERTY_WRITE_NO_RESPONSE | GattLayout.PROPERTY_NOTIFY);
+        setup.onServicesDiscovered(ADDRESS, updated, true);
+        assertEquals(Arrays.asList("notify", "ready"), mEvents);
+        assertEquals(1, setup.getInvalidations());
+        assertNull(cache.load(ADDRESS));
+        assertEquals(GattOperation.Type.WRITE_DESCRIPTOR, mTransport.getCalls().get(0).type); //Full setup, even though the link is bonded
+
+        mQueue.onDescriptorWrite(LedGattProfile.LED_TOGGLE, LedGattProfile.CHARACTERISTIC_NOTIFICATION_CONFIG, GattOperation.GATT_SUCCESS);
+        mQueue.onCharacteristicRead(LedGattProfile.FIRMWARE_REVISION, GattOperation.GATT_SUCCESS, "1.9.0.0".getBytes("UTF-8"));
+        assertEquals(updated, cache.load(ADDRESS).layout);
+    }
+
+    @Test
+    public void newFirmwareWithSameLayoutUpdatesRevision() throws Exception {
+        GattLayoutCache cache = new GattLayoutCache(mFolder.newFolder());
+        cache.store(ADDRESS, "1.8.88.0", bl600Layout());
+        LedServiceSetup setup = new LedServiceSetup(cache, mQueue, mRecorder);
+
+        assertTrue(setup.startFromCache(ADDRESS, true));
+        mQueue.onCharacteristicRead(LedGattProfile.FIRMWARE_REVISION, GattOperation.GATT_SUCCESS, "1.9.0.0".getBytes("UTF-8"));
+        assertEquals("1.9.0.0", cache.load(ADDRESS).firmwareRevision);
+        assertEquals(1, setup.getInvalidations());
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Time from link up to the first LED command being acknowledged. Discovery is modelled as one round trip for the
+    // service list plus one per service and one per characteristic, the way ATT discovery walks the table. The times
+    // themselves are measured by ConnectBenchmark in the simulator.
+    @Test
+    public void cachedLayoutReachesTheFirstCommandSooner() throws Exception {
+        final long linkDelayNanos = TimeUnit.MILLISECONDS.toNanos(2);
+        final int rounds = 10;
+        File directory = mFolder.newFolder();
+        long[] cold = new long[rounds], warmDiscovered = new long[rounds], warmCached = new long[rounds];
+
+        for (int i = 0; i < rounds; i++) {
+            String address = FakeGattServer.addresses(rounds).get(i);
+            cold[i] = timeToFirstCommand(new GattLayoutCache(directory), address, linkDelayNanos, true, false);
+            warmDiscovered[i] = timeToFirstCommand(new GattLayoutCache(directory), address, linkDelayNanos, true, true);
+            warmCached[i] = timeToFirstCommand(new GattLayoutCache(directory), address, linkDelayNanos, false, true);
+        }
+        Arrays.sort(cold);
+        Arrays.sort(warmDiscovered);
+        Arrays.sort(warmCached);
+        assertTrue(warmCached[rounds / 2] < cold[rounds / 2]);
+        assertTrue(warmCached[rounds / 2] < warmDiscovered[rounds / 2]);
+    }
+
+    private long timeToFirstCommand(GattLayoutCache cache, final String address, long linkDelayNanos,
+                                    boolean discover, boolean bonded) throws Exception {
+        final FakeGattTransport transport = new FakeGattTransport();
+        final GattOperationQueue queue = new GattOperationQueue(transport, new ManualTaskScheduler());
+        transport.autoComplete(queue, linkDelayNanos);
+        final CountDownLatch done = new CountDownLatch(1);
+        final long[] finished = new long[1];
+        final LedServiceSetup setup = new LedServiceSetup(cache, queue, new LedServiceSetup.Listener() {
+            @Override
+            public void onNotificationsEnabled(GattLayout.Characteristic characteristic) {
+            }
+
+            @Override
+            public void onLedServiceReady(GattLayout.Characteristic ledToggle, boolean fromCache) {
+                queue.enqueue(GattOperation.write(ledToggle.service, ledToggle.uuid, new byte[] {'1'}, GattOperation.WRITE_TYPE_DEFAULT)
+                        .setCallback(new GattOperation.Callback() {
+                            @Override
+                            public void onOperationComplete(GattOperation operation, int status, byte[] value) {
+                                finished[0] = System.nanoTime();
+                                done.countDown();
+                            }
+                        }));
+            }
+
+            @Override
+            public void onLedServiceMissing() {
+            }
+        });
+        final boolean persistent = bonded;
+        final GattLayout layout = bl600Layout();
+
+        long start = System.nanoTime();
+        if (discover || !setup.startFromCache(address, persistent)) {
+            int roundTrips = 1 + 3 + layout.getCharacteristics().size();              //Service list, characteristics per service, descriptors per characteristic
+            for (int i = 0; i < roundTrips; i++) {
+                GattOperation discovery = GattOperation.read(GAP_SERVICE, DEVICE_NAME);
+                if (i == roundTrips - 1) {
+                    discovery.setCallback(new GattOperation.Callback() {
+                        @Override
+                        public void onOperationComplete(GattOperation operation, int status, byte[] value) {
+                            setup.onServicesDiscovered(address, layout, persistent);
+                        }
+                    });
+                }
+                queue.enqueue(discovery);
+            }
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        while (!queue.isIdle()) {                                                       //Let the revision read land so the next round is warm
+            Thread.sleep(1);
+        }
+        transport.shutdown();
+        return finished[0] - start;
+    }
+}
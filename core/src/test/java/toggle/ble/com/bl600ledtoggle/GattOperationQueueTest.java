@@ -0,0 +1,219 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class GattOperationQueueTest {
+
+    private static final UUID SERVICE = UUID.fromString("cdea40a1-dcdb-42bb-8557-5c3d7d5135cb");
+    private static final UUID LED = UUID.fromString("f7552729-9d2c-45cc-ba33-a3327a3bb6d0");
+    private static final UUID CCCD = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    private final FakeGattTransport mTransport = new FakeGattTransport();
+    private final ManualTaskScheduler mScheduler = new ManualTaskScheduler();
+    private final GattOperationQueue mQueue = new GattOperationQueue(mTransport, mScheduler);
+    private final List<Integer> mStatuses = new ArrayList<Integer>();
+
+    private final GattOperation.Callback mRecorder = new GattOperation.Callback() {
+        @Override
+        public void onOperationComplete(GattOperation operation, int status, byte[] value) {
+            mStatuses.add(status);
+        }
+    };
+
+    @Test
+    public void onlyOneOperationIsInFlight() {
+        mQueue.enqueue(GattOperation.writeDescriptor(SERVICE, LED, CCCD, new byte[] {1, 0}));
+        mQueue.enqueue(GattOperation.write(SERVICE, LED, new byte[] {'1'}, GattOperation.WRITE_TYPE_DEFAULT));
+        mQueue.enqueue(GattOperation.read(SERVICE, LED));
+        assertEquals(1, mTransport.getCalls().size());
+
+        mQueue.onDescriptorWrite(LED, CCCD, GattOperation.GATT_SUCCESS);
+        assertEquals(2, mTransport.getCalls().size());
+        assertEquals(GattOperation.Type.WRITE, mTransport.getCalls().get(1).type);
+
+        mQueue.onCharacteristicWrite(LED, GattOperation.GATT_SUCCESS);
+        mQueue.onCharacteristicRead(LED, GattOperation.GATT_SUCCESS, new byte[] {'1'});
+        assertEquals(3, mTransport.getCalls().size());
+        assertTrue(mQueue.isIdle());
+    }
+
+    @Test
+    public void unrelatedCallbackDoesNotCompleteActiveOperation() {
+        mQueue.enqueue(GattOperation.read(SERVICE, LED).setCallback(mRecorder));
+        mQueue.onCharacteristicWrite(LED, GattOperation.GATT_SUCCESS);
+        assertTrue(mStatuses.isEmpty());
+        assertEquals(1, mQueue.size());
+    }
+
+    @Test
+    public void writeValueIsCapturedWhenQueued() {
+        byte[] value = new byte[] {'1'};
+        mQueue.enqueue(GattOperation.read(SERVICE, LED));
+        mQueue.enqueue(GattOperation.write(SERVICE, LED, value, GattOperation.WRITE_TYPE_DEFAULT));
+        value[0] = '0';
+        mQueue.onCharacteristicRead(LED, GattOperation.GATT_SUCCESS, null);
+        assertArrayEquals(new byte[] {'1'}, mTransport.getCalls().get(1).value);
+    }
+
+    @Test
+    public void timedOutOperationIsRetriedThenFailed() {
+        mQueue.enqueue(GattOperation.write(SERVICE, LED, new byte[] {'1'}, GattOperation.WRITE_TYPE_DEFAULT)
+                .setMaxRetries(1).setCallback(mRecorder));
+        mQueue.enqueue(GattOperation.read(SERVICE, LED));
+
+        mScheduler.runPending();                                                        //First attempt times out and is re-issued
+        assertEquals(2, mTransport.getCalls().size());
+        assertEquals(GattOperation.Type.WRITE, mTransport.getCalls().get(1).type);
+
+        mScheduler.runPending();                                                        //Second attempt times out, give up and move on
+        assertEquals(Arrays.asList(GattOperation.STATUS_TIMEOUT), mStatuses);
+        assertEquals(GattOperation.Type.READ, mTransport.getCalls().get(2).type);
+        assertEquals(1, mQueue.getRetryCount());
+    }
+
+    @Test
+    public void lateTimeoutDoesNotFailNextOperation() {
+        mQueue.enqueue(GattOperation.read(SERVICE, LED));
+        mQueue.enqueue(GattOperation.write(SERVICE, LED, new byte[] {'1'}, GattOperation.WRITE_TYPE_DEFAULT)
+                .setCallback(mRecorder));
+        mQueue.onCharacteristicRead(LED, GattOperation.GATT_SUCCESS, null);
+        mQueue.onCharacteristicWrite(LED, GattOperation.GATT_SUCCESS);
+        mScheduler.runPending();
+        assertEquals(Arrays.asList(GattOperation.GATT_SUCCESS), mStatuses);
+        assertEquals(0, mQueue.getRetryCount());
+    }
+
+    @Test
+    public void rejectedOperationIsRetriedAfterDelay() {
+        mTransport.rejectNext(1);
+        mQueue.enqueue(GattOperation.read(SERVICE, LED).setCallback(mRecorder));
+        assertEquals(0, mTransport.getCalls().size());
+
+        mScheduler.runPending();
+        assertEquals(1, mTransport.getCalls().size());
+        mQueue.onCharacteristicRead(LED, GattOperation.GATT_SUCCESS, null);
+        assertEquals(Arrays.asList(GattOperation.GATT_SUCCESS), mStatuses);
+    }
+
+    @Test
+    public void operationClearedWhileStartingIsNotRetried() {
+        final GattOperationQueue[] queue = new GattOperationQueue[1];
+        FakeGattTransport transport = new FakeGattTransport() {
+            @Override
+            public boolean readCharacteristic(UUID service, UUID characteristic) {
+                queue[0].clear();                                                       //Link dropped while the read was being issued
+                return false;
+            }
+        };
+        queue[0] = new GattOperationQueue(transport, mScheduler);
+        queue[0].enqueue(GattOperation.read(SERVICE, LED).setCallback(mRecorder));
+        assertEquals(Arrays.asList(GattOperation.STATUS_CANCELLED), mStatuses);         //Completed once, by the clear
+        assertTrue(queue[0].isIdle());
+        assertEquals(0, mScheduler.size());                                             //No retry scheduled
+        assertEquals(0, queue[0].getRetryCount());
+    }
+
+    @Test
+    public void errorStatusIsRetriedBeforeLaterOperations() {
+        mQueue.enqueue(GattOperation.write(SERVICE, LED, new byte[] {'1'}, GattOperation.WRITE_TYPE_DEFAULT)
+                .setCallback(mRecorder));
+        mQueue.enqueue(GattOperation.read(SERVICE, LED));
+        mQueue.onCharacteristicWrite(LED, 133);
+        assertEquals(GattOperation.Type.WRITE, mTransport.getCalls().get(1).type);
+        mQueue.onCharacteristicWrite(LED, GattOperation.GATT_SUCCESS);
+        assertEquals(Arrays.asList(GattOperation.GATT_SUCCESS), mStatuses);
+    }
+
+    @Test
+    public void clearCancelsEverything() {
+        mQueue.enqueue(GattOperation.read(SERVICE, LED).setCallback(mRecorder));
+        mQueue.enqueue(GattOperation.read(SERVICE, LED).setCallback(mRecorder));
+        mQueue.clear();
+        assertEquals(Arrays.asList(GattOperation.STATUS_CANCELLED, GattOperation.STATUS_CANCELLED), mStatuses);
+        assertTrue(mQueue.isIdle());
+        assertEquals(0, mScheduler.size());
+    }
+
+    @Test
+    public void drainedOperationsCanBeSentAgain() {
+        mQueue.enqueue(GattOperation.write(SERVICE, LED, new byte[] {'1'}, GattOperation.WRITE_TYPE_DEFAULT)
+                .setMaxRetries(0).setCallback(mRecorder));
+        mQueue.enqueue(GattOperation.read(SERVICE, LED).setCallback(mRecorder));
+        List<GattOperation> drained = mQueue.drain();
+        assertEquals(2, drained.size());
+        assertTrue(mStatuses.isEmpty());                                                //Not completed
+        assertTrue(mQueue.isIdle());
+        assertEquals(0, mScheduler.size());                                             //Timeout disarmed
+
+        for (GattOperation operation : drained) {
+            mQueue.enqueue(operation);
+        }
+        mQueue.onCharacteristicWrite(LED, GattOperation.GATT_ERROR);                     //Attempts started over, no retries left
+        assertEquals(Arrays.asList(GattOperation.GATT_ERROR), mStatuses);
+        assertEquals(GattOperation.Type.READ, mTransport.getCalls().get(2).type);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Push a burst of writes through the queue against a link that acknowledges on another thread. Each goes out once
+    // and in order, and its latency seen by the caller covers the time it waited behind the others.
+    @Test
+    public void burstOfWritesGoesOutOnceAndInOrder() throws Exception {
+        final int count = 20000;
+        FakeGattTransport transport = new FakeGattTransport();
+        GattOperationQueue queue = new GattOperationQueue(transport, new ManualTaskScheduler());
+        transport.autoComplete(queue, TimeUnit.MICROSECONDS.toNanos(20));
+
+        final long[] latencies = new long[count];
+        final long[] serviceTimes = new long[count];
+        final CountDownLatch done = new CountDownLatch(count);
+        GattOperation.Callback callback = new GattOperation.Callback() {
+            private int mIndex;
+
+            @Override
+            public void onOperationComplete(GattOperation operation, int status, byte[] value) {
+                latencies[mIndex] = operation.getLatencyNanos();
+                serviceTimes[mIndex++] = operation.getServiceTimeNanos();
+                done.countDown();
+            }
+        };
+
+        for (int i = 0; i < count; i++) {
+            queue.enqueue(GattOperation.write(SERVICE, LED, new byte[] {(byte) i}, GattOperation.WRITE_TYPE_DEFAULT)
+                    .setCallback(callback));
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        transport.shutdown();
+
+        List<FakeGattTransport.Call> calls = transport.getCalls();
+        for (int i = 0; i < count; i++) {
+            assertEquals((byte) i, calls.get(i).value[0]);                              //Every write went out exactly once and in order
+        }
+        for (int i = 0; i < count; i++) {
+            assertTrue(serviceTimes[i] > 0);
+            assertTrue(latencies[i] >= serviceTimes[i]);
+        }
+        assertTrue(latencies[count - 1] > latencies[0]);                                //The last one waited behind the burst
+    }
+
+    @Test
+    public void queueReportsBusyUntilItsLastOperationCompletes() {
+        GattActivity activity = new GattActivity();
+        mQueue.setActivity(activity);
+        mQueue.enqueue(GattOperation.read(LedGattProfile.LED_SERVICE, LedGattProfile.LED_TOGGLE));
+        mQueue.enqueue(GattOperation.read(LedGattProfile.LED_SERVICE, LedGattProfile.LED_TOGGLE));
+        assertTrue(activity.isBusy());
+        mQueue.onCharacteristicRead(LedGattProfile.LED_TOGGLE, GattOperation.GATT_SUCCESS, new byte[] {1});
+        assertTrue(activity.isBusy());                                                  //Straight on to the next read
+        mQueue.onCharacteristicRead(LedGattProfile.LED_TOGGLE, GattOperation.GATT_SUCCESS, new byte[] {1});
+        assertFalse(activity.isBusy());
+    }
+}
@@ -0,0 +1,87 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class GattTraceReplayerTest {
+
+    private static final int COMMANDS = 20;
+    private static final long ROUND_TRIP_MILLIS = 5;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private GattTrace mTrace;
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Record a session: the LED read at setup, then writes that each take a round trip and are confirmed by a
+    // notification, and a last write the link dropped before it was answered
+    @Before
+    public void record() throws IOException, InterruptedException {
+        File file = mFolder.newFile();
+        GattTraceRecorder recorder = new GattTraceRecorder(file, "00:16:A4:12:34:56", new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        recorder.onConnectionStateChange(GattOperation.GATT_SUCCESS, true);
+        recorder.onReadRequest(LedGattProfile.LED_SERVICE, LedGattProfile.LED_TOGGLE);
+        Thread.sleep(ROUND_TRIP_MILLIS);
+        recorder.onCharacteristicRead(LedGattProfile.LED_TOGGLE, GattOperation.GATT_SUCCESS, new byte[] {'0'});
+        for (int i = 0; i < COMMANDS; i++) {
+            byte[] value = {(byte) ('0' + (i & 1))};
+            recorder.onWriteRequest(LedGattProfile.LED_SERVICE, LedGattProfile.LED_TOGGLE, value,
+                    GattOperation.WRITE_TYPE_DEFAULT);
+            Thread.sleep(ROUND_TRIP_MILLIS);
+            recorder.onCharacteristicWrite(LedGattProfile.LED_TOGGLE, i == 3 ? GattOperation.GATT_ERROR
+                    : GattOperation.GATT_SUCCESS);
+            recorder.onCharacteristicChanged(LedGattProfile.LED_TOGGLE, value, 1, System.nanoTime());
+        }
+        recorder.onWriteRequest(LedGattProfile.LED_SERVICE, LedGattProfile.LED_TOGGLE, new byte[] {'1'},
+                GattOperation.WRITE_TYPE_DEFAULT);
+        recorder.onConnectionStateChange(GattOperation.GATT_ERROR, false);
+        recorder.onCharacteristicWrite(LedGattProfile.LED_TOGGLE, GattOperation.GATT_SUCCESS); //From a later link, not the answer
+        recorder.close();
+        mTrace = GattTrace.read(file);
+    }
+
+    @Test
+    public void replaysEveryAnsweredRequestAndNotification() throws InterruptedException {
+        GattTraceReplayer.Result result = new GattTraceReplayer(mTrace).replay(GattTraceReplayer.AS_FAST_AS_POSSIBLE, 5000);
+        assertTrue(result.isComplete());
+        assertEquals(COMMANDS + 1, result.getOperations());
+        assertEquals(1, result.getFailed());                                           //The recorded error comes back
+        assertEquals(1, result.getSkipped());
+        assertEquals(COMMANDS, result.getNotifications());
+        assertEquals(0, result.getDecodeFailures());
+        assertEquals(0, result.getDropped());
+        assertEquals(2, result.getConnectionEvents());
+        assertEquals(COMMANDS + 1, result.getOperationLatency().snapshot().getCount());
+        assertTrue(result.toString(), result.getDurationNanos() < mTrace.getDurationNanos());
+    }
+
+    @Test
+    public void keepsTheRecordedTimingAtTheGivenSpeed() throws InterruptedException {
+        long traced = mTrace.getDurationNanos();
+        GattTraceReplayer replayer = new GattTraceReplayer(mTrace);
+        GattTraceReplayer.Result realTime = replayer.replay(1, 5000);
+        GattTraceReplayer.Result fast = replayer.replay(4, 5000);
+        assertTrue(realTime.isComplete() && fast.isComplete());
+        assertTrue(realTime.toString(), realTime.getDurationNanos() >= traced);
+        assertTrue(fast.toString(), fast.getDurationNanos() >= traced / 4);
+        assertTrue(fast.toString(), fast.getDurationNanos() < realTime.getDurationNanos());
+        long roundTrip = TimeUnit.MILLISECONDS.toNanos(ROUND_TRIP_MILLIS);
+        assertTrue(realTime.getOperationLatency().snapshot().getPercentile(50) >= roundTrip - 1000000L);
+        assertEquals(COMMANDS, fast.getNotifications());
+    }
+}
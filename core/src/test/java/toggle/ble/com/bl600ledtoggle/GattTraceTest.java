@@ -0,0 +1,223 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class GattTraceTest {
+
+    private static final String ADDRESS = "00:16:A4:12:34:56";
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void recordsEveryEventAndRequest() throws IOException {
+        File file = mFolder.newFile();
+        GattTraceRecorder recorder = new GattTraceRecorder(file, ADDRESS, DIRECT);
+        FakeTransport fake = new FakeTransport();
+        BleTransport transport = recorder.wrap(fake);
+
+        recorder.onConnectionStateChange(GattOperation.GATT_SUCCESS, true);
+        assertTrue(transport.requestMtu(247));
+        recorder.onMtuChanged(247, GattOperation.GATT_SUCCESS);
+        recorder.onServicesDiscovered(GattOperation.GATT_SUCCESS);
+        assertTrue(transport.writeDescriptor(LedGattProfile.LED_SERVICE, LedGattProfile.LED_TOGGLE,
+                LedGattProfile.CHARACTERISTIC_NOTIFICATION_CONFIG, new byte[] {1, 0}));
+        recorder.onDescriptorWrite(LedGattProfile.LED_TOGGLE, LedGattProfile.CHARACTERISTIC_NOTIFICATION_CONFIG,
+                GattOperation.GATT_SUCCESS);
+        assertTrue(transport.readCharacteristic(LedGattProfile.LED_SERVICE, LedGattProfile.LED_TOGGLE));
+        recorder.onCharacteristicRead(LedGattProfile.LED_TOGGLE, GattOperation.GATT_SUCCESS, new byte[] {'1'});
+        fake.accept = false;
+        assertFalse(transport.writeCharacteristic(LedGattProfile.LED_SERVICE, LedGattProfile.LED_TOGGLE,
+                new byte[] {'0'}, GattOperation.WRITE_TYPE_DEFAULT));                   //Refused, not recorded
+        fake.accept = true;
+        assertTrue(transport.writeCharacteristic(LedGattProfile.LED_SERVICE, LedGattProfile.LED_TOGGLE,
+                new byte[] {'0'}, GattOperation.WRITE_TYPE_NO_RESPONSE));
+        recorder.onCharacteristicWrite(LedGattProfile.LED_TOGGLE, GattOperation.STATUS_TIMEOUT);
+        byte[] notification = {'1', 'x', 'x'};
+        recorder.onCharacteristicChanged(LedGattProfile.LED_TOGGLE, notification, 1, System.nanoTime());
+        recorder.onConnectionStateChange(GattOperation.GATT_ERROR, false);
+        recorder.close();
+        assertNull(recorder.getWriteError());
+        assertEquals(file.length(), recorder.getBytesWritten());
+
+        GattTrace trace = GattTrace.read(file);
+        assertEquals(ADDRESS, trace.getAddress());
+        assertEquals(0, trace.getDroppedCount());
+        List<GattTrace.Event> events = trace.getEvents();
+        assertEquals(12, events.size());
+        assertEquals(recorder.getRecordCount(), events.size());
+        int[] types = {GattTrace.CONNECTION_STATE, GattTrace.MTU_REQUEST, GattTrace.MTU_CHANGED,
+                GattTrace.SERVICES_DISCOVERED, GattTrace.DESCRIPTOR_REQUEST, GattTrace.DESCRIPTOR_WRITE,
+                GattTrace.READ_REQUEST, GattTrace.CHARACTERISTIC_READ, GattTrace.WRITE_REQUEST,
+                GattTrace.CHARACTERISTIC_WRITE, GattTrace.CHARACTERISTIC_CHANGED, GattTrace.CONNECTION_STATE};
+        for (int i = 0; i < types.length; i++) {
+            assertEquals("record " + i, types[i], events.get(i).type);
+            assertTrue(i == 0 || events.get(i).nanos >= events.get(i - 1).nanos);
+        }
+        assertTrue(events.get(0).connected);
+        assertEquals(247, events.get(1).mtu);
+        assertEquals(247, events.get(2).mtu);
+        assertEquals(LedGattProfile.CHARACTERISTIC_NOTIFICATION_CONFIG, events.get(4).descriptor);
+        assertArrayEquals(new byte[] {1, 0}, events.get(4).value);
+        assertEquals(LedGattProfile.LED_SERVICE, events.get(6).service);
+        assertEquals(LedGattProfile.LED_TOGGLE, events.get(7).characteristic);
+        assertArrayEquals(new byte[] {'1'}, events.get(7).value);
+        assertEquals(GattOperation.WRITE_TYPE_NO_RESPONSE, events.get(8).writeType);
+        assertEquals(GattOperation.STATUS_TIMEOUT, events.get(9).status);              //Negative statuses survive the zigzag
+        assertArrayEquals(new byte[] {'1'}, events.get(10).value);                      //Only the received length
+        assertFalse(events.get(11).connected);
+        assertEquals(GattOperation.GATT_ERROR, events.get(11).status);
+    }
+
+    @Test
+    public void recordsAreDroppedWhileTheWriterIsBehind() throws IOException {
+        File file = mFolder.newFile();
+        final List<Runnable> held = new ArrayList<Runnable>();
+        Executor slow = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                held.add(command);
+            }
+        };
+        GattTraceRecorder recorder = new GattTraceRecorder(file, ADDRESS, 4096, 2, slow);
+        byte[] value = new byte[200];
+        for (int i = 0; i < 100; i++) {
+            recorder.onCharacteristicChanged(LedGattProfile.LED_TOGGLE, value, value.length, System.nanoTime());
+        }
+        assertTrue(recorder.getDroppedCount() > 0);
+        for (Runnable task : new ArrayList<Runnable>(held)) {                           //Writer catches up, buffers come back
+            task.run();
+        }
+        held.clear();
+        recorder.onCharacteristicChanged(LedGattProfile.LED_TOGGLE, new byte[] {'0'}, 1, System.nanoTime());
+        recorder.close();
+        for (Runnable task : held) {
+            task.run();
+        }
+
+        GattTrace trace = GattTrace.read(file);
+        assertEquals(recorder.getDroppedCount(), trace.getDroppedCount());
+        assertEquals(100 + 1 - recorder.getDroppedCount(), trace.getEvents().size());
+        GattTrace.Event last = trace.getEvents().get(trace.getEvents().size() - 1);
+        assertEquals(LedGattProfile.LED_TOGGLE, last.characteristic);                   //Defined again after the gap
+        assertArrayEquals(new byte[] {'0'}, last.value);
+    }
+
+    @Test
+    public void tornTraceKeepsTheWholeRecords() throws IOException {
+        File file = mFolder.newFile();
+        GattTraceRecorder recorder = new GattTraceRecorder(file, ADDRESS, DIRECT);
+        for (int i = 0; i < 10; i++) {
+            recorder.onCharacteristicChanged(LedGattProfile.LED_TOGGLE, new byte[] {'1', '2', '3'}, 3, System.nanoTime());
+        }
+        recorder.close();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 2);                                                //Cut into the last value
+        raf.close();
+        assertEquals(9, GattTrace.read(file).getEvents().size());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        File file = mFolder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write("LEDJ not a trace".getBytes("US-ASCII"));
+        out.close();
+        GattTrace.read(file);
+    }
+
+    /**
+     * Accepts every request unless told not to, and calls nothing back.
+     */
+    private static class FakeTransport implements BleTransport {
+        boolean accept = true;
+
+        @Override
+        public boolean readCharacteristic(UUID service, UUID characteristic) {
+            return accept;
+        }
+
+        @Override
+        public boolean writeCharacteristic(UUID service, UUID characteristic, byte[] value, int writeType) {
+            return accept;
+        }
+
+        @Override
+        public boolean writeDescriptor(UUID service, UUID characteristic, UUID descriptor, byte[] value) {
+            return accept;
+        }
+
+        @Override
+        public boolean requestMtu(int mtu) {
+            return accept;
+        }
+
+        @Override
+        public boolean requestConnectionPriority(int priority) {
+            return accept;
+        }
+
+        @Override
+        public String getAddress() {
+            return ADDRESS;
+        }
+
+        @Override
+        public boolean connect() {
+            return accept;
+        }
+
+        @Override
+        public boolean reconnect(boolean background) {
+            return accept;
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public void reset() {
+        }
+
+        @Override
+        public boolean discoverServices() {
+            return accept;
+        }
+
+        @Override
+        public GattLayout getLayout() {
+            return null;
+        }
+
+        @Override
+        public boolean setNotificationsEnabled(GattLayout.Characteristic characteristic, boolean enabled) {
+            return accept;
+        }
+
+        @Override
+        public boolean isBonded() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LedBatchWriterTest {
+
+    private final FakeGattTransport mTransport = new FakeGattTransport();
+    private final ManualTaskScheduler mScheduler = new ManualTaskScheduler();
+    private final GattOperationQueue mQueue = new GattOperationQueue(mTransport, mScheduler);
+    private final LedBatchWriter mWriter = new LedBatchWriter(mQueue, mScheduler);
+    private final List<Integer> mResults = new ArrayList<Integer>();
+
+    private final LedBatchWriter.Listener mRecorder = new LedBatchWriter.Listener() {
+        @Override
+        public void onBatchComplete(LedCommandBatch batch, int status, int writes) {
+            mResults.add(status);
+            mResults.add(writes);
+        }
+    };
+
+    private void acknowledgeWrites(int count) {
+        for (int i = 0; i < count; i++) {
+            mQueue.onCharacteristicWrite(LedGattProfile.LED_TOGGLE, GattOperation.GATT_SUCCESS);
+        }
+    }
+
+    @Test
+    public void frameRoundTrip() {
+        LedCommandBatch batch = new LedCommandBatch().add(1, 128, 500).add(0, 40000).add(1, 0);
+        byte[] frame = new byte[64];
+        int length = LedBatchWriter.encodeFrame(batch, 0, 10, 7, frame);
+        assertEquals(LedBatchWriter.FRAME_HEADER + 3 * LedBatchWriter.STEP_LENGTH, length);
+
+        LedCommandBatch decoded = new LedCommandBatch();
+        assertTrue(LedBatchWriter.decodeFrame(frame, length, decoded));
+        assertEquals(3, decoded.size());
+        assertEquals(128, decoded.getBrightness(0));
+        assertEquals(LedCommandBatch.KEEP_BRIGHTNESS, decoded.getBrightness(1));
+        assertEquals(40000, decoded.getHoldMillis(1));
+        assertEquals(1, decoded.getState(2));
+        assertFalse(LedBatchWriter.decodeFrame(new byte[] {1, 7}, 2, decoded));         //A plain binary LED message is not a frame
+    }
+
+    @Test
+    public void framedModeFillsDefaultMtu() {
+        mWriter.setMode(LedBatchWriter.Mode.FRAMED);
+        assertEquals(4, LedBatchWriter.stepsPerFrame(mWriter.getMaxFrameLength()));   //20 byte payload at MTU 23
+
+        assertEquals(3, mWriter.send(LedCommandBatch.blink(5, 100, 100), mRecorder));
+        acknowledgeWrites(3);
+        List<FakeGattTransport.Call> calls = mTransport.getCalls();
+        assertEquals(3, calls.size());
+        assertEquals(19, calls.get(0).value.length);
+        assertEquals(11, calls.get(2).value.length);                                  //Last two steps
+        assertEquals(GattOperation.GATT_SUCCESS, (int) mResults.get(0));
+        assertEquals(3, (int) mResults.get(1));
+    }
+
+    @Test
+    public void largerMtuNeedsFewerWrites() {
+        mWriter.setMode(LedBatchWriter.Mode.FRAMED);
+        mWriter.setMtu(247);
+        assertEquals(1, mWriter.send(LedCommandBatch.blink(30, 100, 100), mRecorder)); //60 steps in one 243 byte frame
+    }
+
+    @Test
+    public void longWriteSendsWholeScheduleAtOnce() {
+        mWriter.setMode(LedBatchWriter.Mode.LONG_WRITE);
+        assertEquals(1, mWriter.send(LedCommandBatch.blink(60, 100, 100), mRecorder));
+        assertEquals(LedBatchWriter.FRAME_HEADER + 120 * LedBatchWriter.STEP_LENGTH, mTransport.getCalls().get(0).value.length);
+    }
+
+    @Test
+    public void perWriteModeKeepsHoldTimesOnThePhone() throws Exception {
+        mWriter.send(new LedCommandBatch().add(1, 0).add(0, 300).add(1, 0), mRecorder);
+        assertEquals(1, mTransport.getCalls().size());
+        acknowledgeWrites(1);                                                           //No hold, second step goes straight out
+        assertEquals(2, mTransport.getCalls().size());
+        acknowledgeWrites(1);
+        assertEquals(2, mTransport.getCalls().size());                                  //Waiting out the 300 ms hold
+        mScheduler.runPending();
+        acknowledgeWrites(1);
+
+        List<FakeGattTransport.Call> calls = mTransport.getCalls();
+        assertEquals(3, calls.size());
+        assertEquals("1", new String(calls.get(0).value, "US-ASCII"));
+        assertEquals("0", new String(calls.get(1).value, "US-ASCII"));
+        assertEquals(3, (int) mResults.get(1));
+    }
+
+    @Test
+    public void failureIsReportedOnce() {
+        mWriter.setMode(LedBatchWriter.Mode.FRAMED);
+        mWriter.send(LedCommandBatch.blink(4, 100, 100), mRecorder);                  //Two frames
+        for (int i = 0; i <= GattOperation.DEFAULT_MAX_RETRIES; i++) {
+            mQueue.onCharacteristicWrite(LedGattProfile.LED_TOGGLE, 133);
+        }
+        acknowledgeWrites(1);
+        assertEquals(2, mResults.size());
+        assertEquals(133, (int) mResults.get(0));
+        assertEquals(0, (int) mResults.get(1));
+    }
+
+    @Test
+    public void mtuRequestGoesThroughQueue() {
+        final int[] status = {-100};
+        mQueue.enqueue(GattOperation.requestMtu(247).setCallback(new GattOperation.Callback() {
+            @Override
+            public void onOperationComplete(GattOperation operation, int result, byte[] value) {
+                status[0] = result;
+            }
+        }));
+        mQueue.enqueue(GattOperation.read(LedGattProfile.LED_SERVICE, LedGattProfile.LED_TOGGLE));
+        assertEquals(1, mTransport.getCalls().size());                                  //Read waits for the MTU exchange
+        mQueue.onCharacteristicWrite(LedGattProfile.LED_TOGGLE, GattOperation.GATT_SUCCESS);
+        assertEquals(1, mTransport.getCalls().size());
+        mQueue.onMtuChanged(185, GattOperation.GATT_SUCCESS);
+        assertEquals(GattOperation.GATT_SUCCESS, status[0]);
+        assertEquals(2, mTransport.getCalls().size());
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // LED commands per second against a simulated board that takes one link delay per ATT round trip: batch frames beat
+    // one write per step at every MTU. The rates themselves, long writes included, are measured by BatchBenchmark in
+    // the simulator.
+    @Test
+    public void framedBatchesBeatOneWritePerStepAtEveryMtu() throws Exception {
+        final int steps = 400;
+        LedCommandBatch batch = LedCommandBatch.blink(steps / 2, 0, 0);
+        double perWrite = commandsPerSecond(batch, LedBatchWriter.Mode.PER_WRITE, 23);
+        for (int mtu : new int[] {23, 64, 185, 247, 512}) {
+            double framed = commandsPerSecond(batch, LedBatchWriter.Mode.FRAMED, mtu);
+            assertTrue("MTU " + mtu, framed > perWrite);
+        }
+    }
+
+    private double commandsPerSecond(LedCommandBatch batch, LedBatchWriter.Mode mode, int mtu) throws Exception {
+        FakeGattTransport transport = new FakeGattTransport();
+        GattOperationQueue queue = new GattOperationQueue(transport, new ManualTaskScheduler());
+        transport.setMtu(mtu);
+        transport.autoComplete(queue, TimeUnit.MICROSECONDS.toNanos(500));
+        LedBatchWriter writer = new LedBatchWriter(queue, new ManualTaskScheduler());
+        writer.setMode(mode);
+        writer.setMtu(mtu);
+
+        final CountDownLatch done = new CountDownLatch(1);
+        final int[] status = new int[1];
+        long start = System.nanoTime();
+        writer.send(batch, new LedBatchWriter.Listener() {
+            @Override
+            public void onBatchComplete(LedCommandBatch batch, int result, int writes) {
+                status[0] = result;
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        long elapsed = System.nanoTime() - start;
+        transport.shutdown();
+        assertEquals(GattOperation.GATT_SUCCESS, status[0]);
+        return batch.size() * 1e9 / elapsed;
+    }
+}
@@ -0,0 +1,458 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LedDeviceSessionTest {
+
+    private static final String ADDRESS = "00:16:A4:12:34:56";
+
+    /**
+     * BleTransport on top of the manual FakeGattTransport. The test delivers every event to the session itself.
+     */
+    private static class FakeBleTransport extends FakeGattTransport implements BleTransport {
+        int connects, discoveries, disconnects, resets;
+        final List<Boolean> reconnects = new ArrayList<Boolean>();                      //Background flag of every reconnect
+        GattLayout layout;
+
+        @Override
+        public String getAddress() {
+            return ADDRESS;
+        }
+
+        @Override
+        public boolean connect() {
+            connects++;
+            return true;
+        }
+
+        @Override
+        public boolean reconnect(boolean background) {
+            reconnects.add(background);
+            return true;
+        }
+
+        @Override
+        public void disconnect() {
+            disconnects++;
+        }
+
+        @Override
+        public void reset() {
+            resets++;
+        }
+
+        @Override
+        public boolean discoverServices() {
+            discoveries++;
+            return true;
+        }
+
+        @Override
+        public GattLayout getLayout() {
+            return layout;
+        }
+
+        @Override
+        public boolean setNotificationsEnabled(GattLayout.Characteristic characteristic, boolean enabled) {
+            return true;
+        }
+
+        @Override
+        public boolean isBonded() {
+            return false;
+        }
+    }
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final FakeBleTransport mTransport = new FakeBleTransport();
+    private final ManualTaskScheduler mScheduler = new ManualTaskScheduler();
+    private final List<DeviceSession.State> mStates = new ArrayList<DeviceSession.State>();
+    private final List<String> mLedStates = new ArrayList<String>();
+    private LedDeviceSession mSession;
+
+    @Before
+    public void setUp() throws Exception {
+        mTransport.layout = new GattLayout(Arrays.asList(new GattLayout.Characteristic(LedGattProfile.LED_SERVICE,
+                LedGattProfile.LED_TOGGLE, GattLayout.PROPERTY_READ | GattLayout.PROPERTY_WRITE | GattLayout.PROPERTY_NOTIFY, true)));
+        mSession = new LedDeviceSession(mTransport, mScheduler, new GattLayoutCache(mFolder.getRoot()));
+        mSession.setListener(new DeviceSession.Listener() {
+            @Override
+            public void onStateChanged(DeviceSession session, DeviceSession.State state) {
+                mStates.add(state);
+            }
+        });
+        mSession.setLedListener(new LedController.Listener() {
+            @Override
+            public void onLedStateChanged(LedState state, boolean fromRead) {
+                mLedStates.add((fromRead ? "read " : "notify ") + state.state);
+            }
+        });
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Connect, grant the MTU exchange, finish discovery and acknowledge the CCCD write
+    private void bringUp(int mtu) {
+        mSession.connect();
+        mSession.onConnectionStateChange(GattOperation.GATT_SUCCESS, true);
+        mSession.onMtuChanged(mtu, GattOperation.GATT_SUCCESS);
+        mSession.onServicesDiscovered(GattOperation.GATT_SUCCESS);
+        mSession.onDescriptorWrite(LedGattProfile.LED_TOGGLE, LedGattProfile.CHARACTERISTIC_NOTIFICATION_CONFIG,
+                GattOperation.GATT_SUCCESS);
+    }
+
+    private int radioReads() {
+        int reads = 0;
+        for (FakeGattTransport.Call call : mTransport.getCalls()) {
+            if (call.type == GattOperation.Type.READ) {
+                reads++;
+            }
+        }
+        return reads;
+    }
+
+    private List<byte[]> radioWrites() {
+        List<byte[]> writes = new ArrayList<byte[]>();
+        for (FakeGattTransport.Call call : mTransport.getCalls()) {
+            if (call.type == GattOperation.Type.WRITE) {
+                writes.add(call.value);
+            }
+        }
+        return writes;
+    }
+
+    private static byte[] binary(int state) {
+        return new LedStateCodec(LedStateCodec.Mode.BINARY).encode(new LedState().set(state, 1, LedState.ABSENT, LedState.ABSENT));
+    }
+
+    /**
+     * Records the status and value of every completed read.
+     */
+    private static class Reads implements GattOperation.Callback {
+        final List<Integer> statuses = new ArrayList<Integer>();
+        final List<byte[]> values = new ArrayList<byte[]>();
+
+        @Override
+        public void onOperationComplete(GattOperation operation, int status, byte[] value) {
+            statuses.add(status);
+            values.add(value);
+        }
+    }
+
+    @Test
+    public void discoveryWaitsForTheMtuExchange() {
+        mSession.connect();
+        mSession.onConnectionStateChange(GattOperation.GATT_SUCCESS, true);
+        assertEquals(GattOperation.Type.REQUEST_MTU, mTransport.getCalls().get(0).type);
+        assertEquals(0, mTransport.discoveries);
+
+        mSession.onMtuChanged(185, GattOperation.GATT_SUCCESS);
+        assertEquals(1, mTransport.discoveries);
+        assertFalse(mSession.isReady());
+
+        mSession.onServicesDiscovered(GattOperation.GATT_SUCCESS);
+        assertTrue(mSession.isReady());
+        assertEquals(GattOperation.Type.WRITE_DESCRIPTOR, mTransport.getCalls().get(1).type);
+        assertEquals(Arrays.asList(DeviceSession.State.CONNECTING, DeviceSession.State.CONNECTED, DeviceSession.State.READY),
+                mStates);
+        assertEquals(64, mSession.getBatchWriter().getMtu());                           //LOW_LATENCY caps frames
+    }
+
+    @Test
+    public void commandsAreRefusedUntilReady() {
+        assertFalse(mSession.setLed(1, null));
+        assertFalse(mSession.readLed(null));
+        assertFalse(mSession.sendBatch(LedCommandBatch.blink(2, 100, 100), null));
+        assertTrue(mTransport.getCalls().isEmpty());
+
+        bringUp(185);
+        assertTrue(mSession.toggle(null));
+        GattOperation.Type type = mTransport.getCalls().get(mTransport.getCalls().size() - 1).type;
+        assertEquals(GattOperation.Type.WRITE, type);
+        assertFalse(mSession.isWriteWithoutResponse());
+    }
+
+    @Test
+    public void firstValueFromTheBoardSetsTheFormat() {
+        bringUp(185);
+        assertEquals(LedStateCodec.Mode.LEGACY_STRING, mSession.getFormat());
+
+        byte[] value = new LedStateCodec(LedStateCodec.Mode.BINARY).encode(new LedState().set(1, 7, LedState.ABSENT, LedState.ABSENT));
+        mSession.onCharacteristicChanged(LedGattProfile.LED_TOGGLE, value, value.length, System.nanoTime());
+
+        assertEquals(LedStateCodec.Mode.BINARY, mSession.getFormat());
+        assertEquals(LedBatchWriter.Mode.FRAMED, mSession.getBatchWriter().getMode());
+        assertEquals(Arrays.asList("notify 1"), mLedStates);
+
+        mSession.toggle(null);                                                          //Opposite of the reported state
+        byte[] sent = mTransport.getCalls().get(mTransport.getCalls().size() - 1).value;
+        LedState decoded = new LedState();
+        assertTrue(new LedStateCodec(LedStateCodec.Mode.BINARY).decode(sent, decoded));
+        assertEquals(0, decoded.state);
+    }
+
+    @Test
+    public void reusedLinkSkipsDiscoveryOnlyUntilItDrops() {
+        mSession.onLinkReused(185, true);
+        mSession.onConnectionStateChange(GattOperation.GATT_SUCCESS, true);
+        assertEquals(0, mTransport.discoveries);
+        assertTrue(mSession.isReady());
+        assertTrue(mSession.isLinkReused());
+        assertEquals(1, mTransport.getPriorities().size());                             //Only the priority is asked for again
+
+        mSession.onConnectionStateChange(GattOperation.GATT_SUCCESS, false);
+        assertFalse(mSession.isReady());
+        assertFalse(mSession.isLinkReused());
+        assertEquals(DeviceSession.State.DISCONNECTED, mSession.getState());
+
+        bringUp(185);
+        assertEquals(1, mTransport.discoveries);                                       //A new connection needs discovery again
+        assertEquals(DeviceSession.State.READY, mSession.getState());
+    }
+
+    @Test
+    public void notifiedStateAnswersReadsWithoutTheRadio() {
+        bringUp(185);
+        byte[] value = binary(1);
+        mSession.onCharacteristicChanged(LedGattProfile.LED_TOGGLE, value, value.length, System.nanoTime());
+
+        Reads reads = new Reads();
+        for (int i = 0; i < 50; i++) {                                                  //A dashboard polling the board
+            assertTrue(mSession.readLed(reads));
+        }
+        assertEquals(0, radioReads());                                                  //50 ATT reads saved
+        assertEquals(50, reads.statuses.size());
+        assertArrayEquals(value, reads.values.get(49));
+        assertEquals(50, mSession.getStateCache().getHits());
+        assertEquals("read 1", mLedStates.get(mLedStates.size() - 1));
+
+        assertTrue(mSession.readLed(true, reads));                                      //Forced reads still go to the board
+        assertEquals(1, radioReads());
+        assertEquals(1, mSession.getStateCache().getForced());
+    }
+
+    @Test
+    public void concurrentMissesShareOneRead() {
+        bringUp(185);
+        Reads reads = new Reads();
+        for (int i = 0; i < 8; i++) {
+            assertTrue(mSession.readLed(reads));
+        }
+        assertEquals(1, radioReads());
+        assertTrue(reads.statuses.isEmpty());
+
+        mSession.onCharacteristicRead(LedGattProfile.LED_TOGGLE, GattOperation.GATT_SUCCESS, binary(0));
+        assertEquals(8, reads.statuses.size());
+        assertEquals(GattOperation.GATT_SUCCESS, (int) reads.statuses.get(7));
+        assertEquals(1, mSession.getStateCache().getMisses());
+        assertEquals(7, mSession.getStateCache().getCoalesced());
+
+        assertTrue(mSession.readLed(reads));                                            //The read filled the cache
+        assertEquals(1, radioReads());
+    }
+
+    @Test
+    public void commandsKeepTheCacheHonest() {
+        bringUp(185);
+        byte[] value = binary(0);
+        mSession.onCharacteristicChanged(LedGattProfile.LED_TOGGLE, value, value.length, System.nanoTime());
+
+        mSession.setLed(1, null);
+        assertFalse(mSession.getStateCache().isFresh(System.nanoTime()));               //Not confirmed by the board yet
+        Reads reads = new Reads();
+        mSession.readLed(reads);                                                        //Queued behind the write
+        assertEquals(0, radioReads());
+
+        mSession.onCharacteristicWrite(LedGattProfile.LED_TOGGLE, GattOperation.GATT_SUCCESS);
+        assertTrue(mSession.getStateCache().isFresh(System.nanoTime()));                //Acknowledged write is the new state
+        assertEquals(1, radioReads());
+        mSession.onCharacteristicRead(LedGattProfile.LED_TOGGLE, GattOperation.GATT_SUCCESS, binary(1));
+        assertEquals(1, reads.statuses.size());
+
+        mSession.onConnectionStateChange(GattOperation.GATT_SUCCESS, false);
+        assertFalse(mSession.getStateCache().isFresh(System.nanoTime()));
+    }
+
+    @Test
+    public void latestModeSendsOnlyTheEndStateOfABurst() {
+        bringUp(185);
+        mSession.setWriteMode(LedController.WriteMode.LATEST);
+        Reads writes = new Reads();
+        for (int i = 0; i < 5; i++) {
+            assertTrue(mSession.setLed(i & 1, writes));                                 //0 1 0 1 0 while the first is on the air
+        }
+        assertEquals(1, radioWrites().size());
+        assertEquals(3, mSession.getSupersededWrites());
+
+        mSession.onCharacteristicWrite(LedGattProfile.LED_TOGGLE, GattOperation.GATT_SUCCESS);
+        assertEquals(1, writes.statuses.size());
+        assertEquals(2, radioWrites().size());                                          //The newest state follows at once
+        LedState decoded = new LedState();
+        assertTrue(new LedStateCodec(LedStateCodec.Mode.LEGACY_STRING).decode(radioWrites().get(1), decoded));
+        assertEquals(0, decoded.state);
+
+        mSession.onCharacteristicWrite(LedGattProfile.LED_TOGGLE, GattOperation.GATT_SUCCESS);
+        assertEquals(5, writes.statuses.size());                                        //Replaced states complete with it
+        assertEquals(2, radioWrites().size());
+        assertTrue(mSession.toggle(null));                                              //Based on the end state
+        assertTrue(new LedStateCodec(LedStateCodec.Mode.LEGACY_STRING).decode(radioWrites().get(2), decoded));
+        assertEquals(1, decoded.state);
+    }
+
+    @Test
+    public void acknowledgedWriteReplacesTheStateWaitingInLatestMode() {
+        bringUp(185);
+        mSession.setWriteMode(LedController.WriteMode.LATEST);
+        Reads writes = new Reads();
+        Reads acknowledged = new Reads();
+        mSession.setLed(1, writes);
+        mSession.setLed(0, writes);                                                     //Waits behind the first
+        assertTrue(mSession.setLedAcknowledged(1, acknowledged));
+        assertEquals(1, mSession.getSupersededWrites());
+
+        mSession.onCharacteristicWrite(LedGattProfile.LED_TOGGLE, GattOperation.GATT_SUCCESS);
+        assertEquals(1, writes.statuses.size());
+        assertTrue(acknowledged.statuses.isEmpty());                                    //Not completed by the write before it
+        assertEquals(2, radioWrites().size());
+
+        mSession.onCharacteristicWrite(LedGattProfile.LED_TOGGLE, GattOperation.GATT_SUCCESS);
+        assertEquals(Arrays.asList(GattOperation.GATT_SUCCESS), acknowledged.statuses);
+        assertEquals(2, writes.statuses.size());                                        //The replaced state completes with it
+        assertEquals(2, radioWrites().size());
+        LedState decoded = new LedState();
+        assertTrue(new LedStateCodec(LedStateCodec.Mode.LEGACY_STRING).decode(radioWrites().get(1), decoded));
+        assertEquals(1, decoded.state);
+    }
+
+    @Test
+    public void acknowledgedWriteGoesWithResponseWhereCommandsDoNot() {
+        mTransport.layout = new GattLayout(Arrays.asList(new GattLayout.Characteristic(LedGattProfile.LED_SERVICE,
+                LedGattProfile.LED_TOGGLE, GattLayout.PROPERTY_WRITE | GattLayout.PROPERTY_WRITE_NO_RESPONSE, true)));
+        bringUp(185);
+        assertTrue(mSession.isWriteWithoutResponse());
+        final List<Integer> writeTypes = new ArrayList<Integer>();
+        assertTrue(mSession.setLedAcknowledged(1, new GattOperation.Callback() {
+            @Override
+            public void onOperationComplete(GattOperation operation, int status, byte[] value) {
+                writeTypes.add(operation.getWriteType());
+            }
+        }));
+        mSession.onCharacteristicWrite(LedGattProfile.LED_TOGGLE, GattOperation.GATT_SUCCESS);
+        assertEquals(Arrays.asList(GattOperation.WRITE_TYPE_DEFAULT), writeTypes);
+    }
+
+    @Test
+    public void acknowledgedWriteIsRefusedWithoutWriteWithResponse() {
+        mTransport.layout = new GattLayout(Arrays.asList(new GattLayout.Characteristic(LedGattProfile.LED_SERVICE,
+                LedGattProfile.LED_TOGGLE, GattLayout.PROPERTY_WRITE_NO_RESPONSE, true)));
+        bringUp(185);
+        assertTrue(mSession.isReady());
+        assertFalse(mSession.setLedAcknowledged(1, null));                              //Its acknowledgement would come from the phone
+        assertTrue(mSession.setLed(1, null));
+    }
+
+    @Test
+    public void orderedModeSendsEveryStateAndPendingStatesFailWithTheLink() {
+        bringUp(185);
+        Reads writes = new Reads();
+        for (int i = 0; i < 3; i++) {
+            mSession.setLed(i & 1, writes);
+        }
+        mSession.onCharacteristicWrite(LedGattProfile.LED_TOGGLE, GattOperation.GATT_SUCCESS);
+        mSession.onCharacteristicWrite(LedGattProfile.LED_TOGGLE, GattOperation.GATT_SUCCESS);
+        mSession.onCharacteristicWrite(LedGattProfile.LED_TOGGLE, GattOperation.GATT_SUCCESS);
+        assertEquals(3, radioWrites().size());
+        assertEquals(0, mSession.getSupersededWrites());
+
+        mSession.setWriteMode(LedController.WriteMode.LATEST);
+        mSession.setLed(1, writes);
+        mSession.setLed(0, writes);                                                     //Waits behind the first
+        mSession.onConnectionStateChange(GattOperation.GATT_SUCCESS, false);
+        assertEquals(5, writes.statuses.size());
+        assertEquals(GattOperation.STATUS_CANCELLED, (int) writes.statuses.get(4));
+        assertEquals(4, radioWrites().size());
+    }
+
+    @Test
+    public void droppedLinkIsBroughtBackWithItsQueue() {
+        mSession.setReconnectPolicy(new ReconnectPolicy().setImmediateAttempts(1).setBackoffAttempts(1).setSeed(1));
+        BleMetrics metrics = new BleMetrics();
+        mSession.setMetrics(metrics);
+        bringUp(185);
+        Reads writes = new Reads();
+        mSession.setLed(1, writes);                                                     //On the air when the link drops
+        mSession.setLed(0, writes);
+        assertEquals(1, radioWrites().size());
+
+        mSession.onConnectionStateChange(8, false);                                     //Supervision timeout
+        assertEquals(DeviceSession.State.RECONNECTING, mSession.getState());
+        assertEquals(2, mSession.getHeldCount());
+        assertTrue(writes.statuses.isEmpty());                                          //Held, not cancelled
+        mScheduler.runPending();
+        assertEquals(Arrays.asList(false), mTransport.reconnects);                      //Direct first
+
+        mSession.onConnectionStateChange(GattOperation.GATT_ERROR, false);              //Stuck client is replaced
+        assertEquals(1, mTransport.resets);
+        mScheduler.runPending();
+        mSession.onConnectionStateChange(GattOperation.GATT_ERROR, false);
+        mScheduler.runPending();
+        assertEquals(Arrays.asList(false, false, true), mTransport.reconnects);         //Then left to autoConnect
+        assertEquals(1, mTransport.connects);                                           //Only the first connection was asked for by the app
+
+        bringUp(185);
+        assertEquals(DeviceSession.State.READY, mSession.getState());
+        assertEquals(1, mSession.getRecoveryCount());
+        assertEquals(1, metrics.recoveryTime.snapshot().getCount());
+        assertEquals(0, mSession.getHeldCount());
+        mSession.onCharacteristicWrite(LedGattProfile.LED_TOGGLE, GattOperation.GATT_SUCCESS);
+        mSession.onCharacteristicWrite(LedGattProfile.LED_TOGGLE, GattOperation.GATT_SUCCESS);
+        assertEquals(3, radioWrites().size());                                          //Both sent again on the new link, in order
+        assertArrayEquals(radioWrites().get(0), radioWrites().get(1));
+        assertEquals(2, writes.statuses.size());
+        assertEquals(GattOperation.GATT_SUCCESS, (int) writes.statuses.get(1));
+    }
+
+    @Test
+    public void disconnectRequestedByTheAppIsNotUndone() {
+        mSession.setReconnectPolicy(new ReconnectPolicy());
+        bringUp(185);
+        Reads writes = new Reads();
+        mSession.setLed(1, writes);
+        mSession.disconnect();
+        mSession.onConnectionStateChange(GattOperation.GATT_SUCCESS, false);
+        assertEquals(DeviceSession.State.DISCONNECTED, mSession.getState());
+        assertEquals(GattOperation.STATUS_CANCELLED, (int) writes.statuses.get(0));
+        mScheduler.runPending();
+        assertTrue(mTransport.reconnects.isEmpty());
+
+        bringUp(185);
+        mSession.onConnectionStateChange(GattOperation.GATT_SUCCESS, false);           //Dropped by the board this time
+        assertEquals(DeviceSession.State.RECONNECTING, mSession.getState());
+        mSession.disconnect();                                                          //Gives up while waiting
+        assertEquals(DeviceSession.State.DISCONNECTED, mSession.getState());
+        mScheduler.runPending();
+        assertTrue(mTransport.reconnects.isEmpty());
+    }
+
+    @Test
+    public void cachedValueExpires() {
+        LedStateCache cache = new LedStateCache();
+        cache.setMaxAgeMillis(100);
+        assertFalse(cache.isFresh(0));
+        cache.update(new byte[] {1, 2, 3}, 2, 1000000000L);
+        assertTrue(cache.isFresh(1000000000L + 100000000L));
+        assertFalse(cache.isFresh(1000000000L + 100000001L));
+        assertEquals(50, cache.getAgeMillis(1050000000L));
+        assertArrayEquals(new byte[] {1, 2}, cache.copyValue());
+    }
+}
@@ -0,0 +1,197 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LedEventJournalTest {
+
+    private static final long BOARD_A = LedEventJournal.deviceId("00:16:A4:12:34:56");
+    private static final long BOARD_B = LedEventJournal.deviceId("00:16:A4:12:34:57");
+    private static final int SEGMENT_OF_FOUR = 32 + 4 * 32;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final List<Runnable> mPosted = new ArrayList<Runnable>();
+    private final List<String> mEvents = new ArrayList<String>();
+
+    private final Executor mManualExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mPosted.add(command);
+        }
+    };
+
+    private final LedEventJournal.Visitor mRecorder = new LedEventJournal.Visitor() {
+        @Override
+        public boolean onEvent(LedEventJournal.Event event) {
+            mEvents.add(event.timeMillis + ":" + LedEventJournal.address(event.device).substring(15) + ":"
+                    + event.sequence + ":" + event.state);
+            return true;
+        }
+    };
+
+    private void runPosted() {
+        while (!mPosted.isEmpty()) {
+            mPosted.remove(0).run();
+        }
+    }
+
+    @Test
+    public void deviceIdsRoundTrip() {
+        assertEquals("00:16:A4:12:34:56", LedEventJournal.address(BOARD_A));
+        assertEquals(BOARD_A + 1, BOARD_B);
+    }
+
+    @Test
+    public void rangeScanReturnsOneDeviceInTimeOrder() throws Exception {
+        LedEventJournal journal = new LedEventJournal(mFolder.getRoot(), 8, 4096, 4, mManualExecutor);
+        for (int i = 0; i < 6; i++) {
+            journal.append(100 + i * 10, i % 2 == 0 ? BOARD_A : BOARD_B, i, i & 1, 800, LedEventJournal.TYPE_NOTIFY, 0);
+        }
+        assertEquals(1, mPosted.size());                                                //One wake-up for the burst
+        assertEquals(0, journal.scan(BOARD_A, 0, Long.MAX_VALUE, mRecorder));           //Nothing is visible before the writer ran
+
+        runPosted();
+        assertEquals(2, journal.scan(BOARD_A, 110, 140, mRecorder));
+        assertEquals("120:56:2:0", mEvents.get(0));
+        assertEquals("140:56:4:0", mEvents.get(1));
+
+        mEvents.clear();
+        assertEquals(3, journal.scan(115, 145, mRecorder));                             //Every board, in journal order
+        assertEquals("130:57:3:1", mEvents.get(1));
+        assertEquals(6, journal.getWrittenCount());
+    }
+
+    @Test
+    public void timesNeverGoBackwards() throws Exception {
+        LedEventJournal journal = new LedEventJournal(mFolder.getRoot(), 8, 4096, 4, mManualExecutor);
+        journal.append(200, BOARD_A, 1, 1, -1, LedEventJournal.TYPE_WRITE, 0);
+        journal.append(150, BOARD_B, 1, 1, -1, LedEventJournal.TYPE_WRITE, 0);          //Lost a race with the first
+        runPosted();
+        journal.scan(0, Long.MAX_VALUE, mRecorder);
+        assertEquals("200:57:1:1", mEvents.get(1));
+    }
+
+    @Test
+    public void fullSegmentsRotateAndTheOldestIsDeleted() throws Exception {
+        LedEventJournal journal = new LedEventJournal(mFolder.getRoot(), 16, SEGMENT_OF_FOUR, 2, mManualExecutor);
+        for (int i = 0; i < 10; i++) {
+            journal.append(i, BOARD_A, i, 1, -1, LedEventJournal.TYPE_NOTIFY, 0);
+        }
+        runPosted();
+        assertEquals(2, journal.getSegmentCount());
+        assertEquals(2, mFolder.getRoot().list().length);
+        assertEquals(6, journal.scan(BOARD_A, 0, Long.MAX_VALUE, mRecorder));          //Records 0 to 3 went with the first segment
+        assertEquals("4:56:4:1", mEvents.get(0));
+    }
+
+    @Test
+    public void reopenedJournalRebuildsItsIndex() throws Exception {
+        LedEventJournal journal = new LedEventJournal(mFolder.getRoot(), 16, SEGMENT_OF_FOUR, 4, mManualExecutor);
+        for (int i = 0; i < 6; i++) {
+            journal.append(i * 10, i < 3 ? BOARD_A : BOARD_B, i, 0, -1, LedEventJournal.TYPE_READ, 0);
+        }
+        runPosted();
+        journal.close();
+
+        LedEventJournal reopened = new LedEventJournal(mFolder.getRoot(), 16, SEGMENT_OF_FOUR, 4, mManualExecutor);
+        assertEquals(6, reopened.getWrittenCount());
+        assertEquals(3, reopened.scan(BOARD_B, 0, Long.MAX_VALUE, mRecorder));
+        reopened.append(5, BOARD_B, 6, 1, -1, LedEventJournal.TYPE_NOTIFY, 0);
+        runPosted();
+        mEvents.clear();
+        reopened.scan(BOARD_B, 50, Long.MAX_VALUE, mRecorder);
+        assertEquals("50:57:6:1", mEvents.get(1));                                      //Appended after the records already on disk
+        assertEquals(2, reopened.getSegmentCount());
+    }
+
+    @Test
+    public void writeResultsKeepTheirStatusAndRoundTrip() throws Exception {
+        LedEventJournal journal = new LedEventJournal(mFolder.getRoot(), 8, 4096, 4, mManualExecutor);
+        journal.append(1, BOARD_A, 9, 1, 7500, LedEventJournal.TYPE_WRITE, GattOperation.GATT_ERROR);
+        runPosted();
+        final LedEventJournal.Event copy = new LedEventJournal.Event();
+        journal.scan(BOARD_A, 0, 1, new LedEventJournal.Visitor() {
+            @Override
+            public boolean onEvent(LedEventJournal.Event event) {
+                copy.rttMicros = event.rttMicros;
+                copy.type = event.type;
+                copy.status = event.status;
+                return false;
+            }
+        });
+        assertEquals(7500, copy.rttMicros);
+        assertEquals(LedEventJournal.TYPE_WRITE, copy.type);
+        assertEquals(GattOperation.GATT_ERROR, copy.status);
+    }
+
+    @Test
+    public void fullRingDropsWithoutBlocking() throws Exception {
+        LedEventJournal journal = new LedEventJournal(mFolder.getRoot(), 4, 4096, 4, mManualExecutor);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(journal.append(i, BOARD_A, i, 0, -1, LedEventJournal.TYPE_NOTIFY, 0));
+        }
+        assertFalse(journal.append(4, BOARD_A, 4, 0, -1, LedEventJournal.TYPE_NOTIFY, 0));
+        assertEquals(1, journal.getDroppedCount());
+
+        runPosted();
+        assertTrue(journal.append(5, BOARD_A, 5, 0, -1, LedEventJournal.TYPE_NOTIFY, 0));
+        runPosted();
+        assertEquals(5, journal.getWrittenCount());
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Records from 64 boards appended faster than the writer keeps up: every accepted record is written, the others are
+    // counted as dropped, and range scans find them. The cost per append and per scan is measured by JournalBenchmark
+    // in the simulator.
+    @Test
+    public void appendsFromManyBoardsAreWrittenAndScanned() throws Exception {
+        final int boards = 64, records = 200000;
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        LedEventJournal journal = new LedEventJournal(new File(mFolder.getRoot(), "many"), 65536, 4 << 20, 16, writer);
+
+        int accepted = 0;
+        for (int i = 0; i < records; i++) {
+            if (journal.append(i / 10, BOARD_A + i % boards, i & 0xFF, i & 1, 900, LedEventJournal.TYPE_NOTIFY, 0)) {
+                accepted++;
+            }
+            else {
+                Thread.yield();                                                         //A real producer would move on, give the writer a turn here
+            }
+        }
+        journal.flush();
+        writer.shutdown();
+        writer.awaitTermination(10, TimeUnit.SECONDS);
+        assertEquals(accepted, journal.getWrittenCount());
+        assertEquals(records - accepted, journal.getDroppedCount());
+
+        final int[] states = new int[2];
+        LedEventJournal.Visitor counter = new LedEventJournal.Visitor() {
+            @Override
+            public boolean onEvent(LedEventJournal.Event event) {
+                states[event.state]++;
+                return true;
+            }
+        };
+        int scanned = 0;
+        for (int i = 0; i < 200; i++) {
+            long from = (i * 37L) % (records / 10);
+            scanned += journal.scan(BOARD_A + i % boards, from, from + 1000, counter);  //One board over 1000 ms
+        }
+        assertTrue(scanned > 0);
+        assertEquals(scanned, states[0] + states[1]);
+        journal.close();
+    }
+}
@@ -0,0 +1,118 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class LedGatewayTest {
+
+    private static final long LINK_DELAY_MILLIS = 8;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final LedGateway mGateway = new LedGateway();
+    private final List<LedGateway.BatchResult> mResults = new ArrayList<LedGateway.BatchResult>();
+    private final LedGateway.BatchReply mReply = new LedGateway.BatchReply() {
+        @Override
+        public void onBatchReply(LedGateway.BatchResult result) {
+            mResults.add(result);
+        }
+    };
+    private FakeGattServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new FakeGattServer(LINK_DELAY_MILLIS, mFolder.getRoot());
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Add boards to the room and to the gateway, and let their sessions come up
+    private void addBoards(List<String> addresses) {
+        for (String address : addresses) {
+            mGateway.addDevice(address, mServer.add(address).getSession(), mServer.getScheduler());
+        }
+        mServer.getScheduler().advance(10 * LINK_DELAY_MILLIS);
+        for (String address : addresses) {
+            assertTrue(address, mServer.getBoard(address).getSession().isReady());
+        }
+    }
+
+    @Test
+    public void broadcastWritesEveryBoardThroughItsSession() {
+        List<String> addresses = FakeGattServer.addresses(8);
+        addBoards(addresses);
+        mGateway.setAll(1, mReply);
+        mServer.getScheduler().advance(LINK_DELAY_MILLIS);
+
+        assertEquals(1, mResults.size());
+        LedGateway.BatchResult result = mResults.get(0);
+        assertTrue(result.isOk());
+        assertEquals(addresses.size(), result.getStatuses().size());
+        assertEquals(addresses.size(), result.getLatencies().size());
+        for (String address : addresses) {
+            FakeGattServer.Board board = mServer.getBoard(address);
+            assertEquals(1, board.getWrites().size());
+            LedState written = new LedState();
+            assertTrue(new LedStateCodec(board.getSession().getFormat()).decode(board.getWrites().get(0), written));
+            assertEquals(1, written.state);
+            assertEquals(1, mGateway.getLastState(address));
+        }
+    }
+
+    @Test
+    public void boardsThatCannotTakeTheCommandAreReported() {
+        addBoards(FakeGattServer.addresses(2));
+        String late = "00:16:A4:00:01:00";
+        mGateway.addDevice(late, mServer.add(late).getSession(), mServer.getScheduler());  //Still connecting
+        Map<String, Integer> states = new LinkedHashMap<String, Integer>();
+        for (String address : mGateway.getAddresses()) {
+            states.put(address, 1);
+        }
+        states.put("00:00:00:00:00:00", 1);
+        mGateway.setLeds(states, mReply);
+        mServer.getScheduler().advance(LINK_DELAY_MILLIS);
+
+        LedGateway.BatchResult result = mResults.get(0);
+        assertFalse(result.isOk());
+        assertEquals(2, result.getLatencies().size());
+        assertEquals(GattOperation.STATUS_REJECTED, (int) result.getStatuses().get(late));
+        assertEquals(LedGateway.STATUS_NO_DEVICE, (int) result.getStatuses().get("00:00:00:00:00:00"));
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // 32 boards, 50 broadcasts given back to back. Every board has one write on the air at a time and all boards are
+    // written together, so the last broadcast completes after 50 link delays rather than 32 x 50.
+    @Test
+    public void broadcastsFanOutInParallel() {
+        final int boards = 32, rounds = 50;
+        addBoards(FakeGattServer.addresses(boards));
+        mServer.resetMaxInFlight();
+        for (int i = 0; i < rounds; i++) {
+            mGateway.setAll(i & 1, mReply);
+        }
+        mServer.getScheduler().advance(rounds * LINK_DELAY_MILLIS - 1);
+        assertEquals(rounds - 1, mResults.size());
+        mServer.getScheduler().advance(1);
+        assertEquals(rounds, mResults.size());
+
+        assertEquals(boards, mServer.getMaxInFlight());
+        for (String address : FakeGattServer.addresses(boards)) {
+            assertEquals(1, mServer.getBoard(address).getMaxInFlight());                //Each link keeps its queue order
+            assertEquals(rounds, mServer.getBoard(address).getWrites().size());
+        }
+        for (LedGateway.BatchResult result : mResults) {
+            assertTrue(result.isOk());
+            assertEquals(boards, result.getLatencies().size());
+        }
+        assertEquals(1, mGateway.getLastState(FakeGattServer.addresses(1).get(0)));
+    }
+}
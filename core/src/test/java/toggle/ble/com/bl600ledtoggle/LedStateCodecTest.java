@@ -0,0 +1,89 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LedStateCodecTest {
+
+    private final LedStateCodec mBinary = new LedStateCodec(LedStateCodec.Mode.BINARY);
+    private final LedStateCodec mLegacy = new LedStateCodec(LedStateCodec.Mode.LEGACY_STRING);
+    private final LedState mState = new LedState();
+
+    @Test
+    public void binaryRoundTripWithOptionalFields() {
+        byte[] toggle = mBinary.encode(new LedState().set(1, 200, LedState.ABSENT, LedState.ABSENT));
+        assertArrayEquals(new byte[] {1, (byte) 200}, toggle);
+        assertTrue(mBinary.decode(toggle, mState));
+        assertEquals(1, mState.state);
+        assertEquals(200, mState.sequence);
+        assertEquals(LedState.ABSENT, mState.brightness);
+
+        byte[] full = mBinary.encode(new LedState().set(0, 7, 128, 3));
+        assertEquals(4, full.length);
+        assertTrue(mBinary.decode(full, mState));
+        assertEquals(0, mState.state);
+        assertEquals(128, mState.brightness);
+        assertEquals(3, mState.pattern);
+    }
+
+    @Test
+    public void binaryRejectsMalformedValues() {
+        mState.set(1, 5, LedState.ABSENT, LedState.ABSENT);
+        assertFalse(mBinary.decode(new byte[] {1}, mState));
+        assertFalse(mBinary.decode(new byte[] {2, 0}, mState));
+        assertFalse(mBinary.decode(new byte[] {1, 0, 0, 0, 0}, mState));
+        assertEquals(5, mState.sequence);                                               //Left untouched
+    }
+
+    @Test
+    public void legacyMatchesOldStringHandling() {
+        assertArrayEquals(new byte[] {'1'}, mLegacy.encode(new LedState().set(1, 9, LedState.ABSENT, LedState.ABSENT)));
+        assertTrue(mLegacy.decode(new byte[] {'0'}, mState));                           //Not set yet, no leading byte
+        assertEquals(0, mState.state);
+        assertTrue(mLegacy.decode(new byte[] {'x', '1'}, mState));                      //Leading byte once set
+        assertEquals(1, mState.state);
+        assertFalse(mLegacy.decode(new byte[] {'x', 'y'}, mState));
+    }
+
+    @Test
+    public void detectsFormatFromBoardValue() {
+        assertEquals(LedStateCodec.Mode.LEGACY_STRING, LedStateCodec.detect(new byte[] {'0'}));
+        assertEquals(LedStateCodec.Mode.LEGACY_STRING, LedStateCodec.detect(new byte[] {0, '1'}));
+        assertEquals(LedStateCodec.Mode.BINARY, LedStateCodec.detect(new byte[] {1, 42}));
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Encoding into a caller's buffer and decoding into a reused LedState leave no garbage per message once warm
+    @Test
+    public void encodeAndDecodeDoNotAllocate() {
+        final int iterations = 2000000;
+        byte[] buffer = new byte[LedStateCodec.MAX_LENGTH];
+        byte[] binaryValue = {1, 0};
+        LedState sent = new LedState().set(1, 0, LedState.ABSENT, LedState.ABSENT);
+        long sink = 0;
+
+        for (int warmup = 0; warmup < 2; warmup++) {                                    //Second pass is measured, after the JIT has compiled everything
+            long startBytes = AllocationMeter.allocatedBytes();
+            for (int i = 0; i < iterations; i++) {
+                sent.sequence = i & 0xFF;
+                sink += mBinary.encode(sent, buffer);
+            }
+            long encodeBytes = AllocationMeter.allocatedBytes() - startBytes;
+
+            startBytes = AllocationMeter.allocatedBytes();
+            for (int i = 0; i < iterations; i++) {
+                binaryValue[1] = (byte) i;
+                mBinary.decode(binaryValue, mState);
+                sink += mState.sequence;
+            }
+            long decodeBytes = AllocationMeter.allocatedBytes() - startBytes;
+
+            if (warmup == 1) {
+                assertTrue(decodeBytes < iterations / 100);                             //Effectively zero garbage per message
+                assertTrue(encodeBytes < iterations / 100);
+            }
+        }
+        assertTrue(sink > 0);
+    }
+}
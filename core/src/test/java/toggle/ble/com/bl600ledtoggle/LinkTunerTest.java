@@ -0,0 +1,78 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LinkTunerTest {
+
+    private final FakeGattTransport mTransport = new FakeGattTransport();
+    private final GattOperationQueue mQueue = new GattOperationQueue(mTransport, new ManualTaskScheduler());
+    private final List<Integer> mFrameMtus = new ArrayList<Integer>();
+    private final List<Boolean> mPriorityResults = new ArrayList<Boolean>();
+
+    private final LinkTuner mTuner = new LinkTuner(mTransport, mQueue, new LinkTuner.Listener() {
+        @Override
+        public void onLinkTuned(LinkProfile profile, int frameMtu, boolean priorityGranted) {
+            mFrameMtus.add(frameMtu);
+            mPriorityResults.add(priorityGranted);
+        }
+    });
+
+    private void grantMtu(int mtu) {
+        mTuner.onMtuChanged(mtu, GattOperation.GATT_SUCCESS);                           //Same order as the BluetoothGattCallback
+        mQueue.onMtuChanged(mtu, GattOperation.GATT_SUCCESS);
+    }
+
+    @Test
+    public void firstProfileExchangesLargestMtuAndCapsFrames() {
+        mTuner.apply(LinkProfile.LOW_LATENCY);
+        assertEquals(GattOperation.Type.REQUEST_MTU, mTransport.getCalls().get(0).type);
+        assertEquals(LinkProfile.PRIORITY_HIGH, (int) mTransport.getPriorities().get(0));
+        assertTrue(mFrameMtus.isEmpty());                                               //Waits for the exchange
+
+        grantMtu(185);                                                                  //Board grants less than asked for
+        assertEquals(64, (int) mFrameMtus.get(0));
+        assertEquals(185, mTuner.getGrantedMtu());
+    }
+
+    @Test
+    public void laterProfilesOnlyChangePriorityAndFrameSize() {
+        mTuner.apply(LinkProfile.LOW_LATENCY);
+        grantMtu(185);
+        mTuner.apply(LinkProfile.HIGH_THROUGHPUT);
+        mTuner.apply(LinkProfile.LOW_POWER);
+
+        assertEquals(1, mTransport.getCalls().size());                                  //One MTU exchange per connection
+        assertEquals(3, mTransport.getPriorities().size());
+        assertEquals(LinkProfile.PRIORITY_LOW_POWER, (int) mTransport.getPriorities().get(2));
+        assertEquals(185, (int) mFrameMtus.get(1));
+        assertEquals(23, (int) mFrameMtus.get(2));
+        assertEquals(LinkProfile.LOW_POWER, mTuner.getProfile());
+    }
+
+    @Test
+    public void platformWithoutMtuOrPriorityKeepsDefaults() {
+        mTransport.rejectNext(1);
+        mTransport.setPrioritySupported(false);
+        mTuner.apply(LinkProfile.HIGH_THROUGHPUT);
+
+        assertEquals(23, (int) mFrameMtus.get(0));
+        assertFalse(mPriorityResults.get(0));
+        assertTrue(mQueue.isIdle());
+    }
+
+    @Test
+    public void reconnectExchangesAgain() {
+        mTuner.apply(LinkProfile.HIGH_THROUGHPUT);
+        grantMtu(247);
+        mTuner.onDisconnected();
+        assertEquals(23, mTuner.getFrameMtu());
+
+        mTuner.apply(LinkProfile.HIGH_THROUGHPUT);
+        assertEquals(2, mTransport.getCalls().size());
+    }
+}
@@ -0,0 +1,41 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * TaskScheduler for tests. Posted tasks only run when the test calls {@link #runPending()}.
+ */
+public class ManualTaskScheduler implements TaskScheduler {
+
+    private final List<Runnable> mTasks = new ArrayList<Runnable>();
+
+    @Override
+    public synchronized void postDelayed(Runnable task, long delayMillis) {
+        mTasks.add(task);
+    }
+
+    @Override
+    public synchronized void removeCallbacks(Runnable task) {
+        while (mTasks.remove(task)) {
+            //Remove every posting of the task, like Handler.removeCallbacks
+        }
+    }
+
+    public synchronized int size() {
+        return mTasks.size();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Run the tasks that are posted right now. Tasks posted while running wait for the next call.
+    public void runPending() {
+        List<Runnable> tasks;
+        synchronized (this) {
+            tasks = new ArrayList<Runnable>(mTasks);
+            mTasks.clear();
+        }
+        for (Runnable task : tasks) {
+            task.run();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class NotificationPipelineTest {
+
+    private final List<Runnable> mPosted = new ArrayList<Runnable>();
+    private final List<String> mReceived = new ArrayList<String>();
+
+    private final Executor mManualExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mPosted.add(command);
+        }
+    };
+
+    private final NotificationPipeline.Consumer mRecorder = new NotificationPipeline.Consumer() {
+        @Override
+        public void onNotification(byte[] payload, int length, long timestampNanos) {
+            mReceived.add(new String(payload, 0, length) + "@" + timestampNanos);
+        }
+    };
+
+    @Test
+    public void burstIsDeliveredInOrderWithOneWakeUp() {
+        NotificationPipeline pipeline = new NotificationPipeline(8, 4, mManualExecutor, mRecorder);
+        assertTrue(pipeline.offer(new byte[] {'a'}, 1));
+        assertTrue(pipeline.offer(new byte[] {'b', 'c'}, 2));
+        assertTrue(pipeline.offer(new byte[] {'d'}, 3));
+        assertEquals(1, mPosted.size());
+
+        mPosted.get(0).run();
+        assertEquals(3, mReceived.size());
+        assertEquals("a@1", mReceived.get(0));
+        assertEquals("bc@2", mReceived.get(1));
+        assertEquals(0, pipeline.size());
+
+        pipeline.offer(new byte[] {'e'}, 4);                                            //Idle again, so the next payload posts a new drain
+        assertEquals(2, mPosted.size());
+    }
+
+    @Test
+    public void fullRingDropsAndLongPayloadsAreTruncated() {
+        NotificationPipeline pipeline = new NotificationPipeline(2, 2, mManualExecutor, mRecorder);
+        assertTrue(pipeline.offer(new byte[] {'a', 'b', 'c'}, 1));
+        assertTrue(pipeline.offer(new byte[] {'d'}, 2));
+        assertFalse(pipeline.offer(new byte[] {'e'}, 3));
+        assertEquals(1, pipeline.getDroppedCount());
+        assertEquals(1, pipeline.getTruncatedCount());
+
+        mPosted.get(0).run();
+        assertEquals("ab@1", mReceived.get(0));
+        assertTrue(pipeline.offer(new byte[] {'f'}, 4));                                //Slots are free again after the drain
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void slotCountMustBePowerOfTwo() {
+        new NotificationPipeline(3, 4, mManualExecutor, mRecorder);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Allocation profile: the full notification path used by ControlActivity (ring, binary decode, coalesced UI update)
+    // must not allocate per notification once it is warm
+    @Test
+    public void steadyStateNotificationPathDoesNotAllocate() {
+        final LedStateCodec codec = new LedStateCodec(LedStateCodec.Mode.BINARY);
+        final LedState state = new LedState();
+        final int[] shown = new int[1];
+        Executor inline = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        final UiUpdateCoalescer<String> ui = new UiUpdateCoalescer<String>(inline, new UiUpdateCoalescer.Sink<String>() {
+            @Override
+            public void apply(String value) {
+                shown[0]++;
+            }
+        });
+        NotificationPipeline pipeline = new NotificationPipeline(NotificationPipeline.DEFAULT_SLOTS,
+                NotificationPipeline.MAX_PAYLOAD, inline, new NotificationPipeline.Consumer() {
+            @Override
+            public void onNotification(byte[] payload, int length, long timestampNanos) {
+                if (codec.decode(payload, length, state)) {
+                    ui.publish(state.isOn() ? "1" : "0");
+                }
+            }
+        });
+
+        byte[] value = {1, 0};
+        final int notifications = 1000000;
+        for (int i = 0; i < notifications; i++) {                                       //Warm up so the JIT has compiled the path
+            value[1] = (byte) i;
+            pipeline.offer(value, i);
+        }
+        long before = AllocationMeter.allocatedBytes();
+        for (int i = 0; i < notifications; i++) {
+            value[0] = (byte) (i & 1);
+            value[1] = (byte) i;
+            pipeline.offer(value, i);
+        }
+        long allocated = AllocationMeter.allocatedBytes() - before;
+
+        assertEquals(2 * notifications, shown[0]);
+        assertTrue(allocated + " bytes", allocated < 1024);                             //Only allowance is for the measurement itself
+    }
+}
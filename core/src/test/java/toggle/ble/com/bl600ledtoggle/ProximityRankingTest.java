@@ -0,0 +1,184 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ProximityRankingTest {
+
+    private static final int SIZE = 5;
+    private static final long AD_INTERVAL_MILLIS = 100;
+
+    private final ProximityRanking mRanking = new ProximityRanking(SIZE, ProximityRanking.DEFAULT_HYSTERESIS_DB);
+
+    @Test
+    public void filterRidesOutAnOutlier() {
+        for (int i = 0; i < 50; i++) {
+            mRanking.onAdvertisement("00:16:A4:00:00:01", -60, i * AD_INTERVAL_MILLIS);
+        }
+        mRanking.onAdvertisement("00:16:A4:00:00:01", -90, 50 * AD_INTERVAL_MILLIS);    //One reflection off a wall
+        double rssi = mRanking.get("00:16:A4:00:00:01").getRssi();
+        assertTrue(String.valueOf(rssi), rssi > -67);
+        for (int i = 51; i < 100; i++) {
+            mRanking.onAdvertisement("00:16:A4:00:00:01", -70, i * AD_INTERVAL_MILLIS); //A real move is followed
+        }
+        assertEquals(-70, mRanking.get("00:16:A4:00:00:01").getRssi(), 1);
+    }
+
+    @Test
+    public void keepsTheInvariantsThroughRandomUpdates() {
+        List<String> addresses = FakeGattServer.addresses(200);
+        Random random = new Random(7);
+        for (int i = 0; i < 20000; i++) {
+            String address = addresses.get(random.nextInt(addresses.size()));
+            if (random.nextInt(50) == 0) {
+                mRanking.remove(address);
+            }
+            else {
+                mRanking.onAdvertisement(address, -40 - random.nextInt(60), i);
+            }
+            if (i % 97 == 0) {
+                checkInvariants(addresses);
+            }
+        }
+        assertTrue(mRanking.expire(30000, 10));                                         //Everything is stale
+        assertEquals(0, mRanking.size());
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // 40 boards 1.5 dB apart, each heard every 100 ms with 6 dB of noise, and one board 10 dB nearer than the rest.
+    // Ranking by the latest raw RSSI reshuffles all the time; the filtered ranking barely moves and keeps the nearest
+    // board on top.
+    @Test
+    public void rankingStaysStableUnderNoisyRssi() {
+        int boards = 40;
+        List<String> addresses = FakeGattServer.addresses(boards);
+        double[] trueRssi = new double[boards];
+        for (int i = 0; i < boards; i++) {
+            trueRssi[i] = i == 0 ? -35 : -45 - 1.5 * i;
+        }
+        final int[] raw = new int[boards];
+        Arrays.fill(raw, Integer.MIN_VALUE);
+        Random random = new Random(42);
+        List<ProximityRanking.Device> nearest = new ArrayList<ProximityRanking.Device>();
+        List<String> rawTop = new ArrayList<String>();
+        int filteredChanges = 0, rawChanges = 0, nearestOnTop = 0, samples = 0;
+        long warmup = 5000, end = 60000;
+        for (long now = 0; now < end; now += AD_INTERVAL_MILLIS / boards) {
+            int board = (int) (now / (AD_INTERVAL_MILLIS / boards)) % boards;
+            int rssi = (int) Math.round(trueRssi[board] + random.nextGaussian() * 6);
+            raw[board] = rssi;
+            boolean changed = mRanking.onAdvertisement(addresses.get(board), rssi, now);
+            List<String> top = rawTop(addresses, raw);
+            if (now >= warmup) {
+                samples++;
+                filteredChanges += changed ? 1 : 0;
+                rawChanges += top.equals(rawTop) ? 0 : 1;
+                mRanking.getNearest(nearest);
+                nearestOnTop += nearest.get(0).address.equals(addresses.get(0)) ? 1 : 0;
+            }
+            rawTop = top;
+        }
+        assertEquals(samples, nearestOnTop);
+        assertTrue(filteredChanges + " filtered, " + rawChanges + " raw", filteredChanges * 20 < rawChanges);
+        assertTrue(filteredChanges + " of " + samples, filteredChanges < samples / 100);
+        mRanking.getNearest(nearest);
+        Set<String> trueTop = new HashSet<String>(addresses.subList(0, SIZE));
+        int correct = 0;
+        for (ProximityRanking.Device device : nearest) {
+            correct += trueTop.contains(device.address) ? 1 : 0;
+        }
+        assertTrue(correct >= SIZE - 1);                                                //At most one swapped with a neighbour 1.5 dB away
+    }
+
+    @Test
+    public void boardCarriedCloserRisesToTheTop() {
+        List<String> addresses = FakeGattServer.addresses(20);
+        long now = 0;
+        for (int round = 0; round < 50; round++, now += AD_INTERVAL_MILLIS) {
+            for (int i = 0; i < addresses.size(); i++) {
+                mRanking.onAdvertisement(addresses.get(i), -50 - 2 * i, now);
+            }
+        }
+        String far = addresses.get(19);
+        assertEquals(-1, mRanking.get(far).getRank());
+        int rounds = 0;
+        while (mRanking.get(far).getRank() != 0) {
+            now += AD_INTERVAL_MILLIS;
+            for (int i = 0; i < addresses.size(); i++) {
+                mRanking.onAdvertisement(addresses.get(i), i == 19 ? -35 : -50 - 2 * i, now);
+            }
+            rounds++;
+            assertTrue(rounds < 30);                                                    //Within three seconds
+        }
+    }
+
+    @Test
+    public void nearestRowsComeFirstOnTheList() {
+        DeviceListModel list = new DeviceListModel();
+        list.onLive("A", "a", -80);
+        list.onLive("B", "b", -50);
+        list.onLive("C", "c", -60);
+        assertTrue(list.setNearest(Arrays.asList("B", "C", "X")));                      //X is not on the list yet
+        assertFalse(list.setNearest(Arrays.asList("B", "C", "X")));
+        assertEquals("B", list.get(0).address);
+        assertEquals("C", list.get(1).address);
+        assertEquals("A", list.get(2).address);
+        assertEquals(0, list.find("B").getRank());
+        assertEquals(-1, list.find("A").getRank());
+        list.onLive("D", "d", -70);
+        assertEquals("D", list.get(3).address);                                         //New boards join the others
+        list.setNearest(Collections.<String>emptyList());
+        assertEquals("A", list.get(0).address);
+        assertEquals(-1, list.find("B").getRank());
+    }
+
+    private List<String> rawTop(List<String> addresses, final int[] raw) {
+        List<Integer> boards = new ArrayList<Integer>();
+        for (int i = 0; i < raw.length; i++) {
+            if (raw[i] != Integer.MIN_VALUE) {
+                boards.add(i);
+            }
+        }
+        Collections.sort(boards, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return raw[b] != raw[a] ? raw[b] - raw[a] : a - b;
+            }
+        });
+        List<String> top = new ArrayList<String>();
+        for (int i = 0; i < Math.min(SIZE, boards.size()); i++) {
+            top.add(addresses.get(boards.get(i)));
+        }
+        return top;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // The nearest list is full while there are enough devices, and no other device beats its weakest member by more
+    // than the hysteresis
+    private void checkInvariants(List<String> addresses) {
+        List<ProximityRanking.Device> nearest = new ArrayList<ProximityRanking.Device>();
+        mRanking.getNearest(nearest);
+        assertEquals(Math.min(SIZE, mRanking.size()), nearest.size());
+        double weakest = Double.MAX_VALUE;
+        for (int i = 0; i < nearest.size(); i++) {
+            assertEquals(i, nearest.get(i).getRank());
+            weakest = Math.min(weakest, nearest.get(i).getRssi());
+        }
+        for (String address : addresses) {
+            ProximityRanking.Device device = mRanking.get(address);
+            if (device != null && device.getRank() < 0) {
+                assertTrue(device.getRssi() <= weakest + ProximityRanking.DEFAULT_HYSTERESIS_DB);
+            }
+        }
+    }
+}
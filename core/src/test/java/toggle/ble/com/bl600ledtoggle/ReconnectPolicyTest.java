@@ -0,0 +1,51 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ReconnectPolicyTest {
+
+    @Test
+    public void immediateThenBackoffThenBackground() {
+        ReconnectPolicy policy = new ReconnectPolicy().setImmediateAttempts(2).setBackoffAttempts(4)
+                .setBackoff(500, 3000).setJitter(0.5).setSeed(1);
+        assertEquals(0, policy.getDelayMillis(0));
+        assertEquals(0, policy.getDelayMillis(1));
+        assertFalse(policy.isBackground(1));
+
+        long[] ceilings = {500, 1000, 2000, 3000};                                      //Doubles up to the max
+        for (int step = 0; step < ceilings.length; step++) {
+            long delay = policy.getDelayMillis(2 + step);
+            assertTrue(delay + " > " + ceilings[step], delay <= ceilings[step]);
+            assertTrue(delay + " < half of " + ceilings[step], delay >= ceilings[step] / 2);
+            assertFalse(policy.isBackground(2 + step));
+        }
+
+        assertTrue(policy.isBackground(6));
+        assertEquals(0, policy.getDelayMillis(6));                                      //Background connection starts at once
+        assertEquals(3000, policy.getDelayMillis(7));                                   //and is not hammered if it fails
+        assertEquals(3000, policy.getDelayMillis(1000));
+    }
+
+    @Test
+    public void jitterSpreadsPhonesOut() {
+        ReconnectPolicy first = new ReconnectPolicy().setSeed(1);
+        ReconnectPolicy second = new ReconnectPolicy().setSeed(2);
+        boolean differs = false;
+        for (int attempt = ReconnectPolicy.DEFAULT_IMMEDIATE_ATTEMPTS; attempt < 6; attempt++) {
+            differs |= first.getDelayMillis(attempt) != second.getDelayMillis(attempt);
+        }
+        assertTrue(differs);
+        assertEquals(new ReconnectPolicy().setJitter(0).getDelayMillis(ReconnectPolicy.DEFAULT_IMMEDIATE_ATTEMPTS),
+                ReconnectPolicy.DEFAULT_BASE_DELAY_MILLIS);
+    }
+
+    @Test
+    public void onlyGattErrorResetsTheClient() {
+        ReconnectPolicy policy = new ReconnectPolicy();
+        assertTrue(policy.needsReset(GattOperation.GATT_ERROR));
+        assertFalse(policy.needsReset(GattOperation.GATT_SUCCESS));
+        assertFalse(policy.needsReset(8));                                              //Supervision timeout, the client is fine
+    }
+}
@@ -0,0 +1,75 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ScanDeviceIndexTest {
+
+    private final ScanDeviceIndex<String> mIndex = new ScanDeviceIndex<String>();
+
+    @Test
+    public void duplicatesOnlyUpdateRssiAndLastSeen() {
+        assertTrue(mIndex.onAdvertisement("00:16:A4:00:00:01", "board 1", -60, 1000));
+        assertFalse(mIndex.onAdvertisement("00:16:A4:00:00:01", "board 1", -62, 1016));
+        assertFalse(mIndex.onAdvertisement("00:16:A4:00:00:02", "board 2", -70, 1020)); //Refresh already scheduled
+
+        ScanDeviceIndex.ChangeSet<String> changes = mIndex.swapChanges();
+        assertEquals(2, changes.added.size());
+        assertEquals("board 1", changes.added.get(0).device);
+        assertEquals(-62, mIndex.get("00:16:A4:00:00:01").getRssi());
+        assertEquals(1016, mIndex.get("00:16:A4:00:00:01").getLastSeenMillis());
+
+        assertFalse(mIndex.onAdvertisement("00:16:A4:00:00:02", "board 2", -71, 1040)); //Too small to show
+        assertTrue(mIndex.swapChanges().isEmpty());
+    }
+
+    @Test
+    public void largeRssiMoveIsReportedOnce() {
+        mIndex.onAdvertisement("00:16:A4:00:00:01", "board 1", -60, 0);
+        mIndex.swapChanges();
+        assertTrue(mIndex.onAdvertisement("00:16:A4:00:00:01", "board 1", -50, 1));
+        assertFalse(mIndex.onAdvertisement("00:16:A4:00:00:01", "board 1", -40, 2));
+        ScanDeviceIndex.ChangeSet<String> changes = mIndex.swapChanges();
+        assertEquals(1, changes.updated.size());
+        assertEquals(0, changes.added.size());
+        assertFalse(mIndex.onAdvertisement("00:16:A4:00:00:01", "board 1", -42, 3));   //Compared with the value the UI was given
+    }
+
+    @Test
+    public void clearForgetsDevicesAndPendingChanges() {
+        mIndex.onAdvertisement("00:16:A4:00:00:01", "board 1", -60, 0);
+        mIndex.clear();
+        assertEquals(0, mIndex.size());
+        assertTrue(mIndex.swapChanges().isEmpty());
+        assertTrue(mIndex.onAdvertisement("00:16:A4:00:00:01", "board 1", -60, 0));
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Advertisements from 500 boards with noisy RSSI at 5000 per second, with the list refreshed every 16 ms of
+    // simulated time: noise below the redraw threshold must not refresh the list on every frame. The cost per
+    // advertisement is measured by ScanIndexBenchmark in the simulator.
+    @Test
+    public void denseAdvertisementsDoNotRefreshEveryFrame() {
+        final int boards = 500, advertisements = 200000, perFrame = 80;                 //5000 adv/s over 16 ms frames
+        List<String> addresses = FakeGattServer.addresses(boards);
+        Random random = new Random(42);
+        int refreshes = 0, frames = 0;
+        for (int i = 0; i < advertisements; i++) {
+            String address = addresses.get(random.nextInt(boards));
+            mIndex.onAdvertisement(address, address, -60 - random.nextInt(6), i / 5);   //Noise below the redraw threshold
+            if (i % perFrame == perFrame - 1) {
+                frames++;
+                if (!mIndex.swapChanges().isEmpty()) {
+                    refreshes++;
+                }
+            }
+        }
+        assertEquals(boards, mIndex.size());
+        assertEquals(advertisements, mIndex.getAdvertisementCount());
+        assertTrue(refreshes + " of " + frames, refreshes < frames);
+    }
+}
@@ -0,0 +1,139 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class ScanPipelineTest {
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Advertisement of a BL600 running the LED firmware: flags, complete 128-bit service list, name, zero padding
+    static byte[] bl600Advertisement(UUID service) {
+        byte[] record = new byte[62];
+        int i = 0;
+        record[i++] = 2;
+        record[i++] = AdvertisementParser.TYPE_FLAGS;
+        record[i++] = 0x06;
+        record[i++] = 17;
+        record[i++] = AdvertisementParser.TYPE_COMPLETE_UUID_128;
+        long lsb = service.getLeastSignificantBits(), msb = service.getMostSignificantBits();
+        for (int b = 0; b < 8; b++) {
+            record[i++] = (byte) (lsb >>> (8 * b));
+        }
+        for (int b = 0; b < 8; b++) {
+            record[i++] = (byte) (msb >>> (8 * b));
+        }
+        byte[] name = "BL600".getBytes();
+        record[i++] = (byte) (name.length + 1);
+        record[i++] = AdvertisementParser.TYPE_COMPLETE_LOCAL_NAME;
+        System.arraycopy(name, 0, record, i, name.length);
+        i += name.length;
+        record[i++] = 2;
+        record[i++] = AdvertisementParser.TYPE_TX_POWER_LEVEL;
+        record[i] = (byte) -4;
+        return record;
+    }
+
+    private final AdvertisementParser.Cursor mCursor = new AdvertisementParser.Cursor();
+
+    @Test
+    public void parserWalksStructuresInPlace() {
+        byte[] record = bl600Advertisement(LedGattProfile.LED_SERVICE);
+        List<Integer> types = new ArrayList<Integer>();
+        mCursor.reset(record);
+        while (mCursor.next()) {
+            types.add(mCursor.type);
+        }
+        assertEquals(4, types.size());                                                  //Stops at the zero padding
+        assertTrue(AdvertisementParser.hasServiceUuid(record, LedGattProfile.LED_SERVICE, mCursor));
+        assertFalse(AdvertisementParser.hasServiceUuid(record, LedGattProfile.LED_TOGGLE, mCursor));
+        assertEquals(-4, AdvertisementParser.txPowerLevel(record, mCursor));
+        assertTrue(AdvertisementParser.findLocalName(record, mCursor));
+        assertEquals("BL600", new String(record, mCursor.offset, mCursor.length));
+    }
+
+    @Test
+    public void parserStopsAtTruncatedStructure() {
+        byte[] record = {2, 0x01, 0x06, 17, 0x07, 1, 2, 3};
+        mCursor.reset(record);
+        assertTrue(mCursor.next());
+        assertFalse(mCursor.next());
+        assertFalse(AdvertisementParser.hasServiceUuid(record, LedGattProfile.LED_SERVICE, mCursor));
+    }
+
+    @Test
+    public void filterChecksServiceAndAddressPrefix() {
+        byte[] bl600 = bl600Advertisement(LedGattProfile.LED_SERVICE);
+        byte[] other = bl600Advertisement(UUID.randomUUID());
+        ScanFilterSpec service = new ScanFilterSpec(LedGattProfile.LED_SERVICE, null);
+        assertTrue(service.matches("11:22:33:44:55:66", bl600));
+        assertFalse(service.matches("11:22:33:44:55:66", other));
+        assertFalse(service.matches("11:22:33:44:55:66", null));
+
+        ScanFilterSpec prefix = new ScanFilterSpec(LedGattProfile.LED_SERVICE, "00:16:a4");
+        assertTrue(prefix.matches("00:16:A4:12:34:56", bl600));
+        assertFalse(prefix.matches("00:16:A5:12:34:56", bl600));
+    }
+
+    @Test
+    public void streamKeepsLatestResultPerDevice() {
+        ScanResultStream<String> stream = new ScanResultStream<String>(4);
+        assertTrue(stream.offer("A", "a", -70, null, 1));
+        assertFalse(stream.offer("B", "b", -60, null, 2));
+        assertFalse(stream.offer("A", "a", -50, null, 3));
+
+        final List<String> received = new ArrayList<String>();
+        ScanResultStream.Consumer<String> consumer = new ScanResultStream.Consumer<String>() {
+            @Override
+            public void onScanResult(String address, String device, int rssi, byte[] scanRecord, long timestampMillis) {
+                received.add(address + rssi);
+            }
+        };
+        assertEquals(1, stream.drain(consumer, 1));
+        assertEquals("A-50", received.get(0));                                          //First arrival order, newest values
+        stream.drain(consumer, 10);
+        assertEquals("B-60", received.get(1));
+        assertEquals(1, stream.getCoalescedCount());
+        assertTrue(stream.isEmpty());
+    }
+
+    @Test
+    public void fullStreamPausesProducerUntilConsumerCatchesUp() {
+        final List<String> signals = new ArrayList<String>();
+        ScanResultStream<String> stream = new ScanResultStream<String>(4);
+        stream.setFlowListener(new ScanResultStream.FlowListener() {
+            @Override
+            public void onPause() {
+                signals.add("pause");
+            }
+
+            @Override
+            public void onResume() {
+                signals.add("resume");
+            }
+        });
+        for (int i = 0; i < 6; i++) {
+            stream.offer("device" + i, "d", -60, null, i);
+        }
+        assertEquals(4, stream.size());                                                 //Bounded
+        assertEquals(2, stream.getRefusedCount());
+        assertEquals(1, signals.size());                                                //Paused once, not per refused result
+        stream.offer("device0", "d", -40, null, 7);                                     //Known devices still update while paused
+        assertEquals(1, stream.getCoalescedCount());
+        assertEquals(4, stream.size());
+
+        ScanResultStream.Consumer<String> ignore = new ScanResultStream.Consumer<String>() {
+            @Override
+            public void onScanResult(String address, String device, int rssi, byte[] scanRecord, long timestampMillis) {
+            }
+        };
+        stream.drain(ignore, 1);
+        assertFalse(signals.contains("resume"));                                        //3 left, above the low-water mark
+        stream.drain(ignore, 1);
+        assertEquals("resume", signals.get(1));
+    }
+}
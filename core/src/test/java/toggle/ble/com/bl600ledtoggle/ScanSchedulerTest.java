@@ -0,0 +1,141 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ScanSchedulerTest {
+
+    private final VirtualTimeScheduler mScheduler = new VirtualTimeScheduler();
+    private final List<String> mEvents = new ArrayList<String>();
+    private ScanScheduler mScan;
+
+    private final ScanScheduler.Radio mRadio = new ScanScheduler.Radio() {
+        @Override
+        public void startScan() {
+            mEvents.add("on@" + mScheduler.uptimeMillis());
+        }
+
+        @Override
+        public void stopScan() {
+            mEvents.add("off@" + mScheduler.uptimeMillis());
+        }
+    };
+
+    @Before
+    public void setUp() {
+        mScan = new ScanScheduler(mRadio, mScheduler);
+        mScan.setClock(mScheduler);
+    }
+
+    @Test
+    public void fixedDutyCycleScansAtTheStartOfEveryInterval() {
+        mScan.setDutyCycle(2000, 8000);
+        mScan.setLimitStarts(false);
+        mScan.start();
+        mScheduler.advance(20000);
+        assertEquals(Arrays.asList("on@0", "off@2000", "on@8000", "off@10000", "on@16000", "off@18000"), mEvents);
+        assertEquals(6000, mScan.getRadioOnMillis());
+    }
+
+    @Test
+    public void restartingDoesNotStackStopTimers() {
+        final int[] finished = new int[1];
+        mScan.setDuration(10000);
+        mScan.setListener(new ScanScheduler.Listener() {
+            @Override
+            public void onScanFinished() {
+                finished[0]++;
+            }
+        });
+        mScan.start();
+        mScheduler.advance(6000);
+        mScan.start();                                                                  //Scan pressed again while scanning
+        mScheduler.advance(6000);
+        assertTrue(mScan.isRadioOn());                                                  //The first duration no longer stops the second scan
+        mScheduler.advance(4000);
+        assertFalse(mScan.isRunning());
+        assertEquals(1, finished[0]);
+        assertEquals(Arrays.asList("on@0", "off@16000"), mEvents);
+    }
+
+    @Test
+    public void adaptiveCycleBacksOffWhenQuietAndSpeedsUpForNewDevices() {
+        mScan.setDutyCycle(1000, 1000);
+        mScan.setAdaptive(8000, 1);
+        mScan.setLimitStarts(false);
+        mScan.start();
+        mScheduler.advance(1000);
+        assertEquals(2000, mScan.getCurrentIntervalMillis());
+        mScheduler.advance(2000);
+        assertEquals(4000, mScan.getCurrentIntervalMillis());
+        mScheduler.advance(4000 + 8000 + 8000);
+        assertEquals(8000, mScan.getCurrentIntervalMillis());                           //Capped
+
+        mScheduler.advance(7500);                                                       //Into the window starting at 30 s
+        assertTrue(mScan.isRadioOn());
+        mScan.onDevicesFound(1);
+        assertEquals(1000, mScan.getCurrentIntervalMillis());
+        mScheduler.advance(1000);
+        assertTrue(mScan.isRadioOn());                                                  //Scanning on without a gap
+        mScheduler.advance(1000);
+        assertFalse(mScan.isRadioOn());                                                 //A quiet window, backing off again
+        assertEquals(2000, mScan.getCurrentIntervalMillis());
+    }
+
+    @Test
+    public void gattTrafficPausesTheRadio() {
+        GattActivity activity = new GattActivity();
+        mScan.setGattActivity(activity);
+        mScan.setLimitStarts(false);
+        mScan.start();
+        activity.onBusy();
+        activity.onBusy();                                                              //A second link
+        mScheduler.advance(10);
+        assertFalse(mScan.isRadioOn());
+        activity.onIdle();
+        mScheduler.advance(10);
+        assertFalse(mScan.isRadioOn());
+        activity.onIdle();
+        mScheduler.advance(10);
+        assertTrue(mScan.isRadioOn());
+        assertEquals(Arrays.asList("on@0", "off@0", "on@20"), mEvents);
+        mScan.setGattActivity(null);
+    }
+
+    @Test
+    public void gattGoingIdleJustBeforeStopDoesNotKeepTheNextScanOff() {
+        GattActivity activity = new GattActivity();
+        mScan.setGattActivity(activity);
+        mScan.setLimitStarts(false);
+        mScan.start();
+        activity.onBusy();
+        mScheduler.advance(10);
+        activity.onIdle();                                                              //Posted, still pending when stopped
+        mScan.stop();
+        mScheduler.advance(10);
+        mScan.start();
+        assertTrue(mScan.isRadioOn());
+        mScan.setGattActivity(null);
+    }
+
+    @Test
+    public void startsBeyondTheBudgetAreDeferred() {
+        mScan.start();
+        for (int i = 0; i < ScanScheduler.START_LIMIT + 1; i++) {                       //Six short holds in a row
+            mScan.hold();
+            mScan.release();
+            mScheduler.advance(100);
+        }
+        assertFalse(mScan.isRadioOn());
+        assertTrue(mScan.getDeferredStarts() > 0);
+        mScheduler.advance(ScanScheduler.START_LIMIT_MILLIS);
+        assertTrue(mScan.isRadioOn());
+        assertEquals(ScanScheduler.START_LIMIT + 1, mScan.getRadioStarts());
+    }
+}
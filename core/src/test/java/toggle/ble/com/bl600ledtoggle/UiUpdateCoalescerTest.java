@@ -0,0 +1,84 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.*;
+
+public class UiUpdateCoalescerTest {
+
+    @Test
+    public void onlyNewestValueIsApplied() {
+        final List<Runnable> posted = new ArrayList<Runnable>();
+        final List<String> shown = new ArrayList<String>();
+        UiUpdateCoalescer<String> coalescer = new UiUpdateCoalescer<String>(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                posted.add(command);
+            }
+        }, new UiUpdateCoalescer.Sink<String>() {
+            @Override
+            public void apply(String value) {
+                shown.add(value);
+            }
+        });
+
+        coalescer.publish("0");
+        coalescer.publish("1");
+        coalescer.publish("0");
+        assertEquals(1, posted.size());                                                 //One update waiting on the UI thread, not three
+        posted.get(0).run();
+        assertEquals(Collections.singletonList("0"), shown);
+
+        coalescer.publish("1");
+        assertEquals(2, posted.size());
+        posted.get(1).run();
+        assertEquals("1", shown.get(1));
+        assertEquals(4, coalescer.getPublishedCount());
+        assertEquals(2, coalescer.getAppliedCount());
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Stress test: flood the notification path from a Binder-like thread while the UI thread takes 2 ms per update,
+    // and check how far behind the newest notification the screen is
+    @Test
+    public void floodedNotificationsDoNotBacklogUi() throws Exception {
+        final int notifications = 200000;
+        final long uiCostNanos = TimeUnit.MILLISECONDS.toNanos(2);
+        final List<Long> lags = Collections.synchronizedList(new ArrayList<Long>());
+        final long[] lastShown = new long[1];
+        ExecutorService uiThread = Executors.newSingleThreadExecutor();
+
+        UiUpdateCoalescer<Long> coalescer = new UiUpdateCoalescer<Long>(uiThread, new UiUpdateCoalescer.Sink<Long>() {
+            @Override
+            public void apply(Long publishedNanos) {
+                lags.add(System.nanoTime() - publishedNanos);
+                LockSupport.parkNanos(uiCostNanos);                                     //Slow view update, like a layout pass
+                lastShown[0] = publishedNanos;
+            }
+        });
+
+        long lastPublished = 0;
+        for (int i = 0; i < notifications; i++) {
+            lastPublished = System.nanoTime();
+            coalescer.publish(lastPublished);
+        }
+        uiThread.shutdown();
+        assertTrue(uiThread.awaitTermination(5, TimeUnit.SECONDS));
+
+        assertEquals(lastPublished, lastShown[0]);                                      //The final state always reaches the screen
+        List<Long> sorted = new ArrayList<Long>(lags);
+        Collections.sort(sorted);
+        long p99 = sorted.get(sorted.size() * 99 / 100);
+        assertTrue(coalescer.getAppliedCount() < notifications / 10);
+        assertTrue(p99 < TimeUnit.MILLISECONDS.toNanos(50));                            //Bounded by one UI update, not by the backlog
+    }
+}
@@ -0,0 +1,67 @@
+package toggle.ble.com.bl600ledtoggle;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * TaskScheduler for tests on virtual time. Posted tasks run, in time order, when the test advances the clock past them.
+ */
+public class VirtualTimeScheduler implements TaskScheduler, ScanScheduler.Clock {
+
+    private static class Posted {
+        final Runnable task;
+        final long dueMillis;
+        final long order;
+
+        Posted(Runnable task, long dueMillis, long order) {
+            this.task = task;
+            this.dueMillis = dueMillis;
+            this.order = order;
+        }
+    }
+
+    private final List<Posted> mTasks = new ArrayList<Posted>();
+    private long mNowMillis;
+    private long mPosted;
+
+    @Override
+    public void postDelayed(Runnable task, long delayMillis) {
+        mTasks.add(new Posted(task, mNowMillis + Math.max(0, delayMillis), mPosted++));
+    }
+
+    @Override
+    public void removeCallbacks(Runnable task) {
+        for (int i = mTasks.size() - 1; i >= 0; i--) {
+            if (mTasks.get(i).task == task) {
+                mTasks.remove(i);
+            }
+        }
+    }
+
+    @Override
+    public long uptimeMillis() {
+        return mNowMillis;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Move the clock forward, running every task that falls due on the way at its own time
+    public void advance(long millis) {
+        long until = mNowMillis + millis;
+        while (true) {
+            Posted next = null;
+            for (Posted posted : mTasks) {
+                if (posted.dueMillis <= until && (next == null || posted.dueMillis < next.dueMillis
+                        || (posted.dueMillis == next.dueMillis && posted.order < next.order))) {
+                    next = posted;
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            mTasks.remove(next);
+            mNowMillis = next.dueMillis;
+            next.task.run();
+        }
+        mNowMillis = until;
+    }
+}
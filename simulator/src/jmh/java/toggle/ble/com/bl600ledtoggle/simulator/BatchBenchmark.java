@@ -0,0 +1,75 @@
+package toggle.ble.com.bl600ledtoggle.simulator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import toggle.ble.com.bl600ledtoggle.GattLayoutCache;
+import toggle.ble.com.bl600ledtoggle.LedBatchWriter;
+import toggle.ble.com.bl600ledtoggle.LedCommandBatch;
+import toggle.ble.com.bl600ledtoggle.LedStateCodec;
+import toggle.ble.com.bl600ledtoggle.LinkProfile;
+
+/**
+ * A 100 step LED sequence sent with {@link LedBatchWriter} at the MTU the board grants, one write per step, in frames
+ * that fit one packet, or as long writes. Steps have no hold time, so one write per step is measured by its air time
+ * rather than by the holds it waits out.
+ *
+ * The intervals span the link profiles, from the 7.5 ms minimum through LOW_LATENCY and HIGH_THROUGHPUT (11.25 to
+ * 15 ms) to LOW_POWER (100 to 125 ms). Read with CommandBenchmark at the same intervals, the results show the trade:
+ * a longer interval costs every command latency and every batch throughput, a larger MTU buys batch throughput back.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class BatchBenchmark {
+
+    private static final long TIMEOUT_MILLIS = 60000;                                   //One write per step takes about 19 s at 125 ms
+
+    @Param({"23", "64", "247"})
+    public int mtu;
+
+    @Param({"PER_WRITE", "FRAMED", "LONG_WRITE"})
+    public LedBatchWriter.Mode mode;
+
+    @Param({"7500", "15000", "50000", "125000"})
+    public long intervalMicros;
+
+    private final LedCommandBatch mBatch = LedCommandBatch.blink(50, 0, 0);
+    private File mCacheDirectory;
+    private SimulatedSession mSession;
+
+    @Setup(Level.Trial)
+    public void connect() throws Exception {
+        mCacheDirectory = Benchmarks.createCacheDirectory();
+        LinkModel model = new LinkModel().setInterval(intervalMicros).setAdvertisingInterval(0).setMaxMtu(mtu).setSeed(1);
+        mSession = new SimulatedSession(new SimulatedBl600(Benchmarks.ADDRESS, LedStateCodec.Mode.BINARY), model,
+                new GattLayoutCache(mCacheDirectory));
+        mSession.setProfile(LinkProfile.HIGH_THROUGHPUT);
+        if (!mSession.connect(TIMEOUT_MILLIS)) {
+            throw new IllegalStateException("Simulated link did not come up");
+        }
+        mSession.getBatchWriter().setMode(mode);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+        mSession.close();
+        Benchmarks.delete(mCacheDirectory);
+    }
+
+    @Benchmark
+    public boolean sendBatch() throws InterruptedException {
+        return mSession.send(mBatch, TIMEOUT_MILLIS);
+    }
+}
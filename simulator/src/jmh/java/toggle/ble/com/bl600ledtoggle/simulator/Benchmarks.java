@@ -0,0 +1,42 @@
+package toggle.ble.com.bl600ledtoggle.simulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Helpers shared by the benchmarks.
+ */
+final class Benchmarks {
+
+    static final String ADDRESS = "00:16:A4:12:34:56";
+
+    private Benchmarks() {
+    }
+
+    static String[] addresses(int count) {
+        String[] addresses = new String[count];
+        for (int i = 0; i < count; i++) {
+            addresses[i] = String.format("00:16:A4:00:%02X:%02X", i >> 8, i & 0xFF);
+        }
+        return addresses;
+    }
+
+    static File createCacheDirectory() throws IOException {
+        return createDirectory("gatt-layout");
+    }
+
+    static File createDirectory(String prefix) throws IOException {
+        return Files.createTempDirectory(prefix).toFile();
+    }
+
+    static void delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
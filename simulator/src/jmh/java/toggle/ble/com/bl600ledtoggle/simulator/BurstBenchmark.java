@@ -0,0 +1,106 @@
+package toggle.ble.com.bl600ledtoggle.simulator;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import toggle.ble.com.bl600ledtoggle.GattLayoutCache;
+import toggle.ble.com.bl600ledtoggle.LedController;
+import toggle.ble.com.bl600ledtoggle.LedStateCodec;
+
+/**
+ * A burst of rapid taps, alternating the LED and spaced a little closer than the connection interval, sent in ORDERED
+ * and LATEST write mode. The score is the end state latency: from the first tap until the board has acknowledged the
+ * last state. Air time is simulated time rather than wall time; it is reported per burst, with the writes that went on
+ * the air, as the secondary results writes and airTimeMillis.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class BurstBenchmark {
+
+    private static final long TIMEOUT_MILLIS = 30000;
+
+    @Param({"ORDERED", "LATEST"})
+    public LedController.WriteMode mode;
+
+    @Param({"10", "50"})
+    public int taps;
+
+    @Param({"2000"})
+    public long gapMicros;
+
+    @Param({"7500"})
+    public long intervalMicros;
+
+    /**
+     * Writes on the air and simulated air time per burst, averaged over the bursts of one iteration.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class PerBurst {
+        public double writes, airTimeMillis;
+        private long mWrites, mAirTimeMicros, mBursts;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            writes = airTimeMillis = 0;
+            mWrites = mAirTimeMicros = mBursts = 0;
+        }
+
+        void add(long writes, long airTimeMicros) {
+            mWrites += writes;
+            mAirTimeMicros += airTimeMicros;
+            mBursts++;
+            this.writes = (double) mWrites / mBursts;
+            airTimeMillis = mAirTimeMicros / 1000.0 / mBursts;
+        }
+    }
+
+    private int[] mBurst;
+    private File mCacheDirectory;
+    private SimulatedSession mSession;
+
+    @Setup(Level.Trial)
+    public void connect() throws Exception {
+        mBurst = new int[taps];
+        for (int i = 0; i < taps; i++) {
+            mBurst[i] = (i + 1) & 1;                                                    //Ends with the LED off, as it starts
+        }
+        mCacheDirectory = Benchmarks.createCacheDirectory();
+        LinkModel model = new LinkModel().setInterval(intervalMicros).setAdvertisingInterval(0).setSeed(1);
+        mSession = new SimulatedSession(new SimulatedBl600(Benchmarks.ADDRESS, LedStateCodec.Mode.BINARY), model,
+                new GattLayoutCache(mCacheDirectory));
+        if (!mSession.connect(TIMEOUT_MILLIS)) {
+            throw new IllegalStateException("Simulated link did not come up");
+        }
+        mSession.setWriteMode(mode);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+        mSession.close();
+        Benchmarks.delete(mCacheDirectory);
+    }
+
+    @Benchmark
+    public boolean burst(PerBurst perBurst) throws InterruptedException {
+        long airTime = mSession.getGatt().getAirTimeMicros();
+        long writes = mSession.getGatt().getPeripheral().getWriteCount();
+        boolean sent = mSession.sendBurst(mBurst, gapMicros, TIMEOUT_MILLIS);
+        perBurst.add(mSession.getGatt().getPeripheral().getWriteCount() - writes,
+                mSession.getGatt().getAirTimeMicros() - airTime);
+        return sent;
+    }
+}
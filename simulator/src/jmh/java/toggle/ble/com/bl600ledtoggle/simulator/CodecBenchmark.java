@@ -0,0 +1,56 @@
+package toggle.ble.com.bl600ledtoggle.simulator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+import toggle.ble.com.bl600ledtoggle.LedState;
+import toggle.ble.com.bl600ledtoggle.LedStateCodec;
+
+/**
+ * Cost per message of the LED_TOGGLE codec: binary encode into a reused buffer, binary and legacy decode into a reused
+ * LedState, and the String handling the app used before the codec. Run with -prof gc to see the garbage per message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CodecBenchmark {
+
+    private final LedStateCodec mBinary = new LedStateCodec(LedStateCodec.Mode.BINARY);
+    private final LedStateCodec mLegacy = new LedStateCodec(LedStateCodec.Mode.LEGACY_STRING);
+    private final LedState mSent = new LedState().set(1, 0, LedState.ABSENT, LedState.ABSENT);
+    private final LedState mReceived = new LedState();
+    private final byte[] mBuffer = new byte[LedStateCodec.MAX_LENGTH];
+    private final byte[] mBinaryValue = {1, 0};
+    private final byte[] mLegacyValue = {'x', '1'};
+
+    @Benchmark
+    public int encode() {
+        mSent.sequence = (mSent.sequence + 1) & 0xFF;
+        return mBinary.encode(mSent, mBuffer);
+    }
+
+    @Benchmark
+    public int decode() {
+        mBinaryValue[1]++;
+        mBinary.decode(mBinaryValue, mReceived);
+        return mReceived.sequence;
+    }
+
+    @Benchmark
+    public int decodeLegacy() {
+        mLegacy.decode(mLegacyValue, mReceived);
+        return mReceived.state;
+    }
+
+    @Benchmark
+    public String decodeString() {
+        String value = new String(mLegacyValue);                                        //What getStringValue() did for every message
+        return value.length() > 1 ? value.substring(1) : value;
+    }
+}
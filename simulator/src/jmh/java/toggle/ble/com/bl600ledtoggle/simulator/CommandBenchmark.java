@@ -0,0 +1,78 @@
+package toggle.ble.com.bl600ledtoggle.simulator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import toggle.ble.com.bl600ledtoggle.GattLayoutCache;
+import toggle.ble.com.bl600ledtoggle.LedState;
+import toggle.ble.com.bl600ledtoggle.LedStateCodec;
+
+/**
+ * Round trip of single commands on a connected link: a toggle waits for the write response and the notification that
+ * confirms it, a read waits for the value from the board and a cached read is answered by the state cache. With a 0
+ * interval the result is the cost of the app's queue, codec and callback path; with a real interval it is what a user
+ * waits for.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CommandBenchmark {
+
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    @Param({"0", "7500", "15000", "50000", "125000"})
+    public long intervalMicros;
+
+    @Param({"0", "0.05"})
+    public double lossRate;
+
+    @Param({"BINARY", "LEGACY_STRING"})
+    public LedStateCodec.Mode firmware;
+
+    private File mCacheDirectory;
+    private SimulatedSession mSession;
+
+    @Setup(Level.Trial)
+    public void connect() throws Exception {
+        mCacheDirectory = Benchmarks.createCacheDirectory();
+        LinkModel model = new LinkModel().setInterval(intervalMicros).setAdvertisingInterval(0)
+                .setLossRate(lossRate).setSeed(1);
+        mSession = new SimulatedSession(new SimulatedBl600(Benchmarks.ADDRESS, firmware), model,
+                new GattLayoutCache(mCacheDirectory));
+        if (!mSession.connect(TIMEOUT_MILLIS)) {
+            throw new IllegalStateException("Simulated link did not come up");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+        mSession.close();
+        Benchmarks.delete(mCacheDirectory);
+    }
+
+    @Benchmark
+    public boolean toggle() throws InterruptedException {
+        return mSession.toggle(TIMEOUT_MILLIS);
+    }
+
+    @Benchmark
+    public LedState read() throws InterruptedException {
+        return mSession.read(true, TIMEOUT_MILLIS);
+    }
+
+    @Benchmark
+    public LedState cachedRead() throws InterruptedException {
+        return mSession.read(false, TIMEOUT_MILLIS);
+    }
+}
@@ -0,0 +1,83 @@
+package toggle.ble.com.bl600ledtoggle.simulator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import toggle.ble.com.bl600ledtoggle.GattLayoutCache;
+import toggle.ble.com.bl600ledtoggle.LedStateCodec;
+
+/**
+ * Time from connect() to the first toggle being confirmed: connection, MTU exchange, discovery, LED service setup,
+ * format detection and one command. A cold run has an empty layout cache; a warm run reconnects to a bonded board whose
+ * layout is cached, so the notification config write is skipped.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, batchSize = 1)
+@Measurement(iterations = 50, batchSize = 1)
+public class ConnectBenchmark {
+
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    @Param({"0", "7500"})
+    public long intervalMicros;
+
+    @Param({"cold", "warm"})
+    public String cache;
+
+    private File mCacheDirectory;
+    private SimulatedSession mSession;
+
+    @Setup(Level.Trial)
+    public void createCache() throws Exception {
+        mCacheDirectory = Benchmarks.createCacheDirectory();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteCache() {
+        Benchmarks.delete(mCacheDirectory);
+    }
+
+    @Setup(Level.Invocation)
+    public void createSession() throws Exception {
+        GattLayoutCache layoutCache = new GattLayoutCache(mCacheDirectory);
+        SimulatedBl600 board = new SimulatedBl600(Benchmarks.ADDRESS, LedStateCodec.Mode.BINARY);
+        mSession = new SimulatedSession(board, model(), layoutCache);
+        if ("cold".equals(cache)) {
+            layoutCache.invalidate(Benchmarks.ADDRESS);
+            return;
+        }
+        board.setBonded(true);
+        if (!mSession.connect(TIMEOUT_MILLIS) || !mSession.disconnect(TIMEOUT_MILLIS)) {     //Bond and fill the cache
+            throw new IllegalStateException("Simulated link did not come up");
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeSession() {
+        mSession.close();
+    }
+
+    @Benchmark
+    public boolean connectAndToggle() throws InterruptedException {
+        return mSession.connect(TIMEOUT_MILLIS) && mSession.toggle(TIMEOUT_MILLIS);
+    }
+
+    private LinkModel model() {
+        return new LinkModel().setInterval(intervalMicros).setAdvertisingInterval(intervalMicros * 4).setSeed(1);
+    }
+}
@@ -0,0 +1,87 @@
+package toggle.ble.com.bl600ledtoggle.simulator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import toggle.ble.com.bl600ledtoggle.LedEventJournal;
+
+/**
+ * Cost of the LED event journal: one append on the caller's thread, with the writer thread draining the ring into the
+ * mapped segments behind it, and a range scan of one board over one second out of a journal of 64 boards. Appends that
+ * find the ring full are dropped, as on the phone, and are counted in the score like the others.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class JournalBenchmark {
+
+    private static final int BOARDS = 64;
+    private static final int RECORDS = 1000000;                                         //Ten per millisecond
+
+    private final long[] mBoards = new long[BOARDS];
+    private File mDirectory;
+    private ExecutorService mWriter;
+    private LedEventJournal mJournal;
+    private int mNext;
+    private long mSum;
+
+    private final LedEventJournal.Visitor mSummer = new LedEventJournal.Visitor() {
+        @Override
+        public boolean onEvent(LedEventJournal.Event event) {
+            mSum += event.state;
+            return true;
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void createJournal() throws Exception {
+        String[] addresses = Benchmarks.addresses(BOARDS);
+        for (int i = 0; i < BOARDS; i++) {
+            mBoards[i] = LedEventJournal.deviceId(addresses[i]);
+        }
+        mDirectory = Benchmarks.createDirectory("led-journal");
+        mWriter = Executors.newSingleThreadExecutor();
+        mJournal = new LedEventJournal(mDirectory, 65536, LedEventJournal.DEFAULT_SEGMENT_BYTES,
+                LedEventJournal.DEFAULT_MAX_SEGMENTS, mWriter);
+        while (mNext < RECORDS) {
+            if (!append()) {
+                Thread.yield();                                                         //Give the writer a turn while filling
+            }
+        }
+        mJournal.flush();
+    }
+
+    @TearDown(Level.Trial)
+    public void closeJournal() throws InterruptedException {
+        mJournal.close();
+        mWriter.shutdown();
+        mWriter.awaitTermination(10, TimeUnit.SECONDS);
+        Benchmarks.delete(mDirectory);
+    }
+
+    @Benchmark
+    public boolean append() {
+        int i = mNext++;
+        return mJournal.append(i / 10, mBoards[i % BOARDS], i & 0xFF, i & 1, 900, LedEventJournal.TYPE_NOTIFY, 0);
+    }
+
+    @Benchmark
+    public long scan() {
+        int i = mNext++;
+        long from = (i * 37L) % (RECORDS / 10);
+        mJournal.scan(mBoards[i % BOARDS], from, from + 1000, mSummer);                 //One board over 1000 ms
+        return mSum;
+    }
+}
@@ -0,0 +1,39 @@
+package toggle.ble.com.bl600ledtoggle.simulator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+
+import toggle.ble.com.bl600ledtoggle.BleMetrics;
+
+/**
+ * Cost of recording one sample into a latency histogram and a counter, from one thread and from four threads sharing
+ * the same metrics the way the BLE thread, the binder threads and the scan callback do. Run with -prof gc to confirm
+ * that recording does not allocate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MetricsBenchmark {
+
+    private final BleMetrics mMetrics = new BleMetrics();
+
+    @Benchmark
+    public long record() {
+        long nanos = 1000 + (System.nanoTime() & 0xFFFFF);
+        mMetrics.writeLatency.record(nanos);
+        return mMetrics.notifications.incrementAndGet();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long recordContended() {
+        return record();
+    }
+}
@@ -0,0 +1,95 @@
+package toggle.ble.com.bl600ledtoggle.simulator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import toggle.ble.com.bl600ledtoggle.GattLayoutCache;
+import toggle.ble.com.bl600ledtoggle.GattOperation;
+import toggle.ble.com.bl600ledtoggle.LedGattProfile;
+import toggle.ble.com.bl600ledtoggle.LedState;
+import toggle.ble.com.bl600ledtoggle.LedStateCodec;
+
+/**
+ * Writes with response through the GATT operation queue of a connected simulated link, reported as operations per
+ * second and as the latency distribution of single writes, p99 and p99.9 included. One caller sees the round trip of
+ * the link; four callers sharing the link also wait behind each other's writes, so their tail shows the queueing delay.
+ * With a 0 interval the link adds no air time and the result is the queue's own overhead and thread hand-offs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class QueueBenchmark {
+
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    @Param({"0", "7500"})
+    public long intervalMicros;
+
+    private final byte[] mValue = new LedStateCodec(LedStateCodec.Mode.BINARY)
+            .encode(new LedState().set(1, 0, LedState.ABSENT, LedState.ABSENT));
+    private File mCacheDirectory;
+    private SimulatedSession mSession;
+
+    /**
+     * Waits for one write to complete.
+     */
+    private static class Written implements GattOperation.Callback {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile int status = GattOperation.STATUS_TIMEOUT;
+
+        @Override
+        public void onOperationComplete(GattOperation operation, int status, byte[] value) {
+            this.status = status;
+            done.countDown();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void connect() throws Exception {
+        mCacheDirectory = Benchmarks.createCacheDirectory();
+        LinkModel model = new LinkModel().setInterval(intervalMicros).setAdvertisingInterval(0).setSeed(1);
+        mSession = new SimulatedSession(new SimulatedBl600(Benchmarks.ADDRESS, LedStateCodec.Mode.BINARY), model,
+                new GattLayoutCache(mCacheDirectory));
+        if (!mSession.connect(TIMEOUT_MILLIS)) {
+            throw new IllegalStateException("Simulated link did not come up");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+        mSession.close();
+        Benchmarks.delete(mCacheDirectory);
+    }
+
+    @Benchmark
+    public boolean write() throws InterruptedException {
+        final Written written = new Written();
+        mSession.getSessionThread().postDelayed(new Runnable() {                        //The queue is confined to the session thread
+            @Override
+            public void run() {
+                mSession.getQueue().enqueue(GattOperation.write(LedGattProfile.LED_SERVICE, LedGattProfile.LED_TOGGLE,
+                        mValue, GattOperation.WRITE_TYPE_DEFAULT).setCallback(written));
+            }
+        }, 0);
+        return written.done.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS) && written.status == GattOperation.GATT_SUCCESS;
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean writeContended() throws InterruptedException {
+        return write();
+    }
+}
@@ -0,0 +1,82 @@
+package toggle.ble.com.bl600ledtoggle.simulator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import toggle.ble.com.bl600ledtoggle.ProximityRanking;
+
+/**
+ * Cost per advertisement of keeping the nearest boards up to date: the ProximityRanking, which filters the RSSI and
+ * moves one board in its array and heap, against sorting every board by its latest RSSI on each advertisement.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RankingBenchmark {
+
+    private static final int ADVERTISEMENTS = 1 << 16;
+
+    @Param({"50", "500", "5000"})
+    public int boards;
+
+    private final ProximityRanking mRanking = new ProximityRanking();
+    private final List<Integer> mSorted = new ArrayList<Integer>();
+    private final int[] mBoard = new int[ADVERTISEMENTS];
+    private final int[] mRssi = new int[ADVERTISEMENTS];
+    private String[] mAddresses;
+    private int[] mLatest;
+    private Comparator<Integer> mByRssi;
+    private int mNext;
+
+    @Setup(Level.Trial)
+    public void createAdvertisements() {
+        mAddresses = Benchmarks.addresses(boards);
+        mLatest = new int[boards];
+        Random random = new Random(42);
+        for (int i = 0; i < ADVERTISEMENTS; i++) {
+            mBoard[i] = random.nextInt(boards);
+            mRssi[i] = -40 - mBoard[i] % 50 - random.nextInt(12);                       //6 dB of noise around each board
+        }
+        for (int i = 0; i < boards; i++) {
+            mRanking.onAdvertisement(mAddresses[i], -40 - i % 50, 0);
+            mSorted.add(i);
+            mLatest[i] = -40 - i % 50;
+        }
+        final int[] latest = mLatest;
+        mByRssi = new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return latest[b] - latest[a];
+            }
+        };
+    }
+
+    @Benchmark
+    public boolean ranking() {
+        int i = mNext++;
+        int j = i & (ADVERTISEMENTS - 1);
+        return mRanking.onAdvertisement(mAddresses[mBoard[j]], mRssi[j], i / 5);       //5000 advertisements per second
+    }
+
+    @Benchmark
+    public int sort() {
+        int j = mNext++ & (ADVERTISEMENTS - 1);
+        mLatest[mBoard[j]] = mRssi[j];
+        Collections.sort(mSorted, mByRssi);
+        return mSorted.get(0);
+    }
+}
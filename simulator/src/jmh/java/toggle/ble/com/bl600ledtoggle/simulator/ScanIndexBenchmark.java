@@ -0,0 +1,72 @@
+package toggle.ble.com.bl600ledtoggle.simulator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import toggle.ble.com.bl600ledtoggle.ScanDeviceIndex;
+
+/**
+ * Cost per advertisement of a dense scan: a replay of advertisements from many boards with noisy RSSI through the
+ * ScanDeviceIndex, with the list refreshed every 80 advertisements (16 ms at 5000 advertisements per second), and the
+ * ArrayList.contains() check LeDeviceListAdapter.addDevice used to do for every packet.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ScanIndexBenchmark {
+
+    private static final int ADVERTISEMENTS = 1 << 16;
+    private static final int PER_FRAME = 80;
+
+    @Param({"50", "500"})
+    public int boards;
+
+    private final ScanDeviceIndex<String> mIndex = new ScanDeviceIndex<String>();
+    private final List<String> mList = new ArrayList<String>();
+    private final String[] mAddress = new String[ADVERTISEMENTS];
+    private final int[] mRssi = new int[ADVERTISEMENTS];
+    private int mNext;
+
+    @Setup(Level.Trial)
+    public void createAdvertisements() {
+        String[] addresses = Benchmarks.addresses(boards);
+        Random random = new Random(42);
+        for (int i = 0; i < ADVERTISEMENTS; i++) {
+            mAddress[i] = addresses[random.nextInt(boards)];
+            mRssi[i] = -60 - random.nextInt(6);                                         //Noise below the redraw threshold
+        }
+        for (String address : addresses) {
+            mIndex.onAdvertisement(address, address, -60, 0);
+            mList.add(address);
+        }
+        mIndex.swapChanges();
+    }
+
+    @Benchmark
+    public boolean index() {
+        int i = mNext++ & (ADVERTISEMENTS - 1);
+        boolean changed = mIndex.onAdvertisement(mAddress[i], mAddress[i], mRssi[i], mNext / 5);
+        if (mNext % PER_FRAME == 0) {
+            return mIndex.swapChanges().isEmpty();
+        }
+        return changed;
+    }
+
+    @Benchmark
+    public boolean listContains() {
+        int i = mNext++ & (ADVERTISEMENTS - 1);
+        return mList.contains(mAddress[i]);
+    }
+}
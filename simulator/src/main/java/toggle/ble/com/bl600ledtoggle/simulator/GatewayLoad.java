@@ -0,0 +1,276 @@
+package toggle.ble.com.bl600ledtoggle.simulator;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import toggle.ble.com.bl600ledtoggle.GatewayServer;
+import toggle.ble.com.bl600ledtoggle.GattLayoutCache;
+import toggle.ble.com.bl600ledtoggle.LatencyHistogram;
+import toggle.ble.com.bl600ledtoggle.LedController;
+import toggle.ble.com.bl600ledtoggle.LedGateway;
+import toggle.ble.com.bl600ledtoggle.LedStateCodec;
+
+/**
+ * Load generator for the gateway API. Each client is a thread with one kept alive connection that sends its next
+ * request as soon as the last one is answered. Requests are reads and writes of the LED of the given boards, or
+ * GET /devices if none are given, which measures the server alone.
+ *
+ * Runs against a phone from the command line, or against a {@link SimulatedGateway} on this machine, where it prints
+ * the rate and latency of the server alone and then with the boards:
+ *   java GatewayLoad host port clients seconds writePercent [address...]
+ *   java GatewayLoad simulated clients seconds writePercent boards
+ */
+public class GatewayLoad {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /**
+     * Requests answered, errors and the latency seen by the clients.
+     */
+    public static class Result {
+        private final LatencyHistogram mLatency = new LatencyHistogram("gateway client");
+        private final AtomicLong mRequests = new AtomicLong();
+        private final AtomicLong mErrors = new AtomicLong();                            //Non-2xx answers and broken connections
+        private long mDurationNanos;
+
+        public long getRequests() {
+            return mRequests.get();
+        }
+
+        public long getErrors() {
+            return mErrors.get();
+        }
+
+        public LatencyHistogram getLatency() {
+            return mLatency;
+        }
+
+        public double getRequestsPerSecond() {
+            return mDurationNanos > 0 ? mRequests.get() * 1e9 / mDurationNanos : 0;
+        }
+
+        @Override
+        public String toString() {
+            LatencyHistogram.Snapshot latency = mLatency.snapshot();
+            return String.format("%d requests, %d errors, %.0f req/s, latency p50 %.2f ms p99 %.2f ms max %.2f ms",
+                    getRequests(), getErrors(), getRequestsPerSecond(), latency.getPercentile(50) / 1e6,
+                    latency.getPercentile(99) / 1e6, latency.getMax() / 1e6);
+        }
+    }
+
+    /**
+     * A gateway on the loopback interface serving boards on simulated 7.5 ms links, in LATEST write mode as
+     * GatewayService runs them.
+     */
+    public static class SimulatedGateway implements Closeable {
+        private static final long CONNECT_TIMEOUT_MILLIS = 5000;
+
+        private final List<SimulatedSession> mSessions = new ArrayList<SimulatedSession>();
+        private final List<String> mAddresses = new ArrayList<String>();
+        private final GatewayServer mServer;
+
+        public SimulatedGateway(int boards, File cacheDirectory) throws IOException, InterruptedException {
+            LedGateway gateway = new LedGateway();
+            for (int i = 0; i < boards; i++) {
+                SimulatedBl600 board = new SimulatedBl600(String.format("00:16:A4:12:%02X:%02X", i >> 8, i & 0xFF),
+                        LedStateCodec.Mode.BINARY);
+                SimulatedSession session = new SimulatedSession(board, new LinkModel().setInterval(7500)
+                        .setAdvertisingInterval(0).setSeed(i), new GattLayoutCache(cacheDirectory));
+                mSessions.add(session);
+                session.setWriteMode(LedController.WriteMode.LATEST);
+                if (!session.connect(CONNECT_TIMEOUT_MILLIS)) {
+                    close();
+                    throw new IOException("Simulated link to " + board.getAddress() + " did not come up");
+                }
+                gateway.addDevice(board.getAddress(), session.getSession(), session.getSessionThread());
+                mAddresses.add(board.getAddress());
+            }
+            mServer = new GatewayServer(gateway, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            mServer.start();
+        }
+
+        public int getPort() {
+            return mServer.getPort();
+        }
+
+        public List<String> getAddresses() {
+            return new ArrayList<String>(mAddresses);
+        }
+
+        @Override
+        public void close() {
+            if (mServer != null) {
+                mServer.close();
+            }
+            for (SimulatedSession session : mSessions) {
+                session.close();
+            }
+        }
+    }
+
+    public static Result run(final String host, final int port, int clients, long durationMillis,
+                             final List<String> addresses, final int writePercent) throws InterruptedException {
+        final Result result = new Result();
+        final long end = System.nanoTime() + durationMillis * 1000000L;
+        final CountDownLatch done = new CountDownLatch(clients);
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            final int client = i;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runClient(host, port, client, end, addresses, writePercent, result);
+                    }
+                    finally {
+                        done.countDown();
+                    }
+                }
+            }, "GatewayLoad-" + i).start();
+        }
+        done.await();
+        result.mDurationNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private static void runClient(String host, int port, int client, long end, List<String> addresses, int writePercent,
+                                  Result result) {
+        Socket socket = null;
+        try {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            long request = 0;
+            while (System.nanoTime() < end) {
+                String http;
+                if (addresses.isEmpty()) {
+                    http = "GET /devices HTTP/1.1\r\nHost: gateway\r\n\r\n";
+                }
+                else {
+                    String address = addresses.get((int) ((client + request) % addresses.size()));
+                    if ((request * 37 + client) % 100 < writePercent) {                 //Spread writes evenly through the run
+                        String body = Long.toString((request + client) & 1);
+                        http = "PUT /devices/" + address + "/led HTTP/1.1\r\nHost: gateway\r\nContent-Length: "
+                                + body.length() + "\r\n\r\n" + body;
+                    }
+                    else {
+                        http = "GET /devices/" + address + "/led HTTP/1.1\r\nHost: gateway\r\n\r\n";
+                    }
+                }
+                long sent = System.nanoTime();
+                out.write(http.getBytes(ASCII));
+                out.flush();
+                int status = readResponse(in);
+                result.mLatency.record(System.nanoTime() - sent);
+                result.mRequests.incrementAndGet();
+                if (status < 200 || status >= 300) {
+                    result.mErrors.incrementAndGet();
+                }
+                request++;
+            }
+        }
+        catch (IOException e) {
+            result.mErrors.incrementAndGet();
+        }
+        finally {
+            if (socket != null) {
+                try {
+                    socket.close();
+                }
+                catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Read one response and return its status code. The body is skipped.
+    static int readResponse(InputStream in) throws IOException {
+        String statusLine = readLine(in);
+        String[] parts = statusLine.split(" ");
+        if (parts.length < 2) {
+            throw new IOException("Bad status line: " + statusLine);
+        }
+        int length = 0;
+        String line;
+        while ((line = readLine(in)).length() > 0) {
+            if (line.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                length = Integer.parseInt(line.substring(15).trim());
+            }
+        }
+        for (int i = 0; i < length; i++) {
+            if (in.read() < 0) {
+                throw new IOException("Connection closed in the body");
+            }
+        }
+        return Integer.parseInt(parts[1]);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                throw new IOException("Connection closed");
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length == 5 && args[0].equals("simulated")) {
+            runSimulated(Integer.parseInt(args[1]), Long.parseLong(args[2]) * 1000, Integer.parseInt(args[3]),
+                    Integer.parseInt(args[4]));
+            return;
+        }
+        if (args.length < 5) {
+            System.err.println("Usage: GatewayLoad host port clients seconds writePercent [address...]");
+            System.err.println("       GatewayLoad simulated clients seconds writePercent boards");
+            System.exit(2);
+        }
+        List<String> addresses = new ArrayList<String>(Arrays.asList(args).subList(5, args.length));
+        Result result = run(args[0], Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+                Long.parseLong(args[3]) * 1000, addresses, Integer.parseInt(args[4]));
+        System.out.println(result);
+    }
+
+    private static void runSimulated(int clients, long durationMillis, int writePercent, int boards)
+            throws IOException, InterruptedException {
+        File cacheDirectory = Files.createTempDirectory("gatt-layout").toFile();
+        SimulatedGateway gateway = new SimulatedGateway(boards, cacheDirectory);
+        try {
+            System.out.println("server alone: " + run("127.0.0.1", gateway.getPort(), clients, durationMillis,
+                    new ArrayList<String>(), 0));
+            System.out.println(boards + " boards: " + run("127.0.0.1", gateway.getPort(), clients, durationMillis,
+                    gateway.getAddresses(), writePercent));
+        }
+        finally {
+            gateway.close();
+            File[] files = cacheDirectory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            cacheDirectory.delete();
+        }
+    }
+}
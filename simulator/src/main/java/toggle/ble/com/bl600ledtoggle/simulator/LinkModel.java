@@ -0,0 +1,123 @@
+package toggle.ble.com.bl600ledtoggle.simulator;
+
+import toggle.ble.com.bl600ledtoggle.LedBatchWriter;
+import toggle.ble.com.bl600ledtoggle.LinkProfile;
+
+/**
+ * Radio behaviour of a simulated link. An ATT request and its response take one connection event, and a request has to
+ * wait up to one connection interval for the next event to start. A lost packet is sent again in the following event;
+ * losing packets for longer than the supervision timeout drops the link. Jitter and loss come from a Random seeded with
+ * {@link #setSeed(long)}, so a run with the same model and the same traffic repeats exactly.
+ *
+ * Intervals are in real time. A model with every interval at 0 delivers each event as soon as the link thread gets to it,
+ * which leaves only the cost of the app logic.
+ */
+public class LinkModel {
+
+    private final long[] mIntervalMicros = {45000, 11250, 100000};                      //Indexed by LinkProfile.PRIORITY_*, balanced is the default
+    private double mJitter = 1.0;                                                       //Fraction of an interval waited for the next event, at most
+    private double mLossRate;
+    private int mMaxMtu = LedBatchWriter.PREFERRED_MTU;
+    private long mAdvertisingIntervalMicros = 100000;
+    private long mSupervisionTimeoutMicros = 4000000;
+    private long mConnectTimeoutMicros = 30000000;                                      //Android gives up on a direct connection after about 30 s
+    private long mSeed;
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // A model with no delays at all, for measuring the app logic on its own
+    public static LinkModel instant() {
+        return new LinkModel().setInterval(0).setAdvertisingInterval(0).setJitter(0);
+    }
+
+    public LinkModel setInterval(int priority, long micros) {
+        mIntervalMicros[priority] = micros;
+        return this;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Same interval whatever connection priority is asked for
+    public LinkModel setInterval(long micros) {
+        for (int i = 0; i < mIntervalMicros.length; i++) {
+            mIntervalMicros[i] = micros;
+        }
+        return this;
+    }
+
+    public LinkModel setJitter(double fractionOfInterval) {
+        mJitter = fractionOfInterval;
+        return this;
+    }
+
+    public LinkModel setLossRate(double lossRate) {
+        if (lossRate < 0 || lossRate >= 1) {
+            throw new IllegalArgumentException("Loss rate must be in [0, 1): " + lossRate);
+        }
+        mLossRate = lossRate;
+        return this;
+    }
+
+    public LinkModel setMaxMtu(int mtu) {
+        mMaxMtu = mtu;
+        return this;
+    }
+
+    public LinkModel setAdvertisingInterval(long micros) {
+        mAdvertisingIntervalMicros = micros;
+        return this;
+    }
+
+    public LinkModel setSupervisionTimeout(long micros) {
+        mSupervisionTimeoutMicros = micros;
+        return this;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // How long a direct connection waits for a board that is out of range before failing with GATT_ERROR
+    public LinkModel setConnectTimeout(long micros) {
+        mConnectTimeoutMicros = micros;
+        return this;
+    }
+
+    public LinkModel setSeed(long seed) {
+        mSeed = seed;
+        return this;
+    }
+
+    public long getIntervalMicros(int priority) {
+        return mIntervalMicros[priority];
+    }
+
+    public double getJitter() {
+        return mJitter;
+    }
+
+    public double getLossRate() {
+        return mLossRate;
+    }
+
+    public int getMaxMtu() {
+        return mMaxMtu;
+    }
+
+    public long getAdvertisingIntervalMicros() {
+        return mAdvertisingIntervalMicros;
+    }
+
+    public long getSupervisionTimeoutMicros() {
+        return mSupervisionTimeoutMicros;
+    }
+
+    public long getConnectTimeoutMicros() {
+        return mConnectTimeoutMicros;
+    }
+
+    public long getSeed() {
+        return mSeed;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Interval the link runs at before the app asks for a priority
+    public long getDefaultIntervalMicros() {
+        return mIntervalMicros[LinkProfile.PRIORITY_BALANCED];
+    }
+}
@@ -0,0 +1,197 @@
+package toggle.ble.com.bl600ledtoggle.simulator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import toggle.ble.com.bl600ledtoggle.ScanScheduler;
+import toggle.ble.com.bl600ledtoggle.TaskScheduler;
+
+/**
+ * Boards turning up in groups over half an hour of virtual time, found by a ScanScheduler. Each board advertises every
+ * 100 ms plus the random advDelay and is heard 90% of the time while the radio is on. Prints, for every duty cycle
+ * given, the share of time the radio was on and the median time from power on to discovery:
+ *   java ScanSimulation [windowMillis intervalMillis maxIntervalMillis]...
+ * A maxIntervalMillis of 0 is a fixed duty cycle.
+ */
+public class ScanSimulation {
+
+    public static final long DURATION_MILLIS = 30 * 60 * 1000;
+
+    private static final int GROUPS = 4;
+    private static final int PER_GROUP = 6;
+
+    /**
+     * Radio time and discovery latency of one run.
+     */
+    public static class Result {
+        private final long mRadioOnMillis;
+        private final long mMedianDiscoveryMillis;                                      //-1 if no board was found
+        private final int mFound, mBoards;
+
+        Result(long radioOnMillis, long medianDiscoveryMillis, int found, int boards) {
+            mRadioOnMillis = radioOnMillis;
+            mMedianDiscoveryMillis = medianDiscoveryMillis;
+            mFound = found;
+            mBoards = boards;
+        }
+
+        public long getRadioOnMillis() {
+            return mRadioOnMillis;
+        }
+
+        public double getRadioOnPercent() {
+            return mRadioOnMillis * 100.0 / DURATION_MILLIS;
+        }
+
+        public long getMedianDiscoveryMillis() {
+            return mMedianDiscoveryMillis;
+        }
+
+        public int getFound() {
+            return mFound;
+        }
+
+        public int getBoards() {
+            return mBoards;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("radio on %.1f%% (%.0f s), median discovery %.1f s, %d of %d boards found",
+                    getRadioOnPercent(), mRadioOnMillis / 1000.0, mMedianDiscoveryMillis / 1000.0, mFound, mBoards);
+        }
+    }
+
+    /**
+     * TaskScheduler and clock on virtual time. Posted tasks run in time order as the simulation advances.
+     */
+    private static class VirtualTime implements TaskScheduler, ScanScheduler.Clock {
+        private final List<Runnable> mTasks = new ArrayList<Runnable>();
+        private final List<Long> mDue = new ArrayList<Long>();                          //In posting order, parallel to mTasks
+        private long mNowMillis;
+
+        @Override
+        public void postDelayed(Runnable task, long delayMillis) {
+            mTasks.add(task);
+            mDue.add(mNowMillis + Math.max(0, delayMillis));
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task) {
+            for (int i = mTasks.size() - 1; i >= 0; i--) {
+                if (mTasks.get(i) == task) {
+                    mTasks.remove(i);
+                    mDue.remove(i);
+                }
+            }
+        }
+
+        @Override
+        public long uptimeMillis() {
+            return mNowMillis;
+        }
+
+        void advanceTo(long untilMillis) {
+            while (true) {
+                int next = -1;
+                for (int i = 0; i < mTasks.size(); i++) {
+                    if (mDue.get(i) <= untilMillis && (next < 0 || mDue.get(i) < mDue.get(next))) {
+                        next = i;
+                    }
+                }
+                if (next < 0) {
+                    break;
+                }
+                Runnable task = mTasks.remove(next);
+                mNowMillis = mDue.remove(next);
+                task.run();
+            }
+            mNowMillis = untilMillis;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Run one half hour. The boards turn up at the same times for every duty cycle with the same seed.
+    public static Result run(long windowMillis, long intervalMillis, long maxIntervalMillis, long seed) {
+        VirtualTime time = new VirtualTime();
+        final boolean[] on = new boolean[1];
+        ScanScheduler scan = new ScanScheduler(new ScanScheduler.Radio() {
+            @Override
+            public void startScan() {
+                on[0] = true;
+            }
+
+            @Override
+            public void stopScan() {
+                on[0] = false;
+            }
+        }, time);
+        scan.setClock(time);
+        scan.setDutyCycle(windowMillis, intervalMillis);
+        scan.setAdaptive(maxIntervalMillis, 1);
+
+        Random random = new Random(seed);
+        int boards = GROUPS * PER_GROUP;
+        long[] powerOn = new long[boards];
+        long[] nextAdvertisement = new long[boards];
+        long[] foundAfter = new long[boards];
+        for (int group = 0; group < GROUPS; group++) {
+            long arrival = 60000 + group * (DURATION_MILLIS - 300000) / GROUPS + random.nextInt(120000);
+            for (int i = 0; i < PER_GROUP; i++) {
+                int board = group * PER_GROUP + i;
+                powerOn[board] = arrival + random.nextInt(20000);                       //Boards of a group switched on within 20 s
+                nextAdvertisement[board] = powerOn[board];
+                foundAfter[board] = -1;
+            }
+        }
+
+        scan.start();
+        while (true) {
+            int board = -1;
+            for (int i = 0; i < boards; i++) {
+                if (foundAfter[i] < 0 && (board < 0 || nextAdvertisement[i] < nextAdvertisement[board])) {
+                    board = i;
+                }
+            }
+            if (board < 0 || nextAdvertisement[board] >= DURATION_MILLIS) {
+                break;
+            }
+            time.advanceTo(nextAdvertisement[board]);
+            if (on[0] && random.nextInt(10) != 0) {
+                foundAfter[board] = nextAdvertisement[board] - powerOn[board];
+                scan.onDevicesFound(1);
+            }
+            nextAdvertisement[board] += 100 + random.nextInt(11);
+        }
+        time.advanceTo(DURATION_MILLIS);
+
+        long[] latencies = new long[boards];
+        int found = 0;
+        for (int i = 0; i < boards; i++) {
+            if (foundAfter[i] >= 0) {
+                latencies[found++] = foundAfter[i];
+            }
+        }
+        Arrays.sort(latencies, 0, found);
+        return new Result(scan.getRadioOnMillis(), found > 0 ? latencies[found / 2] : -1, found, boards);
+    }
+
+    public static void main(String[] args) {
+        if (args.length % 3 != 0) {
+            System.err.println("Usage: ScanSimulation [windowMillis intervalMillis maxIntervalMillis]...");
+            System.exit(2);
+        }
+        if (args.length == 0) {
+            args = new String[] {"10000", "10000", "0", "2000", "8000", "0", "10000", "10000", "40000",
+                    "10000", "10000", "80000", "10000", "10000", "160000", "5000", "5000", "80000"};
+        }
+        for (int i = 0; i < args.length; i += 3) {
+            long window = Long.parseLong(args[i]), interval = Long.parseLong(args[i + 1]);
+            long maxInterval = Long.parseLong(args[i + 2]);
+            System.out.println(String.format("window %d ms, interval %d ms, max interval %d ms: %s", window, interval,
+                    maxInterval, run(window, interval, maxInterval, 7)));
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package toggle.ble.com.bl600ledtoggle.simulator;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import toggle.ble.com.bl600ledtoggle.GattLayout;
+import toggle.ble.com.bl600ledtoggle.GattOperation;
+import toggle.ble.com.bl600ledtoggle.LedBatchWriter;
+import toggle.ble.com.bl600ledtoggle.LedCommandBatch;
+import toggle.ble.com.bl600ledtoggle.LedGattProfile;
+import toggle.ble.com.bl600ledtoggle.LedState;
+import toggle.ble.com.bl600ledtoggle.LedStateCodec;
+
+/**
+ * The GATT server of a BL600 running the LED toggle firmware. It has the Generic Access and Device Information services
+ * and the private LED service with its LED_TOGGLE characteristic. Binary format firmware takes
+ * {@link LedBatchWriter} frames as well as single messages; legacy firmware takes ASCII "0" / "1" and reports the value
+ * with a leading byte once it has been set.
+ *
+ * LED_TOGGLE notifies by default, or indicates with {@link #setIndicate(boolean)}. The notification config descriptor
+ * is cleared on disconnect unless the peer is bonded. Methods are called by {@link SimulatedGatt} on its link thread and
+ * by tests, so the state is guarded by this object.
+ */
+public class SimulatedBl600 {
+
+    public static final UUID GENERIC_ACCESS_SERVICE = UUID.fromString("00001800-0000-1000-8000-00805f9b34fb");
+    public static final UUID DEVICE_NAME = UUID.fromString("00002a00-0000-1000-8000-00805f9b34fb");
+    public static final UUID APPEARANCE = UUID.fromString("00002a01-0000-1000-8000-00805f9b34fb");
+
+    public static final int ATT_READ_NOT_PERMITTED = 0x02;                              //ATT error codes, passed up as the GATT status
+    public static final int ATT_WRITE_NOT_PERMITTED = 0x03;
+    public static final int ATT_INVALID_ATTRIBUTE_LENGTH = 0x0d;
+    public static final int ATT_ATTRIBUTE_NOT_FOUND = 0x0a;
+    public static final int ATT_VALUE_NOT_ALLOWED = 0x13;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte LEGACY_LEADING_BYTE = 0x00;
+
+    /**
+     * Told when the LED value changes, so a connected link can notify it.
+     */
+    public interface Listener {
+        void onValueChanged(UUID characteristic, byte[] value, boolean indicate);
+    }
+
+    private final String mAddress;
+    private final LedStateCodec.Mode mFirmware;
+    private final LedStateCodec mCodec;
+    private final LedState mDecoded = new LedState();
+    private final LedCommandBatch mFrame = new LedCommandBatch();
+    private String mFirmwareRevision = "1.0";
+    private boolean mIndicate;
+    private boolean mBonded;
+    private int mCccd;                                                                  //LED_TOGGLE notification config value
+    private byte[] mLedValue;
+    private int mLedState;
+    private int mBrightness = 0xFF;
+    private long mWrites, mFrames, mSteps, mHoldMillis;
+    private long mLastWriteNanos;                                                       //When the LED last took a written value
+    private Listener mListener;
+
+    public SimulatedBl600(String address, LedStateCodec.Mode firmware) {
+        mAddress = address;
+        mFirmware = firmware;
+        mCodec = new LedStateCodec(firmware);
+        mLedValue = firmware == LedStateCodec.Mode.BINARY ? new byte[] {0, 0} : new byte[] {'0'};
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public LedStateCodec.Mode getFirmware() {
+        return mFirmware;
+    }
+
+    public synchronized void setFirmwareRevision(String revision) {
+        mFirmwareRevision = revision;
+    }
+
+    public synchronized void setIndicate(boolean indicate) {
+        mIndicate = indicate;
+    }
+
+    public synchronized void setBonded(boolean bonded) {
+        mBonded = bonded;
+    }
+
+    public synchronized void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // What service discovery finds
+    public synchronized GattLayout getLayout() {
+        List<GattLayout.Characteristic> characteristics = new ArrayList<GattLayout.Characteristic>();
+        characteristics.add(new GattLayout.Characteristic(GENERIC_ACCESS_SERVICE, DEVICE_NAME, GattLayout.PROPERTY_READ, false));
+        characteristics.add(new GattLayout.Characteristic(GENERIC_ACCESS_SERVICE, APPEARANCE, GattLayout.PROPERTY_READ, false));
+        characteristics.add(new GattLayout.Characteristic(LedGattProfile.DEVICE_INFORMATION_SERVICE,
+                LedGattProfile.FIRMWARE_REVISION, GattLayout.PROPERTY_READ, false));
+        characteristics.add(new GattLayout.Characteristic(LedGattProfile.LED_SERVICE, LedGattProfile.LED_TOGGLE,
+                GattLayout.PROPERTY_READ | GattLayout.PROPERTY_WRITE
+                        | (mIndicate ? GattLayout.PROPERTY_INDICATE : GattLayout.PROPERTY_NOTIFY), true));
+        return new GattLayout(characteristics);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Value of a characteristic, or null if it cannot be read
+    public synchronized byte[] read(UUID service, UUID characteristic) {
+        if (LedGattProfile.LED_TOGGLE.equals(characteristic) && LedGattProfile.LED_SERVICE.equals(service)) {
+            return mLedValue.clone();
+        }
+        if (LedGattProfile.FIRMWARE_REVISION.equals(characteristic)) {
+            return mFirmwareRevision.getBytes(UTF_8);
+        }
+        if (DEVICE_NAME.equals(characteristic)) {
+            return "BL600".getBytes(UTF_8);
+        }
+        if (APPEARANCE.equals(characteristic)) {
+            return new byte[] {0, 0};
+        }
+        return null;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Apply a write and return the ATT status
+    public int write(UUID service, UUID characteristic, byte[] value) {
+        Listener listener;
+        byte[] changed;
+        boolean indicate;
+        synchronized (this) {
+            if (!LedGattProfile.LED_TOGGLE.equals(characteristic) || !LedGattProfile.LED_SERVICE.equals(service)) {
+                return read(service, characteristic) != null ? ATT_WRITE_NOT_PERMITTED : ATT_ATTRIBUTE_NOT_FOUND;
+            }
+            int status = applyLedValue(value);
+            if (status != GattOperation.GATT_SUCCESS) {
+                return status;
+            }
+            mWrites++;
+            mLastWriteNanos = System.nanoTime();
+            if (mCccd == 0 || mListener == null) {
+                return status;
+            }
+            listener = mListener;
+            changed = mLedValue.clone();
+            indicate = (mCccd & 0x02) != 0 && (mCccd & 0x01) == 0;
+        }
+        listener.onValueChanged(characteristic, changed, indicate);                     //Outside the lock, the link schedules the notification
+        return GattOperation.GATT_SUCCESS;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Change the LED at the board, as its button does, and notify a subscribed link
+    public void pressButton(int state) {
+        Listener listener;
+        byte[] changed;
+        boolean indicate;
+        synchronized (this) {
+            mLedState = state != 0 ? 1 : 0;
+            mLedValue = mFirmware == LedStateCodec.Mode.LEGACY_STRING ? new byte[] {LEGACY_LEADING_BYTE, (byte) ('0' + mLedState)}
+                    : mCodec.encode(mDecoded.set(mLedState, 0, LedState.ABSENT, LedState.ABSENT));
+            if (mCccd == 0 || mListener == null) {
+                return;
+            }
+            listener = mListener;
+            changed = mLedValue.clone();
+            indicate = (mCccd & 0x02) != 0 && (mCccd & 0x01) == 0;
+        }
+        listener.onValueChanged(LedGattProfile.LED_TOGGLE, changed, indicate);
+    }
+
+    public synchronized int writeDescriptor(UUID service, UUID characteristic, UUID descriptor, byte[] value) {
+        if (!LedGattProfile.CHARACTERISTIC_NOTIFICATION_CONFIG.equals(descriptor)
+                || !LedGattProfile.LED_TOGGLE.equals(characteristic) || !LedGattProfile.LED_SERVICE.equals(service)) {
+            return ATT_ATTRIBUTE_NOT_FOUND;
+        }
+        if (value == null || value.length != 2) {
+            return ATT_INVALID_ATTRIBUTE_LENGTH;
+        }
+        int cccd = (value[0] & 0xFF) | (value[1] & 0xFF) << 8;
+        int allowed = mIndicate ? 0x02 : 0x01;
+        if ((cccd & ~allowed) != 0) {
+            return ATT_VALUE_NOT_ALLOWED;                                               //Asked for a kind of update the characteristic does not support
+        }
+        mCccd = cccd;
+        return GattOperation.GATT_SUCCESS;
+    }
+
+    public synchronized void onDisconnected() {
+        if (!mBonded) {
+            mCccd = 0;
+        }
+    }
+
+    public synchronized boolean isBonded() {
+        return mBonded;
+    }
+
+    public synchronized boolean isSubscribed() {
+        return mCccd != 0;
+    }
+
+    public synchronized int getLedState() {
+        return mLedState;
+    }
+
+    public synchronized int getBrightness() {
+        return mBrightness;
+    }
+
+    public synchronized long getLastWriteNanos() {
+        return mLastWriteNanos;
+    }
+
+    public synchronized long getWriteCount() {
+        return mWrites;
+    }
+
+    public synchronized long getFrameCount() {
+        return mFrames;
+    }
+
+    public synchronized long getStepCount() {
+        return mSteps;
+    }
+
+    public synchronized long getHoldMillis() {
+        return mHoldMillis;
+    }
+
+    private int applyLedValue(byte[] value) {
+        if (value == null || value.length == 0) {
+            return ATT_INVALID_ATTRIBUTE_LENGTH;
+        }
+        if (mFirmware == LedStateCodec.Mode.LEGACY_STRING) {
+            if (value.length != 1 || (value[0] != '0' && value[0] != '1')) {
+                return ATT_VALUE_NOT_ALLOWED;
+            }
+            mLedState = value[0] - '0';
+            mLedValue = new byte[] {LEGACY_LEADING_BYTE, value[0]};
+            return GattOperation.GATT_SUCCESS;
+        }
+        if ((value[0] & 0xFF) == LedBatchWriter.FRAME_MARKER) {
+            mFrame.clear();
+            if (!LedBatchWriter.decodeFrame(value, value.length, mFrame) || mFrame.size() == 0) {
+                return ATT_VALUE_NOT_ALLOWED;
+            }
+            for (int i = 0; i < mFrame.size(); i++) {                                   //Steps are not played out in real time, only their end state is kept
+                mLedState = mFrame.getState(i);
+                if (mFrame.getBrightness(i) != LedCommandBatch.KEEP_BRIGHTNESS) {
+                    mBrightness = mFrame.getBrightness(i);
+                }
+                mHoldMillis += mFrame.getHoldMillis(i);
+            }
+            mFrames++;
+            mSteps += mFrame.size();
+            mLedValue = new byte[] {(byte) mLedState, value[1], (byte) mBrightness};
+            return GattOperation.GATT_SUCCESS;
+        }
+        if (!mCodec.decode(value, mDecoded)) {
+            return value.length > LedStateCodec.MAX_LENGTH ? ATT_INVALID_ATTRIBUTE_LENGTH : ATT_VALUE_NOT_ALLOWED;
+        }
+        mLedState = mDecoded.state;
+        if (mDecoded.brightness != LedState.ABSENT) {
+            mBrightness = mDecoded.brightness;
+        }
+        mSteps++;
+        mLedValue = value.clone();
+        return GattOperation.GATT_SUCCESS;
+    }
+}
@@ -0,0 +1,563 @@
+package toggle.ble.com.bl600ledtoggle.simulator;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import toggle.ble.com.bl600ledtoggle.GattLayout;
+import toggle.ble.com.bl600ledtoggle.GattOperation;
+import toggle.ble.com.bl600ledtoggle.BleTransport;
+import toggle.ble.com.bl600ledtoggle.LedBatchWriter;
+
+/**
+ * A connection to a {@link SimulatedBl600} that behaves like {@code BluetoothGatt}: one ATT request may be outstanding
+ * at a time, requests return false when they cannot be started, and every result comes back later through a
+ * {@link SimulatedGattCallback} on the link thread. Timing follows the {@link LinkModel}, with the interval set by the
+ * last connection priority asked for. A write longer than MTU - 3 goes out as prepare writes plus an execute, and a
+ * write without response that does not fit is refused, as on Android.
+ *
+ * The board can be taken out of range, which drops the link after the supervision timeout and makes direct connections
+ * fail with GATT_ERROR after the connect timeout, while a background connection waits until it is back. The stack can
+ * also be made to fail every connection with GATT_ERROR until the client is reset, as some Android stacks do.
+ *
+ * It implements {@link BleTransport} so a {@link toggle.ble.com.bl600ledtoggle.DeviceSession} can run on it as it
+ * does on the phone.
+ */
+public class SimulatedGatt implements BleTransport {
+
+    public static final int STATE_DISCONNECTED = 0;                                     //Same values as BluetoothProfile.STATE_*
+    public static final int STATE_CONNECTED = 2;
+    public static final int GATT_CONN_TIMEOUT = 8;                                      //Supervision timeout, the status Android reports for a lost link
+
+    private static final int ATT_READ_OVERHEAD = 1;
+    private static final int ATT_PREPARE_OVERHEAD = 5;
+
+    private final SimulatedBl600 mPeripheral;
+    private final LinkModel mModel;
+    private final SimulatedGattCallback mCallback;
+    private final Random mRandom;
+    private final ScheduledExecutorService mLink;
+    private int mState = STATE_DISCONNECTED;
+    private int mGeneration;                                                            //Bumped on every disconnect so late events of a dead link are dropped
+    private boolean mBusy;                                                              //An ATT request is outstanding
+    private boolean mConnecting;
+    private boolean mInRange = true;
+    private boolean mStackBroken;                                                       //Connections fail with GATT_ERROR until reset()
+    private boolean mBackgroundPending;                                                 //A background connection is waiting for the board
+    private long mResets;
+    private long mIntervalMicros;
+    private int mMtu = LedBatchWriter.DEFAULT_MTU;
+    private GattLayout mLayout;
+    private long mAirTimeMicros, mPackets, mRetransmissions, mNotifications, mIndications;
+
+    private final SimulatedBl600.Listener mPeripheralListener = new SimulatedBl600.Listener() {
+        @Override
+        public void onValueChanged(final UUID characteristic, final byte[] value, final boolean indicate) {
+            final int generation;
+            long micros;
+            synchronized (SimulatedGatt.this) {
+                if (mState != STATE_CONNECTED) {
+                    return;
+                }
+                generation = mGeneration;
+                micros = airTime(indicate ? 2 : 1);                                     //An indication waits for its confirmation
+                if (indicate) {
+                    mIndications++;
+                }
+                else {
+                    mNotifications++;
+                }
+            }
+            if (micros < 0) {
+                return;                                                                 //Lost along with the link
+            }
+            deliver(generation, micros, new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onCharacteristicChanged(SimulatedGatt.this, characteristic, value);
+                }
+            });
+        }
+    };
+
+    public SimulatedGatt(SimulatedBl600 peripheral, LinkModel model, SimulatedGattCallback callback) {
+        mPeripheral = peripheral;
+        mModel = model;
+        mCallback = callback;
+        mRandom = new Random(model.getSeed());
+        mIntervalMicros = model.getDefaultIntervalMicros();
+        mLink = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "SimulatedGatt " + mPeripheral.getAddress());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public SimulatedBl600 getPeripheral() {
+        return mPeripheral;
+    }
+
+    @Override
+    public String getAddress() {
+        return mPeripheral.getAddress();
+    }
+
+    @Override
+    public boolean isBonded() {
+        return mPeripheral.isBonded();
+    }
+
+    @Override
+    public boolean setNotificationsEnabled(GattLayout.Characteristic characteristic, boolean enabled) {
+        return true;                                                                    //Nothing to switch on at this end, the simulated link delivers every notification
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Connect once the peripheral next advertises. Calling it again while connected or connecting does nothing.
+    @Override
+    public boolean connect() {
+        return open(false);
+    }
+
+    @Override
+    public boolean reconnect(boolean background) {
+        return open(background);
+    }
+
+    private boolean open(boolean background) {
+        final int generation;
+        long micros;
+        synchronized (this) {
+            if (mState == STATE_CONNECTED || mConnecting) {
+                return true;
+            }
+            mConnecting = true;
+            mIntervalMicros = mModel.getDefaultIntervalMicros();
+            generation = mGeneration;
+            if (mInRange && !mStackBroken) {
+                micros = 0;
+            }
+            else if (mStackBroken) {
+                micros = mIntervalMicros;                                               //Fails straight away
+            }
+            else if (background) {
+                mBackgroundPending = true;                                              //Completed by setInRange(true)
+                return true;
+            }
+            else {
+                micros = mModel.getConnectTimeoutMicros();
+            }
+        }
+        if (micros == 0) {
+            establish(generation);
+            return true;
+        }
+        deliver(generation, micros, new Runnable() {
+            @Override
+            public void run() {
+                failConnect(generation);
+            }
+        });
+        return true;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Connect when the board next advertises
+    private void establish(int generation) {
+        long micros;
+        synchronized (this) {
+            micros = (long) (mRandom.nextDouble() * mModel.getAdvertisingIntervalMicros()) + mIntervalMicros;
+        }
+        deliver(generation, micros, new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedGatt.this) {
+                    mConnecting = false;
+                    mState = STATE_CONNECTED;
+                }
+                mPeripheral.setListener(mPeripheralListener);
+                mCallback.onConnectionStateChange(SimulatedGatt.this, GattOperation.GATT_SUCCESS, STATE_CONNECTED);
+            }
+        });
+    }
+
+    private void failConnect(int generation) {
+        synchronized (this) {
+            if (generation != mGeneration || !mConnecting) {
+                return;
+            }
+            mGeneration++;
+            mConnecting = false;
+        }
+        mCallback.onConnectionStateChange(this, GattOperation.GATT_ERROR, STATE_DISCONNECTED);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Move the board out of or back into range. Out of range, a connected link drops after the supervision timeout.
+    // Back in range, a background connection completes when the board next advertises.
+    public void setInRange(boolean inRange) {
+        int generation;
+        boolean connected, background;
+        synchronized (this) {
+            mInRange = inRange;
+            generation = mGeneration;
+            connected = mState == STATE_CONNECTED;
+            background = inRange && mBackgroundPending;
+            mBackgroundPending = false;
+        }
+        if (!inRange && connected) {
+            drop(GATT_CONN_TIMEOUT, mModel.getSupervisionTimeoutMicros());
+        }
+        else if (background) {
+            establish(generation);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Make every connection fail with GATT_ERROR until reset() is called
+    public synchronized void breakStack() {
+        mStackBroken = true;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Close the client and open a new one, like BluetoothGatt.close() and connectGatt(). A link that is up goes down
+    // without a callback, and nothing still on its way is delivered.
+    @Override
+    public void reset() {
+        boolean connected;
+        synchronized (this) {
+            connected = mState == STATE_CONNECTED;
+            mGeneration++;
+            mState = STATE_DISCONNECTED;
+            mConnecting = false;
+            mBackgroundPending = false;
+            mBusy = false;
+            mMtu = LedBatchWriter.DEFAULT_MTU;
+            mLayout = null;
+            mStackBroken = false;
+            mResets++;
+        }
+        if (connected) {
+            mPeripheral.setListener(null);
+            mPeripheral.onDisconnected();
+        }
+    }
+
+    public synchronized long getResetCount() {
+        return mResets;
+    }
+
+    @Override
+    public void disconnect() {
+        long micros;
+        synchronized (this) {
+            if (mState != STATE_CONNECTED && !mConnecting) {
+                return;
+            }
+            micros = mIntervalMicros;
+        }
+        drop(GattOperation.GATT_SUCCESS, micros);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Stop the link thread. The object cannot be used after this, like BluetoothGatt.close().
+    public void close() {
+        synchronized (this) {
+            mGeneration++;
+            mState = STATE_DISCONNECTED;
+            mConnecting = false;
+        }
+        mLink.shutdownNow();
+    }
+
+    @Override
+    public boolean discoverServices() {
+        final int generation;
+        long micros;
+        synchronized (this) {
+            if (mState != STATE_CONNECTED || mBusy) {
+                return false;
+            }
+            mBusy = true;
+            generation = mGeneration;
+            GattLayout layout = mPeripheral.getLayout();
+            Set<UUID> services = new HashSet<UUID>();
+            for (GattLayout.Characteristic characteristic : layout.getCharacteristics()) {
+                services.add(characteristic.service);
+            }
+            int characteristics = layout.getCharacteristics().size();
+            micros = airTime(1 + services.size() * 2 + characteristics);              //Primary services, characteristics per service, descriptors per characteristic
+        }
+        if (micros < 0) {
+            return true;
+        }
+        deliver(generation, micros, new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedGatt.this) {
+                    mBusy = false;
+                    mLayout = mPeripheral.getLayout();
+                }
+                mCallback.onServicesDiscovered(SimulatedGatt.this, GattOperation.GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Services found by the last discovery on this connection, or null
+    @Override
+    public synchronized GattLayout getLayout() {
+        return mLayout;
+    }
+
+    public synchronized boolean isConnected() {
+        return mState == STATE_CONNECTED;
+    }
+
+    public synchronized int getMtu() {
+        return mMtu;
+    }
+
+    public synchronized long getIntervalMicros() {
+        return mIntervalMicros;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Simulated time the radio was busy, and the packets it sent, since this object was created
+    public synchronized long getAirTimeMicros() {
+        return mAirTimeMicros;
+    }
+
+    public synchronized long getPacketCount() {
+        return mPackets;
+    }
+
+    public synchronized long getRetransmissionCount() {
+        return mRetransmissions;
+    }
+
+    public synchronized long getNotificationCount() {
+        return mNotifications;
+    }
+
+    public synchronized long getIndicationCount() {
+        return mIndications;
+    }
+
+    @Override
+    public boolean readCharacteristic(final UUID service, final UUID characteristic) {
+        final int generation;
+        long micros;
+        synchronized (this) {
+            if (!startRequest()) {
+                return false;
+            }
+            generation = mGeneration;
+            byte[] value = mPeripheral.read(service, characteristic);
+            int perPacket = mMtu - ATT_READ_OVERHEAD;
+            int blobs = value == null ? 0 : Math.max(0, (value.length - 1) / perPacket);  //Read blob requests for the rest of a long value
+            micros = airTime(1 + blobs);
+        }
+        return request(generation, micros, new Runnable() {
+            @Override
+            public void run() {
+                byte[] value = mPeripheral.read(service, characteristic);
+                mCallback.onCharacteristicRead(SimulatedGatt.this, characteristic, value,
+                        value != null ? GattOperation.GATT_SUCCESS : SimulatedBl600.ATT_READ_NOT_PERMITTED);
+            }
+        });
+    }
+
+    @Override
+    public boolean writeCharacteristic(final UUID service, final UUID characteristic, byte[] value, int writeType) {
+        final byte[] copy = value.clone();
+        final int generation;
+        long micros;
+        synchronized (this) {
+            int exchanges = 1;
+            if (value.length > mMtu - LedBatchWriter.ATT_WRITE_OVERHEAD) {
+                if (writeType == GattOperation.WRITE_TYPE_NO_RESPONSE || value.length > LedBatchWriter.MAX_ATTRIBUTE_LENGTH) {
+                    return false;
+                }
+                int perPacket = mMtu - ATT_PREPARE_OVERHEAD;
+                exchanges = (value.length + perPacket - 1) / perPacket + 1;             //Prepare writes then execute
+            }
+            if (!startRequest()) {
+                return false;
+            }
+            generation = mGeneration;
+            micros = airTime(exchanges);
+        }
+        return request(generation, micros, new Runnable() {
+            @Override
+            public void run() {
+                int status = mPeripheral.write(service, characteristic, copy);
+                mCallback.onCharacteristicWrite(SimulatedGatt.this, characteristic, status);
+            }
+        });
+    }
+
+    @Override
+    public boolean writeDescriptor(final UUID service, final UUID characteristic, final UUID descriptor, byte[] value) {
+        final byte[] copy = value.clone();
+        final int generation;
+        long micros;
+        synchronized (this) {
+            if (!startRequest()) {
+                return false;
+            }
+            generation = mGeneration;
+            micros = airTime(1);
+        }
+        return request(generation, micros, new Runnable() {
+            @Override
+            public void run() {
+                int status = mPeripheral.writeDescriptor(service, characteristic, descriptor, copy);
+                mCallback.onDescriptorWrite(SimulatedGatt.this, characteristic, descriptor, status);
+            }
+        });
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+        final int granted;
+        final int generation;
+        long micros;
+        synchronized (this) {
+            if (!startRequest()) {
+                return false;
+            }
+            granted = Math.max(LedBatchWriter.DEFAULT_MTU, Math.min(mtu, mModel.getMaxMtu()));
+            generation = mGeneration;
+            micros = airTime(1);
+        }
+        return request(generation, micros, new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedGatt.this) {
+                    mMtu = granted;
+                }
+                mCallback.onMtuChanged(SimulatedGatt.this, granted, GattOperation.GATT_SUCCESS);
+            }
+        });
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // The new interval applies from the next request, there is no callback for it before API 26
+    @Override
+    public synchronized boolean requestConnectionPriority(int priority) {
+        if (mState != STATE_CONNECTED) {
+            return false;
+        }
+        mIntervalMicros = mModel.getIntervalMicros(priority);
+        return true;
+    }
+
+    private boolean startRequest() {
+        if (mState != STATE_CONNECTED || mBusy) {
+            return false;
+        }
+        mBusy = true;
+        return true;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Deliver the response to the outstanding request, or drop the link if airTime() said it was lost
+    private boolean request(int generation, long micros, final Runnable response) {
+        if (micros < 0) {
+            return true;                                                                //Accepted, but the link goes down before the response
+        }
+        deliver(generation, micros, new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedGatt.this) {
+                    mBusy = false;
+                }
+                response.run();
+            }
+        });
+        return true;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Time for the given number of request / response exchanges, starting at the next connection event. Each lost
+    // packet is sent again one interval later. Returns -1, and schedules the disconnect, if the link is lost first. Also
+    // returns -1 while the board is out of range, the drop is already on its way then.
+    private long airTime(int exchanges) {
+        if (!mInRange) {
+            return -1;                                                                  //Nothing gets through, setInRange() has scheduled the drop
+        }
+        long interval = mIntervalMicros;
+        long micros = (long) (mRandom.nextDouble() * mModel.getJitter() * interval);
+        for (int i = 0; i < exchanges; i++) {
+            long lostMicros = 0;
+            while (mModel.getLossRate() > 0 && mRandom.nextDouble() < mModel.getLossRate()) {
+                lostMicros += interval;
+                mRetransmissions++;
+                if (lostMicros > mModel.getSupervisionTimeoutMicros()) {
+                    mAirTimeMicros += micros + lostMicros;
+                    drop(GATT_CONN_TIMEOUT, micros + lostMicros);
+                    return -1;
+                }
+            }
+            micros += interval + lostMicros;
+            mPackets++;
+        }
+        mAirTimeMicros += micros;
+        return micros;
+    }
+
+    private void drop(final int status, long micros) {
+        final int generation;
+        synchronized (this) {
+            generation = mGeneration;
+        }
+        deliver(generation, micros, new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedGatt.this) {
+                    mGeneration++;
+                    mState = STATE_DISCONNECTED;
+                    mConnecting = false;
+                    mBackgroundPending = false;
+                    mBusy = false;
+                    mMtu = LedBatchWriter.DEFAULT_MTU;                                  //The next connection exchanges the MTU again
+                    mLayout = null;
+                }
+                mPeripheral.setListener(null);
+                mPeripheral.onDisconnected();
+                mCallback.onConnectionStateChange(SimulatedGatt.this, status, STATE_DISCONNECTED);
+            }
+        });
+    }
+
+    private void deliver(final int generation, long micros, final Runnable event) {
+        Runnable guarded = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedGatt.this) {
+                    if (generation != mGeneration) {
+                        return;                                                         //The link this event belonged to has gone
+                    }
+                }
+                event.run();
+            }
+        };
+        try {
+            mLink.schedule(guarded, micros, TimeUnit.MICROSECONDS);
+        }
+        catch (RejectedExecutionException e) {
+            //Closed, nothing more is delivered
+        }
+    }
+}
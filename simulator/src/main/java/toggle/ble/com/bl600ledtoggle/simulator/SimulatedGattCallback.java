@@ -0,0 +1,33 @@
+package toggle.ble.com.bl600ledtoggle.simulator;
+
+import java.util.UUID;
+
+/**
+ * Events from a {@link SimulatedGatt}, with the same methods and the same order of events as
+ * {@code BluetoothGattCallback}. Characteristics and descriptors are passed as UUIDs with the value that came with the
+ * event, the way the app copies them out of the Android objects. Callbacks run on the link thread, like the Binder thread
+ * on a phone, so they should hand work off rather than block.
+ */
+public abstract class SimulatedGattCallback {
+
+    public void onConnectionStateChange(SimulatedGatt gatt, int status, int newState) {
+    }
+
+    public void onServicesDiscovered(SimulatedGatt gatt, int status) {
+    }
+
+    public void onCharacteristicRead(SimulatedGatt gatt, UUID characteristic, byte[] value, int status) {
+    }
+
+    public void onCharacteristicWrite(SimulatedGatt gatt, UUID characteristic, int status) {
+    }
+
+    public void onDescriptorWrite(SimulatedGatt gatt, UUID characteristic, UUID descriptor, int status) {
+    }
+
+    public void onCharacteristicChanged(SimulatedGatt gatt, UUID characteristic, byte[] value) {
+    }
+
+    public void onMtuChanged(SimulatedGatt gatt, int mtu, int status) {
+    }
+}
@@ -0,0 +1,426 @@
+package toggle.ble.com.bl600ledtoggle.simulator;
+
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import toggle.ble.com.bl600ledtoggle.BleMetrics;
+import toggle.ble.com.bl600ledtoggle.DeviceSession;
+import toggle.ble.com.bl600ledtoggle.ExecutorTaskScheduler;
+import toggle.ble.com.bl600ledtoggle.GattLayoutCache;
+import toggle.ble.com.bl600ledtoggle.GattOperation;
+import toggle.ble.com.bl600ledtoggle.GattOperationQueue;
+import toggle.ble.com.bl600ledtoggle.GattTraceRecorder;
+import toggle.ble.com.bl600ledtoggle.LedBatchWriter;
+import toggle.ble.com.bl600ledtoggle.LedCommandBatch;
+import toggle.ble.com.bl600ledtoggle.LedController;
+import toggle.ble.com.bl600ledtoggle.LedDeviceSession;
+import toggle.ble.com.bl600ledtoggle.LedServiceSetup;
+import toggle.ble.com.bl600ledtoggle.LedState;
+import toggle.ble.com.bl600ledtoggle.LedStateCodec;
+import toggle.ble.com.bl600ledtoggle.LinkProfile;
+import toggle.ble.com.bl600ledtoggle.LinkTuner;
+import toggle.ble.com.bl600ledtoggle.ReconnectPolicy;
+import toggle.ble.com.bl600ledtoggle.TaskScheduler;
+
+/**
+ * The app's {@link LedDeviceSession} run against a {@link SimulatedGatt}, wired the way ControlActivity wires it: link
+ * events are handed from the link thread to a session thread, and once the LED service is ready the first read
+ * decides the LED format.
+ *
+ * The blocking methods are for tests and benchmarks. Each waits until the result is seen by the app, so the time they
+ * take is what a user would wait for.
+ */
+public class SimulatedSession {
+
+    private final SimulatedBl600 mPeripheral;
+    private final SimulatedGatt mGatt;
+    private final ExecutorTaskScheduler mSessionThread = new ExecutorTaskScheduler("SimulatedSession");
+    private final LedDeviceSession mSession;
+    private final BleMetrics mMetrics = new BleMetrics();
+    private volatile LedStateCodec mCodec = new LedStateCodec(LedStateCodec.Mode.LEGACY_STRING);
+    private volatile boolean mServiceReady;
+    private volatile CountDownLatch mReady = new CountDownLatch(1);
+    private volatile CountDownLatch mDisconnected = new CountDownLatch(1);
+    private volatile CountDownLatch mRecovered = new CountDownLatch(1);
+    private boolean mReconnecting;                                                      //Only touched on the session thread
+    private volatile CountDownLatch mNotified;
+    private volatile int mExpectedState;
+    private int mLedState;                                                              //Only touched by the thread calling the blocking methods
+
+    /**
+     * Waits for one queued operation or batch.
+     */
+    private static class Result implements GattOperation.Callback, LedBatchWriter.Listener {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile int status = GattOperation.STATUS_TIMEOUT;
+        volatile byte[] value;
+
+        @Override
+        public void onOperationComplete(GattOperation operation, int status, byte[] value) {
+            this.value = value;
+            this.status = status;
+            done.countDown();
+        }
+
+        @Override
+        public void onBatchComplete(LedCommandBatch batch, int status, int writes) {
+            this.status = status;
+            done.countDown();
+        }
+
+        void reject() {
+            onOperationComplete(null, GattOperation.STATUS_REJECTED, null);
+        }
+
+        boolean await(long timeoutMillis) throws InterruptedException {
+            return done.await(timeoutMillis, TimeUnit.MILLISECONDS) && status == GattOperation.GATT_SUCCESS;
+        }
+    }
+
+    /**
+     * Waits for every command of a burst. Fails if any of them did.
+     */
+    private static class Burst implements GattOperation.Callback {
+        final CountDownLatch done;
+        volatile int status = GattOperation.GATT_SUCCESS;
+
+        Burst(int commands) {
+            done = new CountDownLatch(commands);
+        }
+
+        @Override
+        public void onOperationComplete(GattOperation operation, int status, byte[] value) {
+            if (status != GattOperation.GATT_SUCCESS) {
+                this.status = status;
+            }
+            done.countDown();
+        }
+
+        boolean await(long timeoutMillis) throws InterruptedException {
+            return done.await(timeoutMillis, TimeUnit.MILLISECONDS) && status == GattOperation.GATT_SUCCESS;
+        }
+    }
+
+    public SimulatedSession(SimulatedBl600 peripheral, LinkModel model, GattLayoutCache cache) {
+        this(peripheral, model, cache, null);
+    }
+
+    public SimulatedSession(SimulatedBl600 peripheral, LinkModel model, GattLayoutCache cache, GattTraceRecorder trace) {
+        mPeripheral = peripheral;
+        mGatt = new SimulatedGatt(peripheral, model, mGattCallback);
+        mSession = new LedDeviceSession(trace != null ? trace.wrap(mGatt) : mGatt, mSessionThread, cache);
+        mSession.setTraceRecorder(trace);
+        mSession.setMetrics(mMetrics);
+        mSession.setListener(mSessionListener);
+        mSession.setLedListener(mLedListener);
+    }
+
+    public void setProfile(final LinkProfile profile) {
+        mSessionThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                mSession.setLinkProfile(profile);
+            }
+        });
+    }
+
+    public void setWriteMode(final LedController.WriteMode mode) {
+        mSessionThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                mSession.setWriteMode(mode);
+            }
+        });
+    }
+
+    public void setReconnectPolicy(final ReconnectPolicy policy) {
+        mSessionThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                mSession.setReconnectPolicy(policy);
+            }
+        });
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Wait until a dropped link has been brought back and the LED service is ready again
+    public boolean awaitRecovery(long timeoutMillis) throws InterruptedException {
+        CountDownLatch recovered = mRecovered;
+        boolean done = recovered.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        mRecovered = new CountDownLatch(1);
+        return done;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Connect and wait until the LED service is ready and its format is known
+    public boolean connect(long timeoutMillis) throws InterruptedException {
+        mReady = new CountDownLatch(1);
+        mDisconnected = new CountDownLatch(1);
+        mServiceReady = false;
+        mSessionThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                mSession.connect();
+            }
+        });
+        return mReady.await(timeoutMillis, TimeUnit.MILLISECONDS) && mServiceReady;
+    }
+
+    public boolean disconnect(long timeoutMillis) throws InterruptedException {
+        mSessionThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                mSession.disconnect();
+            }
+        });
+        return mDisconnected.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void close() {
+        mGatt.close();
+        mSession.getQueue().clear();
+        mSessionThread.shutdown();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Switch the LED to the other state. Waits for the write response and, if the board notifies, for the
+    // notification that shows the new state.
+    public boolean toggle(long timeoutMillis) throws InterruptedException {
+        return setLed(mLedState != 0 ? 0 : 1, timeoutMillis);
+    }
+
+    public boolean setLed(final int state, long timeoutMillis) throws InterruptedException {
+        mLedState = state;
+        CountDownLatch notified = null;
+        if (mPeripheral.isSubscribed()) {
+            mExpectedState = state;
+            notified = new CountDownLatch(1);
+            mNotified = notified;
+        }
+        final Result result = new Result();
+        mSessionThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!mSession.setLed(state, result)) {
+                    result.reject();
+                }
+            }
+        });
+        boolean written = result.await(timeoutMillis);
+        return written && (notified == null || notified.await(timeoutMillis, TimeUnit.MILLISECONDS));
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Hand the states to the session one after the other, gapMicros apart, the way rapid taps arrive, and wait until
+    // every command has completed. The last one completes when the board has acknowledged the end state.
+    public boolean sendBurst(int[] states, long gapMicros, long timeoutMillis) throws InterruptedException {
+        final Burst burst = new Burst(states.length);
+        for (int i = 0; i < states.length; i++) {
+            final int state = states[i];
+            mSessionThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mSession.setLed(state, burst)) {
+                        burst.onOperationComplete(null, GattOperation.STATUS_REJECTED, null);
+                    }
+                }
+            });
+            if (gapMicros > 0 && i < states.length - 1) {
+                LockSupport.parkNanos(gapMicros * 1000);
+            }
+        }
+        if (states.length > 0) {
+            mLedState = states[states.length - 1];
+        }
+        return burst.await(timeoutMillis);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Read and decode the LED state, or return null if the read failed. Answered from the state cache while it is
+    // fresh unless force is set.
+    public LedState read(long timeoutMillis) throws InterruptedException {
+        return read(false, timeoutMillis);
+    }
+
+    public LedState read(final boolean force, long timeoutMillis) throws InterruptedException {
+        final Result result = new Result();
+        mSessionThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!mSession.readLed(force, result)) {
+                    result.reject();
+                }
+            }
+        });
+        LedState state = new LedState();
+        return result.await(timeoutMillis) && mCodec.decode(result.value, state) ? state : null;
+    }
+
+    public boolean send(final LedCommandBatch batch, long timeoutMillis) throws InterruptedException {
+        final Result result = new Result();
+        mSessionThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!mSession.sendBatch(batch, result)) {
+                    result.reject();
+                }
+            }
+        });
+        return result.await(timeoutMillis);
+    }
+
+    public SimulatedGatt getGatt() {
+        return mGatt;
+    }
+
+    public TaskScheduler getSessionThread() {                                          //The thread getSession() is confined to
+        return mSessionThread;
+    }
+
+    public LedDeviceSession getSession() {
+        return mSession;
+    }
+
+    public GattOperationQueue getQueue() {
+        return mSession.getQueue();
+    }
+
+    public LinkTuner getTuner() {
+        return mSession.getTuner();
+    }
+
+    public LedServiceSetup getSetup() {
+        return mSession.getSetup();
+    }
+
+    public LedBatchWriter getBatchWriter() {
+        return mSession.getBatchWriter();
+    }
+
+    public LedStateCodec getCodec() {
+        return mCodec;
+    }
+
+    public BleMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    private final DeviceSession.Listener mSessionListener = new DeviceSession.Listener() {
+        @Override
+        public void onStateChanged(DeviceSession session, DeviceSession.State state) {
+            if (state == DeviceSession.State.RECONNECTING) {
+                mReconnecting = true;
+            }
+            else if (state == DeviceSession.State.READY && mReconnecting && mServiceReady) {
+                mReconnecting = false;
+                mRecovered.countDown();                                                 //Format is known from the first connection
+            }
+            else if (state == DeviceSession.State.READY) {
+                mReconnecting = false;
+                mSession.readLed(new GattOperation.Callback() {                        //First read tells which LED format the firmware uses
+                    @Override
+                    public void onOperationComplete(GattOperation operation, int status, byte[] value) {
+                        if (status == GattOperation.GATT_SUCCESS) {
+                            mCodec = new LedStateCodec(mSession.getFormat());
+                            mServiceReady = true;
+                        }
+                        mReady.countDown();
+                    }
+                });
+            }
+            else if (state == DeviceSession.State.DISCONNECTED) {
+                mReconnecting = false;
+                mReady.countDown();
+                mDisconnected.countDown();
+            }
+        }
+    };
+
+    private final LedController.Listener mLedListener = new LedController.Listener() {
+        @Override
+        public void onLedStateChanged(LedState state, boolean fromRead) {
+            CountDownLatch notified = mNotified;
+            if (!fromRead && notified != null && state.state == mExpectedState) {
+                notified.countDown();
+            }
+        }
+    };
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Events arrive on the link thread and are handed to the session thread, as the Binder thread hands them to the
+    // BLE thread on the phone
+    private final SimulatedGattCallback mGattCallback = new SimulatedGattCallback() {
+        @Override
+        public void onConnectionStateChange(SimulatedGatt gatt, final int status, final int newState) {
+            mSessionThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mSession.onConnectionStateChange(status, newState == SimulatedGatt.STATE_CONNECTED);
+                }
+            });
+        }
+
+        @Override
+        public void onServicesDiscovered(SimulatedGatt gatt, final int status) {
+            mSessionThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mSession.onServicesDiscovered(status);
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicRead(SimulatedGatt gatt, final UUID characteristic, final byte[] value, final int status) {
+            mSessionThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mSession.onCharacteristicRead(characteristic, status, value);
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicWrite(SimulatedGatt gatt, final UUID characteristic, final int status) {
+            mSessionThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mSession.onCharacteristicWrite(characteristic, status);
+                }
+            });
+        }
+
+        @Override
+        public void onDescriptorWrite(SimulatedGatt gatt, final UUID characteristic, final UUID descriptor, final int status) {
+            mSessionThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mSession.onDescriptorWrite(characteristic, descriptor, status);
+                }
+            });
+        }
+
+        @Override
+        public void onMtuChanged(SimulatedGatt gatt, final int mtu, final int status) {
+            mSessionThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mSession.onMtuChanged(mtu, status);
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicChanged(SimulatedGatt gatt, final UUID characteristic, final byte[] value) {
+            final long receivedNanos = System.nanoTime();
+            mSessionThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mSession.onCharacteristicChanged(characteristic, value, value.length, receivedNanos);
+                }
+            });
+        }
+    };
+}
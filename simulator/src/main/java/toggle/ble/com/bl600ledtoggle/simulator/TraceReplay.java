@@ -0,0 +1,37 @@
+package toggle.ble.com.bl600ledtoggle.simulator;
+
+import java.io.File;
+import java.io.IOException;
+
+import toggle.ble.com.bl600ledtoggle.GattTrace;
+import toggle.ble.com.bl600ledtoggle.GattTraceReplayer;
+
+/**
+ * Replays GATT traces recorded on a phone (GatewayService with EXTRA_TRACE, pulled from files/traces) on the desktop,
+ * once per speed given, and prints the throughput and latency of each run. Speed 0 runs as fast as possible.
+ *   java TraceReplay trace.gtrc [speed...]
+ */
+public class TraceReplay {
+
+    private static final long TIMEOUT_MILLIS = 30000;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.err.println("Usage: TraceReplay trace.gtrc [speed...]");
+            System.exit(2);
+        }
+        GattTrace trace = GattTrace.read(new File(args[0]));
+        System.out.println(String.format("%s: %d events over %.1f s, %d dropped while recording", trace.getAddress(),
+                trace.getEvents().size(), trace.getDurationNanos() / 1e9, trace.getDroppedCount()));
+        GattTraceReplayer replayer = new GattTraceReplayer(trace);
+        if (args.length == 1) {
+            args = new String[] {args[0], "1", "10", "0"};
+        }
+        for (int i = 1; i < args.length; i++) {
+            double speed = Double.parseDouble(args[i]);
+            GattTraceReplayer.Result result = replayer.replay(speed, TIMEOUT_MILLIS);
+            System.out.println((speed > 0 ? speed + "x: " : "flat out: ") + result
+                    + (result.isComplete() ? "" : " (timed out)"));
+        }
+    }
+}
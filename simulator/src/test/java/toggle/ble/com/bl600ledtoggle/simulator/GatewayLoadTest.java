@@ -0,0 +1,41 @@
+package toggle.ble.com.bl600ledtoggle.simulator;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+public class GatewayLoadTest {
+
+    private static final int CLIENTS = 64;
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // The gateway API on localhost with 64 clients: first the server alone, then reads and writes of four boards on
+    // 7.5 ms links. Every request is answered without error and well within the timeout. The rate and latency are
+    // printed by GatewayLoad simulated.
+    @Test
+    public void gatewayServesManyClientsOverLocalhost() throws Exception {
+        GatewayLoad.SimulatedGateway gateway = new GatewayLoad.SimulatedGateway(4, mFolder.getRoot());
+        try {
+            GatewayLoad.Result serverOnly = GatewayLoad.run("127.0.0.1", gateway.getPort(), CLIENTS, 1000,
+                    new ArrayList<String>(), 0);
+            GatewayLoad.Result boards = GatewayLoad.run("127.0.0.1", gateway.getPort(), CLIENTS, 2000,
+                    gateway.getAddresses(), 20);
+            for (GatewayLoad.Result result : new GatewayLoad.Result[] {serverOnly, boards}) {
+                assertEquals(result.toString(), 0, result.getErrors());
+                assertTrue(result.toString(), result.getRequests() >= CLIENTS);         //Every client was answered
+                assertTrue(result.toString(), result.getLatency().snapshot().getPercentile(99) < TIMEOUT_MILLIS * 1000000L);
+            }
+        }
+        finally {
+            gateway.close();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package toggle.ble.com.bl600ledtoggle.simulator;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import toggle.ble.com.bl600ledtoggle.LedController;
+import toggle.ble.com.bl600ledtoggle.LedStateCodec;
+
+import static org.junit.Assert.*;
+import static toggle.ble.com.bl600ledtoggle.simulator.SimulatedSessions.fastLink;
+
+public class LatestWriteModeTest {
+
+    private static final String ADDRESS = "00:16:A4:12:34:56";
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    @Rule
+    public final SimulatedSessions mSessions = new SimulatedSessions();
+
+    @Test
+    public void burstsCollapseToTheEndStateInLatestMode() throws Exception {
+        int[] burst = new int[20];
+        for (int i = 0; i < burst.length; i++) {
+            burst[i] = i & 1;                                                           //Rapid taps ending with the LED on
+        }
+        long[] writes = new long[2];
+        long[] airTime = new long[2];
+        for (LedController.WriteMode mode : LedController.WriteMode.values()) {
+            SimulatedBl600 board = new SimulatedBl600(ADDRESS, LedStateCodec.Mode.BINARY);
+            SimulatedSession session = mSessions.open(board, fastLink());
+            assertTrue(session.connect(TIMEOUT_MILLIS));
+            session.setWriteMode(mode);
+            long writesBefore = board.getWriteCount();
+            long airTimeBefore = session.getGatt().getAirTimeMicros();
+
+            assertTrue(session.sendBurst(burst, 0, TIMEOUT_MILLIS));
+            assertEquals(1, board.getLedState());
+            writes[mode.ordinal()] = board.getWriteCount() - writesBefore;
+            airTime[mode.ordinal()] = session.getGatt().getAirTimeMicros() - airTimeBefore;
+        }
+        assertEquals(20, writes[LedController.WriteMode.ORDERED.ordinal()]);              //Patterns keep every step
+        assertTrue(writes[LedController.WriteMode.LATEST.ordinal()] < 5);
+        assertTrue(airTime[LedController.WriteMode.LATEST.ordinal()] < airTime[LedController.WriteMode.ORDERED.ordinal()]);
+    }
+}
@@ -0,0 +1,44 @@
+package toggle.ble.com.bl600ledtoggle.simulator;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import toggle.ble.com.bl600ledtoggle.LedStateCodec;
+
+import static org.junit.Assert.*;
+import static toggle.ble.com.bl600ledtoggle.simulator.SimulatedSessions.fastLink;
+
+public class LedStateCacheTest {
+
+    private static final String ADDRESS = "00:16:A4:12:34:56";
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    @Rule
+    public final SimulatedSessions mSessions = new SimulatedSessions();
+
+    @Test
+    public void pollingIsAnsweredFromNotifiedState() throws Exception {
+        SimulatedBl600 board = new SimulatedBl600(ADDRESS, LedStateCodec.Mode.BINARY);
+        SimulatedSession session = mSessions.open(board, fastLink());
+        assertTrue(session.connect(TIMEOUT_MILLIS));
+        assertTrue(session.toggle(TIMEOUT_MILLIS));
+
+        long packets = session.getGatt().getPacketCount();
+        for (int i = 0; i < 20; i++) {
+            assertEquals(1, session.read(TIMEOUT_MILLIS).state);
+        }
+        assertEquals(packets, session.getGatt().getPacketCount());                      //20 reads, nothing over the air
+        assertEquals(20, session.getSession().getStateCache().getHits());
+
+        board.pressButton(0);                                                           //Changed at the board, seen through the notification
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (session.read(TIMEOUT_MILLIS).state != 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(1, session.getSession().getStateCache().getMisses());             //Only the first read after connecting went out
+
+        packets = session.getGatt().getPacketCount();
+        assertEquals(0, session.read(true, TIMEOUT_MILLIS).state);                      //Forced reads still go over the air
+        assertTrue(session.getGatt().getPacketCount() > packets);
+    }
+}
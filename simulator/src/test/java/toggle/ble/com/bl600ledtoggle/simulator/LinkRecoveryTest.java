@@ -0,0 +1,67 @@
+package toggle.ble.com.bl600ledtoggle.simulator;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import toggle.ble.com.bl600ledtoggle.LedStateCodec;
+import toggle.ble.com.bl600ledtoggle.ReconnectPolicy;
+
+import static org.junit.Assert.*;
+import static toggle.ble.com.bl600ledtoggle.simulator.SimulatedSessions.fastLink;
+
+public class LinkRecoveryTest {
+
+    private static final String ADDRESS = "00:16:A4:12:34:56";
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    @Rule
+    public final SimulatedSessions mSessions = new SimulatedSessions();
+
+    @Test
+    public void commandQueuedWhenTheBoardLeavesIsDeliveredOnRecovery() throws Exception {
+        SimulatedBl600 board = new SimulatedBl600(ADDRESS, LedStateCodec.Mode.BINARY);
+        final SimulatedSession session = mSessions.open(board, fastLink().setSupervisionTimeout(50000)
+                .setConnectTimeout(20000));
+        session.setReconnectPolicy(new ReconnectPolicy().setBackoff(20, 200).setBackoffAttempts(3).setSeed(3));
+        assertTrue(session.connect(TIMEOUT_MILLIS));
+
+        session.getGatt().setInRange(false);
+        Thread comesBack = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(400);                                                  //Past the direct attempts, left to autoConnect
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                session.getGatt().setInRange(true);
+            }
+        };
+        comesBack.start();
+        assertTrue(session.toggle(TIMEOUT_MILLIS));                                     //Lost with the link, held and sent again
+        comesBack.join();
+
+        assertEquals(1, board.getLedState());
+        assertEquals(1, session.getSession().getRecoveryCount());
+        assertTrue(session.getSession().getLastRecoveryMillis() >= 300);
+        assertEquals(1, session.getMetrics().recoveryTime.snapshot().getCount());
+        assertTrue(session.getGatt().getResetCount() > 0);                              //Each timed out direct attempt replaced the client
+    }
+
+    @Test
+    public void stuckStackIsResetBeforeTheNextAttempt() throws Exception {
+        SimulatedBl600 board = new SimulatedBl600(ADDRESS, LedStateCodec.Mode.BINARY);
+        SimulatedSession session = mSessions.open(board, fastLink());
+        session.setReconnectPolicy(new ReconnectPolicy().setSeed(1));
+        assertTrue(session.connect(TIMEOUT_MILLIS));
+
+        session.getGatt().breakStack();
+        session.getGatt().disconnect();                                                 //Link lost without the app asking
+        assertTrue(session.awaitRecovery(TIMEOUT_MILLIS));
+        assertEquals(1, session.getGatt().getResetCount());
+        assertEquals(1, session.getSession().getResetCount());
+        assertTrue(session.toggle(TIMEOUT_MILLIS));
+        assertEquals(1, board.getLedState());
+    }
+}
@@ -0,0 +1,28 @@
+package toggle.ble.com.bl600ledtoggle.simulator;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ScanSimulationTest {
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // The adaptive duty cycle keeps the radio off far longer than continuous scanning and still finds every board
+    // quickly. ScanSimulation.main prints the numbers for a range of duty cycles.
+    @Test
+    public void adaptiveScanFindsBoardsOnLittleRadioTime() {
+        ScanSimulation.Result continuous = ScanSimulation.run(10000, 10000, 0, 7);
+        ScanSimulation.Result adaptive = ScanSimulation.run(10000, 10000, 80000, 7);
+        assertEquals(continuous.getBoards(), continuous.getFound());
+        assertEquals(adaptive.getBoards(), adaptive.getFound());                        //No board missed
+        assertTrue(adaptive.toString(), adaptive.getRadioOnMillis() < continuous.getRadioOnMillis() / 3);
+        assertTrue(adaptive.toString(), adaptive.getMedianDiscoveryMillis() < 30000);   //Found within 30 s at the median
+    }
+
+    @Test
+    public void fixedDutyCycleKeepsTheRadioOnForItsShare() {
+        ScanSimulation.Result result = ScanSimulation.run(2000, 8000, 0, 7);
+        assertEquals(25, result.getRadioOnPercent(), 0.5);
+        assertEquals(result.getBoards(), result.getFound());
+    }
+}
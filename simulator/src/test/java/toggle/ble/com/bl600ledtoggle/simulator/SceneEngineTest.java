@@ -0,0 +1,106 @@
+package toggle.ble.com.bl600ledtoggle.simulator;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import toggle.ble.com.bl600ledtoggle.LedController;
+import toggle.ble.com.bl600ledtoggle.LedGateway;
+import toggle.ble.com.bl600ledtoggle.LedStateCodec;
+import toggle.ble.com.bl600ledtoggle.SceneEngine;
+
+import static org.junit.Assert.*;
+
+public class SceneEngineTest {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+    private static final long[] INTERVALS = {7500, 15000, 30000, 50000};
+    private static final long ACK_SLACK_NANOS = 15000000L;                              //Up to one 10 ms connection event wait, plus thread hand-offs
+
+    @Rule
+    public final SimulatedSessions mOpened = new SimulatedSessions();
+
+    private final SimulatedSession[] mSessions = new SimulatedSession[INTERVALS.length];
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Boards on links of different speed and jitter, in LATEST write mode like the gateway's, served by one gateway
+    private LedGateway connectBoards() throws Exception {
+        LedGateway gateway = new LedGateway();
+        for (int i = 0; i < INTERVALS.length; i++) {
+            SimulatedBl600 board = new SimulatedBl600("00:16:A4:12:34:5" + i, LedStateCodec.Mode.BINARY);
+            mSessions[i] = mOpened.open(board, new LinkModel().setInterval(INTERVALS[i]).setJitter(0.2)
+                    .setAdvertisingInterval(0).setSeed(i));
+            mSessions[i].setWriteMode(LedController.WriteMode.LATEST);
+            assertTrue(mSessions[i].connect(TIMEOUT_MILLIS));
+            gateway.addDevice(board.getAddress(), mSessions[i].getSession(), mSessions[i].getSessionThread());
+        }
+        return gateway;
+    }
+
+    @Test
+    public void scenesFlipBoardsOnLinksOfDifferentSpeedTogether() throws Exception {
+        LedGateway gateway = connectBoards();
+        long naive = medianSkew(null, 9);                                               //Every write sent at once
+        medianSkew(gateway, 5);                                                         //Learn the round trips
+        long synced = medianSkew(gateway, 15);
+        assertTrue(String.valueOf(naive), naive > 30000000L);                           //The 50 ms link lands well after the 7.5 ms one
+        assertTrue(synced + " of " + naive, synced < naive / 2);
+        assertTrue(synced <= SceneEngine.DEFAULT_SKEW_BOUND_NANOS);
+        assertEquals(20, gateway.getScenes().getSkewHistogram().snapshot().getCount());
+
+        for (SimulatedSession session : mSessions) {
+            String address = session.getGatt().getAddress();
+            assertEquals(20, gateway.getScenes().getEstimator(address).getSampleCount());
+            assertTrue(address, gateway.getScenes().getNotificationEstimator(address).getSampleCount() > 0);
+            assertEquals(0, session.getSession().getSupersededWrites());                //Scene writes are never coalesced
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Run scenes alternating every LED and return the median skew of the boards' own write times. A null gateway sends
+    // each scene from a fresh engine, which knows no round trips and so sends every write at once.
+    private long medianSkew(LedGateway gateway, int scenes) throws Exception {
+        long[] skews = new long[scenes];
+        for (int scene = 0; scene < scenes; scene++) {
+            SceneEngine.Scene states = new SceneEngine.Scene();
+            for (SimulatedSession session : mSessions) {
+                states.set(session.getGatt().getAddress(), (scene + 1) & 1);
+            }
+            final CountDownLatch done = new CountDownLatch(1);
+            final SceneEngine.SceneResult[] result = new SceneEngine.SceneResult[1];
+            SceneEngine.Listener listener = new SceneEngine.Listener() {
+                @Override
+                public void onSceneComplete(SceneEngine.SceneResult sceneResult) {
+                    result[0] = sceneResult;
+                    done.countDown();
+                }
+            };
+            if (gateway != null) {
+                gateway.runScene(states, listener);
+            }
+            else {
+                SceneEngine fresh = new SceneEngine();
+                for (SimulatedSession session : mSessions) {
+                    fresh.addDevice(session.getGatt().getAddress(), session.getSession(), session.getSessionThread());
+                }
+                fresh.run(states, listener);
+            }
+            assertTrue(done.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+            assertTrue(result[0].getFailed().isEmpty());
+
+            long first = Long.MAX_VALUE, last = Long.MIN_VALUE;
+            for (SimulatedSession session : mSessions) {
+                long written = session.getGatt().getPeripheral().getLastWriteNanos();
+                first = Math.min(first, written);
+                last = Math.max(last, written);
+            }
+            skews[scene] = last - first;
+            assertEquals(skews[scene], result[0].getSkewNanos(), ACK_SLACK_NANOS);      //The reported skew matches the boards
+        }
+        Arrays.sort(skews);
+        return skews[scenes / 2];
+    }
+}
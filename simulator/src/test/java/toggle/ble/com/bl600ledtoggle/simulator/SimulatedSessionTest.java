@@ -0,0 +1,146 @@
+package toggle.ble.com.bl600ledtoggle.simulator;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import toggle.ble.com.bl600ledtoggle.LedBatchWriter;
+import toggle.ble.com.bl600ledtoggle.LedCommandBatch;
+import toggle.ble.com.bl600ledtoggle.LedState;
+import toggle.ble.com.bl600ledtoggle.LedStateCodec;
+import toggle.ble.com.bl600ledtoggle.LinkProfile;
+
+import static org.junit.Assert.*;
+import static toggle.ble.com.bl600ledtoggle.simulator.SimulatedSessions.fastLink;
+
+public class SimulatedSessionTest {
+
+    private static final String ADDRESS = "00:16:A4:12:34:56";
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    @Rule
+    public final SimulatedSessions mSessions = new SimulatedSessions();
+
+    @Test
+    public void connectsDiscoversAndToggles() throws Exception {
+        SimulatedBl600 board = new SimulatedBl600(ADDRESS, LedStateCodec.Mode.BINARY);
+        SimulatedSession session = mSessions.open(board, LinkModel.instant());
+
+        assertTrue(session.connect(TIMEOUT_MILLIS));
+        assertEquals(LedStateCodec.Mode.BINARY, session.getCodec().getMode());
+        assertEquals(LedBatchWriter.Mode.FRAMED, session.getBatchWriter().getMode());
+        assertTrue(board.isSubscribed());
+
+        assertTrue(session.toggle(TIMEOUT_MILLIS));
+        assertEquals(1, board.getLedState());
+        assertEquals(1, session.getGatt().getNotificationCount());
+        LedState read = session.read(TIMEOUT_MILLIS);
+        assertNotNull(read);
+        assertEquals(1, read.state);
+
+        assertTrue(session.toggle(TIMEOUT_MILLIS));
+        assertEquals(0, board.getLedState());
+    }
+
+    @Test
+    public void legacyFirmwareKeepsStringFormat() throws Exception {
+        SimulatedBl600 board = new SimulatedBl600(ADDRESS, LedStateCodec.Mode.LEGACY_STRING);
+        SimulatedSession session = mSessions.open(board, fastLink());
+
+        assertTrue(session.connect(TIMEOUT_MILLIS));
+        assertEquals(LedStateCodec.Mode.LEGACY_STRING, session.getCodec().getMode());
+        assertEquals(LedBatchWriter.Mode.PER_WRITE, session.getBatchWriter().getMode());
+        assertTrue(session.toggle(TIMEOUT_MILLIS));
+        assertEquals(1, board.getLedState());
+        assertEquals(1, session.read(TIMEOUT_MILLIS).state);                           //Read back past the leading byte
+    }
+
+    @Test
+    public void indicationsAreDeliveredWhenTheBoardIndicates() throws Exception {
+        SimulatedBl600 board = new SimulatedBl600(ADDRESS, LedStateCodec.Mode.BINARY);
+        board.setIndicate(true);
+        SimulatedSession session = mSessions.open(board, fastLink());
+
+        assertTrue(session.connect(TIMEOUT_MILLIS));
+        assertTrue(session.toggle(TIMEOUT_MILLIS));
+        assertEquals(1, session.getGatt().getIndicationCount());
+        assertEquals(0, session.getGatt().getNotificationCount());
+    }
+
+    @Test
+    public void mtuIsLimitedByThePeripheral() throws Exception {
+        SimulatedBl600 board = new SimulatedBl600(ADDRESS, LedStateCodec.Mode.BINARY);
+        SimulatedSession session = mSessions.open(board, fastLink().setMaxMtu(100));
+        session.setProfile(LinkProfile.HIGH_THROUGHPUT);
+
+        assertTrue(session.connect(TIMEOUT_MILLIS));
+        assertEquals(100, session.getGatt().getMtu());
+        assertEquals(100, session.getTuner().getFrameMtu());
+        assertEquals(100, session.getBatchWriter().getMtu());
+    }
+
+    @Test
+    public void batchFramesAreSizedByProfile() throws Exception {
+        SimulatedBl600 board = new SimulatedBl600(ADDRESS, LedStateCodec.Mode.BINARY);
+        SimulatedSession session = mSessions.open(board, fastLink());
+        assertTrue(session.connect(TIMEOUT_MILLIS));
+        LedCommandBatch batch = LedCommandBatch.blink(20, 100, 100);
+
+        assertTrue(session.send(batch, TIMEOUT_MILLIS));                                //LOW_LATENCY frames fit 14 steps at MTU 64
+        assertEquals(3, board.getFrameCount());
+        assertEquals(40, board.getStepCount());
+
+        session.setProfile(LinkProfile.HIGH_THROUGHPUT);
+        assertTrue(session.send(batch, TIMEOUT_MILLIS));
+        assertEquals(4, board.getFrameCount());
+        assertEquals(80, board.getStepCount());
+        assertEquals(80 * 100, board.getHoldMillis());
+        assertEquals(0, board.getLedState());
+    }
+
+    @Test
+    public void bondedReconnectUsesCachedLayoutAndKeepsNotifications() throws Exception {
+        SimulatedBl600 board = new SimulatedBl600(ADDRESS, LedStateCodec.Mode.BINARY);
+        board.setBonded(true);
+        SimulatedSession session = mSessions.open(board, fastLink());
+
+        assertTrue(session.connect(TIMEOUT_MILLIS));
+        assertTrue(session.toggle(TIMEOUT_MILLIS));
+        assertTrue(session.disconnect(TIMEOUT_MILLIS));
+        assertTrue(board.isSubscribed());
+
+        assertTrue(session.connect(TIMEOUT_MILLIS));
+        assertEquals(1, session.getSetup().getCacheMisses());
+        assertEquals(1, session.getSetup().getCacheHits());
+        assertTrue(session.toggle(TIMEOUT_MILLIS));
+        assertEquals(2, session.getGatt().getNotificationCount());
+    }
+
+    @Test
+    public void sameSeedGivesSameLossPattern() throws Exception {
+        long[] airTime = new long[2];
+        long[] retransmissions = new long[2];
+        for (int run = 0; run < 2; run++) {
+            SimulatedBl600 board = new SimulatedBl600(ADDRESS, LedStateCodec.Mode.BINARY);
+            SimulatedSession session = mSessions.open(board, fastLink().setLossRate(0.2).setSeed(42));
+            assertTrue(session.connect(TIMEOUT_MILLIS));
+            for (int i = 0; i < 20; i++) {
+                assertTrue(session.toggle(TIMEOUT_MILLIS));
+            }
+            airTime[run] = session.getGatt().getAirTimeMicros();
+            retransmissions[run] = session.getGatt().getRetransmissionCount();
+        }
+        assertTrue(retransmissions[0] > 0);
+        assertEquals(retransmissions[0], retransmissions[1]);
+        assertEquals(airTime[0], airTime[1]);
+    }
+
+    @Test
+    public void sustainedLossDropsTheLink() throws Exception {
+        SimulatedBl600 board = new SimulatedBl600(ADDRESS, LedStateCodec.Mode.BINARY);
+        SimulatedSession session = mSessions.open(board, fastLink().setLossRate(0.9).setSupervisionTimeout(1000)
+                .setSeed(7));
+
+        assertFalse(session.connect(TIMEOUT_MILLIS));
+        assertFalse(session.getGatt().isConnected());
+    }
+}
@@ -0,0 +1,52 @@
+package toggle.ble.com.bl600ledtoggle.simulator;
+
+import org.junit.rules.ExternalResource;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import toggle.ble.com.bl600ledtoggle.GattLayoutCache;
+import toggle.ble.com.bl600ledtoggle.GattTraceRecorder;
+
+/**
+ * Opens simulated sessions for a test, with their layout cache in a temporary folder, and closes them when it ends.
+ */
+public class SimulatedSessions extends ExternalResource {
+
+    private final TemporaryFolder mFolder = new TemporaryFolder();
+    private final List<SimulatedSession> mSessions = new ArrayList<SimulatedSession>();
+
+    public static LinkModel fastLink() {
+        return new LinkModel().setInterval(200).setAdvertisingInterval(500);
+    }
+
+    public SimulatedSession open(SimulatedBl600 peripheral, LinkModel model) {
+        return open(peripheral, model, null);
+    }
+
+    public SimulatedSession open(SimulatedBl600 peripheral, LinkModel model, GattTraceRecorder trace) {
+        SimulatedSession session = new SimulatedSession(peripheral, model, new GattLayoutCache(mFolder.getRoot()), trace);
+        mSessions.add(session);
+        return session;
+    }
+
+    public File newFile(String name) throws IOException {
+        return mFolder.newFile(name);
+    }
+
+    @Override
+    protected void before() throws Throwable {
+        mFolder.create();
+    }
+
+    @Override
+    protected void after() {
+        for (SimulatedSession session : mSessions) {
+            session.close();
+        }
+        mFolder.delete();
+    }
+}
@@ -0,0 +1,67 @@
+package toggle.ble.com.bl600ledtoggle.simulator;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import toggle.ble.com.bl600ledtoggle.GattTrace;
+import toggle.ble.com.bl600ledtoggle.GattTraceRecorder;
+import toggle.ble.com.bl600ledtoggle.GattTraceReplayer;
+import toggle.ble.com.bl600ledtoggle.LedStateCodec;
+
+import static org.junit.Assert.*;
+
+public class TraceReplayTest {
+
+    private static final String ADDRESS = "00:16:A4:12:34:56";
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    @Rule
+    public final SimulatedSessions mSessions = new SimulatedSessions();
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Record a session on a 7.5 ms link that loses packets, then replay its trace in real time, ten times faster and
+    // flat out. Every replay handles the same operations and notifications.
+    @Test
+    public void recordedTraceReplaysAtEverySpeed() throws Exception {
+        File file = mSessions.newFile("session.gtrc");
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        GattTraceRecorder recorder = new GattTraceRecorder(file, ADDRESS, writer);
+        SimulatedBl600 board = new SimulatedBl600(ADDRESS, LedStateCodec.Mode.BINARY);
+        SimulatedSession session = mSessions.open(board, new LinkModel().setInterval(7500).setAdvertisingInterval(0)
+                .setLossRate(0.02).setSeed(7), recorder);
+        assertTrue(session.connect(TIMEOUT_MILLIS));
+        for (int i = 0; i < 50; i++) {
+            assertTrue(session.toggle(TIMEOUT_MILLIS));
+            if (i % 10 == 0) {
+                assertNotNull(session.read(true, TIMEOUT_MILLIS));
+            }
+        }
+        assertTrue(session.disconnect(TIMEOUT_MILLIS));
+        recorder.close();
+        writer.shutdown();
+        assertTrue(writer.awaitTermination(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(0, recorder.getDroppedCount());
+
+        GattTrace trace = GattTrace.read(file);
+        GattTraceReplayer replayer = new GattTraceReplayer(trace);
+        GattTraceReplayer.Result realTime = replayer.replay(1, TIMEOUT_MILLIS);
+        GattTraceReplayer.Result tenTimes = replayer.replay(10, TIMEOUT_MILLIS);
+        GattTraceReplayer.Result flatOut = replayer.replay(GattTraceReplayer.AS_FAST_AS_POSSIBLE, TIMEOUT_MILLIS);
+        for (GattTraceReplayer.Result result : Arrays.asList(realTime, tenTimes, flatOut)) {
+            assertTrue(result.toString(), result.isComplete());
+            assertEquals(realTime.getOperations(), result.getOperations());
+            assertEquals(realTime.getNotifications(), result.getNotifications());
+            assertEquals(0, result.getDecodeFailures());
+        }
+        assertTrue(realTime.getOperations() >= 55);                                     //50 writes, 5 reads and the setup
+        assertTrue(realTime.getDurationNanos() >= trace.getDurationNanos());
+        assertTrue(tenTimes.getDurationNanos() < realTime.getDurationNanos() / 4);
+        assertTrue(flatOut.getDurationNanos() < tenTimes.getDurationNanos());
+    }
+}